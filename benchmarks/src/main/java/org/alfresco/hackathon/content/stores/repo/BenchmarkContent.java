@@ -0,0 +1,149 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates reproducible content for benchmarks. Content is sliced from a shared block of random bytes, with a unique sequence number
+ * stamped into the first bytes of each new content, so unique content can be generated without the cost of generating random bytes
+ * dominating the measurement.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class BenchmarkContent
+{
+
+    /**
+     * Distributions of content sizes.
+     */
+    public static enum SizeDistribution
+    {
+        /** metadata-like content between 256 bytes and 16 KiB */
+        SMALL(256, 16 * 1024),
+        /** office document-like content between 16 KiB and 1 MiB */
+        MEDIUM(16 * 1024, 1024 * 1024),
+        /** media-like content between 1 MiB and 16 MiB */
+        LARGE(1024 * 1024, 16 * 1024 * 1024),
+        /** content between 256 bytes and 16 MiB with most content being small */
+        MIXED(256, 16 * 1024 * 1024);
+
+        private final int minSize;
+
+        private final int maxSize;
+
+        private SizeDistribution(final int minSize, final int maxSize)
+        {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return the maximum size of content
+         */
+        public int getMaxSize()
+        {
+            return this.maxSize;
+        }
+
+        /**
+         * Determines the size of the next content. Sizes are distributed log-uniformly between the minimum and maximum size, so the number of
+         * contents falls off with their size as in typical repositories.
+         *
+         * @param random
+         *            the source of randomness
+         * @return the size
+         */
+        public int nextSize(final Random random)
+        {
+            final double logMin = Math.log(this.minSize);
+            final double logMax = Math.log(this.maxSize);
+            return (int) Math.round(Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+        }
+    }
+
+    private final byte[] block;
+
+    private final Random random;
+
+    private long sequence;
+
+    /**
+     * Creates a new generator instance.
+     *
+     * @param maxSize
+     *            the maximum size of content to generate
+     * @param seed
+     *            the seed of the random bytes
+     */
+    public BenchmarkContent(final int maxSize, final long seed)
+    {
+        this.random = new Random(seed);
+        // content is sliced at random offsets, so provide some more bytes than the largest content
+        this.block = new byte[maxSize + 64 * 1024];
+        this.random.nextBytes(this.block);
+    }
+
+    /**
+     * Creates a new, empty directory for the files of a benchmark.
+     *
+     * @param prefix
+     *            the prefix of the directory name
+     * @return the directory
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public static File createTempDirectory(final String prefix) throws IOException
+    {
+        final File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir())
+        {
+            throw new IOException("Failed to create temporary directory " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * @return the source of randomness of this generator
+     */
+    public Random getRandom()
+    {
+        return this.random;
+    }
+
+    /**
+     * Generates new content that is guaranteed to differ from all content previously generated by this instance.
+     *
+     * @param size
+     *            the size of the content
+     * @return the content
+     */
+    public byte[] next(final int size)
+    {
+        final byte[] content = new byte[size];
+        this.next(content, size);
+        return content;
+    }
+
+    /**
+     * Generates new content that is guaranteed to differ from all content previously generated by this instance into an existing buffer,
+     * avoiding the allocation of large arrays in measured code.
+     *
+     * @param buffer
+     *            the buffer to fill
+     * @param size
+     *            the size of the content
+     */
+    public void next(final byte[] buffer, final int size)
+    {
+        final int offset = this.random.nextInt(this.block.length - size + 1);
+        System.arraycopy(this.block, offset, buffer, 0, size);
+
+        long sequence = this.sequence++;
+        for (int idx = 0; idx < Math.min(8, size); idx++)
+        {
+            buffer[idx] = (byte) sequence;
+            sequence >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the lookup operations of a {@link HashBasedFileContentStore} - deriving content URLs from digests and creating readers for
+ * existing and missing content.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentStoreLookupBenchmark
+{
+
+    private static final int URL_COUNT = 1024;
+
+    @Param({ "10000" })
+    public int storedContentCount;
+
+    @Param({ "false", "true" })
+    public boolean digestIndexEnabled;
+
+    private File rootDirectory;
+
+    private HashBasedFileContentStore store;
+
+    private String[] digests;
+
+    private String[] existingUrls;
+
+    private String[] missingUrls;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, NoSuchAlgorithmException
+    {
+        ServiceStubs.beginTransactionScope();
+
+        this.rootDirectory = BenchmarkContent.createTempDirectory("contentStoreLookupBenchmark");
+        this.store = new HashBasedFileContentStore(this.rootDirectory.getAbsolutePath());
+        this.store.setMessageDigestType("SHA-512");
+        this.store.setDigestIndexEnabled(this.digestIndexEnabled);
+        this.store.afterPropertiesSet();
+
+        final BenchmarkContent content = new BenchmarkContent(1024, 42);
+        final String[] storedUrls = new String[this.storedContentCount];
+        for (int idx = 0; idx < this.storedContentCount; idx++)
+        {
+            final ContentWriter writer = this.store.getWriter(new ContentContext(null, null));
+            final OutputStream os = writer.getContentOutputStream();
+            try
+            {
+                os.write(content.next(256));
+            }
+            finally
+            {
+                os.close();
+            }
+            storedUrls[idx] = writer.getContentUrl();
+        }
+
+        final MessageDigest digest = MessageDigest.getInstance("SHA-512");
+        this.digests = new String[URL_COUNT];
+        this.existingUrls = new String[URL_COUNT];
+        this.missingUrls = new String[URL_COUNT];
+        for (int idx = 0; idx < URL_COUNT; idx++)
+        {
+            this.existingUrls[idx] = storedUrls[content.getRandom().nextInt(this.storedContentCount)];
+            // digest of content that has never been written
+            this.digests[idx] = new String(Hex.encodeHex(digest.digest(content.next(256))));
+            this.missingUrls[idx] = this.store.createContentUrl(this.digests[idx]);
+        }
+
+        ServiceStubs.endTransactionScope();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        this.store.destroy();
+        FileUtils.deleteDirectory(this.rootDirectory);
+    }
+
+    @Benchmark
+    public String createContentUrl()
+    {
+        return this.store.createContentUrl(this.digests[this.nextIndex()]);
+    }
+
+    @Benchmark
+    public ContentReader getReaderExisting()
+    {
+        return this.store.getReader(this.existingUrls[this.nextIndex()]);
+    }
+
+    @Benchmark
+    public ContentReader getReaderMissing()
+    {
+        return this.store.getReader(this.missingUrls[this.nextIndex()]);
+    }
+
+    protected int nextIndex()
+    {
+        // benign race if run with multiple threads - only distributes lookups
+        final int index = this.next;
+        this.next = (index + 1) % URL_COUNT;
+        return index;
+    }
+}
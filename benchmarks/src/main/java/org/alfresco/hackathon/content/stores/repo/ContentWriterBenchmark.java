@@ -0,0 +1,212 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks writing new content to a {@link HashBasedFileContentStore} via {@link HashBasedFileContentWriter} for different content size
+ * distributions and ratios of content that already exists in the store. Each iteration starts with a fresh store that only contains the
+ * pool of content that is written again as duplicates.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentWriterBenchmark
+{
+
+    private static final int DUPLICATE_POOL_SIZE = 32;
+
+    @Param({ "SMALL", "MEDIUM", "MIXED" })
+    public String sizeDistribution;
+
+    @Param({ "0.0", "0.5", "0.9" })
+    public double duplicateRatio;
+
+    @Param({ "SHA-512" })
+    public String digestType;
+
+    private File rootDirectory;
+
+    private HashBasedFileContentStore store;
+
+    private BenchmarkContent content;
+
+    private BenchmarkContent.SizeDistribution sizes;
+
+    private byte[][] duplicates;
+
+    private byte[] buffer;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException
+    {
+        ServiceStubs.beginTransactionScope();
+
+        this.rootDirectory = BenchmarkContent.createTempDirectory("contentWriterBenchmark");
+        this.store = new HashBasedFileContentStore(this.rootDirectory.getAbsolutePath());
+        this.store.setMessageDigestType(this.digestType);
+        this.store.afterPropertiesSet();
+
+        this.sizes = BenchmarkContent.SizeDistribution.valueOf(this.sizeDistribution);
+        this.content = new BenchmarkContent(this.sizes.getMaxSize(), 42);
+        this.buffer = new byte[this.sizes.getMaxSize()];
+
+        this.duplicates = new byte[DUPLICATE_POOL_SIZE][];
+        for (int idx = 0; idx < DUPLICATE_POOL_SIZE; idx++)
+        {
+            this.duplicates[idx] = this.content.next(this.sizes.nextSize(this.content.getRandom()));
+            this.write(this.duplicates[idx], this.duplicates[idx].length);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException
+    {
+        this.store.destroy();
+        FileUtils.deleteDirectory(this.rootDirectory);
+
+        ServiceStubs.endTransactionScope();
+    }
+
+    /**
+     * Writes content through a new writer and publishes it to the store when the writer is closed.
+     *
+     * @return the content URL of the written content
+     * @throws IOException
+     *             if the content cannot be written
+     */
+    @Benchmark
+    public String writeAndCommit() throws IOException
+    {
+        final Random random = this.content.getRandom();
+        final String contentUrl;
+        if (random.nextDouble() < this.duplicateRatio)
+        {
+            final byte[] duplicate = this.duplicates[random.nextInt(DUPLICATE_POOL_SIZE)];
+            contentUrl = this.write(duplicate, duplicate.length);
+        }
+        else
+        {
+            final int size = this.sizes.nextSize(random);
+            this.content.next(this.buffer, size);
+            contentUrl = this.write(this.buffer, size);
+        }
+        return contentUrl;
+    }
+
+    /**
+     * Publishes content already written to a staging file, excluding the cost of writing and hashing it.
+     *
+     * @param staged
+     *            the staged content
+     * @return {@code true} if the content was newly stored
+     */
+    @Benchmark
+    public boolean commit(final StagedContent staged)
+    {
+        return this.store.publishStagingFile(staged.stagingFile, staged.contentUrl, null);
+    }
+
+    protected String write(final byte[] bytes, final int length) throws IOException
+    {
+        final ContentWriter writer = this.store.getWriter(new ContentContext(null, null));
+        final OutputStream os = writer.getContentOutputStream();
+        try
+        {
+            os.write(bytes, 0, length);
+        }
+        finally
+        {
+            os.close();
+        }
+        return writer.getContentUrl();
+    }
+
+    /**
+     * Content written to a staging file of the store before each invocation of {@link ContentWriterBenchmark#commit(StagedContent)}.
+     */
+    @State(Scope.Thread)
+    public static class StagedContent
+    {
+
+        private File stagingFile;
+
+        private String contentUrl;
+
+        @Setup(Level.Invocation)
+        public void setUp(final ContentWriterBenchmark benchmark) throws IOException, NoSuchAlgorithmException
+        {
+            final Random random = benchmark.content.getRandom();
+            final byte[] bytes;
+            final int length;
+            if (random.nextDouble() < benchmark.duplicateRatio)
+            {
+                bytes = benchmark.duplicates[random.nextInt(DUPLICATE_POOL_SIZE)];
+                length = bytes.length;
+            }
+            else
+            {
+                bytes = benchmark.buffer;
+                length = benchmark.sizes.nextSize(random);
+                benchmark.content.next(bytes, length);
+            }
+
+            this.stagingFile = benchmark.store.createStagingFile();
+            final OutputStream os = new FileOutputStream(this.stagingFile);
+            try
+            {
+                os.write(bytes, 0, length);
+            }
+            finally
+            {
+                os.close();
+            }
+
+            final DigestEngine engine = DigestEngines.acquire(benchmark.digestType);
+            try
+            {
+                engine.update(bytes, 0, length);
+                this.contentUrl = benchmark.store.createContentUrl(new String(Hex.encodeHex(engine.digest())));
+            }
+            finally
+            {
+                DigestEngines.release(engine);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown()
+        {
+            // no-op if the file has been published
+            FileUtils.deleteQuietly(this.stagingFile);
+        }
+    }
+}
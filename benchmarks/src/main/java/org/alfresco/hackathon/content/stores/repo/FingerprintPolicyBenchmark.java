@@ -0,0 +1,107 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the calculation of content fingerprints by {@link FingerprintPolicy} on content property updates. The node and content
+ * services are replaced by {@link ServiceStubs stubs} providing the content from a local file.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FingerprintPolicyBenchmark
+{
+
+    @Param({ "16384", "1048576", "16777216" })
+    public int contentSize;
+
+    @Param({ "SHA-512,MD5", "SHA-256" })
+    public String digestTypes;
+
+    private File contentFile;
+
+    private FingerprintPolicy policy;
+
+    private ExecutorService executor;
+
+    private final List<Map<QName, Serializable>> addedProperties = new ArrayList<Map<QName, Serializable>>();
+
+    private final NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "fingerprintPolicyBenchmark");
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        this.contentFile = File.createTempFile("fingerprintPolicyBenchmark", ".bin");
+        FileUtils.writeByteArrayToFile(this.contentFile, new BenchmarkContent(this.contentSize, 42).next(this.contentSize));
+
+        this.policy = new FingerprintPolicy();
+        this.policy.setNodeService(ServiceStubs.createNodeService(this.addedProperties));
+        this.policy.setContentService(ServiceStubs.createContentService(new ServiceStubs.ContentSource()
+        {
+
+            public ContentReader getReader(final NodeRef nodeRef, final QName propertyQName)
+            {
+                return new FileContentReader(FingerprintPolicyBenchmark.this.contentFile, "store://fingerprintPolicyBenchmark.bin");
+            }
+        }));
+        this.policy.setDigestTypes(this.digestTypes);
+
+        // afterPropertiesSet requires a policy component
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.policy.setExecutor(this.executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly(this.contentFile);
+        this.executor.shutdown();
+    }
+
+    /**
+     * Calculates the fingerprints of the content and passes them to the node service.
+     *
+     * @return the properties set by the policy
+     */
+    @Benchmark
+    public Map<QName, Serializable> onContentPropertyUpdate()
+    {
+        this.addedProperties.clear();
+        this.policy.onContentPropertyUpdate(this.nodeRef, ContentModel.PROP_CONTENT, null, null);
+        return this.addedProperties.get(0);
+    }
+}
@@ -0,0 +1,176 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Local stand-ins for Alfresco services and transactions so benchmarks can run without a repository. Service stubs are dynamic proxies that
+ * only implement the operations used by the benchmarked code - any other operation fails with an {@link UnsupportedOperationException}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public final class ServiceStubs
+{
+
+    private ServiceStubs()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Provides the content of nodes for a {@link ContentService} stub.
+     */
+    public interface ContentSource
+    {
+
+        /**
+         * Provides the reader for the content of a node.
+         *
+         * @param nodeRef
+         *            the node
+         * @param propertyQName
+         *            the content property
+         * @return the reader
+         */
+        ContentReader getReader(NodeRef nodeRef, QName propertyQName);
+    }
+
+    /**
+     * Creates a content service stub that only supports {@link ContentService#getReader(NodeRef, QName) getReader}.
+     *
+     * @param source
+     *            the source of content
+     * @return the stub
+     */
+    public static ContentService createContentService(final ContentSource source)
+    {
+        return createStub(ContentService.class, new InvocationHandler()
+        {
+
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                if ("getReader".equals(method.getName()) && args.length == 2)
+                {
+                    return source.getReader((NodeRef) args[0], (QName) args[1]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Creates a node service stub for nodes without any aspects that records all properties added to nodes.
+     *
+     * @param addedProperties
+     *            the list to record properties added via {@link NodeService#addProperties(NodeRef, Map) addProperties} in - may be
+     *            {@code null} to discard all changes
+     * @return the stub
+     */
+    public static NodeService createNodeService(final List<Map<QName, Serializable>> addedProperties)
+    {
+        return createStub(NodeService.class, new InvocationHandler()
+        {
+
+            @SuppressWarnings("unchecked")
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                final String name = method.getName();
+                final Object result;
+                if ("hasAspect".equals(name))
+                {
+                    result = Boolean.FALSE;
+                }
+                else if ("addProperties".equals(name))
+                {
+                    if (addedProperties != null)
+                    {
+                        addedProperties.add((Map<QName, Serializable>) args[1]);
+                    }
+                    result = null;
+                }
+                else if ("removeAspect".equals(name))
+                {
+                    result = null;
+                }
+                else
+                {
+                    throw new UnsupportedOperationException(name);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Activates transaction synchronization for the current thread so that transactional resources can be bound without an actual
+     * transaction.
+     */
+    public static void beginTransactionScope()
+    {
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.initSynchronization();
+        }
+    }
+
+    /**
+     * Discards all transactional resources of the current thread and deactivates transaction synchronization.
+     */
+    public static void endTransactionScope()
+    {
+        for (final Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet()))
+        {
+            TransactionSynchronizationManager.unbindResourceIfPossible(key);
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private static <T> T createStub(final Class<T> serviceInterface, final InvocationHandler handler)
+    {
+        return serviceInterface.cast(Proxy.newProxyInstance(ServiceStubs.class.getClassLoader(), new Class<?>[] { serviceInterface },
+                new InvocationHandler()
+                {
+
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                    {
+                        final Object result;
+                        if (method.getDeclaringClass() == Object.class)
+                        {
+                            // identity semantics for equals / hashCode / toString
+                            if ("equals".equals(method.getName()))
+                            {
+                                result = Boolean.valueOf(proxy == args[0]);
+                            }
+                            else if ("hashCode".equals(method.getName()))
+                            {
+                                result = Integer.valueOf(System.identityHashCode(proxy));
+                            }
+                            else
+                            {
+                                result = serviceInterface.getSimpleName() + "Stub";
+                            }
+                        }
+                        else
+                        {
+                            result = handler.invoke(proxy, method, args);
+                        }
+                        return result;
+                    }
+                }));
+    }
+}
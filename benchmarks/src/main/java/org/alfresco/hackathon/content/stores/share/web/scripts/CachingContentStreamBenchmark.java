@@ -0,0 +1,160 @@
+package org.alfresco.hackathon.content.stores.share.web.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.surf.util.ISO8601DateFormat;
+
+/**
+ * Benchmarks the lookup of locally cached content files by {@link CachingContentStream} - by content digest, by node identity and for
+ * content that has not been cached yet.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CachingContentStreamBenchmark
+{
+
+    private static final String[] DIGEST_TYPES = { "SHA-512", "MD5" };
+
+    private static final int PARAMS_COUNT = 1024;
+
+    @Param({ "10000" })
+    public int cachedFileCount;
+
+    private File cacheDirectory;
+
+    private CachingContentStream stream;
+
+    private CachingContentStream.StreamParams[] digestHits;
+
+    private CachingContentStream.StreamParams[] identityHits;
+
+    private CachingContentStream.StreamParams[] misses;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        this.cacheDirectory = File.createTempFile("cachingContentStreamBenchmark", "");
+        if (!this.cacheDirectory.delete() || !this.cacheDirectory.mkdir())
+        {
+            throw new IOException("Failed to create cache directory " + this.cacheDirectory);
+        }
+
+        this.stream = new CachingContentStream();
+        this.stream.localCacheDirectory = this.cacheDirectory;
+
+        final Random random = new Random(42);
+        final String[] primaryDigests = new String[this.cachedFileCount];
+        final String[] secondaryDigests = new String[this.cachedFileCount];
+        for (int idx = 0; idx < this.cachedFileCount; idx++)
+        {
+            primaryDigests[idx] = randomHex(random, 64);
+            secondaryDigests[idx] = randomHex(random, 16);
+
+            // half of the files are only cached with their secondary digest, so the lookup needs to check both digests
+            final boolean primary = idx % 2 == 0;
+            final File cachedFile = new File(new File(this.cacheDirectory, DIGEST_TYPES[primary ? 0 : 1]), (primary ? primaryDigests[idx]
+                    : secondaryDigests[idx]) + ".bin.cached");
+            FileUtils.touch(cachedFile);
+
+            FileUtils.touch(new File(this.cacheDirectory, "workspace+SpacesStore+node-" + idx + "+null.bin.cached"));
+        }
+
+        // identity cache entries must be newer than the modification of their node
+        final String modified = ISO8601DateFormat.format(new Date(System.currentTimeMillis() - 60000));
+
+        this.digestHits = new CachingContentStream.StreamParams[PARAMS_COUNT];
+        this.identityHits = new CachingContentStream.StreamParams[PARAMS_COUNT];
+        this.misses = new CachingContentStream.StreamParams[PARAMS_COUNT];
+        for (int idx = 0; idx < PARAMS_COUNT; idx++)
+        {
+            final int digestIdx = random.nextInt(this.cachedFileCount);
+            this.digestHits[idx] = createParams("node-" + digestIdx, primaryDigests[digestIdx], secondaryDigests[digestIdx], modified);
+
+            final int identityIdx = random.nextInt(this.cachedFileCount);
+            this.identityHits[idx] = createParams("node-" + identityIdx, null, null, modified);
+
+            this.misses[idx] = createParams("uncached-node-" + idx, randomHex(random, 64), randomHex(random, 16), modified);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory(this.cacheDirectory);
+    }
+
+    @Benchmark
+    public File getCachedFileByDigest()
+    {
+        return this.stream.getCachedFile(this.digestHits[this.nextIndex()]);
+    }
+
+    @Benchmark
+    public File getCachedFileByIdentity()
+    {
+        return this.stream.getCachedFile(this.identityHits[this.nextIndex()]);
+    }
+
+    @Benchmark
+    public File getCachedFileMiss()
+    {
+        return this.stream.getCachedFile(this.misses[this.nextIndex()]);
+    }
+
+    protected int nextIndex()
+    {
+        final int index = this.next;
+        this.next = (index + 1) % PARAMS_COUNT;
+        return index;
+    }
+
+    protected static CachingContentStream.StreamParams createParams(final String id, final String primaryDigest,
+            final String secondaryDigest, final String modified)
+    {
+        final CachingContentStream.StreamParams params = new CachingContentStream.StreamParams("workspace", "SpacesStore", id);
+        if (primaryDigest != null)
+        {
+            params.addDigest(DIGEST_TYPES[0], primaryDigest);
+            params.addDigest(DIGEST_TYPES[1], secondaryDigest);
+        }
+        params.setModifiedDateAsIso(modified);
+        return params;
+    }
+
+    protected static String randomHex(final Random random, final int bytes)
+    {
+        final StringBuilder builder = new StringBuilder(bytes * 2);
+        for (int idx = 0; idx < bytes; idx++)
+        {
+            final int value = random.nextInt(256);
+            builder.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xf, 16));
+        }
+        return builder.toString();
+    }
+}
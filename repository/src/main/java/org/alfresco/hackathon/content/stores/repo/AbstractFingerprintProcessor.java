@@ -0,0 +1,426 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Base class for background jobs calculating fingerprints of content outside of the transactions updating it. The content of each batch of
+ * {@link FingerprintTarget targets} is read and hashed on a bounded pool of worker threads, each within its own read-only transaction,
+ * before the fingerprints of the whole batch are stored in a single transaction. Should that transaction fail, the targets of the batch are
+ * stored in individual transactions so a single problematic node does not fail the whole batch.
+ *
+ * @param <T>
+ *            the type of targets
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public abstract class AbstractFingerprintProcessor<T extends FingerprintTarget> implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractFingerprintProcessor.class);
+
+    // well within the TTL of job locks
+    private static final long KEEP_ALIVE_INTERVAL = 15000l;
+
+    protected FingerprintPolicy fingerprintPolicy;
+
+    protected NodeService nodeService;
+
+    protected ContentService contentService;
+
+    protected BehaviourFilter behaviourFilter;
+
+    protected TransactionService transactionService;
+
+    protected JobLockService jobLockService;
+
+    protected int threadCount = 2;
+
+    /**
+     * @param fingerprintPolicy
+     *            the policy to calculate and store fingerprints with
+     */
+    public void setFingerprintPolicy(final FingerprintPolicy fingerprintPolicy)
+    {
+        this.fingerprintPolicy = fingerprintPolicy;
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param contentService
+     *            the contentService to set
+     */
+    public void setContentService(final ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+    /**
+     * @param behaviourFilter
+     *            the behaviourFilter to set
+     */
+    public void setBehaviourFilter(final BehaviourFilter behaviourFilter)
+    {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of threads to calculate fingerprints on
+     */
+    public void setThreadCount(final int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "fingerprintPolicy", this.fingerprintPolicy);
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "contentService", this.contentService);
+        PropertyCheck.mandatory(this, "behaviourFilter", this.behaviourFilter);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+        if (this.threadCount < 1)
+        {
+            throw new AlfrescoRuntimeException("Thread count must be at least 1");
+        }
+    }
+
+    /**
+     * Calculates the fingerprints of a batch of targets on the worker threads.
+     *
+     * @param targets
+     *            the targets
+     * @param executor
+     *            the executor providing the worker threads
+     * @param keepAlive
+     *            the operation to run regularly while waiting for the workers, e.g. to refresh a job lock
+     * @return the results in the order of the targets
+     * @throws InterruptedException
+     *             if the current thread was interrupted while waiting for the workers
+     */
+    protected List<FingerprintResult<T>> calculateFingerprints(final List<T> targets, final ExecutorService executor,
+            final Runnable keepAlive) throws InterruptedException
+    {
+        final List<Future<FingerprintResult<T>>> futures = new ArrayList<Future<FingerprintResult<T>>>(targets.size());
+        for (final T target : targets)
+        {
+            futures.add(executor.submit(new Callable<FingerprintResult<T>>()
+            {
+
+                public FingerprintResult<T> call()
+                {
+                    return AuthenticationUtil.runAsSystem(new RunAsWork<FingerprintResult<T>>()
+                    {
+
+                        public FingerprintResult<T> doWork()
+                        {
+                            return AbstractFingerprintProcessor.this.calculateFingerprints(target);
+                        }
+                    });
+                }
+            }));
+        }
+
+        final List<FingerprintResult<T>> results = new ArrayList<FingerprintResult<T>>(targets.size());
+        for (int idx = 0; idx < futures.size(); idx++)
+        {
+            try
+            {
+                FingerprintResult<T> result = null;
+                while (result == null)
+                {
+                    try
+                    {
+                        result = futures.get(idx).get(KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                    catch (final TimeoutException e)
+                    {
+                        keepAlive.run();
+                    }
+                }
+                results.add(result);
+            }
+            catch (final ExecutionException e)
+            {
+                LOGGER.error("Failed to calculate fingerprints for " + targets.get(idx), e.getCause());
+                results.add(new FingerprintResult<T>(targets.get(idx), null, null, true));
+            }
+        }
+        return results;
+    }
+
+    protected FingerprintResult<T> calculateFingerprints(final T target)
+    {
+        return this.transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<FingerprintResult<T>>()
+                {
+
+                    public FingerprintResult<T> execute() throws Throwable
+                    {
+                        final FingerprintResult<T> result;
+                        if (AbstractFingerprintProcessor.this.nodeService.exists(target.getNodeRef()))
+                        {
+                            final String contentUrl = AbstractFingerprintProcessor.this.getContentUrl(target);
+                            final ContentReader reader = contentUrl != null ? AbstractFingerprintProcessor.this.contentService.getReader(
+                                    target.getNodeRef(), target.getPropertyQName()) : null;
+                            result = new FingerprintResult<T>(target, contentUrl,
+                                    AbstractFingerprintProcessor.this.fingerprintPolicy.calculateFingerprints(target.getPropertyQName(),
+                                            reader));
+                        }
+                        else
+                        {
+                            result = new FingerprintResult<T>(target, null, null);
+                        }
+                        return result;
+                    }
+                }, true, true);
+    }
+
+    /**
+     * Stores the fingerprints of a batch of targets in a single transaction, falling back to individual transactions if that fails.
+     *
+     * @param results
+     *            the results to store
+     */
+    protected void storeFingerprints(final List<FingerprintResult<T>> results)
+    {
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        try
+        {
+            txnHelper.doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+
+                public Void execute() throws Throwable
+                {
+                    for (final FingerprintResult<T> result : results)
+                    {
+                        AbstractFingerprintProcessor.this.storeFingerprints(result);
+                    }
+                    return null;
+                }
+            }, false, true);
+        }
+        catch (final RuntimeException e)
+        {
+            LOGGER.warn("Failed to store fingerprints of batch - retrying individually", e);
+            for (final FingerprintResult<T> result : results)
+            {
+                try
+                {
+                    txnHelper.doInTransaction(new RetryingTransactionCallback<Void>()
+                    {
+
+                        public Void execute() throws Throwable
+                        {
+                            AbstractFingerprintProcessor.this.storeFingerprints(result);
+                            return null;
+                        }
+                    }, false, true);
+                }
+                catch (final RuntimeException individualEx)
+                {
+                    LOGGER.error("Failed to store fingerprints for " + result.getTarget(), individualEx);
+                    this.onStoreFailure(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the fingerprints of a single target within the current transaction.
+     *
+     * @param result
+     *            the result to store
+     */
+    protected abstract void storeFingerprints(FingerprintResult<T> result);
+
+    /**
+     * Handles a result that could not be stored even in an individual transaction.
+     *
+     * @param result
+     *            the result
+     */
+    protected void onStoreFailure(final FingerprintResult<T> result)
+    {
+        // NO-OP
+    }
+
+    /**
+     * Checks if the content of a target is still the content the fingerprints of a result have been calculated for.
+     *
+     * @param result
+     *            the result
+     * @return {@code true} if the content has not changed
+     */
+    protected boolean isContentUnchanged(final FingerprintResult<T> result)
+    {
+        final String contentUrl = this.getContentUrl(result.getTarget());
+        return contentUrl == null ? result.getContentUrl() == null : contentUrl.equals(result.getContentUrl());
+    }
+
+    protected String getContentUrl(final T target)
+    {
+        final ContentReader reader = this.contentService.getReader(target.getNodeRef(), target.getPropertyQName());
+        return reader != null && reader.exists() ? reader.getContentUrl() : null;
+    }
+
+    /**
+     * Updates the fingerprints of a target without the update being recorded as a modification of the node.
+     *
+     * @param result
+     *            the result to update the fingerprints from
+     */
+    protected void updateFingerprints(final FingerprintResult<T> result)
+    {
+        final T target = result.getTarget();
+        // fingerprints are system maintained and no modification of the node by the user
+        this.behaviourFilter.disableBehaviour(target.getNodeRef(), ContentModel.ASPECT_AUDITABLE);
+        try
+        {
+            this.fingerprintPolicy.updateFingerprints(target.getNodeRef(), target.getPropertyQName(), result.getFingerprints());
+        }
+        finally
+        {
+            this.behaviourFilter.enableBehaviour(target.getNodeRef(), ContentModel.ASPECT_AUDITABLE);
+        }
+    }
+
+    protected ExecutorService createExecutor()
+    {
+        final String threadNamePrefix = this.getClass().getSimpleName() + "-";
+        return new ThreadPoolExecutor(this.threadCount, this.threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable, threadNamePrefix + this.threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        // background fingerprinting should not compete with requests for CPU time
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * The fingerprints calculated for a target.
+     *
+     * @param <T>
+     *            the type of target
+     * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+     */
+    protected static class FingerprintResult<T extends FingerprintTarget>
+    {
+
+        private final T target;
+
+        private final String contentUrl;
+
+        private final List<ContentFingerprint> fingerprints;
+
+        private final boolean failed;
+
+        protected FingerprintResult(final T target, final String contentUrl, final List<ContentFingerprint> fingerprints)
+        {
+            this(target, contentUrl, fingerprints, false);
+        }
+
+        protected FingerprintResult(final T target, final String contentUrl, final List<ContentFingerprint> fingerprints,
+                final boolean failed)
+        {
+            this.target = target;
+            this.contentUrl = contentUrl;
+            this.fingerprints = fingerprints;
+            this.failed = failed;
+        }
+
+        /**
+         * @return the target
+         */
+        public T getTarget()
+        {
+            return this.target;
+        }
+
+        /**
+         * @return the content URL the fingerprints have been calculated for
+         */
+        public String getContentUrl()
+        {
+            return this.contentUrl;
+        }
+
+        /**
+         * @return the fingerprints or {@code null} if the node no longer exists or the fingerprints could not be calculated
+         */
+        public List<ContentFingerprint> getFingerprints()
+        {
+            return this.fingerprints;
+        }
+
+        /**
+         * @return {@code true} if the fingerprints could not be calculated due to an error
+         */
+        public boolean isFailed()
+        {
+            return this.failed;
+        }
+    }
+}
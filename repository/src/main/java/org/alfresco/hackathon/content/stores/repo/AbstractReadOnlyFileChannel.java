@@ -0,0 +1,206 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base class for read-only file channels over content that is not stored as a plain file, e.g. because it has been split into chunks or
+ * compressed. Sub-classes only need to provide positional reads, the size and cleanup - all relative operations are based on these.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public abstract class AbstractReadOnlyFileChannel extends FileChannel
+{
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private long position;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException
+    {
+        final int read = this.read(dst, this.position);
+        if (read > 0)
+        {
+            this.position += read;
+        }
+        return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException
+    {
+        long total = 0;
+        for (int idx = offset; idx < offset + length; idx++)
+        {
+            if (dsts[idx].hasRemaining())
+            {
+                final int read = this.read(dsts[idx]);
+                if (read < 0)
+                {
+                    return total == 0 ? -1 : total;
+                }
+                total += read;
+                if (dsts[idx].hasRemaining())
+                {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long position() throws IOException
+    {
+        this.ensureOpen();
+        return this.position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileChannel position(final long newPosition) throws IOException
+    {
+        this.ensureOpen();
+        if (newPosition < 0)
+        {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(1, count)));
+        long transferred = 0;
+        while (transferred < count)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            final int read = this.read(buffer, position + transferred);
+            if (read <= 0)
+            {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                target.write(buffer);
+            }
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src, final long position)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileChannel truncate(final long size)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferFrom(final ReadableByteChannel src, final long position, final long count)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void force(final boolean metaData)
+    {
+        // NO-OP - read only
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException
+    {
+        throw new IOException(this.getClass().getSimpleName() + " cannot be memory-mapped");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared) throws IOException
+    {
+        throw new IOException(this.getClass().getSimpleName() + " does not support file locks");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException
+    {
+        throw new IOException(this.getClass().getSimpleName() + " does not support file locks");
+    }
+
+    protected void ensureOpen() throws IOException
+    {
+        if (!this.isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
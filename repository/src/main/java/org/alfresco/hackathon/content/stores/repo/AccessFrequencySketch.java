@@ -0,0 +1,124 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximately counts how often content has recently been read, using a count-min sketch of saturating byte counters. The sketch has a
+ * fixed size independent of the amount of content - its estimates may be too high due to collisions but are never too low. To let the
+ * estimates reflect recent reads, all counters are halved once the number of recorded reads reaches the width of the sketch.
+ *
+ * Counters are updated without synchronization - lost updates under contention only make the estimate slightly less accurate, which keeps
+ * recording a read on the read path as cheap as possible.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class AccessFrequencySketch
+{
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = Byte.MAX_VALUE;
+
+    private final byte[][] counters;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private final AtomicInteger samples = new AtomicInteger();
+
+    /**
+     * Creates a new sketch instance.
+     *
+     * @param width
+     *            the number of counters per row - rounded up to the next power of two
+     */
+    public AccessFrequencySketch(final int width)
+    {
+        if (width < 1 || width > (1 << 30))
+        {
+            throw new IllegalArgumentException("Width must be between 1 and 2^30");
+        }
+
+        final int actualWidth = Integer.highestOneBit(width) == width ? width : Integer.highestOneBit(width) << 1;
+        this.counters = new byte[DEPTH][actualWidth];
+        this.mask = actualWidth - 1;
+        this.sampleSize = actualWidth;
+    }
+
+    /**
+     * Records a read of content.
+     *
+     * @param digest
+     *            the digest of the content
+     */
+    public void increment(final String digest)
+    {
+        final long hash = hash(digest);
+        final int hashA = (int) hash;
+        final int hashB = (int) (hash >>> 32);
+        for (int row = 0; row < DEPTH; row++)
+        {
+            final byte[] rowCounters = this.counters[row];
+            final int idx = (hashA + row * hashB) & this.mask;
+            if (rowCounters[idx] < MAX_COUNT)
+            {
+                rowCounters[idx]++;
+            }
+        }
+
+        if (this.samples.incrementAndGet() == this.sampleSize)
+        {
+            this.age();
+        }
+    }
+
+    /**
+     * Estimates how often content has recently been read.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the estimated number of recent reads
+     */
+    public int estimate(final String digest)
+    {
+        final long hash = hash(digest);
+        final int hashA = (int) hash;
+        final int hashB = (int) (hash >>> 32);
+        int estimate = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++)
+        {
+            estimate = Math.min(estimate, this.counters[row][(hashA + row * hashB) & this.mask]);
+        }
+        return estimate;
+    }
+
+    protected void age()
+    {
+        for (final byte[] rowCounters : this.counters)
+        {
+            for (int idx = 0; idx < rowCounters.length; idx++)
+            {
+                rowCounters[idx] = (byte) (rowCounters[idx] >> 1);
+            }
+        }
+        this.samples.set(0);
+    }
+
+    protected static long hash(final String digest)
+    {
+        long hash = 1125899906842597l;
+        for (int idx = 0, max = digest.length(); idx < max; idx++)
+        {
+            hash = 31 * hash + digest.charAt(idx);
+        }
+        // final mix of the 64 bit finalizer of MurmurHash3 so both halves are well distributed
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdl;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53l;
+        hash ^= hash >>> 33;
+        // odd second hash so all counters of a row can be reached
+        return hash | (1l << 32);
+    }
+}
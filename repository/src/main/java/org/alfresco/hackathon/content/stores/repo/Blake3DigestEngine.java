@@ -0,0 +1,770 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the BLAKE3 hash function (default 256 bit output, no key / key derivation modes) following the structure of
+ * the reference implementation. BLAKE3 is considerably faster than SHA-512 or even MD5 in software while providing strong collision
+ * resistance.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class Blake3DigestEngine implements DigestEngine
+{
+
+    /**
+     * Name of the algorithm implemented by this engine.
+     */
+    public static final String ALGORITHM = "BLAKE3";
+
+    private static final int OUT_LEN = 32;
+
+    private static final int BLOCK_LEN = 64;
+
+    private static final int CHUNK_LEN = 1024;
+
+    // 2^54 chunks exceed the maximum input length
+    private static final int MAX_DEPTH = 54;
+
+    private static final int CHUNK_START = 1;
+
+    private static final int CHUNK_END = 2;
+
+    private static final int PARENT = 4;
+
+    private static final int ROOT = 8;
+
+    private static final int[] IV = { 0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19 };
+
+    private final int[] state = new int[16];
+
+    private final int[] blockWords = new int[16];
+
+    private final int[] chainingValue = new int[8];
+
+    private final int[] chunkChainingValue = new int[8];
+
+    private long chunkCounter;
+
+    private final byte[] block = new byte[BLOCK_LEN];
+
+    private int blockLength;
+
+    private int blocksCompressed;
+
+    private final int[] chainingValueStack = new int[MAX_DEPTH * 8];
+
+    private int chainingValueStackSize;
+
+    private byte[] transferBuffer;
+
+    /**
+     * Creates a new engine instance.
+     */
+    public Blake3DigestEngine()
+    {
+        this.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithm()
+    {
+        return ALGORITHM;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDigestLength()
+    {
+        return OUT_LEN;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final byte[] input, final int offset, final int length)
+    {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end)
+        {
+            // a chunk may only be finalized once it is known not to be the last one
+            if (this.getChunkLength() == CHUNK_LEN)
+            {
+                this.completeChunk();
+            }
+
+            final int take = Math.min(CHUNK_LEN - this.getChunkLength(), end - position);
+            this.updateChunk(input, position, take);
+            position += take;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final ByteBuffer input)
+    {
+        if (input.hasArray())
+        {
+            this.update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+        }
+        else
+        {
+            if (this.transferBuffer == null)
+            {
+                this.transferBuffer = new byte[CHUNK_LEN * 4];
+            }
+            while (input.hasRemaining())
+            {
+                final int length = Math.min(input.remaining(), this.transferBuffer.length);
+                input.get(this.transferBuffer, 0, length);
+                this.update(this.transferBuffer, 0, length);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] digest()
+    {
+        // output node of the current chunk
+        Arrays.fill(this.block, this.blockLength, BLOCK_LEN, (byte) 0);
+        loadWords(this.block, 0, this.blockWords);
+        System.arraycopy(this.chunkChainingValue, 0, this.chainingValue, 0, 8);
+        long counter = this.chunkCounter;
+        int length = this.blockLength;
+        int flags = this.getChunkStartFlag() | CHUNK_END;
+
+        // merge with all pending subtrees on the stack to form the root
+        for (int idx = this.chainingValueStackSize - 1; idx >= 0; idx--)
+        {
+            this.compress(this.chainingValue, this.blockWords, counter, length, flags);
+            for (int word = 0; word < 8; word++)
+            {
+                this.blockWords[8 + word] = this.state[word];
+            }
+            System.arraycopy(this.chainingValueStack, idx * 8, this.blockWords, 0, 8);
+            System.arraycopy(IV, 0, this.chainingValue, 0, 8);
+            counter = 0;
+            length = BLOCK_LEN;
+            flags = PARENT;
+        }
+
+        // root output uses the output block counter (always 0 for the default output length)
+        this.compress(this.chainingValue, this.blockWords, 0, length, flags | ROOT);
+
+        final byte[] digest = new byte[OUT_LEN];
+        for (int word = 0; word < 8; word++)
+        {
+            final int value = this.state[word];
+            digest[word * 4] = (byte) value;
+            digest[word * 4 + 1] = (byte) (value >>> 8);
+            digest[word * 4 + 2] = (byte) (value >>> 16);
+            digest[word * 4 + 3] = (byte) (value >>> 24);
+        }
+
+        this.reset();
+        return digest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        System.arraycopy(IV, 0, this.chunkChainingValue, 0, 8);
+        this.chunkCounter = 0;
+        this.blockLength = 0;
+        this.blocksCompressed = 0;
+        this.chainingValueStackSize = 0;
+    }
+
+    protected int getChunkLength()
+    {
+        return BLOCK_LEN * this.blocksCompressed + this.blockLength;
+    }
+
+    protected int getChunkStartFlag()
+    {
+        return this.blocksCompressed == 0 ? CHUNK_START : 0;
+    }
+
+    protected void updateChunk(final byte[] input, final int offset, final int length)
+    {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end)
+        {
+            if (this.blockLength == BLOCK_LEN)
+            {
+                loadWords(this.block, 0, this.blockWords);
+                this.compressChunkBlock();
+                this.blockLength = 0;
+            }
+
+            if (this.blockLength == 0 && end - position > BLOCK_LEN)
+            {
+                // full block that is known not to be the last of the chunk - compress directly from the input
+                loadWords(input, position, this.blockWords);
+                this.compressChunkBlock();
+                position += BLOCK_LEN;
+            }
+            else
+            {
+                final int take = Math.min(BLOCK_LEN - this.blockLength, end - position);
+                System.arraycopy(input, position, this.block, this.blockLength, take);
+                this.blockLength += take;
+                position += take;
+            }
+        }
+    }
+
+    protected void compressChunkBlock()
+    {
+        this.compress(this.chunkChainingValue, this.blockWords, this.chunkCounter, BLOCK_LEN, this.getChunkStartFlag());
+        for (int word = 0; word < 8; word++)
+        {
+            this.chunkChainingValue[word] = this.state[word];
+        }
+        this.blocksCompressed++;
+    }
+
+    protected void completeChunk()
+    {
+        // chunk is always complete here so the block is full
+        loadWords(this.block, 0, this.blockWords);
+        this.compress(this.chunkChainingValue, this.blockWords, this.chunkCounter, BLOCK_LEN, this.getChunkStartFlag() | CHUNK_END);
+        for (int word = 0; word < 8; word++)
+        {
+            this.chainingValue[word] = this.state[word];
+        }
+
+        // merge completed subtrees - the number of trailing zero bits of the chunk count is the number of merges
+        long totalChunks = this.chunkCounter + 1;
+        while ((totalChunks & 1) == 0)
+        {
+            this.chainingValueStackSize--;
+            System.arraycopy(this.chainingValueStack, this.chainingValueStackSize * 8, this.blockWords, 0, 8);
+            System.arraycopy(this.chainingValue, 0, this.blockWords, 8, 8);
+            this.compress(IV, this.blockWords, 0, BLOCK_LEN, PARENT);
+            for (int word = 0; word < 8; word++)
+            {
+                this.chainingValue[word] = this.state[word];
+            }
+            totalChunks >>= 1;
+        }
+        System.arraycopy(this.chainingValue, 0, this.chainingValueStack, this.chainingValueStackSize * 8, 8);
+        this.chainingValueStackSize++;
+
+        System.arraycopy(IV, 0, this.chunkChainingValue, 0, 8);
+        this.chunkCounter++;
+        this.blockLength = 0;
+        this.blocksCompressed = 0;
+    }
+
+    /**
+     * Runs the compression function, leaving the full (not yet truncated) output in the state array - the first 8 words make up the
+     * chaining value. All 7 rounds are unrolled with the message permutation applied to the word indices so that the working state can
+     * be held in local variables.
+     */
+    protected void compress(final int[] inputChainingValue, final int[] message, final long counter, final int length, final int flags)
+    {
+        final int m0 = message[0], m1 = message[1], m2 = message[2], m3 = message[3], m4 = message[4], m5 = message[5], m6 = message[6];
+        final int m7 = message[7], m8 = message[8], m9 = message[9], m10 = message[10], m11 = message[11], m12 = message[12];
+        final int m13 = message[13], m14 = message[14], m15 = message[15];
+
+        int v0 = inputChainingValue[0], v1 = inputChainingValue[1], v2 = inputChainingValue[2], v3 = inputChainingValue[3];
+        int v4 = inputChainingValue[4], v5 = inputChainingValue[5], v6 = inputChainingValue[6], v7 = inputChainingValue[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        int v12 = (int) counter, v13 = (int) (counter >>> 32), v14 = length, v15 = flags;
+
+        // round 1
+        v0 += v4 + m0;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m1;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m2;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m3;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m4;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m5;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m6;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m7;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m8;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m9;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m10;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m11;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m12;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m13;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m14;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m15;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // round 2
+        v0 += v4 + m2;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m6;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m3;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m10;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m7;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m0;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m4;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m13;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m1;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m11;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m12;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m5;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m9;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m14;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m15;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m8;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // round 3
+        v0 += v4 + m3;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m4;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m10;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m12;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m13;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m2;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m7;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m14;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m6;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m5;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m9;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m0;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m11;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m15;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m8;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m1;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // round 4
+        v0 += v4 + m10;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m7;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m12;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m9;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m14;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m3;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m13;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m15;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m4;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m0;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m11;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m2;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m5;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m8;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m1;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m6;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // round 5
+        v0 += v4 + m12;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m13;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m9;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m11;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m15;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m10;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m14;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m8;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m7;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m2;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m5;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m3;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m0;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m1;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m6;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m4;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // round 6
+        v0 += v4 + m9;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m14;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m11;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m5;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m8;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m12;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m15;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m1;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m13;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m3;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m0;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m10;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m2;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m6;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m4;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m7;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // round 7
+        v0 += v4 + m11;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m15;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m5;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m0;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m1;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m9;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m8;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m6;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m14;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m10;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m2;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m12;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m3;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m4;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m7;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m13;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+        final int[] v = this.state;
+        v[0] = v0 ^ v8;
+        v[1] = v1 ^ v9;
+        v[2] = v2 ^ v10;
+        v[3] = v3 ^ v11;
+        v[4] = v4 ^ v12;
+        v[5] = v5 ^ v13;
+        v[6] = v6 ^ v14;
+        v[7] = v7 ^ v15;
+        v[8] = v8 ^ inputChainingValue[0];
+        v[9] = v9 ^ inputChainingValue[1];
+        v[10] = v10 ^ inputChainingValue[2];
+        v[11] = v11 ^ inputChainingValue[3];
+        v[12] = v12 ^ inputChainingValue[4];
+        v[13] = v13 ^ inputChainingValue[5];
+        v[14] = v14 ^ inputChainingValue[6];
+        v[15] = v15 ^ inputChainingValue[7];
+    }
+
+    private static void loadWords(final byte[] bytes, final int offset, final int[] words)
+    {
+        for (int word = 0, idx = offset; word < 16; word++, idx += 4)
+        {
+            words[word] = (bytes[idx] & 0xff) | (bytes[idx + 1] & 0xff) << 8 | (bytes[idx + 2] & 0xff) << 16 | (bytes[idx + 3] & 0xff) << 24;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Simple Bloom filter over 64bit keys with its bit set held off-heap in a direct buffer. Keys are expected to already be well distributed
+ * (e.g. derived from message digests), so the probe positions are derived via double hashing from a single mixed key.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class BloomFilter
+{
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final LongBuffer bits;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Creates a new Bloom filter sized for an expected number of keys.
+     *
+     * @param expectedKeys
+     *            the number of keys the filter should be able to hold at the desired false positive rate
+     * @param falsePositiveRate
+     *            the desired false positive rate
+     */
+    public BloomFilter(final long expectedKeys, final double falsePositiveRate)
+    {
+        final double ln2 = Math.log(2);
+        final long optimalBits = (long) Math.ceil(-Math.max(1, expectedKeys) * Math.log(falsePositiveRate) / (ln2 * ln2));
+        // a single direct buffer is limited to 2 GiB
+        final long words = Math.min(Integer.MAX_VALUE / 8, Math.max(1, (optimalBits + 63) / 64));
+
+        this.bitCount = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) this.bitCount / Math.max(1, expectedKeys) * ln2));
+        this.bits = ByteBuffer.allocateDirect((int) (words * 8)).asLongBuffer();
+
+        for (int idx = 0; idx < LOCK_STRIPES; idx++)
+        {
+            this.locks[idx] = new Object();
+        }
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key
+     *            the key to add
+     */
+    public void put(final long key)
+    {
+        final long hash1 = mix(key);
+        final long hash2 = (hash1 >>> 32) | 1;
+        for (int idx = 0; idx < this.hashCount; idx++)
+        {
+            final long bit = ((hash1 + idx * hash2) & Long.MAX_VALUE) % this.bitCount;
+            final int word = (int) (bit >>> 6);
+            // read-modify-write must not lose concurrent updates to the same word
+            synchronized (this.locks[word & (LOCK_STRIPES - 1)])
+            {
+                this.bits.put(word, this.bits.get(word) | (1l << (bit & 63)));
+            }
+        }
+    }
+
+    /**
+     * Checks if a key may have been added to the filter.
+     *
+     * @param key
+     *            the key to check
+     * @return {@code false} if the key has definitely not been added, {@code true} if it may have been added
+     */
+    public boolean mightContain(final long key)
+    {
+        final long hash1 = mix(key);
+        final long hash2 = (hash1 >>> 32) | 1;
+        boolean result = true;
+        for (int idx = 0; idx < this.hashCount && result; idx++)
+        {
+            final long bit = ((hash1 + idx * hash2) & Long.MAX_VALUE) % this.bitCount;
+            result = (this.bits.get((int) (bit >>> 6)) & (1l << (bit & 63))) != 0;
+        }
+        return result;
+    }
+
+    /**
+     * Mixes the bits of a key (finalization step of MurmurHash3).
+     *
+     * @param key
+     *            the key to mix
+     * @return the mixed key
+     */
+    protected static long mix(final long key)
+    {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdl;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53l;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
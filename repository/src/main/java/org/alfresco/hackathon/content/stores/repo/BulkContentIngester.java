@@ -0,0 +1,512 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coremedia.iso.Hex;
+
+/**
+ * Ingests large numbers of files into a {@link HashBasedFileContentStore} without going through a {@link HashBasedFileContentWriter} for
+ * each file. Files are hashed in place on a bounded pool of worker threads and only copied into the store if their content does not exist
+ * yet, so duplicates cost a single read. The results are handed to a {@link BatchCallback callback} in batches on the calling thread, so
+ * the caller can attach the content to nodes within its own transactions.
+ *
+ * Content ingested this way is not registered for deletion on rollback, so content of batches that fail to be attached to nodes is left to
+ * the orphan cleanup.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class BulkContentIngester
+{
+
+    /**
+     * Callback interface for receiving the results of an ingestion.
+     */
+    public interface BatchCallback
+    {
+
+        /**
+         * Processes a batch of ingested files. Results are not ordered by the sequence of the sources.
+         *
+         * @param results
+         *            the results of the ingested files
+         */
+        void onBatch(List<IngestResult> results);
+    }
+
+    /**
+     * The result of ingesting a single file.
+     */
+    public static class IngestResult
+    {
+
+        private final File source;
+
+        private final ContentData contentData;
+
+        private final boolean deduplicated;
+
+        private final Throwable error;
+
+        protected IngestResult(final File source, final ContentData contentData, final boolean deduplicated, final Throwable error)
+        {
+            this.source = source;
+            this.contentData = contentData;
+            this.deduplicated = deduplicated;
+            this.error = error;
+        }
+
+        /**
+         * @return the ingested file
+         */
+        public File getSource()
+        {
+            return this.source;
+        }
+
+        /**
+         * @return the content data to attach to a node or {@code null} if the file could not be ingested
+         */
+        public ContentData getContentData()
+        {
+            return this.contentData;
+        }
+
+        /**
+         * @return {@code true} if the content already existed in the store
+         */
+        public boolean isDeduplicated()
+        {
+            return this.deduplicated;
+        }
+
+        /**
+         * @return the error that prevented the file from being ingested or {@code null} if it has been ingested
+         */
+        public Throwable getError()
+        {
+            return this.error;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "IngestResult [source=" + this.source + ", contentData=" + this.contentData + ", deduplicated=" + this.deduplicated
+                    + ", error=" + this.error + "]";
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkContentIngester.class);
+
+    // 64 KiB
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final HashBasedFileContentStore store;
+
+    private final String messageDigestType;
+
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private int batchSize = 100;
+
+    private MimetypeService mimetypeService;
+
+    private String encoding = "UTF-8";
+
+    /**
+     * Creates a new ingester instance.
+     *
+     * @param store
+     *            the store to ingest into
+     * @param messageDigestType
+     *            the type of message digest used by the store
+     */
+    public BulkContentIngester(final HashBasedFileContentStore store, final String messageDigestType)
+    {
+        this.store = store;
+        this.messageDigestType = messageDigestType;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of worker threads to hash and copy files with
+     */
+    public void setThreadCount(final int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of results to pass to the callback at once
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param mimetypeService
+     *            the service to guess the mimetype of files from their name - if not set, all content is ingested as
+     *            {@link MimetypeMap#MIMETYPE_BINARY binary}
+     */
+    public void setMimetypeService(final MimetypeService mimetypeService)
+    {
+        this.mimetypeService = mimetypeService;
+    }
+
+    /**
+     * @param encoding
+     *            the encoding to record for all ingested content
+     */
+    public void setEncoding(final String encoding)
+    {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Ingests all files in a directory tree.
+     *
+     * @param directory
+     *            the root of the directory tree
+     * @param callback
+     *            the callback to pass the results to
+     * @return the number of files that have been ingested successfully
+     */
+    public int ingest(final File directory, final BatchCallback callback)
+    {
+        if (!directory.isDirectory())
+        {
+            throw new ContentIOException("Not a directory: " + directory);
+        }
+        return this.ingest(new DirectoryIterator(directory), callback);
+    }
+
+    /**
+     * Ingests a sequence of files. Sources are only retrieved from the iterator as worker threads become available, so the iterator may
+     * lazily produce an arbitrary number of files.
+     *
+     * @param sources
+     *            the files to ingest
+     * @param callback
+     *            the callback to pass the results to
+     * @return the number of files that have been ingested successfully
+     */
+    public int ingest(final Iterator<File> sources, final BatchCallback callback)
+    {
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = this.createExecutor();
+        try
+        {
+            final CompletionService<IngestResult> completionService = new ExecutorCompletionService<IngestResult>(executor);
+            // enough to keep all workers busy while the calling thread processes results
+            final int maxInFlight = this.threadCount * 2;
+            final List<IngestResult> batch = new ArrayList<IngestResult>(this.batchSize);
+            int inFlight = 0;
+            int ingested = 0;
+            int failed = 0;
+
+            while (sources.hasNext() || inFlight > 0)
+            {
+                while (inFlight < maxInFlight && sources.hasNext())
+                {
+                    final File source = sources.next();
+                    completionService.submit(new Callable<IngestResult>()
+                    {
+
+                        public IngestResult call()
+                        {
+                            return BulkContentIngester.this.ingestFile(source);
+                        }
+                    });
+                    inFlight++;
+                }
+
+                final IngestResult result = this.take(completionService);
+                inFlight--;
+                if (result.getError() == null)
+                {
+                    ingested++;
+                }
+                else
+                {
+                    failed++;
+                }
+
+                batch.add(result);
+                if (batch.size() >= this.batchSize)
+                {
+                    callback.onBatch(Collections.unmodifiableList(new ArrayList<IngestResult>(batch)));
+                    batch.clear();
+                }
+            }
+
+            if (!batch.isEmpty())
+            {
+                callback.onBatch(Collections.unmodifiableList(new ArrayList<IngestResult>(batch)));
+            }
+
+            LOGGER.info("Ingested {} files ({} failed) in {} ms", new Object[] { Integer.valueOf(ingested), Integer.valueOf(failed),
+                    Long.valueOf(System.currentTimeMillis() - start) });
+            return ingested;
+        }
+        finally
+        {
+            // aborts remaining work if the callback failed
+            executor.shutdownNow();
+        }
+    }
+
+    protected IngestResult take(final CompletionService<IngestResult> completionService)
+    {
+        try
+        {
+            final Future<IngestResult> future = completionService.take();
+            return future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for ingested files", e);
+        }
+        catch (final ExecutionException e)
+        {
+            // ingestFile reports all failures as results
+            throw new AlfrescoRuntimeException("Unexpected failure ingesting file", e.getCause());
+        }
+    }
+
+    /**
+     * Hashes a single file and copies it into the store if its content does not exist yet.
+     *
+     * @param source
+     *            the file to ingest
+     * @return the result of the ingestion
+     */
+    protected IngestResult ingestFile(final File source)
+    {
+        try
+        {
+            final long writeStart = System.nanoTime();
+            final long size = source.length();
+            final String mimetype = this.guessMimetype(source);
+            final String contentUrl = this.store.createContentUrl(this.hash(source));
+
+            final long commitStart = System.nanoTime();
+            boolean deduplicated = this.store.reuseStoredContent(contentUrl);
+            long stagedSize = 0;
+            if (!deduplicated)
+            {
+                // staged on the target volume so it can be published with a rename
+                final File stagingFile = this.store.createStagingFile(this.store.getVolume(contentUrl));
+                try
+                {
+                    this.copy(source, stagingFile);
+                    stagedSize = size;
+                    deduplicated = !this.store.storeStagingFile(stagingFile, contentUrl, mimetype);
+                }
+                finally
+                {
+                    // no-op if the file has been renamed
+                    FileUtils.deleteQuietly(stagingFile);
+                }
+            }
+            final long commitEnd = System.nanoTime();
+            this.store.getMetrics().recordWrite(size, deduplicated, stagedSize, commitStart - writeStart, commitEnd - commitStart);
+
+            final ContentData contentData = new ContentData(contentUrl, mimetype, size, this.encoding);
+            return new IngestResult(source, contentData, deduplicated, null);
+        }
+        catch (final RuntimeException e)
+        {
+            LOGGER.debug("Failed to ingest " + source, e);
+            return new IngestResult(source, null, false, e);
+        }
+        catch (final IOException e)
+        {
+            LOGGER.debug("Failed to ingest " + source, e);
+            return new IngestResult(source, null, false, e);
+        }
+    }
+
+    protected String hash(final File source) throws IOException
+    {
+        final DigestEngine engine;
+        try
+        {
+            engine = this.store.acquireDigestEngine(this.messageDigestType);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new AlfrescoRuntimeException("Message digest type " + this.messageDigestType + " is not supported", e);
+        }
+
+        try
+        {
+            final FileInputStream is = new FileInputStream(source);
+            try
+            {
+                final FileChannel channel = is.getChannel();
+                final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                while (channel.read(buffer) != -1)
+                {
+                    buffer.flip();
+                    engine.update(buffer);
+                    buffer.clear();
+                }
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+            // same encoding as HashBasedWriterStreamListener so content URLs match those of regular writes
+            return Hex.encodeHex(engine.digest());
+        }
+        finally
+        {
+            this.store.releaseDigestEngine(engine);
+        }
+    }
+
+    protected void copy(final File source, final File target) throws IOException
+    {
+        final FileInputStream is = new FileInputStream(source);
+        try
+        {
+            final FileOutputStream os = new FileOutputStream(target);
+            try
+            {
+                final FileChannel sourceChannel = is.getChannel();
+                final FileChannel targetChannel = os.getChannel();
+                final long size = sourceChannel.size();
+                long position = 0;
+                while (position < size)
+                {
+                    // lets the operating system copy without passing the content through the heap
+                    position += sourceChannel.transferTo(position, size - position, targetChannel);
+                }
+            }
+            finally
+            {
+                os.close();
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    protected String guessMimetype(final File source)
+    {
+        return this.mimetypeService != null ? this.mimetypeService.guessMimetype(source.getName()) : MimetypeMap.MIMETYPE_BINARY;
+    }
+
+    protected ExecutorService createExecutor()
+    {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(this.threadCount, this.threadCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable, "BulkContentIngester-" + this.threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        return executor;
+    }
+
+    /**
+     * Lazily iterates over all files in a directory tree, listing one directory at a time.
+     */
+    protected static class DirectoryIterator implements Iterator<File>
+    {
+
+        private final LinkedList<File> pendingDirectories = new LinkedList<File>();
+
+        private final LinkedList<File> pendingFiles = new LinkedList<File>();
+
+        protected DirectoryIterator(final File directory)
+        {
+            this.pendingDirectories.add(directory);
+        }
+
+        public boolean hasNext()
+        {
+            while (this.pendingFiles.isEmpty() && !this.pendingDirectories.isEmpty())
+            {
+                final File[] files = this.pendingDirectories.removeFirst().listFiles();
+                if (files != null)
+                {
+                    Arrays.sort(files);
+                    for (final File file : files)
+                    {
+                        if (file.isDirectory())
+                        {
+                            this.pendingDirectories.add(file);
+                        }
+                        else if (file.isFile())
+                        {
+                            this.pendingFiles.add(file);
+                        }
+                    }
+                }
+            }
+            return !this.pendingFiles.isEmpty();
+        }
+
+        public File next()
+        {
+            if (!this.hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            return this.pendingFiles.removeFirst();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Manifest of content that has been split into chunks, listing the digests and lengths of all chunks in content order.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ChunkManifest
+{
+
+    // "CDC1"
+    private static final int MAGIC = 0x43444331;
+
+    private final String algorithm;
+
+    private int chunkCount;
+
+    // offsets of all chunks plus the total size as last element
+    private long[] offsets;
+
+    private byte[][] digests;
+
+    /**
+     * Creates a new, empty manifest.
+     *
+     * @param algorithm
+     *            the digest algorithm used to address chunks
+     */
+    public ChunkManifest(final String algorithm)
+    {
+        this(algorithm, 16);
+    }
+
+    protected ChunkManifest(final String algorithm, final int capacity)
+    {
+        this.algorithm = algorithm;
+        this.offsets = new long[capacity + 1];
+        this.digests = new byte[capacity][];
+    }
+
+    /**
+     * Appends a chunk to the manifest.
+     *
+     * @param digest
+     *            the digest of the chunk
+     * @param length
+     *            the length of the chunk
+     */
+    public void addChunk(final byte[] digest, final int length)
+    {
+        if (this.chunkCount == this.digests.length)
+        {
+            this.digests = Arrays.copyOf(this.digests, this.chunkCount * 2);
+            this.offsets = Arrays.copyOf(this.offsets, this.chunkCount * 2 + 1);
+        }
+        this.digests[this.chunkCount] = digest;
+        this.offsets[this.chunkCount + 1] = this.offsets[this.chunkCount] + length;
+        this.chunkCount++;
+    }
+
+    /**
+     * @return the digest algorithm used to address chunks
+     */
+    public String getAlgorithm()
+    {
+        return this.algorithm;
+    }
+
+    /**
+     * @return the number of chunks
+     */
+    public int getChunkCount()
+    {
+        return this.chunkCount;
+    }
+
+    /**
+     * @return the total size of the content
+     */
+    public long getSize()
+    {
+        return this.offsets[this.chunkCount];
+    }
+
+    /**
+     * @param index
+     *            the index of the chunk
+     * @return the offset of the chunk within the content
+     */
+    public long getChunkOffset(final int index)
+    {
+        return this.offsets[index];
+    }
+
+    /**
+     * @param index
+     *            the index of the chunk
+     * @return the length of the chunk
+     */
+    public int getChunkLength(final int index)
+    {
+        return (int) (this.offsets[index + 1] - this.offsets[index]);
+    }
+
+    /**
+     * @param index
+     *            the index of the chunk
+     * @return the hex encoded digest of the chunk
+     */
+    public String getChunkDigest(final int index)
+    {
+        return new String(Hex.encodeHex(this.digests[index]));
+    }
+
+    /**
+     * Finds the chunk containing a specific position of the content.
+     *
+     * @param position
+     *            the position within the content
+     * @return the index of the chunk or {@code -1} if the position is beyond the end of the content
+     */
+    public int findChunk(final long position)
+    {
+        int result = -1;
+        if (position >= 0 && position < this.getSize())
+        {
+            final int insertionPoint = Arrays.binarySearch(this.offsets, 0, this.chunkCount + 1, position);
+            result = insertionPoint >= 0 ? insertionPoint : -insertionPoint - 2;
+        }
+        return result;
+    }
+
+    /**
+     * Writes this manifest to a file.
+     *
+     * @param file
+     *            the file to write to
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public void write(final File file) throws IOException
+    {
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try
+        {
+            os.writeInt(MAGIC);
+            os.writeUTF(this.algorithm);
+            os.writeInt(this.chunkCount);
+            for (int idx = 0; idx < this.chunkCount; idx++)
+            {
+                os.writeInt(this.getChunkLength(idx));
+                os.writeByte(this.digests[idx].length);
+                os.write(this.digests[idx]);
+            }
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads a manifest from a file.
+     *
+     * @param file
+     *            the file to read from
+     * @return the manifest
+     * @throws IOException
+     *             if the file cannot be read or is not a valid manifest
+     */
+    public static ChunkManifest read(final File file) throws IOException
+    {
+        final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if (is.readInt() != MAGIC)
+            {
+                throw new IOException(file + " is not a chunk manifest");
+            }
+
+            final String algorithm = is.readUTF();
+            final int chunkCount = is.readInt();
+            final ChunkManifest manifest = new ChunkManifest(algorithm, Math.max(1, chunkCount));
+            for (int idx = 0; idx < chunkCount; idx++)
+            {
+                final int length = is.readInt();
+                final byte[] digest = new byte[is.readUnsignedByte()];
+                is.readFully(digest);
+                manifest.addChunk(digest, length);
+            }
+            return manifest;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Deletes chunks from the {@link ChunkStore chunk pool} of a {@link HashBasedFileContentStore} that are no longer referenced by any
+ * manifest. A sweep first marks the digests of all chunks referenced by existing manifests in a {@link BloomFilter} and then deletes all
+ * chunks not contained in the filter. False positives of the filter only cause some unreferenced chunks to survive until a later sweep.
+ *
+ * Chunks written or re-used within a grace period are never deleted, which protects chunks of manifests written while the sweep is running.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ChunkPoolSweeper implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkPoolSweeper.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "ChunkPoolSweeper");
+
+    private static final long LOCK_TTL = 60000l;
+
+    private static final int LOCK_REFRESH_INTERVAL = 1000;
+
+    private HashBasedFileContentStore store;
+
+    private JobLockService jobLockService;
+
+    // 1 day
+    private long gracePeriod = 24 * 60 * 60 * 1000l;
+
+    private long expectedChunks = 10000000l;
+
+    private double falsePositiveRate = 0.01;
+
+    /**
+     * @param store
+     *            the store to set
+     */
+    public void setStore(final HashBasedFileContentStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param gracePeriod
+     *            the time (in milliseconds) since a chunk has last been written or re-used before it may be deleted
+     */
+    public void setGracePeriod(final long gracePeriod)
+    {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * @param expectedChunks
+     *            the number of distinct referenced chunks the filter of a sweep should be sized for
+     */
+    public void setExpectedChunks(final long expectedChunks)
+    {
+        this.expectedChunks = expectedChunks;
+    }
+
+    /**
+     * @param falsePositiveRate
+     *            the desired false positive rate of the filter of a sweep, i.e. the fraction of unreferenced chunks that survive a sweep
+     */
+    public void setFalsePositiveRate(final double falsePositiveRate)
+    {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "store", this.store);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+    }
+
+    /**
+     * Runs a single sweep, provided no other server in the cluster is currently running one.
+     *
+     * @return the number of deleted chunks
+     */
+    public int sweep()
+    {
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Chunk pool sweep already running elsewhere");
+            return 0;
+        }
+
+        int deleted = 0;
+        try
+        {
+            // determined before marking so chunks of manifests written during the sweep are protected
+            final long modifiedBefore = System.currentTimeMillis() - this.gracePeriod;
+            final ChunkStore chunkStore = this.store.getChunkStore();
+            final BloomFilter referencedChunks = new BloomFilter(this.expectedChunks, this.falsePositiveRate);
+            final int[] manifests = new int[1];
+
+            final FanOutWalker.ContentFileVisitor visitor = new FanOutWalker.ContentFileVisitor()
+            {
+
+                public void visitContentFile(final File file, final String digest)
+                {
+                    if (FanOutWalker.isManifestFile(file))
+                    {
+                        ChunkPoolSweeper.this.markChunks(chunkStore, file, referencedChunks);
+
+                        manifests[0]++;
+                        if (manifests[0] % LOCK_REFRESH_INTERVAL == 0)
+                        {
+                            ChunkPoolSweeper.this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+                        }
+                    }
+                }
+            };
+            // manifests are distributed over all volumes while the chunks themselves remain in the root directory
+            for (final File volumeRootFile : this.store.getVolumeRootFiles())
+            {
+                FanOutWalker.walk(volumeRootFile, visitor);
+            }
+
+            this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+            deleted = chunkStore.sweep(referencedChunks, modifiedBefore);
+
+            LOGGER.debug("Swept chunk pool of {} manifests and deleted {} chunks", Integer.valueOf(manifests[0]), Integer.valueOf(deleted));
+        }
+        finally
+        {
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+
+        return deleted;
+    }
+
+    protected void markChunks(final ChunkStore chunkStore, final File manifestFile, final BloomFilter referencedChunks)
+    {
+        try
+        {
+            final ChunkManifest manifest = chunkStore.readManifest(manifestFile);
+            for (int idx = 0, max = manifest.getChunkCount(); idx < max; idx++)
+            {
+                referencedChunks.put(DigestIndex.toKey(manifest.getChunkDigest(idx)));
+            }
+        }
+        catch (final ContentIOException e)
+        {
+            if (manifestFile.exists())
+            {
+                // chunks of an unreadable manifest can't be marked - deleting anything now might destroy content
+                throw e;
+            }
+            // deleted or migrated since it was listed - any chunks it shares with other manifests are marked via those
+            LOGGER.debug("Manifest {} vanished during sweep", manifestFile);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering a run of a {@link ChunkPoolSweeper} provided via the job data key {@code sweeper}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ChunkPoolSweeperJob implements Job
+{
+
+    public static final String KEY_SWEEPER = "sweeper";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object sweeper = jobData.get(KEY_SWEEPER);
+        if (!(sweeper instanceof ChunkPoolSweeper))
+        {
+            throw new AlfrescoRuntimeException("ChunkPoolSweeperJob data must contain a valid '" + KEY_SWEEPER + "' reference");
+        }
+
+        ((ChunkPoolSweeper) sweeper).sweep();
+    }
+}
@@ -0,0 +1,301 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of digest-addressed chunks of content that has been split via {@link FastCdcChunker content-defined chunking}. Each chunk is stored
+ * exactly once, no matter how many (versions of) documents contain it. Chunks are located in a dedicated directory of the store root and
+ * referenced by {@link ChunkManifest manifests} that replace the regular content files.
+ *
+ * Since chunks are shared, they are not deleted together with the content that references them but by a periodic
+ * {@link ChunkPoolSweeper sweep}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ChunkStore
+{
+
+    /**
+     * Name of the directory within the root directory that holds the chunk pool.
+     */
+    public static final String CHUNK_DIRECTORY_NAME = ".chunks";
+
+    private static final FanOutLayout CHUNK_LAYOUT = new FanOutLayout(2, 2);
+
+    private static final int SWEEP_BATCH_SIZE = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkStore.class);
+
+    private final File chunkDirectory;
+
+    private final File stagingDirectory;
+
+    private final String digestType;
+
+    private final int minChunkSize;
+
+    private final int averageChunkSize;
+
+    private final int maxChunkSize;
+
+    // chunk writes and the deletions of a sweep must not interleave within this server
+    private final ReadWriteLock sweepLock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates a new chunk store instance.
+     *
+     * @param rootDirectory
+     *            the root directory of the content store
+     * @param stagingDirectory
+     *            the staging directory of the content store
+     * @param digestType
+     *            the digest type used to address chunks
+     * @param minChunkSize
+     *            the minimum size of a chunk
+     * @param averageChunkSize
+     *            the targeted average size of a chunk
+     * @param maxChunkSize
+     *            the maximum size of a chunk
+     */
+    public ChunkStore(final File rootDirectory, final File stagingDirectory, final String digestType, final int minChunkSize,
+            final int averageChunkSize, final int maxChunkSize)
+    {
+        this.chunkDirectory = new File(rootDirectory, CHUNK_DIRECTORY_NAME);
+        this.stagingDirectory = stagingDirectory;
+        this.digestType = digestType;
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Splits content into chunks, stores all chunks not yet contained in the pool and writes the manifest of the content.
+     *
+     * @param source
+     *            the file holding the content
+     * @param manifestFile
+     *            the file to write the manifest to
+     * @return the number of bytes added to the pool and manifest
+     */
+    public long storeChunked(final File source, final File manifestFile)
+    {
+        final ChunkManifest manifest = new ChunkManifest(this.digestType);
+        int newChunks = 0;
+        long storedBytes = 0;
+
+        this.sweepLock.readLock().lock();
+        try
+        {
+            final DigestEngine engine = DigestEngines.acquire(this.digestType);
+            final InputStream is = new FileInputStream(source);
+            try
+            {
+                final FastCdcChunker chunker = new FastCdcChunker(is, this.minChunkSize, this.averageChunkSize, this.maxChunkSize);
+                while (chunker.next())
+                {
+                    engine.update(chunker.getBuffer(), chunker.getChunkOffset(), chunker.getChunkLength());
+                    final byte[] digest = engine.digest();
+                    if (this.storeChunk(new String(Hex.encodeHex(digest)), chunker.getBuffer(), chunker.getChunkOffset(),
+                            chunker.getChunkLength()))
+                    {
+                        newChunks++;
+                        storedBytes += chunker.getChunkLength();
+                    }
+                    manifest.addChunk(digest, chunker.getChunkLength());
+                }
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+                DigestEngines.release(engine);
+            }
+
+            // manifest is only published after all chunks it references
+            final File stagingFile = File.createTempFile("manifest", ".tmp", this.stagingDirectory);
+            try
+            {
+                manifest.write(stagingFile);
+                storedBytes += stagingFile.length();
+                this.publish(stagingFile, manifestFile);
+            }
+            finally
+            {
+                FileUtils.deleteQuietly(stagingFile);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to store chunked content " + manifestFile, e);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new ContentIOException("Digest type " + this.digestType + " is not supported", e);
+        }
+        finally
+        {
+            this.sweepLock.readLock().unlock();
+        }
+
+        LOGGER.debug("Stored {} in {} chunks ({} new)", new Object[] { manifestFile, Integer.valueOf(manifest.getChunkCount()),
+                Integer.valueOf(newChunks) });
+        return storedBytes;
+    }
+
+    /**
+     * Reads the manifest of chunked content.
+     *
+     * @param manifestFile
+     *            the manifest file
+     * @return the manifest
+     */
+    public ChunkManifest readManifest(final File manifestFile)
+    {
+        try
+        {
+            return ChunkManifest.read(manifestFile);
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to read chunk manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * @return the directory holding the chunk pool
+     */
+    public File getChunkDirectory()
+    {
+        return this.chunkDirectory;
+    }
+
+    /**
+     * Determines the file of a chunk.
+     *
+     * @param digest
+     *            the hex encoded digest of the chunk
+     * @return the file of the chunk - the file may or may not exist
+     */
+    public File getChunkFile(final String digest)
+    {
+        return CHUNK_LAYOUT.resolve(this.chunkDirectory, digest);
+    }
+
+    /**
+     * Deletes all chunks that are no longer referenced by any manifest.
+     *
+     * @param referencedChunks
+     *            the filter of all chunk digests referenced by manifests - false positives only prevent deletion of unreferenced chunks
+     * @param modifiedBefore
+     *            the time before which chunks must have been last written or re-used to be deleted, protecting chunks of manifests
+     *            written during the sweep
+     * @return the number of deleted chunks
+     */
+    public int sweep(final BloomFilter referencedChunks, final long modifiedBefore)
+    {
+        final List<File> candidates = new ArrayList<File>();
+        final int[] deleted = new int[1];
+        FanOutWalker.walk(this.chunkDirectory, new FanOutWalker.ContentFileVisitor()
+        {
+
+            public void visitContentFile(final File file, final String digest)
+            {
+                if (!referencedChunks.mightContain(DigestIndex.toKey(digest)) && file.lastModified() < modifiedBefore)
+                {
+                    candidates.add(file);
+                    if (candidates.size() >= SWEEP_BATCH_SIZE)
+                    {
+                        deleted[0] += ChunkStore.this.deleteChunks(candidates, modifiedBefore);
+                        candidates.clear();
+                    }
+                }
+            }
+        });
+        deleted[0] += this.deleteChunks(candidates, modifiedBefore);
+        return deleted[0];
+    }
+
+    protected int deleteChunks(final List<File> chunkFiles, final long modifiedBefore)
+    {
+        int deleted = 0;
+        this.sweepLock.writeLock().lock();
+        try
+        {
+            for (final File chunkFile : chunkFiles)
+            {
+                // chunk may have been re-used since it was checked
+                if (chunkFile.lastModified() < modifiedBefore && chunkFile.delete())
+                {
+                    deleted++;
+                }
+            }
+        }
+        finally
+        {
+            this.sweepLock.writeLock().unlock();
+        }
+        return deleted;
+    }
+
+    protected boolean storeChunk(final String digest, final byte[] data, final int offset, final int length) throws IOException
+    {
+        final File chunkFile = this.getChunkFile(digest);
+        // touching an existing chunk protects it from a sweep running on another server
+        if (chunkFile.exists() && chunkFile.setLastModified(System.currentTimeMillis()))
+        {
+            return false;
+        }
+
+        final File stagingFile = File.createTempFile("chunk", ".tmp", this.stagingDirectory);
+        try
+        {
+            final OutputStream os = new FileOutputStream(stagingFile);
+            try
+            {
+                os.write(data, offset, length);
+            }
+            finally
+            {
+                os.close();
+            }
+            return this.publish(stagingFile, chunkFile);
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(stagingFile);
+        }
+    }
+
+    protected boolean publish(final File stagingFile, final File targetFile) throws IOException
+    {
+        final File parentDirectory = targetFile.getParentFile();
+        if (!parentDirectory.exists() && !parentDirectory.mkdirs() && !parentDirectory.exists())
+        {
+            throw new IOException("Failed to create directory " + parentDirectory);
+        }
+
+        boolean published = stagingFile.renameTo(targetFile);
+        if (!published && !targetFile.exists())
+        {
+            FileUtils.copyFile(stagingFile, targetFile);
+            published = true;
+        }
+        return published;
+    }
+}
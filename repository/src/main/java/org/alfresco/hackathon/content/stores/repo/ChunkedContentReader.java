@@ -0,0 +1,138 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.nio.channels.ReadableByteChannel;
+
+import org.alfresco.repo.content.AbstractContentReader;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader for content that has been split into chunks, providing the content via a {@link ChunkedFileChannel} that supports both streaming
+ * and random access.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ChunkedContentReader extends AbstractContentReader implements StoredContentReader
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedContentReader.class);
+
+    private final HashBasedFileContentStore store;
+
+    private final ChunkStore chunkStore;
+
+    private final File manifestFile;
+
+    private ChunkManifest manifest;
+
+    /**
+     * Creates a new reader instance.
+     *
+     * @param store
+     *            the store that created this reader
+     * @param chunkStore
+     *            the chunk store holding the chunks of the content
+     * @param manifestFile
+     *            the manifest file of the content
+     * @param contentUrl
+     *            the content URL
+     */
+    public ChunkedContentReader(final HashBasedFileContentStore store, final ChunkStore chunkStore, final File manifestFile,
+            final String contentUrl)
+    {
+        super(contentUrl);
+        this.store = store;
+        this.chunkStore = chunkStore;
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HashBasedFileContentStore getStore()
+    {
+        return this.store;
+    }
+
+    /**
+     * @return the manifest file of the content
+     */
+    public File getManifestFile()
+    {
+        return this.manifestFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean exists()
+    {
+        return this.manifestFile.exists();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLastModified()
+    {
+        return this.manifestFile.lastModified();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSize()
+    {
+        return this.exists() ? this.getManifest().getSize() : 0l;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ContentReader createReader() throws ContentIOException
+    {
+        return new ChunkedContentReader(this.store, this.chunkStore, this.manifestFile, this.getContentUrl());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ReadableByteChannel getDirectReadableChannel() throws ContentIOException
+    {
+        if (!this.exists())
+        {
+            throw new ContentIOException("Chunk manifest does not exist: " + this.manifestFile);
+        }
+
+        final ChunkedFileChannel channel = new ChunkedFileChannel(this.chunkStore, this.getManifest());
+        LOGGER.debug("Opened read channel to chunked content {}", this.manifestFile);
+        return channel;
+    }
+
+    protected synchronized ChunkManifest getManifest()
+    {
+        // content is immutable so the manifest can be cached for the lifetime of the reader
+        if (this.manifest == null)
+        {
+            this.manifest = this.chunkStore.readManifest(this.manifestFile);
+        }
+        return this.manifest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ChunkedContentReader [contentUrl=").append(this.getContentUrl()).append(", manifestFile=").append(this.manifestFile)
+                .append("]");
+        return builder.toString();
+    }
+}
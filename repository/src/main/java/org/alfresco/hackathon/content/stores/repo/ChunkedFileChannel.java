@@ -0,0 +1,127 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only file channel over content that has been split into chunks, streaming the chunks in content order and supporting random access
+ * via the position based operations. Only the file of the chunk currently being read is kept open.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ChunkedFileChannel extends AbstractReadOnlyFileChannel
+{
+
+    private final ChunkStore chunkStore;
+
+    private final ChunkManifest manifest;
+
+    private int openChunkIndex = -1;
+
+    private RandomAccessFile openChunkFile;
+
+    /**
+     * Creates a new channel instance.
+     *
+     * @param chunkStore
+     *            the chunk store holding the chunks
+     * @param manifest
+     *            the manifest of the content
+     */
+    public ChunkedFileChannel(final ChunkStore chunkStore, final ChunkManifest manifest)
+    {
+        this.chunkStore = chunkStore;
+        this.manifest = manifest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst, final long position) throws IOException
+    {
+        this.ensureOpen();
+        int chunkIndex = this.manifest.findChunk(position);
+        if (chunkIndex < 0)
+        {
+            return -1;
+        }
+
+        int total = 0;
+        long currentPosition = position;
+        while (dst.hasRemaining() && chunkIndex < this.manifest.getChunkCount())
+        {
+            final FileChannel chunkChannel = this.openChunk(chunkIndex).getChannel();
+            final long chunkPosition = currentPosition - this.manifest.getChunkOffset(chunkIndex);
+            final int read = chunkChannel.read(dst, chunkPosition);
+            if (read < 0 || (read == 0 && chunkPosition >= this.manifest.getChunkLength(chunkIndex)))
+            {
+                chunkIndex++;
+            }
+            else
+            {
+                total += read;
+                currentPosition += read;
+                if (currentPosition >= this.manifest.getChunkOffset(chunkIndex) + this.manifest.getChunkLength(chunkIndex))
+                {
+                    chunkIndex++;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() throws IOException
+    {
+        this.ensureOpen();
+        return this.manifest.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void implCloseChannel() throws IOException
+    {
+        this.closeChunk();
+    }
+
+    protected RandomAccessFile openChunk(final int chunkIndex) throws IOException
+    {
+        if (this.openChunkIndex != chunkIndex)
+        {
+            this.closeChunk();
+
+            final String digest = this.manifest.getChunkDigest(chunkIndex);
+            final File chunkFile = this.chunkStore.getChunkFile(digest);
+            try
+            {
+                this.openChunkFile = new RandomAccessFile(chunkFile, "r");
+            }
+            catch (final FileNotFoundException e)
+            {
+                throw new IOException("Chunk " + digest + " is missing from the chunk store", e);
+            }
+            this.openChunkIndex = chunkIndex;
+        }
+        return this.openChunkFile;
+    }
+
+    protected void closeChunk() throws IOException
+    {
+        if (this.openChunkFile != null)
+        {
+            this.openChunkFile.close();
+            this.openChunkFile = null;
+            this.openChunkIndex = -1;
+        }
+    }
+}
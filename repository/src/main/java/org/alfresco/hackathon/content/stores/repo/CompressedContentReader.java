@@ -0,0 +1,151 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ReadableByteChannel;
+
+import org.alfresco.repo.content.AbstractContentReader;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader for content that has been stored compressed, providing the uncompressed content via a {@link CompressedFileChannel} that supports
+ * both streaming and random access.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class CompressedContentReader extends AbstractContentReader implements StoredContentReader
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressedContentReader.class);
+
+    private final HashBasedFileContentStore store;
+
+    private final File compressedFile;
+
+    private long size = -1;
+
+    /**
+     * Creates a new reader instance.
+     *
+     * @param store
+     *            the store that created this reader
+     * @param compressedFile
+     *            the file holding the compressed content
+     * @param contentUrl
+     *            the content URL
+     */
+    public CompressedContentReader(final HashBasedFileContentStore store, final File compressedFile, final String contentUrl)
+    {
+        super(contentUrl);
+        this.store = store;
+        this.compressedFile = compressedFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HashBasedFileContentStore getStore()
+    {
+        return this.store;
+    }
+
+    /**
+     * @return the file holding the compressed content
+     */
+    public File getCompressedFile()
+    {
+        return this.compressedFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean exists()
+    {
+        return this.compressedFile.exists();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLastModified()
+    {
+        return this.compressedFile.lastModified();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long getSize()
+    {
+        // content is immutable so the size can be cached for the lifetime of the reader
+        if (this.size == -1 && this.exists())
+        {
+            try
+            {
+                final RandomAccessFile file = new RandomAccessFile(this.compressedFile, "r");
+                try
+                {
+                    this.size = FrameIndex.read(file).getSize();
+                }
+                finally
+                {
+                    file.close();
+                }
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to read size of compressed content " + this.compressedFile, e);
+            }
+        }
+        return Math.max(0, this.size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ContentReader createReader() throws ContentIOException
+    {
+        return new CompressedContentReader(this.store, this.compressedFile, this.getContentUrl());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ReadableByteChannel getDirectReadableChannel() throws ContentIOException
+    {
+        if (!this.exists())
+        {
+            throw new ContentIOException("Compressed content file does not exist: " + this.compressedFile);
+        }
+
+        try
+        {
+            final CompressedFileChannel channel = new CompressedFileChannel(this.compressedFile);
+            LOGGER.debug("Opened read channel to compressed content {}", this.compressedFile);
+            return channel;
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to open compressed content " + this.compressedFile, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("CompressedContentReader [contentUrl=").append(this.getContentUrl()).append(", compressedFile=")
+                .append(this.compressedFile).append("]");
+        return builder.toString();
+    }
+}
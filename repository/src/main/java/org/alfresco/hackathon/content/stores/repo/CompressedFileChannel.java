@@ -0,0 +1,150 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only file channel over content compressed by a {@link FramedCompressor}, supporting random access by only inflating the frame
+ * containing the requested position. The most recently inflated frame is kept, so sequential reads inflate each frame exactly once.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class CompressedFileChannel extends AbstractReadOnlyFileChannel
+{
+
+    private final RandomAccessFile file;
+
+    private final FrameIndex index;
+
+    private final Inflater inflater = new Inflater();
+
+    private byte[] compressedFrame;
+
+    private final byte[] frame;
+
+    private int frameIndex = -1;
+
+    /**
+     * Creates a new channel instance.
+     *
+     * @param compressedFile
+     *            the file holding the compressed content
+     * @throws IOException
+     *             if the file cannot be opened or is not valid compressed content
+     */
+    public CompressedFileChannel(final File compressedFile) throws IOException
+    {
+        this.file = new RandomAccessFile(compressedFile, "r");
+        try
+        {
+            this.index = FrameIndex.read(this.file);
+        }
+        catch (final IOException e)
+        {
+            this.file.close();
+            this.inflater.end();
+            throw e;
+        }
+        this.frame = new byte[this.index.getFrameSize()];
+        this.compressedFrame = new byte[Math.max(64, this.index.getFrameSize() / 2)];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst, final long position) throws IOException
+    {
+        this.ensureOpen();
+        int frameIndex = this.index.findFrame(position);
+        if (frameIndex < 0)
+        {
+            return -1;
+        }
+
+        int total = 0;
+        long currentPosition = position;
+        while (dst.hasRemaining() && frameIndex < this.index.getFrameCount())
+        {
+            this.inflateFrame(frameIndex);
+
+            final int framePosition = (int) (currentPosition - (long) frameIndex * this.index.getFrameSize());
+            final int length = Math.min(dst.remaining(), this.index.getFrameLength(frameIndex) - framePosition);
+            dst.put(this.frame, framePosition, length);
+
+            total += length;
+            currentPosition += length;
+            frameIndex++;
+        }
+        return total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() throws IOException
+    {
+        this.ensureOpen();
+        return this.index.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void implCloseChannel() throws IOException
+    {
+        this.inflater.end();
+        this.file.close();
+    }
+
+    protected void inflateFrame(final int frameIndex) throws IOException
+    {
+        if (this.frameIndex != frameIndex)
+        {
+            // invalidate first in case inflation fails
+            this.frameIndex = -1;
+
+            final int compressedLength = this.index.getCompressedFrameLength(frameIndex);
+            if (this.compressedFrame.length < compressedLength)
+            {
+                this.compressedFrame = new byte[compressedLength];
+            }
+            this.file.seek(this.index.getFrameOffset(frameIndex));
+            this.file.readFully(this.compressedFrame, 0, compressedLength);
+
+            final int frameLength = this.index.getFrameLength(frameIndex);
+            this.inflater.reset();
+            this.inflater.setInput(this.compressedFrame, 0, compressedLength);
+            try
+            {
+                int inflated = 0;
+                while (inflated < frameLength && !this.inflater.finished())
+                {
+                    final int read = this.inflater.inflate(this.frame, inflated, frameLength - inflated);
+                    if (read == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+                    {
+                        break;
+                    }
+                    inflated += read;
+                }
+
+                if (inflated != frameLength)
+                {
+                    throw new IOException("Frame " + frameIndex + " of compressed content is corrupt");
+                }
+            }
+            catch (final DataFormatException e)
+            {
+                throw new IOException("Frame " + frameIndex + " of compressed content is corrupt", e);
+            }
+
+            this.frameIndex = frameIndex;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Determines the files holding content of a {@link HashBasedFileContentStore} by its digest. Content is stored in the current fan-out
+ * layout on the volume owning its digest, but may still be located in the previous layout and / or on the previous volumes while a
+ * {@link FanOutLayoutMigrator migration} is in progress, or in the cold tier. In each of these locations, the content may be held by a
+ * plain content file, a {@link ChunkManifest manifest} of chunks or a {@link FramedCompressor compressed} file.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentLocator
+{
+
+    private final File rootFile;
+
+    private final ContentVolume primaryVolume;
+
+    private final List<ContentVolume> volumes;
+
+    private final ContentVolume coldVolume;
+
+    private final FanOutLayout layout;
+
+    private final VolumeRing ring;
+
+    // reset concurrently when the migration completes
+    private volatile FanOutLayout previousLayout;
+
+    private volatile VolumeRing previousRing;
+
+    /**
+     * Creates a new locator instance.
+     *
+     * @param rootFile
+     *            the root directory of the store
+     * @param primaryVolume
+     *            the volume of the root directory
+     * @param volumes
+     *            all volumes of the hot tier, including the primary volume
+     * @param coldVolume
+     *            the volume of the cold tier - may be {@code null} if no cold tier is configured
+     * @param layout
+     *            the current fan-out layout
+     * @param ring
+     *            the current ring of volumes
+     * @param previousLayout
+     *            the fan-out layout content is being migrated from - may be {@code null} if the layout has not changed
+     * @param previousRing
+     *            the ring of volumes content is being migrated from - may be {@code null} if the volumes have not changed
+     */
+    public ContentLocator(final File rootFile, final ContentVolume primaryVolume, final List<ContentVolume> volumes,
+            final ContentVolume coldVolume, final FanOutLayout layout, final VolumeRing ring, final FanOutLayout previousLayout,
+            final VolumeRing previousRing)
+    {
+        this.rootFile = rootFile;
+        this.primaryVolume = primaryVolume;
+        this.volumes = volumes;
+        this.coldVolume = coldVolume;
+        this.layout = layout;
+        this.ring = ring;
+        this.previousLayout = previousLayout;
+        this.previousRing = previousRing;
+    }
+
+    /**
+     * @return the current fan-out layout
+     */
+    public FanOutLayout getLayout()
+    {
+        return this.layout;
+    }
+
+    /**
+     * @return the current ring of volumes
+     */
+    public VolumeRing getRing()
+    {
+        return this.ring;
+    }
+
+    /**
+     * @return the fan-out layout content is being migrated from or {@code null} if the layout has not changed
+     */
+    public FanOutLayout getPreviousLayout()
+    {
+        return this.previousLayout;
+    }
+
+    /**
+     * @return the ring of volumes content is being migrated from or {@code null} if the volumes have not changed
+     */
+    public VolumeRing getPreviousRing()
+    {
+        return this.previousRing;
+    }
+
+    /**
+     * @return {@code true} if content is currently being migrated to a different fan-out layout or set of volumes
+     */
+    public boolean isMigrationInProgress()
+    {
+        return this.previousLayout != null || this.previousRing != null;
+    }
+
+    /**
+     * Marks the migration as complete so content is no longer looked up in the previous layout or on the previous volumes.
+     */
+    public void completeMigration()
+    {
+        this.previousLayout = null;
+        this.previousRing = null;
+    }
+
+    /**
+     * Creates the content file for a digest in the current fan-out layout on the current volumes.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the content file - the file may or may not exist
+     */
+    public File makeFile(final String digest)
+    {
+        return this.makeFile(digest, this.layout, this.ring);
+    }
+
+    /**
+     * Creates the content file for a digest in a specific fan-out layout on a specific ring of volumes.
+     *
+     * @param digest
+     *            the digest of the content
+     * @param layout
+     *            the fan-out layout
+     * @param ring
+     *            the ring of volumes
+     * @return the content file - the file may or may not exist
+     */
+    public File makeFile(final String digest, final FanOutLayout layout, final VolumeRing ring)
+    {
+        final File file;
+        if (digest.length() >= layout.getPrefixLength())
+        {
+            file = layout.resolve(ring.getVolume(digest).getRootDirectory(), digest);
+        }
+        else
+        {
+            // too short for the layout - stored at the path of its content URL
+            file = FanOutLayout.DEFAULT.resolve(this.rootFile, digest);
+        }
+        return file;
+    }
+
+    /**
+     * Creates the content file for a digest in the cold tier. Content in the cold tier is always stored in the
+     * {@link FanOutLayout#DEFAULT default layout}, so it is not affected by changes of the layout of the hot tier.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the content file in the cold tier - the file may or may not exist - or {@code null} if no cold tier is configured
+     */
+    public File makeColdFile(final String digest)
+    {
+        return this.coldVolume != null ? FanOutLayout.DEFAULT.resolve(this.coldVolume.getRootDirectory(), digest) : null;
+    }
+
+    /**
+     * Creates the content files for a digest in the previous fan-out layout and / or on the previous volumes while a migration is in
+     * progress.
+     *
+     * @param digest
+     *            the digest of the content
+     * @param contentFile
+     *            the content file in the current fan-out layout on the current volumes
+     * @return the previous content files, excluding any file identical to the current one
+     */
+    public List<File> makePreviousFiles(final String digest, final File contentFile)
+    {
+        final FanOutLayout previousLayout = this.previousLayout;
+        final VolumeRing previousRing = this.previousRing;
+
+        final List<File> candidates = new ArrayList<File>(3);
+        if (previousLayout != null)
+        {
+            candidates.add(this.makeFile(digest, previousLayout, this.ring));
+        }
+        if (previousRing != null)
+        {
+            candidates.add(this.makeFile(digest, this.layout, previousRing));
+            if (previousLayout != null)
+            {
+                candidates.add(this.makeFile(digest, previousLayout, previousRing));
+            }
+        }
+
+        // most prefixes keep their volume when volumes are added
+        final List<File> previousFiles = new ArrayList<File>(candidates.size());
+        for (final File candidate : candidates)
+        {
+            if (!candidate.equals(contentFile) && !previousFiles.contains(candidate))
+            {
+                previousFiles.add(candidate);
+            }
+        }
+        return previousFiles;
+    }
+
+    /**
+     * Creates all content files a digest may currently be stored at, in the order they are {@link #locate(String) probed}.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the content files, starting with the file in the current fan-out layout on the current volumes, followed by the previous
+     *         files and the file in the cold tier
+     */
+    public List<File> makeCandidateFiles(final String digest)
+    {
+        final File contentFile = this.makeFile(digest);
+        final List<File> previousFiles = this.makePreviousFiles(digest, contentFile);
+        final File coldFile = this.makeColdFile(digest);
+
+        final List<File> candidates = new ArrayList<File>(previousFiles.size() + 2);
+        candidates.add(contentFile);
+        candidates.addAll(previousFiles);
+        if (coldFile != null)
+        {
+            candidates.add(coldFile);
+        }
+        return candidates;
+    }
+
+    /**
+     * Locates the file holding the content for a digest. The current location is checked first, so content that is neither being migrated
+     * nor in the cold tier costs a single file system lookup.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the file holding the content or {@code null} if the content is not stored
+     */
+    public File locate(final String digest)
+    {
+        final File contentFile = this.makeFile(digest);
+        File file = resolveContentFile(contentFile);
+        if (file == null && this.isMigrationInProgress())
+        {
+            // if the file doesn't exist in any previous location either, it may have just been migrated
+            final List<File> previousFiles = this.makePreviousFiles(digest, contentFile);
+            for (int idx = 0, max = previousFiles.size(); idx < max && file == null; idx++)
+            {
+                file = resolveContentFile(previousFiles.get(idx));
+            }
+        }
+
+        if (file == null && this.coldVolume != null)
+        {
+            // if the file doesn't exist in the cold tier either, it may have just been promoted
+            file = resolveContentFile(this.makeColdFile(digest));
+        }
+        return file;
+    }
+
+    /**
+     * Determines the volume a file is located on.
+     *
+     * @param file
+     *            the file
+     * @return the volume of the file - the primary volume if the file is not located on any of the additional volumes or the cold tier
+     */
+    public ContentVolume getVolume(final File file)
+    {
+        ContentVolume result = this.coldVolume != null && this.coldVolume.contains(file) ? this.coldVolume : this.primaryVolume;
+        for (int idx = 0, max = this.volumes.size(); idx < max && result == this.primaryVolume; idx++)
+        {
+            final ContentVolume volume = this.volumes.get(idx);
+            if (volume != this.primaryVolume && volume.contains(file))
+            {
+                result = volume;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines the volume content for a digest is stored on in the hot tier.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the volume owning the digest
+     */
+    public ContentVolume getVolume(final String digest)
+    {
+        final ContentVolume volume = this.ring.getVolume(digest);
+        return volume != null ? volume : this.primaryVolume;
+    }
+
+    /**
+     * Resolves the file actually holding content, which is the manifest if the content has been split into chunks or the compressed file if
+     * the content has been stored compressed.
+     *
+     * @param contentFile
+     *            the content file
+     * @return the first existing file of content file, manifest file and compressed file, or {@code null} if none exists
+     */
+    public static File resolveContentFile(final File contentFile)
+    {
+        File file = null;
+        if (contentFile.exists())
+        {
+            file = contentFile;
+        }
+        else
+        {
+            final File manifestFile = FanOutWalker.getManifestFile(contentFile);
+            if (manifestFile.exists())
+            {
+                file = manifestFile;
+            }
+            else
+            {
+                final File compressedFile = FanOutWalker.getCompressedFile(contentFile);
+                if (compressedFile.exists())
+                {
+                    file = compressedFile;
+                }
+            }
+        }
+        return file;
+    }
+}
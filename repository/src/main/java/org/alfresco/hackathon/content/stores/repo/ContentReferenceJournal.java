@@ -0,0 +1,299 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Persistent journal of the number of node properties referencing content URLs of a de-duplicating store. Reference changes are collected
+ * per transaction and applied to the {@link AttributeService} just before the transaction commits, so the counts are always consistent
+ * with the committed node data. Concurrent updates of the same count are detected by the optimistic locking of the attribute service and
+ * resolved by the usual transaction retry handling.
+ *
+ * Content URLs whose reference count drops to zero are recorded as orphans (together with the time they became orphaned) for
+ * {@link OrphanedContentCollector incremental collection}. Orphans are additionally indexed in buckets of the time they became orphaned,
+ * so retrieving the orphans past the grace period only reads the buckets that are old enough instead of all orphans ever recorded.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentReferenceJournal implements InitializingBean
+{
+
+    protected static final String ATTR_KEY_APPLICATION = "org.alfresco.hackathon.content-stores";
+    protected static final String ATTR_KEY_REFERENCE_COUNT = "referenceCount";
+    protected static final String ATTR_KEY_ORPHAN = "orphanedContentUrl";
+    protected static final String ATTR_KEY_ORPHAN_BUCKET = "orphanBucket";
+    protected static final String ATTR_KEY_APPLICATION_ORPHAN_INDEX = ATTR_KEY_APPLICATION + ".orphanIndex";
+
+    // 10 minutes
+    protected static final long ORPHAN_BUCKET_DURATION = 10 * 60 * 1000l;
+
+    private static final String TXN_KEY_DELTAS = ContentReferenceJournal.class.getName() + ".deltas";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentReferenceJournal.class);
+
+    private AttributeService attributeService;
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+    }
+
+    /**
+     * Records a new reference to a content URL in the current transaction.
+     *
+     * @param contentUrl
+     *            the content URL
+     */
+    public void addReference(final String contentUrl)
+    {
+        this.recordDelta(contentUrl, 1);
+    }
+
+    /**
+     * Records the removal of a reference to a content URL in the current transaction.
+     *
+     * @param contentUrl
+     *            the content URL
+     */
+    public void removeReference(final String contentUrl)
+    {
+        this.recordDelta(contentUrl, -1);
+    }
+
+    /**
+     * Retrieves the committed reference count of a content URL.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return the number of references - may be {@code 0} for content that has been stored before reference counting was enabled
+     */
+    public int getReferenceCount(final String contentUrl)
+    {
+        final Serializable value = this.attributeService.getAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_REFERENCE_COUNT, contentUrl);
+        return value instanceof Integer ? ((Integer) value).intValue() : 0;
+    }
+
+    /**
+     * Retrieves orphaned content URLs that have been orphaned before a specific time.
+     *
+     * @param orphanedBefore
+     *            the time (exclusive) before which content URLs must have been orphaned
+     * @param maxResults
+     *            the maximum number of content URLs to retrieve
+     * @param excludedContentUrls
+     *            the content URLs to skip, e.g. because they have already been looked at and could not be processed yet
+     * @return the list of orphaned content URLs
+     */
+    public List<String> getOrphans(final long orphanedBefore, final int maxResults, final Set<String> excludedContentUrls)
+    {
+        final List<Long> buckets = new ArrayList<Long>();
+        this.attributeService.getAttributes(new AttributeQueryCallback()
+        {
+
+            public boolean handleAttribute(final Long id, final Serializable value, final Serializable[] keys)
+            {
+                final Long bucket = (Long) keys[2];
+                if (bucket.longValue() * ORPHAN_BUCKET_DURATION < orphanedBefore)
+                {
+                    buckets.add(bucket);
+                }
+                return true;
+            }
+        }, ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN_BUCKET);
+        Collections.sort(buckets);
+
+        final List<String> orphans = new ArrayList<String>();
+        for (final Long bucket : buckets)
+        {
+            final boolean[] empty = new boolean[] { true };
+            this.attributeService.getAttributes(new AttributeQueryCallback()
+            {
+
+                public boolean handleAttribute(final Long id, final Serializable value, final Serializable[] keys)
+                {
+                    empty[0] = false;
+                    if (value instanceof Long && ((Long) value).longValue() < orphanedBefore && !excludedContentUrls.contains(keys[2]))
+                    {
+                        orphans.add((String) keys[2]);
+                    }
+                    return orphans.size() < maxResults;
+                }
+            }, ATTR_KEY_APPLICATION_ORPHAN_INDEX, bucket);
+
+            if (empty[0] && (bucket.longValue() + 1) * ORPHAN_BUCKET_DURATION < orphanedBefore)
+            {
+                // no new orphans are recorded in buckets older than the grace period
+                this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN_BUCKET, bucket);
+            }
+
+            if (orphans.size() >= maxResults)
+            {
+                break;
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Checks if a content URL is still recorded as an orphan.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return {@code true} if the content URL is an orphan
+     */
+    public boolean isOrphan(final String contentUrl)
+    {
+        return this.attributeService.exists(ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN, contentUrl);
+    }
+
+    /**
+     * Removes the orphan record of a content URL, e.g. after its content has been deleted.
+     *
+     * @param contentUrl
+     *            the content URL
+     */
+    public void removeOrphan(final String contentUrl)
+    {
+        final Serializable orphanTime = this.attributeService.getAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN, contentUrl);
+        if (orphanTime instanceof Long)
+        {
+            this.attributeService.removeAttribute(ATTR_KEY_APPLICATION_ORPHAN_INDEX, toBucket(((Long) orphanTime).longValue()), contentUrl);
+            this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN, contentUrl);
+        }
+    }
+
+    /**
+     * Records a single reference for a content URL that is known to still be referenced although its reference count dropped to zero,
+     * e.g. because it was referenced before reference counting was enabled. Counts can only under-count in such cases, so the next
+     * removal of a reference makes the content URL an orphan again for another check instead of leaving it untracked.
+     *
+     * @param contentUrl
+     *            the content URL
+     */
+    public void reconcileReference(final String contentUrl)
+    {
+        if (this.getReferenceCount(contentUrl) <= 0)
+        {
+            this.attributeService.setAttribute(Integer.valueOf(1), ATTR_KEY_APPLICATION, ATTR_KEY_REFERENCE_COUNT, contentUrl);
+            LOGGER.debug("Reconciled reference count of {} to 1", contentUrl);
+        }
+        this.removeOrphan(contentUrl);
+    }
+
+    protected void addOrphan(final String contentUrl, final long orphanTime)
+    {
+        this.removeOrphan(contentUrl);
+
+        final Long bucket = toBucket(orphanTime);
+        // only check for the bucket as concurrent transactions would otherwise conflict on it
+        if (!this.attributeService.exists(ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN_BUCKET, bucket))
+        {
+            this.attributeService.setAttribute(Boolean.TRUE, ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN_BUCKET, bucket);
+        }
+
+        final Long time = Long.valueOf(orphanTime);
+        this.attributeService.setAttribute(time, ATTR_KEY_APPLICATION_ORPHAN_INDEX, bucket, contentUrl);
+        this.attributeService.setAttribute(time, ATTR_KEY_APPLICATION, ATTR_KEY_ORPHAN, contentUrl);
+    }
+
+    protected static Long toBucket(final long orphanTime)
+    {
+        return Long.valueOf(orphanTime / ORPHAN_BUCKET_DURATION);
+    }
+
+    protected void recordDelta(final String contentUrl, final int delta)
+    {
+        final Map<String, Integer> deltas = TransactionalResourceHelper.getMap(TXN_KEY_DELTAS);
+        if (deltas.isEmpty())
+        {
+            // new listener instance each time, so deltas recorded by other beforeCommit listeners after a flush are not lost
+            AlfrescoTransactionSupport.bindListener(new DeltaFlushListener());
+        }
+
+        final Integer currentDelta = deltas.get(contentUrl);
+        deltas.put(contentUrl, Integer.valueOf((currentDelta != null ? currentDelta.intValue() : 0) + delta));
+    }
+
+    protected void flushDeltas()
+    {
+        final Map<String, Integer> deltas = TransactionalResourceHelper.getMap(TXN_KEY_DELTAS);
+        final Map<String, Integer> pendingDeltas = new HashMap<String, Integer>(deltas);
+        deltas.clear();
+
+        final long now = System.currentTimeMillis();
+        for (final Entry<String, Integer> deltaEntry : pendingDeltas.entrySet())
+        {
+            final int delta = deltaEntry.getValue().intValue();
+            if (delta == 0)
+            {
+                continue;
+            }
+
+            final String contentUrl = deltaEntry.getKey();
+            final int count = this.getReferenceCount(contentUrl);
+            final int newCount = count + delta;
+
+            // counts are clamped at zero - the journal can't know about references that were never counted
+            if (newCount > 0)
+            {
+                this.attributeService.setAttribute(Integer.valueOf(newCount), ATTR_KEY_APPLICATION, ATTR_KEY_REFERENCE_COUNT, contentUrl);
+                if (count <= 0)
+                {
+                    this.removeOrphan(contentUrl);
+                }
+            }
+            else
+            {
+                if (newCount < 0)
+                {
+                    LOGGER.debug("Reference count of {} dropped below zero - content was referenced before reference counting was enabled",
+                            contentUrl);
+                }
+
+                this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_REFERENCE_COUNT, contentUrl);
+                this.addOrphan(contentUrl, now);
+            }
+
+            LOGGER.trace("Reference count of {} changed from {} to {}", new Object[] { contentUrl, Integer.valueOf(count),
+                    Integer.valueOf(newCount) });
+        }
+    }
+
+    protected class DeltaFlushListener extends TransactionListenerAdapter
+    {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void beforeCommit(final boolean readOnly)
+        {
+            ContentReferenceJournal.this.flushDeltas();
+        }
+    }
+}
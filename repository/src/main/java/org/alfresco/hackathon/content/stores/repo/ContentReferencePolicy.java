@@ -0,0 +1,194 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.ContentServicePolicies.OnContentPropertyUpdatePolicy;
+import org.alfresco.repo.node.NodeServicePolicies.BeforeArchiveNodePolicy;
+import org.alfresco.repo.node.NodeServicePolicies.BeforeDeleteNodePolicy;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Policy to track references of node content properties to content of a {@link HashBasedFileContentStore} in a
+ * {@link ContentReferenceJournal}.
+ *
+ * Archived nodes keep referencing their content, so moving a node to the archive store must not release its references - otherwise
+ * content of nodes in the trash could be collected and a later restore would bring back nodes without content. Alfresco notifies
+ * {@link BeforeDeleteNodePolicy#beforeDeleteNode(NodeRef) beforeDeleteNode} for nodes that are archived as well, so references
+ * released for a node that turns out to be archived in the same transaction are added back. As the references are never released,
+ * restoring a node from the archive store does not need to add them again - they are only released when the node is purged from the
+ * archive store.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentReferencePolicy implements OnContentPropertyUpdatePolicy, BeforeDeleteNodePolicy, BeforeArchiveNodePolicy,
+        InitializingBean
+{
+
+    private static final String TXN_KEY_ARCHIVED_NODES = ContentReferencePolicy.class.getName() + ".archivedNodes";
+
+    private static final String TXN_KEY_DELETED_NODES = ContentReferencePolicy.class.getName() + ".deletedNodes";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentReferencePolicy.class);
+
+    private PolicyComponent policyComponent;
+
+    private NodeService nodeService;
+
+    private HashBasedFileContentStore store;
+
+    private ContentReferenceJournal referenceJournal;
+
+    public void setPolicyComponent(final PolicyComponent policyComponent)
+    {
+        this.policyComponent = policyComponent;
+    }
+
+    /**
+     * @param nodeService
+     *            the nodeService to set
+     */
+    public final void setNodeService(final NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    /**
+     * @param store
+     *            the store to set
+     */
+    public final void setStore(final HashBasedFileContentStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param referenceJournal
+     *            the referenceJournal to set
+     */
+    public final void setReferenceJournal(final ContentReferenceJournal referenceJournal)
+    {
+        this.referenceJournal = referenceJournal;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "nodeService", this.nodeService);
+        PropertyCheck.mandatory(this, "policyComponent", this.policyComponent);
+        PropertyCheck.mandatory(this, "store", this.store);
+        PropertyCheck.mandatory(this, "referenceJournal", this.referenceJournal);
+
+        // content properties may be defined on any type or aspect - versions and archived nodes hold references as well
+        this.policyComponent.bindClassBehaviour(OnContentPropertyUpdatePolicy.QNAME, ContentModel.TYPE_BASE, new JavaBehaviour(this,
+                "onContentPropertyUpdate", NotificationFrequency.EVERY_EVENT));
+        this.policyComponent.bindClassBehaviour(BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_BASE, new JavaBehaviour(this,
+                "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+        this.policyComponent.bindClassBehaviour(BeforeArchiveNodePolicy.QNAME, ContentModel.TYPE_BASE, new JavaBehaviour(this,
+                "beforeArchiveNode", NotificationFrequency.EVERY_EVENT));
+    }
+
+    public void onContentPropertyUpdate(final NodeRef nodeRef, final QName propertyQName, final ContentData beforeValue,
+            final ContentData afterValue)
+    {
+        LOGGER.trace("onContentPropertyUpdate: {} for {}", nodeRef, propertyQName);
+
+        final String beforeUrl = beforeValue != null ? beforeValue.getContentUrl() : null;
+        final String afterUrl = afterValue != null ? afterValue.getContentUrl() : null;
+
+        if (beforeUrl == null ? afterUrl != null : !beforeUrl.equals(afterUrl))
+        {
+            this.removeReference(beforeUrl);
+            this.addReference(afterUrl);
+        }
+    }
+
+    public void beforeDeleteNode(final NodeRef nodeRef)
+    {
+        LOGGER.trace("beforeDeleteNode: {}", nodeRef);
+
+        // the order of beforeArchiveNode and beforeDeleteNode is an implementation detail of the node service
+        final Set<NodeRef> archivedNodes = TransactionalResourceHelper.getSet(TXN_KEY_ARCHIVED_NODES);
+        if (archivedNodes.contains(nodeRef))
+        {
+            LOGGER.trace("Keeping references of archived node {}", nodeRef);
+        }
+        else
+        {
+            final Set<NodeRef> deletedNodes = TransactionalResourceHelper.getSet(TXN_KEY_DELETED_NODES);
+            if (deletedNodes.add(nodeRef))
+            {
+                for (final String contentUrl : this.getContentUrls(nodeRef))
+                {
+                    this.removeReference(contentUrl);
+                }
+            }
+        }
+    }
+
+    public void beforeArchiveNode(final NodeRef nodeRef)
+    {
+        LOGGER.trace("beforeArchiveNode: {}", nodeRef);
+
+        final Set<NodeRef> archivedNodes = TransactionalResourceHelper.getSet(TXN_KEY_ARCHIVED_NODES);
+        archivedNodes.add(nodeRef);
+
+        final Set<NodeRef> deletedNodes = TransactionalResourceHelper.getSet(TXN_KEY_DELETED_NODES);
+        if (deletedNodes.remove(nodeRef))
+        {
+            LOGGER.trace("Restoring references of archived node {}", nodeRef);
+            for (final String contentUrl : this.getContentUrls(nodeRef))
+            {
+                this.addReference(contentUrl);
+            }
+        }
+    }
+
+    protected List<String> getContentUrls(final NodeRef nodeRef)
+    {
+        // each property holds its own reference, even if several properties reference the same content
+        final List<String> contentUrls = new ArrayList<String>();
+        for (final Serializable value : this.nodeService.getProperties(nodeRef).values())
+        {
+            // only single-valued content properties trigger onContentPropertyUpdate
+            if (value instanceof ContentData)
+            {
+                final String contentUrl = ((ContentData) value).getContentUrl();
+                if (contentUrl != null)
+                {
+                    contentUrls.add(contentUrl);
+                }
+            }
+        }
+        return contentUrls;
+    }
+
+    protected void addReference(final String contentUrl)
+    {
+        if (contentUrl != null && this.store.isHashBasedContentUrl(contentUrl))
+        {
+            this.referenceJournal.addReference(contentUrl);
+        }
+    }
+
+    protected void removeReference(final String contentUrl)
+    {
+        if (contentUrl != null && this.store.isHashBasedContentUrl(contentUrl))
+        {
+            this.referenceJournal.removeReference(contentUrl);
+        }
+    }
+}
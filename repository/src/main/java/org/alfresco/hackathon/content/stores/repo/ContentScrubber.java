@@ -0,0 +1,779 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Verifies the integrity of content in a {@link HashBasedFileContentStore} by re-hashing content files and comparing the result with the
+ * digest encoded in their name. A pass visits the top level fan-out directories of all volumes, the cold tier and the chunk pool on a
+ * number of worker threads and records its progress in a checkpoint file, so a pass can be spread over several (time-limited) runs and
+ * is resumed after a restart. Damaged files are reported and optionally moved to the
+ * {@link HashBasedFileContentStore#QUARANTINE_DIRECTORY_NAME quarantine directory} of their volume.
+ *
+ * Content is verified against all {@link DigestModes modes} the store has derived content URLs with, so changing the message digest type
+ * or tree hashing settings does not make existing content appear damaged. Content that matches none of the modes is only considered
+ * damaged if the modes of all content are known - content of stores that existed before modes were recorded is reported as unverifiable
+ * instead and left in place.
+ *
+ * Content is read sequentially through a small buffer, never via memory mappings or the shared file handles of readers, and at a limited
+ * rate. Pages read only once are placed on the inactive list of the page cache by the operating system, so a pass does not displace
+ * frequently read content. Manifests of chunked content are only checked for missing or truncated chunks, since the chunks themselves are
+ * verified as part of the chunk pool.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentScrubber implements InitializingBean
+{
+
+    /**
+     * Name of the file within the root directory that records the progress of the current pass.
+     */
+    public static final String CHECKPOINT_FILE_NAME = ".scrub";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentScrubber.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "ContentScrubber");
+
+    private static final long LOCK_TTL = 60000l;
+
+    private static final String PROPERTY_PASS_STARTED = "pass.started";
+
+    private static final String PROPERTY_PASS_COMPLETED = "pass.completed";
+
+    private static final String PROPERTY_LAST_COMPLETED_DIRECTORY = "last.completed.directory";
+
+    private static final String PROPERTY_VERIFIED = "verified";
+
+    private static final String PROPERTY_DAMAGED = "damaged";
+
+    private static final String PROPERTY_UNVERIFIABLE = "unverifiable";
+
+    // 64 KiB
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private HashBasedFileContentStore store;
+
+    private JobLockService jobLockService;
+
+    private int threadCount = 2;
+
+    // 10 MiB
+    private long bytesPerSecond = 10 * 1024 * 1024l;
+
+    // 7 days
+    private long passInterval = 7 * 24 * 60 * 60 * 1000l;
+
+    // 4 hours
+    private long maxRunDuration = 4 * 60 * 60 * 1000l;
+
+    private boolean quarantineEnabled = false;
+
+    private final Object throttleLock = new Object();
+
+    private long nextReadTime;
+
+    /**
+     * @param store
+     *            the store to set
+     */
+    public void setStore(final HashBasedFileContentStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of top level directories to verify in parallel
+     */
+    public void setThreadCount(final int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @param bytesPerSecond
+     *            the maximum number of bytes to read per second (across all threads) or {@code 0} to read as fast as possible
+     */
+    public void setBytesPerSecond(final long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param passInterval
+     *            the minimum time (in milliseconds) between the start of a pass and the completion of the previous pass
+     */
+    public void setPassInterval(final long passInterval)
+    {
+        this.passInterval = passInterval;
+    }
+
+    /**
+     * @param maxRunDuration
+     *            the maximum time (in milliseconds) of a single run before the pass is suspended until the next run or {@code 0} to
+     *            complete a pass in a single run
+     */
+    public void setMaxRunDuration(final long maxRunDuration)
+    {
+        this.maxRunDuration = maxRunDuration;
+    }
+
+    /**
+     * @param quarantineEnabled
+     *            {@code true} if damaged files should be moved to quarantine, {@code false} if they should only be reported
+     */
+    public void setQuarantineEnabled(final boolean quarantineEnabled)
+    {
+        this.quarantineEnabled = quarantineEnabled;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "store", this.store);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+        if (this.threadCount < 1)
+        {
+            throw new AlfrescoRuntimeException("Thread count must be at least 1");
+        }
+    }
+
+    /**
+     * Starts a new pass or continues the current pass, provided no other server in the cluster is currently running one.
+     *
+     * @return the number of damaged files found in this run
+     */
+    public int scrub()
+    {
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Content scrub already running elsewhere");
+            return 0;
+        }
+
+        try
+        {
+            return this.runPass(lockToken);
+        }
+        finally
+        {
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+    }
+
+    protected int runPass(final String lockToken)
+    {
+        final File checkpointFile = new File(this.store.getRootFile(), CHECKPOINT_FILE_NAME);
+        final long startTime = System.currentTimeMillis();
+
+        Properties checkpoint = loadCheckpoint(checkpointFile);
+        if (checkpoint != null && checkpoint.getProperty(PROPERTY_PASS_COMPLETED) != null)
+        {
+            final long passCompleted = Long.parseLong(checkpoint.getProperty(PROPERTY_PASS_COMPLETED));
+            if (startTime - passCompleted < this.passInterval)
+            {
+                LOGGER.debug("Previous scrub pass of {} completed at {} - not starting a new one yet", this.store,
+                        Long.valueOf(passCompleted));
+                return 0;
+            }
+            checkpoint = null;
+        }
+        if (checkpoint == null)
+        {
+            checkpoint = new Properties();
+            checkpoint.setProperty(PROPERTY_PASS_STARTED, String.valueOf(startTime));
+            checkpoint.setProperty(PROPERTY_VERIFIED, "0");
+            checkpoint.setProperty(PROPERTY_DAMAGED, "0");
+            checkpoint.setProperty(PROPERTY_UNVERIFIABLE, "0");
+            saveCheckpoint(checkpointFile, checkpoint);
+        }
+
+        final String lastCompletedDirectory = checkpoint.getProperty(PROPERTY_LAST_COMPLETED_DIRECTORY);
+        final List<ScrubRoot> roots = this.getScrubRoots();
+        final List<String> directoryNames = new ArrayList<String>();
+        final List<File> rootFiles = new ArrayList<File>();
+        for (final ScrubRoot root : roots)
+        {
+            rootFiles.add(root.rootDirectory);
+        }
+        for (final String directoryName : FanOutWalker.listFanOutDirectoryNames(rootFiles))
+        {
+            if (lastCompletedDirectory == null || directoryName.compareTo(lastCompletedDirectory) > 0)
+            {
+                directoryNames.add(directoryName);
+            }
+        }
+
+        LOGGER.info("Scrubbing content of {} - resuming after directory {}", this.store, lastCompletedDirectory);
+
+        final ScrubCounts counts = new ScrubCounts(this.store.getDigestModes());
+        final boolean completed = this.scrubDirectories(lockToken, roots, directoryNames, checkpointFile, checkpoint, counts, startTime);
+
+        if (completed)
+        {
+            checkpoint.remove(PROPERTY_LAST_COMPLETED_DIRECTORY);
+            checkpoint.setProperty(PROPERTY_PASS_COMPLETED, String.valueOf(System.currentTimeMillis()));
+            saveCheckpoint(checkpointFile, checkpoint);
+            LOGGER.info("Completed scrub pass of {} - verified {} files, found {} damaged and {} unverifiable files", new Object[] {
+                    this.store, checkpoint.getProperty(PROPERTY_VERIFIED), checkpoint.getProperty(PROPERTY_DAMAGED),
+                    checkpoint.getProperty(PROPERTY_UNVERIFIABLE, "0") });
+        }
+        else
+        {
+            LOGGER.info("Suspended scrub pass of {} after verifying {} files in this run - found {} damaged and {} unverifiable files",
+                    new Object[] { this.store, Long.valueOf(counts.verified.get()), Integer.valueOf(counts.damaged.get()),
+                            Long.valueOf(counts.unverifiable.get()) });
+        }
+
+        return counts.damaged.get();
+    }
+
+    protected boolean scrubDirectories(final String lockToken, final List<ScrubRoot> roots, final List<String> directoryNames,
+            final File checkpointFile, final Properties checkpoint, final ScrubCounts counts, final long startTime)
+    {
+        final ExecutorService executor = this.createExecutor();
+        try
+        {
+            final CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+            // directories may complete out of order but the checkpoint may only advance over contiguous completed directories
+            final boolean[] completedDirectories = new boolean[directoryNames.size()];
+            int nextDirectory = 0;
+            int checkpointDirectory = 0;
+            int inFlight = 0;
+            boolean suspended = false;
+            long recordedVerified = 0;
+            int recordedDamaged = 0;
+            long recordedUnverifiable = 0;
+
+            while (checkpointDirectory < directoryNames.size() && (!suspended || inFlight > 0))
+            {
+                while (!suspended && inFlight < this.threadCount && nextDirectory < directoryNames.size())
+                {
+                    final int directoryIdx = nextDirectory++;
+                    final String directoryName = directoryNames.get(directoryIdx);
+                    completionService.submit(new Callable<Integer>()
+                    {
+
+                        public Integer call()
+                        {
+                            ContentScrubber.this.scrubDirectory(roots, directoryName, counts);
+                            return Integer.valueOf(directoryIdx);
+                        }
+                    });
+                    inFlight++;
+                }
+
+                if (inFlight == 0)
+                {
+                    break;
+                }
+
+                final Future<Integer> future = this.poll(completionService);
+                this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+                if (future != null)
+                {
+                    inFlight--;
+                    completedDirectories[this.getResult(future).intValue()] = true;
+
+                    final int previousCheckpointDirectory = checkpointDirectory;
+                    while (checkpointDirectory < completedDirectories.length && completedDirectories[checkpointDirectory])
+                    {
+                        checkpointDirectory++;
+                    }
+                    if (checkpointDirectory != previousCheckpointDirectory)
+                    {
+                        checkpoint.setProperty(PROPERTY_LAST_COMPLETED_DIRECTORY, directoryNames.get(checkpointDirectory - 1));
+                        // counts of directories completed out of order are included early - only affects statistics
+                        final long currentVerified = counts.verified.get();
+                        final int currentDamaged = counts.damaged.get();
+                        final long currentUnverifiable = counts.unverifiable.get();
+                        final long totalVerified = Long.parseLong(checkpoint.getProperty(PROPERTY_VERIFIED, "0"));
+                        final int totalDamaged = Integer.parseInt(checkpoint.getProperty(PROPERTY_DAMAGED, "0"));
+                        final long totalUnverifiable = Long.parseLong(checkpoint.getProperty(PROPERTY_UNVERIFIABLE, "0"));
+                        checkpoint.setProperty(PROPERTY_VERIFIED, String.valueOf(totalVerified + currentVerified - recordedVerified));
+                        checkpoint.setProperty(PROPERTY_DAMAGED, String.valueOf(totalDamaged + currentDamaged - recordedDamaged));
+                        checkpoint.setProperty(PROPERTY_UNVERIFIABLE,
+                                String.valueOf(totalUnverifiable + currentUnverifiable - recordedUnverifiable));
+                        recordedVerified = currentVerified;
+                        recordedDamaged = currentDamaged;
+                        recordedUnverifiable = currentUnverifiable;
+                        saveCheckpoint(checkpointFile, checkpoint);
+                    }
+                }
+
+                // only checked after the first directories have been submitted so each run makes progress
+                suspended = suspended || Thread.currentThread().isInterrupted()
+                        || (this.maxRunDuration > 0 && System.currentTimeMillis() - startTime > this.maxRunDuration);
+            }
+
+            return checkpointDirectory == directoryNames.size();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    protected Future<Integer> poll(final CompletionService<Integer> completionService)
+    {
+        try
+        {
+            // wakes up regularly to keep the lock alive while large directories are verified
+            return completionService.poll(LOCK_TTL / 4, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for scrubbed directories", e);
+        }
+    }
+
+    protected Integer getResult(final Future<Integer> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for scrubbed directories", e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to scrub directory", e.getCause());
+        }
+    }
+
+    protected void scrubDirectory(final List<ScrubRoot> roots, final String directoryName, final ScrubCounts counts)
+    {
+        for (final ScrubRoot root : roots)
+        {
+            final File directory = new File(root.rootDirectory, directoryName);
+            if (directory.isDirectory())
+            {
+                FanOutWalker.walk(directory, directoryName, null, new FanOutWalker.ContentFileVisitor()
+                {
+
+                    public void visitContentFile(final File file, final String digest)
+                    {
+                        if (Thread.currentThread().isInterrupted())
+                        {
+                            return;
+                        }
+
+                        final Boolean intact = ContentScrubber.this.scrubFile(file, digest, root.chunkPool, counts.digestModes);
+                        if (intact == null)
+                        {
+                            counts.unverifiable.incrementAndGet();
+                        }
+                        else if (intact.booleanValue())
+                        {
+                            counts.verified.incrementAndGet();
+                        }
+                        else if (file.exists() && !Thread.currentThread().isInterrupted())
+                        {
+                            counts.damaged.incrementAndGet();
+                            if (ContentScrubber.this.quarantineEnabled)
+                            {
+                                final File quarantinedFile = ContentScrubber.this.store.quarantineFile(file, digest);
+                                LOGGER.warn("Moved damaged file {} to {}", file, quarantinedFile);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Verifies a single content file.
+     *
+     * @param file
+     *            the file to verify
+     * @param digest
+     *            the digest of the content as encoded in the file name
+     * @param chunk
+     *            {@code true} if the file is a chunk of the chunk pool
+     * @param digestModes
+     *            the modes content URLs may have been derived with
+     * @return {@link Boolean#TRUE} if the file is intact, {@link Boolean#FALSE} if it is damaged or has vanished or {@code null} if it
+     *         can not be verified
+     */
+    protected Boolean scrubFile(final File file, final String digest, final boolean chunk, final DigestModes digestModes)
+    {
+        Boolean intact;
+        try
+        {
+            if (FanOutWalker.isManifestFile(file))
+            {
+                intact = Boolean.valueOf(this.verifyManifest(file));
+            }
+            else
+            {
+                intact = this.verifyDigest(file, digest, chunk, digestModes);
+            }
+        }
+        catch (final IOException e)
+        {
+            intact = Boolean.FALSE;
+            if (file.exists())
+            {
+                LOGGER.error("Failed to verify " + file, e);
+            }
+        }
+        catch (final ContentIOException e)
+        {
+            intact = Boolean.FALSE;
+            if (file.exists())
+            {
+                LOGGER.error("Failed to verify " + file, e);
+            }
+        }
+
+        if (intact == null)
+        {
+            LOGGER.debug("Content file {} does not match any known digest mode and can not be verified", file);
+        }
+        else if (!intact.booleanValue() && file.exists())
+        {
+            LOGGER.error("Content file {} is damaged", file);
+        }
+        // deleted or moved since it was listed - nothing to verify
+        return intact;
+    }
+
+    protected boolean verifyManifest(final File manifestFile)
+    {
+        final ChunkStore chunkStore = this.store.getChunkStore();
+        final ChunkManifest manifest = chunkStore.readManifest(manifestFile);
+        boolean intact = true;
+        for (int idx = 0, max = manifest.getChunkCount(); idx < max && intact; idx++)
+        {
+            // contents of chunks are verified when the chunk pool is scrubbed
+            final File chunkFile = chunkStore.getChunkFile(manifest.getChunkDigest(idx));
+            intact = chunkFile.length() == manifest.getChunkLength(idx);
+            if (!intact)
+            {
+                LOGGER.error("Chunk {} of {} is missing or truncated", chunkFile, manifestFile);
+            }
+        }
+        return intact;
+    }
+
+    /**
+     * Verifies the content of a file against its digest, calculating the digest in all modes content URLs may have been derived with in a
+     * single read.
+     *
+     * @param file
+     *            the file to verify
+     * @param digest
+     *            the digest of the content as encoded in the file name
+     * @param chunk
+     *            {@code true} if the file is a chunk of the chunk pool
+     * @param digestModes
+     *            the modes content URLs may have been derived with
+     * @return {@link Boolean#TRUE} if the content matches the digest in any mode, {@link Boolean#FALSE} if it matches in none of the
+     *         modes of a complete set of modes or {@code null} if it can not be verified
+     * @throws IOException
+     *             if the file can not be read
+     */
+    protected Boolean verifyDigest(final File file, final String digest, final boolean chunk, final DigestModes digestModes)
+            throws IOException
+    {
+        final List<DigestModes.Mode> modes = new ArrayList<DigestModes.Mode>();
+        for (final DigestModes.Mode mode : digestModes.getModes())
+        {
+            // chunks are always addressed by a digest of their whole content
+            final DigestModes.Mode effectiveMode = chunk ? new DigestModes.Mode(mode.getAlgorithm(), 0) : mode;
+            if (!modes.contains(effectiveMode))
+            {
+                modes.add(effectiveMode);
+            }
+        }
+
+        // engines are not obtained from the store so verification does not show up in the metrics of writes
+        final List<DigestEngine> engines = new ArrayList<DigestEngine>();
+        boolean allModesSupported = true;
+        try
+        {
+            for (final DigestModes.Mode mode : modes)
+            {
+                try
+                {
+                    final DigestEngine engine = mode.createEngine();
+                    if (isHexDigest(digest, engine.getDigestLength()))
+                    {
+                        engines.add(engine);
+                    }
+                    else
+                    {
+                        DigestModes.Mode.releaseEngine(engine);
+                    }
+                }
+                catch (final NoSuchAlgorithmException e)
+                {
+                    LOGGER.debug("Message digest type {} is no longer supported", mode.getAlgorithm());
+                    allModesSupported = false;
+                }
+            }
+
+            if (engines.isEmpty())
+            {
+                // content not created by the store can't be verified
+                return null;
+            }
+
+            final FileChannel channel = FanOutWalker.isCompressedFile(file) ? new CompressedFileChannel(file) : new FileInputStream(file)
+                    .getChannel();
+            try
+            {
+                final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                int read;
+                while ((read = channel.read(buffer)) != -1)
+                {
+                    buffer.flip();
+                    for (final DigestEngine engine : engines)
+                    {
+                        engine.update(buffer.duplicate());
+                    }
+                    buffer.clear();
+                    this.throttle(read);
+                }
+            }
+            finally
+            {
+                IOUtils.closeQuietly(channel);
+            }
+
+            Boolean intact = digestModes.isComplete() && allModesSupported ? Boolean.FALSE : null;
+            for (int idx = 0, max = engines.size(); idx < max && !Boolean.TRUE.equals(intact); idx++)
+            {
+                if (digest.equalsIgnoreCase(new String(Hex.encodeHex(engines.get(idx).digest()))))
+                {
+                    intact = Boolean.TRUE;
+                }
+            }
+            return intact;
+        }
+        finally
+        {
+            for (final DigestEngine engine : engines)
+            {
+                DigestModes.Mode.releaseEngine(engine);
+            }
+        }
+    }
+
+    protected void throttle(final long bytes)
+    {
+        if (this.bytesPerSecond > 0 && bytes > 0)
+        {
+            final long waitTime;
+            synchronized (this.throttleLock)
+            {
+                final long now = System.nanoTime();
+                if (this.nextReadTime - now < 0)
+                {
+                    this.nextReadTime = now;
+                }
+                waitTime = this.nextReadTime - now;
+                this.nextReadTime += bytes * 1000000000l / this.bytesPerSecond;
+            }
+
+            if (waitTime > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(waitTime);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    protected List<ScrubRoot> getScrubRoots()
+    {
+        final List<ScrubRoot> roots = new ArrayList<ScrubRoot>();
+        for (final File volumeRootFile : this.store.getVolumeRootFiles())
+        {
+            roots.add(new ScrubRoot(volumeRootFile, false));
+        }
+        final File coldRootFile = this.store.getColdRootFile();
+        if (coldRootFile != null)
+        {
+            roots.add(new ScrubRoot(coldRootFile, false));
+        }
+        roots.add(new ScrubRoot(this.store.getChunkStore().getChunkDirectory(), true));
+        return roots;
+    }
+
+    protected ExecutorService createExecutor()
+    {
+        return new ThreadPoolExecutor(this.threadCount, this.threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable, "ContentScrubber-" + this.threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        // verification should not compete with requests for CPU time
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    protected static boolean isHexDigest(final String digest, final int digestLength)
+    {
+        boolean hex = digest.length() == digestLength * 2;
+        for (int idx = 0, max = digest.length(); idx < max && hex; idx++)
+        {
+            hex = Character.digit(digest.charAt(idx), 16) != -1;
+        }
+        return hex;
+    }
+
+    protected static Properties loadCheckpoint(final File checkpointFile)
+    {
+        Properties checkpoint = null;
+        if (checkpointFile.exists())
+        {
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(checkpointFile);
+                checkpoint = new Properties();
+                checkpoint.load(is);
+            }
+            catch (final IOException e)
+            {
+                LOGGER.warn("Failed to read scrub checkpoint " + checkpointFile, e);
+                checkpoint = null;
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return checkpoint;
+    }
+
+    protected static void saveCheckpoint(final File checkpointFile, final Properties checkpoint)
+    {
+        final File tempFile = new File(checkpointFile.getParentFile(), checkpointFile.getName() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new FileOutputStream(tempFile);
+            checkpoint.store(os, null);
+            os.close();
+            os = null;
+
+            // renameTo does not replace existing files on all platforms
+            if (!tempFile.renameTo(checkpointFile) && !(checkpointFile.delete() && tempFile.renameTo(checkpointFile)))
+            {
+                LOGGER.warn("Failed to update scrub checkpoint {}", checkpointFile);
+            }
+        }
+        catch (final IOException e)
+        {
+            // losing a checkpoint only means some directories are verified again
+            LOGGER.warn("Failed to write scrub checkpoint " + checkpointFile, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * The modes to verify content with and the results of a run.
+     */
+    protected static class ScrubCounts
+    {
+
+        protected final DigestModes digestModes;
+
+        protected final AtomicLong verified = new AtomicLong();
+
+        protected final AtomicInteger damaged = new AtomicInteger();
+
+        protected final AtomicLong unverifiable = new AtomicLong();
+
+        protected ScrubCounts(final DigestModes digestModes)
+        {
+            this.digestModes = digestModes;
+        }
+    }
+
+    /**
+     * A root directory of content files to verify.
+     */
+    protected static class ScrubRoot
+    {
+
+        protected final File rootDirectory;
+
+        protected final boolean chunkPool;
+
+        protected ScrubRoot(final File rootDirectory, final boolean chunkPool)
+        {
+            this.rootDirectory = rootDirectory;
+            this.chunkPool = chunkPool;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering a run of a {@link ContentScrubber} provided via the job data key {@code scrubber}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentScrubberJob implements Job
+{
+
+    public static final String KEY_SCRUBBER = "scrubber";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object scrubber = jobData.get(KEY_SCRUBBER);
+        if (!(scrubber instanceof ContentScrubber))
+        {
+            throw new AlfrescoRuntimeException("ContentScrubberJob data must contain a valid '" + KEY_SCRUBBER + "' reference");
+        }
+
+        ((ContentScrubber) scrubber).scrub();
+    }
+}
@@ -0,0 +1,314 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects counters and latencies of a {@link HashBasedFileContentStore}. Recording only involves a few uncontended atomic operations, so
+ * metrics can remain enabled in production. Instances are typically exported via JMX using their {@link ContentStoreMetricsMBean
+ * management interface}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentStoreMetrics implements ContentStoreMetricsMBean
+{
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private static final double BYTES_PER_MIB = 1024 * 1024d;
+
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong dedupHitCount = new AtomicLong();
+
+    private final AtomicLong logicalBytes = new AtomicLong();
+
+    private final AtomicLong physicalBytes = new AtomicLong();
+
+    private final AtomicLong stagingFileBytes = new AtomicLong();
+
+    private final AtomicLong hashedBytes = new AtomicLong();
+
+    private final AtomicLong hashingNanos = new AtomicLong();
+
+    private final AtomicLong deleteCount = new AtomicLong();
+
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+
+    /**
+     * Records a completed write.
+     *
+     * @param size
+     *            the size of the written content
+     * @param deduplicated
+     *            {@code true} if the content had already been stored
+     * @param stagedSize
+     *            the number of bytes written to a staging file - {@code 0} if the content has been kept in memory
+     * @param writeNanos
+     *            the time between opening and closing the channel of the writer
+     * @param commitNanos
+     *            the time to publish the written content
+     */
+    public void recordWrite(final long size, final boolean deduplicated, final long stagedSize, final long writeNanos,
+            final long commitNanos)
+    {
+        this.writeCount.incrementAndGet();
+        if (deduplicated)
+        {
+            this.dedupHitCount.incrementAndGet();
+        }
+        this.logicalBytes.addAndGet(size);
+        if (stagedSize > 0)
+        {
+            this.stagingFileBytes.addAndGet(stagedSize);
+        }
+        this.writeLatency.record(writeNanos);
+        this.commitLatency.record(commitNanos);
+    }
+
+    /**
+     * Records bytes added to the store.
+     *
+     * @param bytes
+     *            the number of bytes
+     */
+    public void recordPhysicalBytes(final long bytes)
+    {
+        this.physicalBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records hashing of content.
+     *
+     * @param bytes
+     *            the number of hashed bytes
+     * @param nanos
+     *            the time spent hashing
+     */
+    public void recordHashing(final long bytes, final long nanos)
+    {
+        if (bytes > 0)
+        {
+            this.hashedBytes.addAndGet(bytes);
+        }
+        this.hashingNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records the creation of a reader.
+     *
+     * @param nanos
+     *            the time to locate the content and create the reader
+     */
+    public void recordRead(final long nanos)
+    {
+        this.readLatency.record(nanos);
+    }
+
+    /**
+     * Records the deletion of a content URL.
+     */
+    public void recordDelete()
+    {
+        this.deleteCount.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getWriteCount()
+    {
+        return this.writeCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDedupHitCount()
+    {
+        return this.dedupHitCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getDedupHitRatio()
+    {
+        final long writes = this.writeCount.get();
+        return writes > 0 ? (double) this.dedupHitCount.get() / writes : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLogicalBytes()
+    {
+        return this.logicalBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getPhysicalBytes()
+    {
+        return this.physicalBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getStagingFileBytes()
+    {
+        return this.stagingFileBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getHashedBytes()
+    {
+        return this.hashedBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getHashingThroughput()
+    {
+        final long nanos = this.hashingNanos.get();
+        return nanos > 0 ? this.hashedBytes.get() / BYTES_PER_MIB / (nanos / (NANOS_PER_MILLI * 1000)) : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getReadCount()
+    {
+        return this.readLatency.getCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDeleteCount()
+    {
+        return this.deleteCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getWriteLatencyMean()
+    {
+        return this.writeLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getWriteLatency50thPercentile()
+    {
+        return this.writeLatency.getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getWriteLatency99thPercentile()
+    {
+        return this.writeLatency.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getWriteLatencyMax()
+    {
+        return this.writeLatency.getMax() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getCommitLatencyMean()
+    {
+        return this.commitLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getCommitLatency50thPercentile()
+    {
+        return this.commitLatency.getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getCommitLatency99thPercentile()
+    {
+        return this.commitLatency.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getCommitLatencyMax()
+    {
+        return this.commitLatency.getMax() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getReadLatencyMean()
+    {
+        return this.readLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getReadLatency50thPercentile()
+    {
+        return this.readLatency.getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getReadLatency99thPercentile()
+    {
+        return this.readLatency.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public double getReadLatencyMax()
+    {
+        return this.readLatency.getMax() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        this.writeCount.set(0);
+        this.dedupHitCount.set(0);
+        this.logicalBytes.set(0);
+        this.physicalBytes.set(0);
+        this.stagingFileBytes.set(0);
+        this.hashedBytes.set(0);
+        this.hashingNanos.set(0);
+        this.deleteCount.set(0);
+        this.writeLatency.reset();
+        this.commitLatency.reset();
+        this.readLatency.reset();
+    }
+}
@@ -0,0 +1,125 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+/**
+ * Management interface of {@link ContentStoreMetrics}. All latencies are reported in milliseconds.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public interface ContentStoreMetricsMBean
+{
+
+    /**
+     * @return the number of completed writes
+     */
+    long getWriteCount();
+
+    /**
+     * @return the number of completed writes whose content had already been stored
+     */
+    long getDedupHitCount();
+
+    /**
+     * @return the ratio of completed writes whose content had already been stored
+     */
+    double getDedupHitRatio();
+
+    /**
+     * @return the number of bytes written by clients
+     */
+    long getLogicalBytes();
+
+    /**
+     * @return the number of bytes actually added to the store after de-duplication, chunking and compression
+     */
+    long getPhysicalBytes();
+
+    /**
+     * @return the number of bytes written to staging files instead of being kept in memory
+     */
+    long getStagingFileBytes();
+
+    /**
+     * @return the number of bytes hashed to calculate content URLs
+     */
+    long getHashedBytes();
+
+    /**
+     * @return the hashing throughput in MiB per second of hashing time
+     */
+    double getHashingThroughput();
+
+    /**
+     * @return the number of readers created
+     */
+    long getReadCount();
+
+    /**
+     * @return the number of deleted content URLs
+     */
+    long getDeleteCount();
+
+    /**
+     * @return the mean time between opening and closing the channel of a writer
+     */
+    double getWriteLatencyMean();
+
+    /**
+     * @return the 50th percentile of the time between opening and closing the channel of a writer
+     */
+    double getWriteLatency50thPercentile();
+
+    /**
+     * @return the 99th percentile of the time between opening and closing the channel of a writer
+     */
+    double getWriteLatency99thPercentile();
+
+    /**
+     * @return the maximum time between opening and closing the channel of a writer
+     */
+    double getWriteLatencyMax();
+
+    /**
+     * @return the mean time to publish written content
+     */
+    double getCommitLatencyMean();
+
+    /**
+     * @return the 50th percentile of the time to publish written content
+     */
+    double getCommitLatency50thPercentile();
+
+    /**
+     * @return the 99th percentile of the time to publish written content
+     */
+    double getCommitLatency99thPercentile();
+
+    /**
+     * @return the maximum time to publish written content
+     */
+    double getCommitLatencyMax();
+
+    /**
+     * @return the mean time to locate content and create a reader for it
+     */
+    double getReadLatencyMean();
+
+    /**
+     * @return the 50th percentile of the time to locate content and create a reader for it
+     */
+    double getReadLatency50thPercentile();
+
+    /**
+     * @return the 99th percentile of the time to locate content and create a reader for it
+     */
+    double getReadLatency99thPercentile();
+
+    /**
+     * @return the maximum time to locate content and create a reader for it
+     */
+    double getReadLatencyMax();
+
+    /**
+     * Resets all counters and latencies.
+     */
+    void reset();
+}
@@ -0,0 +1,185 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.util.List;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Moves content of a {@link HashBasedFileContentStore} that has not been read recently from the hot tier to the cold tier. A run visits
+ * all content files in the hot tier and demotes every file that has been written (or re-used) before the demotion age and whose
+ * {@link AccessFrequencySketch estimated} number of recent reads does not exceed a threshold. Content in the cold tier is moved back to the
+ * hot tier by the store itself as soon as it is read frequently again.
+ *
+ * Recently written content always stays in the hot tier, which keeps content that is read right after it has been uploaded (e.g. to
+ * generate previews) on the fast tier. Since read frequencies are tracked in memory, they only cover reads on the server running the job
+ * and are lost on restart - frequently read content demoted due to this is promoted again as soon as it has been read often enough.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentTierManager implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentTierManager.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "ContentTierManager");
+
+    private static final long LOCK_TTL = 60000l;
+
+    private static final int LOCK_REFRESH_INTERVAL = 1000;
+
+    private HashBasedFileContentStore store;
+
+    private JobLockService jobLockService;
+
+    // 7 days
+    private long demotionAge = 7 * 24 * 60 * 60 * 1000l;
+
+    private int demotionMaxFrequency = 0;
+
+    private int filesPerSecond = 100;
+
+    /**
+     * @param store
+     *            the store to set
+     */
+    public void setStore(final HashBasedFileContentStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param demotionAge
+     *            the time (in milliseconds) since content has last been written or re-used before it may be moved to the cold tier
+     */
+    public void setDemotionAge(final long demotionAge)
+    {
+        this.demotionAge = demotionAge;
+    }
+
+    /**
+     * @param demotionMaxFrequency
+     *            the maximum estimated number of recent reads of content to be moved to the cold tier
+     */
+    public void setDemotionMaxFrequency(final int demotionMaxFrequency)
+    {
+        this.demotionMaxFrequency = demotionMaxFrequency;
+    }
+
+    /**
+     * @param filesPerSecond
+     *            the maximum number of files to move per second or {@code 0} to move files as fast as possible
+     */
+    public void setFilesPerSecond(final int filesPerSecond)
+    {
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "store", this.store);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+    }
+
+    /**
+     * Runs a single demotion pass, provided the store has a cold tier and no other server in the cluster is currently running one.
+     *
+     * @return the number of demoted content files
+     */
+    public int demote()
+    {
+        if (!this.store.isTieringEnabled())
+        {
+            LOGGER.debug("Store {} has no cold tier", this.store);
+            return 0;
+        }
+
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Content tier demotion already running elsewhere");
+            return 0;
+        }
+
+        final int[] counts = new int[2];
+        try
+        {
+            final long startTime = System.currentTimeMillis();
+            final long modifiedBefore = startTime - this.demotionAge;
+            final List<File> hotRootFiles = this.store.getVolumeRootFiles();
+            for (final File hotRootFile : hotRootFiles)
+            {
+                FanOutWalker.walk(hotRootFile, new FanOutWalker.ContentFileVisitor()
+                {
+
+                    public void visitContentFile(final File file, final String digest)
+                    {
+                        counts[0]++;
+                        if (counts[0] % LOCK_REFRESH_INTERVAL == 0)
+                        {
+                            ContentTierManager.this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+                        }
+
+                        // chunks remain in the chunk pool of the hot tier, so demoting a manifest would not free any space
+                        final HashBasedFileContentStore store = ContentTierManager.this.store;
+                        if (!Thread.currentThread().isInterrupted() && !FanOutWalker.isManifestFile(file)
+                                && file.lastModified() < modifiedBefore
+                                && store.getAccessFrequency(digest) <= ContentTierManager.this.demotionMaxFrequency
+                                && store.demoteContentFile(file, digest))
+                        {
+                            counts[1]++;
+                            ContentTierManager.this.throttle(counts[1], startTime);
+                        }
+                    }
+                });
+            }
+
+            LOGGER.debug("Visited {} content files and moved {} to the cold tier", Integer.valueOf(counts[0]), Integer.valueOf(counts[1]));
+        }
+        finally
+        {
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+
+        return counts[1];
+    }
+
+    protected void throttle(final int demotedFiles, final long startTime)
+    {
+        if (this.filesPerSecond > 0)
+        {
+            final long expectedElapsed = demotedFiles * 1000l / this.filesPerSecond;
+            final long actualElapsed = System.currentTimeMillis() - startTime;
+            if (expectedElapsed > actualElapsed)
+            {
+                try
+                {
+                    Thread.sleep(expectedElapsed - actualElapsed);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering a demotion pass of a {@link ContentTierManager} provided via the job data key {@code tierManager}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentTierManagerJob implements Job
+{
+
+    public static final String KEY_TIER_MANAGER = "tierManager";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object tierManager = jobData.get(KEY_TIER_MANAGER);
+        if (!(tierManager instanceof ContentTierManager))
+        {
+            throw new AlfrescoRuntimeException("ContentTierManagerJob data must contain a valid '" + KEY_TIER_MANAGER + "' reference");
+        }
+
+        ((ContentTierManager) tierManager).demote();
+    }
+}
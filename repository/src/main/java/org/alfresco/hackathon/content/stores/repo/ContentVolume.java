@@ -0,0 +1,167 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A single root directory of a {@link HashBasedFileContentStore} - typically a separate disk or mount. Each volume is identified by a
+ * random id recorded in its root directory, so that the placement of content does not depend on the path the volume is mounted at or the
+ * order in which volumes have been configured. Each volume has its own staging area so that content can be published onto it with a
+ * rename.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentVolume
+{
+
+    /**
+     * Name of the file within the root directory of a volume that holds the id of the volume.
+     */
+    public static final String VOLUME_FILE_NAME = ".volume";
+
+    private static final String PROPERTY_ID = "id";
+
+    private final String id;
+
+    private final File rootDirectory;
+
+    private final File stagingDirectory;
+
+    /**
+     * Creates a new volume instance.
+     *
+     * @param id
+     *            the id of the volume
+     * @param rootDirectory
+     *            the root directory of the volume
+     */
+    public ContentVolume(final String id, final File rootDirectory)
+    {
+        this.id = id;
+        this.rootDirectory = rootDirectory;
+        this.stagingDirectory = new File(rootDirectory, HashBasedFileContentStore.STAGING_DIRECTORY_NAME);
+    }
+
+    /**
+     * Opens a volume, assigning a new id if the root directory has not been used as a volume before.
+     *
+     * @param rootDirectory
+     *            the root directory of the volume
+     * @return the volume
+     */
+    public static ContentVolume open(final File rootDirectory)
+    {
+        if (!rootDirectory.exists() && !rootDirectory.mkdirs())
+        {
+            throw new ContentIOException("Failed to create volume root directory " + rootDirectory);
+        }
+
+        final File volumeFile = new File(rootDirectory, VOLUME_FILE_NAME);
+        final Properties properties = new Properties();
+        if (volumeFile.exists())
+        {
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(volumeFile);
+                properties.load(is);
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to load volume id from " + volumeFile, e);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        String id = properties.getProperty(PROPERTY_ID);
+        if (id == null)
+        {
+            id = UUID.randomUUID().toString();
+            properties.setProperty(PROPERTY_ID, id);
+
+            OutputStream os = null;
+            try
+            {
+                os = new FileOutputStream(volumeFile);
+                properties.store(os, null);
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to save volume id to " + volumeFile, e);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(os);
+            }
+        }
+
+        final ContentVolume volume = new ContentVolume(id, rootDirectory);
+        if (!volume.stagingDirectory.exists() && !volume.stagingDirectory.mkdirs())
+        {
+            throw new ContentIOException("Failed to create staging directory " + volume.stagingDirectory);
+        }
+        return volume;
+    }
+
+    /**
+     * @return the id of the volume
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the root directory of the volume
+     */
+    public File getRootDirectory()
+    {
+        return this.rootDirectory;
+    }
+
+    /**
+     * @return the staging directory of the volume
+     */
+    public File getStagingDirectory()
+    {
+        return this.stagingDirectory;
+    }
+
+    /**
+     * Checks if a file is located on this volume.
+     *
+     * @param file
+     *            the file to check
+     * @return {@code true} if the file is located below the root directory of this volume
+     */
+    public boolean contains(final File file)
+    {
+        boolean result = false;
+        for (File parent = file.getParentFile(); parent != null && !result; parent = parent.getParentFile())
+        {
+            result = parent.equals(this.rootDirectory);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "ContentVolume [id=" + this.id + ", rootDirectory=" + this.rootDirectory + "]";
+    }
+}
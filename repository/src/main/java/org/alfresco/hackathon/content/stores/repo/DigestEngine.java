@@ -0,0 +1,56 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Abstraction of a message digest algorithm used to calculate content URLs and fingerprints, allowing algorithms to be used that are not
+ * available via the Java Cryptography Architecture. Instances are stateful and not thread-safe - they should be obtained from and
+ * returned to {@link DigestEngines} so that they can be re-used.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public interface DigestEngine
+{
+
+    /**
+     * @return the name of the algorithm implemented by this engine
+     */
+    String getAlgorithm();
+
+    /**
+     * @return the length of the digest (in bytes) calculated by this engine
+     */
+    int getDigestLength();
+
+    /**
+     * Updates the digest with a range of bytes.
+     *
+     * @param input
+     *            the array holding the bytes
+     * @param offset
+     *            the offset of the first byte to process
+     * @param length
+     *            the number of bytes to process
+     */
+    void update(byte[] input, int offset, int length);
+
+    /**
+     * Updates the digest with the remaining bytes of a buffer. Upon return, the position of the buffer will be equal to its limit.
+     *
+     * @param input
+     *            the buffer holding the bytes
+     */
+    void update(ByteBuffer input);
+
+    /**
+     * Completes the calculation of the digest and resets the engine.
+     *
+     * @return the digest
+     */
+    byte[] digest();
+
+    /**
+     * Resets the engine so that it can be used to calculate a new digest.
+     */
+    void reset();
+}
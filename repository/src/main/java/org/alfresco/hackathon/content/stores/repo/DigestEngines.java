@@ -0,0 +1,281 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of {@link DigestEngine digest engines} that keeps a pool of re-usable engine instances per algorithm. Algorithms without a
+ * registered {@link DigestEngineFactory factory} are looked up via {@link MessageDigest#getInstance(String)}, so any algorithm supported by
+ * the Java Cryptography Architecture can be used in addition to {@link Blake3DigestEngine#ALGORITHM BLAKE3}.
+ *
+ * Engines are pooled under the algorithm name they were {@link #acquire(String) acquired} with and not the name they report via
+ * {@link DigestEngine#getAlgorithm()}, since aliases (e.g. {@code SHA256} vs. {@code SHA-256}) would otherwise fill pools that are never
+ * polled.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DigestEngines
+{
+
+    /**
+     * Factory interface for digest engines of a specific algorithm.
+     */
+    public interface DigestEngineFactory
+    {
+
+        /**
+         * Creates a new engine instance.
+         *
+         * @return the new engine
+         */
+        DigestEngine createEngine();
+    }
+
+    private static final int MAX_POOLED_ENGINES_PER_ALGORITHM = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+    private static final ConcurrentMap<String, DigestEngineFactory> FACTORIES = new ConcurrentHashMap<String, DigestEngineFactory>();
+
+    private static final ConcurrentMap<String, EnginePool> POOLS = new ConcurrentHashMap<String, EnginePool>();
+
+    static
+    {
+        registerFactory(Blake3DigestEngine.ALGORITHM, new DigestEngineFactory()
+        {
+
+            public DigestEngine createEngine()
+            {
+                return new Blake3DigestEngine();
+            }
+        });
+    }
+
+    private DigestEngines()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Registers a factory for an algorithm, replacing any factory that may already have been registered for it.
+     *
+     * @param algorithm
+     *            the name of the algorithm (case insensitive)
+     * @param factory
+     *            the factory to register
+     */
+    public static void registerFactory(final String algorithm, final DigestEngineFactory factory)
+    {
+        final String key = toKey(algorithm);
+        FACTORIES.put(key, factory);
+        // pooled engines may have been created by a previous factory
+        POOLS.remove(key);
+    }
+
+    /**
+     * Checks if an algorithm is supported.
+     *
+     * @param algorithm
+     *            the name of the algorithm (case insensitive)
+     * @return {@code true} if engines for the algorithm can be obtained, {@code false} otherwise
+     */
+    public static boolean isSupported(final String algorithm)
+    {
+        boolean supported = FACTORIES.containsKey(toKey(algorithm));
+        if (!supported)
+        {
+            try
+            {
+                MessageDigest.getInstance(algorithm);
+                supported = true;
+            }
+            catch (final NoSuchAlgorithmException e)
+            {
+                supported = false;
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * Obtains an engine for an algorithm, re-using a previously {@link #release(DigestEngine) released} instance if possible.
+     *
+     * @param algorithm
+     *            the name of the algorithm (case insensitive)
+     * @return the engine in its initial state
+     * @throws NoSuchAlgorithmException
+     *             if the algorithm is not supported
+     */
+    public static DigestEngine acquire(final String algorithm) throws NoSuchAlgorithmException
+    {
+        final String key = toKey(algorithm);
+        final EnginePool pool = POOLS.get(key);
+        DigestEngine engine = pool != null ? pool.poll() : null;
+        if (engine == null)
+        {
+            engine = new PooledDigestEngine(key, create(algorithm));
+        }
+        return engine;
+    }
+
+    /**
+     * Returns an engine to the pool for re-use. The engine must no longer be used by the caller.
+     *
+     * @param engine
+     *            the engine to release - may be {@code null}
+     */
+    public static void release(final DigestEngine engine)
+    {
+        if (engine != null)
+        {
+            final PooledDigestEngine pooledEngine;
+            if (engine instanceof PooledDigestEngine)
+            {
+                pooledEngine = (PooledDigestEngine) engine;
+            }
+            else
+            {
+                // engine has been created directly by the caller
+                pooledEngine = new PooledDigestEngine(toKey(engine.getAlgorithm()), engine);
+            }
+
+            EnginePool pool = POOLS.get(pooledEngine.poolKey);
+            if (pool == null)
+            {
+                final EnginePool newPool = new EnginePool();
+                pool = POOLS.putIfAbsent(pooledEngine.poolKey, newPool);
+                if (pool == null)
+                {
+                    pool = newPool;
+                }
+            }
+
+            pooledEngine.reset();
+            pool.offer(pooledEngine);
+        }
+    }
+
+    protected static DigestEngine create(final String algorithm) throws NoSuchAlgorithmException
+    {
+        final DigestEngineFactory factory = FACTORIES.get(toKey(algorithm));
+        final DigestEngine engine;
+        if (factory != null)
+        {
+            engine = factory.createEngine();
+        }
+        else
+        {
+            engine = new MessageDigestEngine(MessageDigest.getInstance(algorithm));
+        }
+        return engine;
+    }
+
+    protected static String toKey(final String algorithm)
+    {
+        return algorithm.trim().toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Engine handed out by {@link DigestEngines#acquire(String)} which remembers the pool it has to be returned to.
+     */
+    protected static class PooledDigestEngine implements DigestEngine
+    {
+
+        protected final String poolKey;
+
+        protected final DigestEngine delegate;
+
+        protected PooledDigestEngine(final String poolKey, final DigestEngine delegate)
+        {
+            this.poolKey = poolKey;
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getAlgorithm()
+        {
+            return this.delegate.getAlgorithm();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getDigestLength()
+        {
+            return this.delegate.getDigestLength();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void update(final byte[] input, final int offset, final int length)
+        {
+            this.delegate.update(input, offset, length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void update(final ByteBuffer input)
+        {
+            this.delegate.update(input);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] digest()
+        {
+            return this.delegate.digest();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void reset()
+        {
+            this.delegate.reset();
+        }
+    }
+
+    /**
+     * Simple bounded pool of engine instances for one algorithm.
+     */
+    protected static class EnginePool
+    {
+
+        private final Queue<DigestEngine> engines = new ConcurrentLinkedQueue<DigestEngine>();
+
+        // ConcurrentLinkedQueue.size() is not a constant time operation
+        private final AtomicInteger size = new AtomicInteger();
+
+        protected DigestEngine poll()
+        {
+            final DigestEngine engine = this.engines.poll();
+            if (engine != null)
+            {
+                this.size.decrementAndGet();
+            }
+            return engine;
+        }
+
+        protected void offer(final DigestEngine engine)
+        {
+            if (this.size.incrementAndGet() <= MAX_POOLED_ENGINES_PER_ALGORITHM)
+            {
+                this.engines.offer(engine);
+            }
+            else
+            {
+                this.size.decrementAndGet();
+            }
+        }
+    }
+}
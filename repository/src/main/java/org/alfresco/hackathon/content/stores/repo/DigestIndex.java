@@ -0,0 +1,763 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the digests of all content stored in a {@link HashBasedFileContentStore}, allowing existence checks to be answered from memory
+ * instead of file system metadata lookups. The digests are held in memory-mapped open addressing hash tables (persisted in the
+ * {@link #INDEX_DIRECTORY_NAME index directory} of the store) fronted by an off-heap {@link BloomFilter}. The first 128 bits of each
+ * digest are used as a key, which is enough to trust hits - the chance of two of a billion digests sharing a key is far below the chance of
+ * a hardware error.
+ *
+ * If the index was not shut down cleanly, it is rebuilt in the background by traversing the store one fan-out directory at a time. Until a
+ * fan-out directory has been fully traversed, a negative lookup for a digest within it is reported as unknown.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DigestIndex
+{
+
+    /**
+     * Name of the directory within the root directory of the store that holds the index files.
+     */
+    public static final String INDEX_DIRECTORY_NAME = ".index";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DigestIndex.class);
+
+    private static final String PROPERTIES_FILE_NAME = "index.properties";
+    private static final String PROP_STATE = "state";
+    private static final String PROP_SEGMENTS = "segments";
+    private static final String STATE_CLEAN = "clean";
+    private static final String STATE_DIRTY = "dirty";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    private static final long EMPTY = 0l;
+
+    // number of hex characters of a digest used as key
+    private static final int KEY_LENGTH = 32;
+
+    // 8 Mi slots (128 MiB) per segment initially, 64 Mi slots (1 GiB) at most
+    private static final int MAX_INITIAL_SEGMENT_SLOTS = 1 << 23;
+    private static final int MAX_SEGMENT_SLOTS = 1 << 26;
+    private static final double MAX_LOAD_FACTOR = 0.7d;
+    private static final double MAX_OVERFLOW_LOAD_FACTOR = 0.9d;
+
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01d;
+
+    private final File indexDirectory;
+
+    private final File contentRoot;
+
+    private final List<File> volumeRoots;
+
+    private final int prefixLength;
+
+    private final long expectedDigestCount;
+
+    private final boolean authoritativeMisses;
+
+    private Segment[] segments;
+
+    private int segmentShift;
+
+    private BloomFilter bloomFilter;
+
+    private volatile boolean bloomFilterReady;
+
+    private volatile boolean complete;
+
+    private volatile boolean degraded;
+
+    private volatile boolean closed;
+
+    private final Set<String> completedPrefixes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Set<String> removedDuringRebuild = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private Thread warmUpThread;
+
+    /**
+     * Creates a new digest index.
+     *
+     * @param contentRoot
+     *            the root directory of the store
+     * @param volumeRoots
+     *            the root directories of all volumes of the store, including the root directory of the store
+     * @param prefixLength
+     *            the length of the digest prefix used for the top level fan-out directories
+     * @param expectedDigestCount
+     *            the number of digests the index should initially be sized for
+     * @param authoritativeMisses
+     *            {@code true} if a digest not found in a fully built index is known not to exist, {@code false} if other processes may
+     *            also add content to the store
+     */
+    public DigestIndex(final File contentRoot, final List<File> volumeRoots, final int prefixLength, final long expectedDigestCount,
+            final boolean authoritativeMisses)
+    {
+        this.contentRoot = contentRoot;
+        this.volumeRoots = volumeRoots;
+        this.indexDirectory = new File(contentRoot, INDEX_DIRECTORY_NAME);
+        this.prefixLength = prefixLength;
+        this.expectedDigestCount = expectedDigestCount;
+        this.authoritativeMisses = authoritativeMisses;
+    }
+
+    /**
+     * Opens the index, mapping existing index files if they have been closed cleanly or starting a rebuild otherwise.
+     */
+    public synchronized void open()
+    {
+        if (!this.indexDirectory.exists() && !this.indexDirectory.mkdirs())
+        {
+            throw new ContentIOException("Failed to create index directory " + this.indexDirectory);
+        }
+
+        final Properties properties = this.loadProperties();
+        final boolean clean = this.isCleanState(properties);
+
+        int segmentCount;
+        if (clean)
+        {
+            segmentCount = Integer.parseInt(properties.getProperty(PROP_SEGMENTS));
+        }
+        else
+        {
+            long slots = Long.highestOneBit(Math.max(1, this.expectedDigestCount * 2 - 1)) << 1;
+            slots = Math.max(slots, 1024);
+            segmentCount = (int) Math.max(1, slots / MAX_INITIAL_SEGMENT_SLOTS);
+
+            final File[] staleFiles = this.indexDirectory.listFiles();
+            if (staleFiles != null)
+            {
+                for (final File staleFile : staleFiles)
+                {
+                    if (staleFile.getName().startsWith(SEGMENT_FILE_PREFIX) && !staleFile.delete())
+                    {
+                        LOGGER.warn("Failed to remove stale digest index file {}", staleFile);
+                    }
+                }
+            }
+        }
+
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+        this.segments = new Segment[segmentCount];
+
+        long totalSize = 0;
+        for (int idx = 0; idx < segmentCount; idx++)
+        {
+            final File segmentFile = this.getSegmentFile(idx);
+            if (clean)
+            {
+                this.segments[idx] = Segment.load(segmentFile);
+            }
+            else
+            {
+                final long slots = Math.min(MAX_INITIAL_SEGMENT_SLOTS, Long.highestOneBit(Math.max(1024, this.expectedDigestCount * 2
+                        / segmentCount)) << 1);
+                this.segments[idx] = Segment.create(segmentFile, (int) slots);
+            }
+            totalSize += this.segments[idx].size;
+        }
+
+        // crash before close() must trigger a rebuild
+        properties.setProperty(PROP_STATE, STATE_DIRTY);
+        properties.setProperty(PROP_SEGMENTS, String.valueOf(segmentCount));
+        this.storeProperties(properties);
+
+        this.bloomFilter = new BloomFilter(Math.max(this.expectedDigestCount, totalSize + totalSize / 2), BLOOM_FALSE_POSITIVE_RATE);
+
+        if (clean)
+        {
+            this.complete = true;
+            this.bloomFilterReady = false;
+            LOGGER.info("Opened digest index in {} with {} entries", this.indexDirectory, Long.valueOf(totalSize));
+        }
+        else
+        {
+            this.complete = false;
+            this.bloomFilterReady = true;
+            LOGGER.info("Digest index in {} not closed cleanly - rebuilding in the background", this.indexDirectory);
+        }
+
+        this.warmUpThread = new Thread(new Runnable()
+        {
+
+            public void run()
+            {
+                if (clean)
+                {
+                    DigestIndex.this.populateBloomFilter();
+                }
+                else
+                {
+                    DigestIndex.this.rebuild();
+                }
+            }
+        }, "DigestIndex-WarmUp-" + this.contentRoot.getName());
+        this.warmUpThread.setDaemon(true);
+        this.warmUpThread.start();
+    }
+
+    /**
+     * Closes the index, persisting its state so it can be re-used on next startup.
+     */
+    public synchronized void close()
+    {
+        this.closed = true;
+        if (this.warmUpThread != null)
+        {
+            this.warmUpThread.interrupt();
+            try
+            {
+                this.warmUpThread.join(10000);
+            }
+            catch (final InterruptedException ignore)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (this.segments == null)
+        {
+            return;
+        }
+
+        boolean relocated = false;
+        for (final Segment segment : this.segments)
+        {
+            segment.flush();
+            relocated = relocated || segment.relocated;
+        }
+
+        if (this.complete && !this.degraded && !relocated)
+        {
+            final Properties properties = this.loadProperties();
+            properties.setProperty(PROP_STATE, STATE_CLEAN);
+            this.storeProperties(properties);
+        }
+    }
+
+    /**
+     * Looks up a digest in the index.
+     *
+     * @param digest
+     *            the (hex encoded) digest
+     * @return {@link Boolean#TRUE} if content with the digest is stored, {@link Boolean#FALSE} if it is known not to be stored or
+     *         {@code null} if the index can't tell (yet)
+     */
+    public Boolean lookup(final String digest)
+    {
+        final long highKey = toKey(digest);
+        final long lowKey = toLowKey(digest);
+
+        Boolean result;
+        if (this.bloomFilterReady && !this.bloomFilter.mightContain(highKey))
+        {
+            result = this.miss(digest);
+        }
+        else if (this.segmentFor(highKey).contains(highKey, lowKey))
+        {
+            result = Boolean.TRUE;
+        }
+        else
+        {
+            result = this.miss(digest);
+        }
+
+        return result;
+    }
+
+    /**
+     * Registers a digest of content that has been added to the store.
+     *
+     * @param digest
+     *            the (hex encoded) digest
+     */
+    public void add(final String digest)
+    {
+        final long highKey = toKey(digest);
+        final long lowKey = toLowKey(digest);
+        final Segment segment = this.segmentFor(highKey);
+        synchronized (segment)
+        {
+            this.addToSegment(segment, highKey, lowKey);
+            this.removedDuringRebuild.remove(toRemovalKey(digest));
+        }
+        this.bloomFilter.put(highKey);
+    }
+
+    /**
+     * Unregisters a digest of content that has been removed from the store.
+     *
+     * @param digest
+     *            the (hex encoded) digest
+     */
+    public void remove(final String digest)
+    {
+        final long highKey = toKey(digest);
+        final Segment segment = this.segmentFor(highKey);
+        synchronized (segment)
+        {
+            segment.remove(highKey, toLowKey(digest));
+            if (!this.complete)
+            {
+                // prevent a concurrent rebuild from re-adding stale data
+                this.removedDuringRebuild.add(toRemovalKey(digest));
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the index reflects all content of the store
+     */
+    public boolean isComplete()
+    {
+        return this.complete && !this.degraded;
+    }
+
+    protected boolean isCleanState(final Properties properties)
+    {
+        boolean clean = STATE_CLEAN.equals(properties.getProperty(PROP_STATE)) && properties.getProperty(PROP_SEGMENTS) != null;
+        if (clean)
+        {
+            final int segmentCount = Integer.parseInt(properties.getProperty(PROP_SEGMENTS));
+            for (int idx = 0; idx < segmentCount && clean; idx++)
+            {
+                clean = this.getSegmentFile(idx).exists();
+            }
+        }
+        return clean;
+    }
+
+    protected File getSegmentFile(final int idx)
+    {
+        return new File(this.indexDirectory, SEGMENT_FILE_PREFIX + idx + ".idx");
+    }
+
+    protected Boolean miss(final String digest)
+    {
+        Boolean result = null;
+        if (this.authoritativeMisses && !this.degraded)
+        {
+            if (this.complete
+                    || (digest.length() >= this.prefixLength && this.completedPrefixes.contains(digest.substring(0, this.prefixLength))))
+            {
+                result = Boolean.FALSE;
+            }
+        }
+        return result;
+    }
+
+    protected void addToSegment(final Segment segment, final long highKey, final long lowKey)
+    {
+        if (!segment.add(highKey, lowKey))
+        {
+            if (!this.degraded)
+            {
+                LOGGER.error("Digest index segment {} is full - index is no longer authoritative and needs to be rebuilt with a larger size",
+                        segment.file);
+            }
+            this.degraded = true;
+        }
+    }
+
+    protected void populateBloomFilter()
+    {
+        for (final Segment segment : this.segments)
+        {
+            if (this.closed)
+            {
+                return;
+            }
+
+            // entries may be shifted by concurrent removals, so lock the segment
+            synchronized (segment)
+            {
+                for (int slot = 0; slot < segment.capacity; slot++)
+                {
+                    if (!segment.isEmpty(slot))
+                    {
+                        this.bloomFilter.put(segment.getHighKey(slot));
+                    }
+                }
+            }
+        }
+
+        this.bloomFilterReady = true;
+        LOGGER.debug("Populated bloom filter of digest index {}", this.indexDirectory);
+    }
+
+    protected void rebuild()
+    {
+        final long start = System.currentTimeMillis();
+        final long[] count = new long[1];
+
+        // a prefix is only complete once its directories on all volumes have been visited
+        final SortedSet<String> topLevelDirectoryNames = FanOutWalker.listFanOutDirectoryNames(this.volumeRoots);
+        for (final String topLevelDirectoryName : topLevelDirectoryNames)
+        {
+            if (this.closed || Thread.currentThread().isInterrupted())
+            {
+                LOGGER.info("Rebuild of digest index {} interrupted", this.indexDirectory);
+                return;
+            }
+
+            for (final File volumeRoot : this.volumeRoots)
+            {
+                final File topLevelDirectory = new File(volumeRoot, topLevelDirectoryName);
+                if (topLevelDirectory.isDirectory())
+                {
+                    FanOutWalker.walk(topLevelDirectory, new FanOutWalker.ContentFileVisitor()
+                    {
+
+                        public void visitContentFile(final File file, final String digest)
+                        {
+                            DigestIndex.this.addRebuilt(digest);
+                            count[0]++;
+                        }
+                    });
+                }
+            }
+            this.completedPrefixes.add(topLevelDirectoryName);
+        }
+
+        this.complete = true;
+        this.completedPrefixes.clear();
+        this.removedDuringRebuild.clear();
+
+        LOGGER.info("Rebuilt digest index {} with {} entries in {} ms", new Object[] { this.indexDirectory, Long.valueOf(count[0]),
+                Long.valueOf(System.currentTimeMillis() - start) });
+    }
+
+    protected void addRebuilt(final String digest)
+    {
+        final long highKey = toKey(digest);
+        final Segment segment = this.segmentFor(highKey);
+        synchronized (segment)
+        {
+            if (!this.removedDuringRebuild.contains(toRemovalKey(digest)))
+            {
+                this.addToSegment(segment, highKey, toLowKey(digest));
+                this.bloomFilter.put(highKey);
+            }
+        }
+    }
+
+    protected Segment segmentFor(final long highKey)
+    {
+        final int idx = this.segments.length == 1 ? 0 : (int) (BloomFilter.mix(highKey) >>> this.segmentShift);
+        return this.segments[idx];
+    }
+
+    protected Properties loadProperties()
+    {
+        final Properties properties = new Properties();
+        final File propertiesFile = new File(this.indexDirectory, PROPERTIES_FILE_NAME);
+        if (propertiesFile.exists())
+        {
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(propertiesFile);
+                properties.load(is);
+            }
+            catch (final IOException e)
+            {
+                LOGGER.warn("Failed to read digest index properties - index will be rebuilt", e);
+                properties.clear();
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return properties;
+    }
+
+    protected void storeProperties(final Properties properties)
+    {
+        final File propertiesFile = new File(this.indexDirectory, PROPERTIES_FILE_NAME);
+        OutputStream os = null;
+        try
+        {
+            os = new FileOutputStream(propertiesFile);
+            properties.store(os, "Digest index state - do not edit");
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to write digest index properties " + propertiesFile, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * Derives the high 64 bits of the index key from a hex encoded digest, which are also suitable as a key of other structures that can
+     * tolerate collisions (e.g. a {@link BloomFilter}).
+     *
+     * @param digest
+     *            the digest
+     * @return the high 64 bits of the key
+     */
+    protected static long toKey(final String digest)
+    {
+        return parseKey(digest, 0);
+    }
+
+    /**
+     * Derives the low 64 bits of the index key from a hex encoded digest.
+     *
+     * @param digest
+     *            the digest
+     * @return the low 64 bits of the key
+     */
+    protected static long toLowKey(final String digest)
+    {
+        final long key = parseKey(digest, KEY_LENGTH / 2);
+        // a key of all zeros is the marker for empty slots
+        return key == EMPTY && parseKey(digest, 0) == EMPTY ? 1 : key;
+    }
+
+    protected static String toRemovalKey(final String digest)
+    {
+        return digest.substring(0, Math.min(KEY_LENGTH, digest.length())).toUpperCase(Locale.ENGLISH);
+    }
+
+    private static long parseKey(final String digest, final int offset)
+    {
+        long key = 0;
+        for (int idx = offset, max = offset + KEY_LENGTH / 2; idx < max; idx++)
+        {
+            // digests shorter than the key are padded with zeros
+            key = (key << 4) | (idx < digest.length() ? Character.digit(digest.charAt(idx), 16) & 0xf : 0);
+        }
+        return key;
+    }
+
+    /**
+     * A single segment of the index - an open addressing hash table with linear probing in a memory-mapped file. The first eight bytes
+     * of the file hold the number of entries, followed by slots of sixteen bytes each holding the high and low 64 bits of a key.
+     */
+    protected static class Segment
+    {
+
+        private static final int HEADER_SIZE = 8;
+
+        private static final int SLOT_SIZE = 16;
+
+        private File file;
+
+        private boolean relocated;
+
+        private MappedByteBuffer buffer;
+
+        private int capacity;
+
+        private int mask;
+
+        private int size;
+
+        private Segment(final File file)
+        {
+            this.file = file;
+        }
+
+        protected static Segment create(final File file, final int capacity)
+        {
+            if (file.exists() && !file.delete())
+            {
+                throw new ContentIOException("Failed to remove stale digest index segment " + file);
+            }
+
+            final Segment segment = new Segment(file);
+            segment.map(file, capacity);
+            segment.size = 0;
+            return segment;
+        }
+
+        protected static Segment load(final File file)
+        {
+            final Segment segment = new Segment(file);
+            final int capacity = (int) ((file.length() - HEADER_SIZE) / SLOT_SIZE);
+            segment.map(file, capacity);
+            segment.size = (int) segment.buffer.getLong(0);
+            return segment;
+        }
+
+        protected synchronized boolean contains(final long highKey, final long lowKey)
+        {
+            int slot = (int) BloomFilter.mix(highKey) & this.mask;
+            while (!this.isEmpty(slot))
+            {
+                if (this.getHighKey(slot) == highKey && this.getLowKey(slot) == lowKey)
+                {
+                    return true;
+                }
+                slot = (slot + 1) & this.mask;
+            }
+            return false;
+        }
+
+        protected synchronized boolean add(final long highKey, final long lowKey)
+        {
+            if (this.size + 1 > this.capacity * MAX_LOAD_FACTOR)
+            {
+                if (this.capacity < MAX_SEGMENT_SLOTS)
+                {
+                    this.grow();
+                }
+                else if (this.size + 1 > this.capacity * MAX_OVERFLOW_LOAD_FACTOR)
+                {
+                    return false;
+                }
+            }
+
+            int slot = (int) BloomFilter.mix(highKey) & this.mask;
+            while (!this.isEmpty(slot))
+            {
+                if (this.getHighKey(slot) == highKey && this.getLowKey(slot) == lowKey)
+                {
+                    return true;
+                }
+                slot = (slot + 1) & this.mask;
+            }
+
+            this.setSlot(slot, highKey, lowKey);
+            this.size++;
+            return true;
+        }
+
+        protected synchronized void remove(final long highKey, final long lowKey)
+        {
+            int slot = (int) BloomFilter.mix(highKey) & this.mask;
+            while (!this.isEmpty(slot) && (this.getHighKey(slot) != highKey || this.getLowKey(slot) != lowKey))
+            {
+                slot = (slot + 1) & this.mask;
+            }
+
+            if (!this.isEmpty(slot))
+            {
+                // backward shift deletion keeps probe sequences intact without tombstones
+                int gap = slot;
+                int next = (gap + 1) & this.mask;
+                while (!this.isEmpty(next))
+                {
+                    final long currentHighKey = this.getHighKey(next);
+                    final int home = (int) BloomFilter.mix(currentHighKey) & this.mask;
+                    final boolean movable = gap <= next ? (home <= gap || home > next) : (home <= gap && home > next);
+                    if (movable)
+                    {
+                        this.setSlot(gap, currentHighKey, this.getLowKey(next));
+                        gap = next;
+                    }
+                    next = (next + 1) & this.mask;
+                }
+                this.setSlot(gap, EMPTY, EMPTY);
+                this.size--;
+            }
+        }
+
+        protected synchronized void flush()
+        {
+            this.buffer.putLong(0, this.size);
+            this.buffer.force();
+        }
+
+        protected boolean isEmpty(final int slot)
+        {
+            return this.getHighKey(slot) == EMPTY && this.getLowKey(slot) == EMPTY;
+        }
+
+        protected long getHighKey(final int slot)
+        {
+            return this.buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+        }
+
+        protected long getLowKey(final int slot)
+        {
+            return this.buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+        }
+
+        protected void setSlot(final int slot, final long highKey, final long lowKey)
+        {
+            this.buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, highKey);
+            this.buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, lowKey);
+        }
+
+        protected void grow()
+        {
+            final File newFile = new File(this.file.getPath() + ".new");
+            final Segment grown = Segment.create(newFile, this.capacity * 2);
+            for (int slot = 0; slot < this.capacity; slot++)
+            {
+                if (!this.isEmpty(slot))
+                {
+                    grown.add(this.getHighKey(slot), this.getLowKey(slot));
+                }
+            }
+            grown.flush();
+
+            if ((this.file.exists() && !this.file.delete()) || !newFile.renameTo(this.file))
+            {
+                // e.g. on Windows mapped files can't be deleted - keep using the new file until the next rebuild
+                LOGGER.warn("Failed to replace digest index segment {} - index will be rebuilt on next startup", this.file);
+                this.file = newFile;
+                this.relocated = true;
+            }
+
+            // the old mapping is released once garbage collected
+            this.buffer = grown.buffer;
+            this.capacity = grown.capacity;
+            this.mask = grown.mask;
+            LOGGER.debug("Grew digest index segment {} to {} slots", this.file, Integer.valueOf(this.capacity));
+        }
+
+        private void map(final File file, final int capacity)
+        {
+            RandomAccessFile randomAccessFile = null;
+            try
+            {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                final long length = HEADER_SIZE + capacity * (long) SLOT_SIZE;
+                if (randomAccessFile.length() != length)
+                {
+                    randomAccessFile.setLength(length);
+                }
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                this.capacity = capacity;
+                this.mask = capacity - 1;
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to map digest index segment " + file, e);
+            }
+            finally
+            {
+                // mapping remains valid after the file has been closed
+                IOUtils.closeQuietly(randomAccessFile);
+            }
+        }
+    }
+}
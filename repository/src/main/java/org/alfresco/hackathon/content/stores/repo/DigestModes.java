@@ -0,0 +1,337 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Records all ways the content URLs of a {@link HashBasedFileContentStore} have been derived from content, i.e. the message digest types
+ * and whether (and with which leaf size) {@link TreeDigestEngine tree digests} have been used. These settings can be changed without
+ * affecting existing content, so content can only be verified against its content URL if all settings it may have been written with are
+ * known.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DigestModes
+{
+
+    private static final String PROPERTY_MODES = "modes";
+
+    private static final String PROPERTY_COMPLETE = "complete";
+
+    private static final String MODE_SEPARATOR = ",";
+
+    private final List<Mode> modes;
+
+    private final boolean complete;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param modes
+     *            the modes content has been written with
+     * @param complete
+     *            {@code true} if content can only have been written with the specified modes, {@code false} if content may have been
+     *            written before modes were recorded
+     */
+    public DigestModes(final List<Mode> modes, final boolean complete)
+    {
+        this.modes = Collections.unmodifiableList(new ArrayList<Mode>(modes));
+        this.complete = complete;
+    }
+
+    /**
+     * @return the modes content has been written with
+     */
+    public List<Mode> getModes()
+    {
+        return this.modes;
+    }
+
+    /**
+     * @return {@code true} if content can only have been written with the recorded modes, {@code false} if content may have been written
+     *         with other modes before modes were recorded
+     */
+    public boolean isComplete()
+    {
+        return this.complete;
+    }
+
+    /**
+     * Adds a mode content is being written with.
+     *
+     * @param mode
+     *            the mode to add
+     * @return the modes including the specified mode - this instance if it already included the mode
+     */
+    public DigestModes with(final Mode mode)
+    {
+        DigestModes result = this;
+        if (!this.modes.contains(mode))
+        {
+            final List<Mode> modes = new ArrayList<Mode>(this.modes);
+            modes.add(mode);
+            result = new DigestModes(modes, this.complete);
+        }
+        return result;
+    }
+
+    /**
+     * Loads the modes from a properties file.
+     *
+     * @param file
+     *            the file to load from
+     * @return the modes or {@code null} if the file does not exist
+     */
+    public static DigestModes load(final File file)
+    {
+        DigestModes digestModes = null;
+        if (file.exists())
+        {
+            final Properties properties = new Properties();
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(file);
+                properties.load(is);
+
+                final List<Mode> modes = new ArrayList<Mode>();
+                for (final String mode : properties.getProperty(PROPERTY_MODES, "").split(MODE_SEPARATOR))
+                {
+                    if (mode.trim().length() != 0)
+                    {
+                        modes.add(Mode.parse(mode.trim()));
+                    }
+                }
+                digestModes = new DigestModes(modes, Boolean.parseBoolean(properties.getProperty(PROPERTY_COMPLETE)));
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to load digest modes from " + file, e);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                throw new ContentIOException("Invalid digest modes in " + file, e);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return digestModes;
+    }
+
+    /**
+     * Saves these modes to a properties file.
+     *
+     * @param file
+     *            the file to save to
+     */
+    public void save(final File file)
+    {
+        final StringBuilder modesBuilder = new StringBuilder();
+        for (final Mode mode : this.modes)
+        {
+            if (modesBuilder.length() != 0)
+            {
+                modesBuilder.append(MODE_SEPARATOR);
+            }
+            modesBuilder.append(mode);
+        }
+
+        final Properties properties = new Properties();
+        properties.setProperty(PROPERTY_MODES, modesBuilder.toString());
+        properties.setProperty(PROPERTY_COMPLETE, String.valueOf(this.complete));
+
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new FileOutputStream(tempFile);
+            properties.store(os, null);
+            os.close();
+            os = null;
+
+            // renameTo does not replace existing files on all platforms
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+            {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to save digest modes to " + file, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "DigestModes [modes=" + this.modes + ", complete=" + this.complete + "]";
+    }
+
+    /**
+     * A single way of deriving content URLs from content.
+     */
+    public static class Mode
+    {
+
+        private static final String TREE_SEPARATOR = ":";
+
+        private final String algorithm;
+
+        private final int treeLeafSize;
+
+        /**
+         * Creates a new mode instance.
+         *
+         * @param algorithm
+         *            the message digest type
+         * @param treeLeafSize
+         *            the leaf size of tree digests or {@code 0} if the content is hashed as a whole
+         */
+        public Mode(final String algorithm, final int treeLeafSize)
+        {
+            if (algorithm == null || algorithm.trim().length() == 0 || algorithm.contains(MODE_SEPARATOR)
+                    || algorithm.contains(TREE_SEPARATOR))
+            {
+                throw new IllegalArgumentException("Invalid message digest type: " + algorithm);
+            }
+            if (treeLeafSize < 0)
+            {
+                throw new IllegalArgumentException("treeLeafSize must not be negative");
+            }
+            this.algorithm = algorithm.trim();
+            this.treeLeafSize = treeLeafSize;
+        }
+
+        /**
+         * @return the message digest type
+         */
+        public String getAlgorithm()
+        {
+            return this.algorithm;
+        }
+
+        /**
+         * @return the leaf size of tree digests or {@code 0} if the content is hashed as a whole
+         */
+        public int getTreeLeafSize()
+        {
+            return this.treeLeafSize;
+        }
+
+        /**
+         * Creates a digest engine calculating digests in this mode on the calling thread. The engine must be released via
+         * {@link #releaseEngine(DigestEngine)}.
+         *
+         * @return the engine
+         * @throws NoSuchAlgorithmException
+         *             if the message digest type is not supported
+         */
+        public DigestEngine createEngine() throws NoSuchAlgorithmException
+        {
+            final DigestEngine engine;
+            if (this.treeLeafSize > 0)
+            {
+                engine = new SequentialTreeDigestEngine(this.algorithm, this.treeLeafSize);
+            }
+            else
+            {
+                engine = DigestEngines.acquire(this.algorithm);
+            }
+            return engine;
+        }
+
+        /**
+         * Releases an engine created via {@link #createEngine()}.
+         *
+         * @param engine
+         *            the engine to release
+         */
+        public static void releaseEngine(final DigestEngine engine)
+        {
+            if (engine instanceof SequentialTreeDigestEngine)
+            {
+                ((SequentialTreeDigestEngine) engine).release();
+            }
+            else
+            {
+                DigestEngines.release(engine);
+            }
+        }
+
+        /**
+         * Parses the string representation of a mode.
+         *
+         * @param mode
+         *            the string representation as returned by {@link #toString()}
+         * @return the mode
+         */
+        public static Mode parse(final String mode)
+        {
+            final int separatorIdx = mode.lastIndexOf(TREE_SEPARATOR);
+            final Mode result;
+            if (separatorIdx != -1)
+            {
+                result = new Mode(mode.substring(0, separatorIdx), Integer.parseInt(mode.substring(separatorIdx + 1)));
+            }
+            else
+            {
+                result = new Mode(mode, 0);
+            }
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return 31 * this.algorithm.toUpperCase(Locale.ENGLISH).hashCode() + this.treeLeafSize;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(final Object obj)
+        {
+            boolean result = obj == this;
+            if (!result && obj instanceof Mode)
+            {
+                result = ((Mode) obj).algorithm.equalsIgnoreCase(this.algorithm) && ((Mode) obj).treeLeafSize == this.treeLeafSize;
+            }
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return this.treeLeafSize > 0 ? this.algorithm + TREE_SEPARATOR + this.treeLeafSize : this.algorithm;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel wrapper that updates a {@link DigestEngine} with all bytes written to the wrapped channel.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DigestingWritableByteChannel implements WritableByteChannel
+{
+
+    private final WritableByteChannel channel;
+
+    private final DigestEngine digestEngine;
+
+    /**
+     * Creates a new channel instance.
+     *
+     * @param channel
+     *            the channel to write to
+     * @param digestEngine
+     *            the engine to update
+     */
+    public DigestingWritableByteChannel(final WritableByteChannel channel, final DigestEngine digestEngine)
+    {
+        this.channel = channel;
+        this.digestEngine = digestEngine;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int write(final ByteBuffer src) throws IOException
+    {
+        final int start = src.position();
+        final int written = this.channel.write(src);
+        if (written > 0)
+        {
+            // digest exactly the bytes the channel accepted without disturbing the state of the source buffer
+            final ByteBuffer writtenBytes = src.duplicate();
+            writtenBytes.position(start);
+            writtenBytes.limit(start + written);
+            this.digestEngine.update(writtenBytes);
+        }
+        return written;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOpen()
+    {
+        return this.channel.isOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException
+    {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,91 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct byte buffers. Direct buffers are expensive to allocate and are only freed on garbage collection, so they are
+ * re-used across operations instead. Buffers exceeding the pool capacity when they are released are left to the garbage collector.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DirectBufferPool
+{
+
+    private final int bufferSize;
+
+    private final int maxPooledBuffers;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    /**
+     * Creates a new pool instance.
+     *
+     * @param bufferSize
+     *            the size of the buffers
+     * @param maxPooledBuffers
+     *            the maximum number of unused buffers to keep in the pool
+     */
+    public DirectBufferPool(final int bufferSize, final int maxPooledBuffers)
+    {
+        if (bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * @return the size of the buffers
+     */
+    public int getBufferSize()
+    {
+        return this.bufferSize;
+    }
+
+    /**
+     * Obtains a cleared buffer from the pool, allocating a new buffer if the pool is empty.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer != null)
+        {
+            this.pooledBuffers.decrementAndGet();
+            buffer.clear();
+        }
+        else
+        {
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must no longer be used by the caller.
+     *
+     * @param buffer
+     *            the buffer
+     */
+    public void release(final ByteBuffer buffer)
+    {
+        if (buffer.capacity() == this.bufferSize && buffer.isDirect())
+        {
+            if (this.pooledBuffers.incrementAndGet() <= this.maxPooledBuffers)
+            {
+                this.buffers.offer(buffer);
+            }
+            else
+            {
+                this.pooledBuffers.decrementAndGet();
+            }
+        }
+    }
+}
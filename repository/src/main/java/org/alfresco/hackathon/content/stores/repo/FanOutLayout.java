@@ -0,0 +1,231 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Describes the physical directory structure used to distribute content files of a {@link HashBasedFileContentStore}, i.e. how many
+ * levels of directories are used (depth) and how many characters of the digest each directory name is made of (width). The content URL
+ * of a file is independent of the layout so that the layout of a store can be changed without changing any references to its content.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FanOutLayout
+{
+
+    /**
+     * The layout used by all versions of the store before the layout became configurable - 3 levels of 2 characters each.
+     */
+    public static final FanOutLayout DEFAULT = new FanOutLayout(3, 2);
+
+    private static final String PROPERTY_DEPTH = "depth";
+
+    private static final String PROPERTY_WIDTH = "width";
+
+    private final int depth;
+
+    private final int width;
+
+    /**
+     * Creates a new layout instance.
+     *
+     * @param depth
+     *            the number of directory levels
+     * @param width
+     *            the number of digest characters per directory level
+     */
+    public FanOutLayout(final int depth, final int width)
+    {
+        if (depth < 1 || width < 1)
+        {
+            throw new IllegalArgumentException("Fan-out depth and width must both be at least 1");
+        }
+        // 16 characters of a hex-encoded digest already allow for more directories than any file system can handle
+        if (depth * width > 16)
+        {
+            throw new IllegalArgumentException("Fan-out depth and width must not use more than 16 characters of the digest");
+        }
+        this.depth = depth;
+        this.width = width;
+    }
+
+    /**
+     * @return the number of directory levels
+     */
+    public int getDepth()
+    {
+        return this.depth;
+    }
+
+    /**
+     * @return the number of digest characters per directory level
+     */
+    public int getWidth()
+    {
+        return this.width;
+    }
+
+    /**
+     * @return the number of digest characters required to determine the directory of a content file
+     */
+    public int getPrefixLength()
+    {
+        return this.depth * this.width;
+    }
+
+    /**
+     * Appends the path of a content file relative to the root of a store to a builder.
+     *
+     * @param builder
+     *            the builder to append to
+     * @param digest
+     *            the digest of the content
+     * @param separator
+     *            the separator character to use between path elements
+     * @return the builder
+     */
+    public StringBuilder appendPath(final StringBuilder builder, final String digest, final char separator)
+    {
+        for (int level = 0, offset = 0; level < this.depth; level++, offset += this.width)
+        {
+            builder.append(digest, offset, offset + this.width).append(separator);
+        }
+        builder.append(digest).append(FanOutWalker.CONTENT_FILE_EXTENSION);
+        return builder;
+    }
+
+    /**
+     * Resolves the file for a specific digest.
+     *
+     * @param root
+     *            the root directory of the store
+     * @param digest
+     *            the digest of the content
+     * @return the file for the content - the file may or may not exist
+     */
+    public File resolve(final File root, final String digest)
+    {
+        if (digest.length() < this.getPrefixLength())
+        {
+            throw new IllegalArgumentException("Digest is too short - needs to be at least " + this.getPrefixLength() + " characters");
+        }
+
+        final StringBuilder builder = new StringBuilder(this.depth * (this.width + 1) + digest.length()
+                + FanOutWalker.CONTENT_FILE_EXTENSION.length());
+        return new File(root, this.appendPath(builder, digest, File.separatorChar).toString());
+    }
+
+    /**
+     * Loads a layout from a properties file.
+     *
+     * @param file
+     *            the file to load from
+     * @return the layout or {@code null} if the file does not exist
+     */
+    public static FanOutLayout load(final File file)
+    {
+        FanOutLayout layout = null;
+        if (file.exists())
+        {
+            final Properties properties = new Properties();
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(file);
+                properties.load(is);
+                layout = new FanOutLayout(Integer.parseInt(properties.getProperty(PROPERTY_DEPTH)), Integer.parseInt(properties
+                        .getProperty(PROPERTY_WIDTH)));
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to load fan-out layout from " + file, e);
+            }
+            catch (final NumberFormatException e)
+            {
+                throw new ContentIOException("Invalid fan-out layout in " + file, e);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Saves this layout to a properties file.
+     *
+     * @param file
+     *            the file to save to
+     */
+    public void save(final File file)
+    {
+        final Properties properties = new Properties();
+        properties.setProperty(PROPERTY_DEPTH, String.valueOf(this.depth));
+        properties.setProperty(PROPERTY_WIDTH, String.valueOf(this.width));
+
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new FileOutputStream(tempFile);
+            properties.store(os, null);
+            os.close();
+            os = null;
+
+            // renameTo does not replace existing files on all platforms
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+            {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to save fan-out layout to " + file, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        return 31 * this.depth + this.width;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object obj)
+    {
+        boolean result = obj == this;
+        if (!result && obj instanceof FanOutLayout)
+        {
+            result = ((FanOutLayout) obj).depth == this.depth && ((FanOutLayout) obj).width == this.width;
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "FanOutLayout [depth=" + this.depth + ", width=" + this.width + "]";
+    }
+}
@@ -0,0 +1,333 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedSet;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the content files of a {@link HashBasedFileContentStore} into a new {@link FanOutLayout} and / or onto the volumes of a new
+ * {@link VolumeRing} while the store remains in use. Since the location of a file only depends on its digest, the migrator simply visits
+ * all content files and moves every file that is not located where the new layout and ring expect it. Progress is checkpointed after each
+ * top level directory (across all volumes) so an interrupted migration resumes where it left off - re-visiting a partially migrated
+ * directory is harmless.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FanOutLayoutMigrator implements Runnable
+{
+
+    /**
+     * Name of the file within the root directory that holds the progress of an incomplete migration.
+     */
+    public static final String CHECKPOINT_FILE_NAME = ".layout-migration";
+
+    private static final String PROPERTY_TARGET_DEPTH = "target.depth";
+
+    private static final String PROPERTY_TARGET_WIDTH = "target.width";
+
+    private static final String PROPERTY_TARGET_VOLUMES = "target.volumes";
+
+    private static final String PROPERTY_LAST_COMPLETED_DIRECTORY = "lastCompletedDirectory";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FanOutLayoutMigrator.class);
+
+    private final HashBasedFileContentStore store;
+
+    private final File rootDirectory;
+
+    private final List<File> rootDirectories;
+
+    private final FanOutLayout targetLayout;
+
+    private final VolumeRing targetRing;
+
+    private final FanOutWalker.DirectoryFilter directoryFilter;
+
+    private final int filesPerSecond;
+
+    private final File checkpointFile;
+
+    private volatile boolean stopped = false;
+
+    private long startTime;
+
+    private long migratedFiles;
+
+    /**
+     * Creates a new migrator instance.
+     *
+     * @param store
+     *            the store to migrate
+     * @param rootDirectories
+     *            the root directories of all volumes of the store, starting with the primary root directory
+     * @param targetLayout
+     *            the layout to migrate to
+     * @param targetRing
+     *            the ring distributing content over the volumes to migrate to - for a store with a single volume, this is a ring of only
+     *            that volume
+     * @param directoryFilter
+     *            the filter for directories that may contain content to be moved or {@code null} to visit all directories
+     * @param filesPerSecond
+     *            the maximum number of files to move per second or {@code 0} to move files as fast as possible
+     */
+    public FanOutLayoutMigrator(final HashBasedFileContentStore store, final List<File> rootDirectories, final FanOutLayout targetLayout,
+            final VolumeRing targetRing, final FanOutWalker.DirectoryFilter directoryFilter, final int filesPerSecond)
+    {
+        this.store = store;
+        this.rootDirectory = rootDirectories.get(0);
+        this.rootDirectories = rootDirectories;
+        this.targetLayout = targetLayout;
+        this.targetRing = targetRing;
+        this.directoryFilter = directoryFilter;
+        this.filesPerSecond = filesPerSecond;
+        this.checkpointFile = new File(this.rootDirectory, CHECKPOINT_FILE_NAME);
+    }
+
+    /**
+     * Determines the target layout of an incomplete migration.
+     *
+     * @param rootDirectory
+     *            the root directory of the store
+     * @return the target layout of an incomplete migration or {@code null} if no migration is in progress
+     */
+    public static FanOutLayout getIncompleteMigrationTarget(final File rootDirectory)
+    {
+        final Properties checkpoint = loadCheckpoint(new File(rootDirectory, CHECKPOINT_FILE_NAME));
+        return checkpoint != null ? toLayout(checkpoint) : null;
+    }
+
+    /**
+     * Determines the volumes targeted by an incomplete migration.
+     *
+     * @param rootDirectory
+     *            the primary root directory of the store
+     * @return the ids of the targeted volumes or {@code null} if no migration is in progress or the migration does not move content
+     *         between volumes
+     */
+    public static SortedSet<String> getIncompleteMigrationVolumes(final File rootDirectory)
+    {
+        final Properties checkpoint = loadCheckpoint(new File(rootDirectory, CHECKPOINT_FILE_NAME));
+        final String volumes = checkpoint != null ? checkpoint.getProperty(PROPERTY_TARGET_VOLUMES) : null;
+        return volumes != null ? VolumeRing.parseVolumeIds(volumes) : null;
+    }
+
+    /**
+     * Stops the migration at the next opportunity.
+     */
+    public void stop()
+    {
+        this.stopped = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run()
+    {
+        try
+        {
+            final Properties checkpoint = loadCheckpoint(this.checkpointFile);
+            final String lastCompletedDirectory = checkpoint != null && this.targetLayout.equals(toLayout(checkpoint))
+                    && this.isTargetVolumes(checkpoint) ? checkpoint.getProperty(PROPERTY_LAST_COMPLETED_DIRECTORY) : null;
+            if (lastCompletedDirectory == null)
+            {
+                this.saveCheckpoint(null);
+            }
+
+            LOGGER.info("Migrating content in {} to {} - resuming after directory {}", new Object[] { this.rootDirectory,
+                    this.targetLayout + " on " + this.targetRing, lastCompletedDirectory });
+
+            this.startTime = System.currentTimeMillis();
+            final SortedSet<String> topLevelDirectoryNames = FanOutWalker.listFanOutDirectoryNames(this.rootDirectories);
+            for (final String topLevelDirectoryName : topLevelDirectoryNames)
+            {
+                if ((lastCompletedDirectory != null && topLevelDirectoryName.compareTo(lastCompletedDirectory) <= 0)
+                        || (this.directoryFilter != null && !this.directoryFilter.accept(topLevelDirectoryName)))
+                {
+                    continue;
+                }
+
+                for (final File volumeRootDirectory : this.rootDirectories)
+                {
+                    final File topLevelDirectory = new File(volumeRootDirectory, topLevelDirectoryName);
+                    if (topLevelDirectory.isDirectory())
+                    {
+                        FanOutWalker.walk(topLevelDirectory, topLevelDirectoryName, this.directoryFilter,
+                                new FanOutWalker.ContentFileVisitor()
+                                {
+
+                                    public void visitContentFile(final File file, final String digest)
+                                    {
+                                        FanOutLayoutMigrator.this.migrate(file, digest, volumeRootDirectory);
+                                    }
+                                });
+                    }
+                }
+
+                if (this.stopped)
+                {
+                    LOGGER.info("Stopped migration of content in {} after {} files", this.rootDirectory, Long.valueOf(this.migratedFiles));
+                    return;
+                }
+                this.saveCheckpoint(topLevelDirectoryName);
+            }
+
+            this.store.completeFanOutLayoutMigration(this.targetLayout, this.targetRing);
+            if (!this.checkpointFile.delete())
+            {
+                LOGGER.warn("Failed to remove migration checkpoint {}", this.checkpointFile);
+            }
+
+            LOGGER.info("Completed migration of content in {} to {} - moved {} files", new Object[] { this.rootDirectory,
+                    this.targetLayout, Long.valueOf(this.migratedFiles) });
+        }
+        catch (final RuntimeException e)
+        {
+            LOGGER.error("Migration of content in " + this.rootDirectory + " failed - it will be resumed on the next startup", e);
+        }
+    }
+
+    protected void migrate(final File file, final String digest, final File volumeRootDirectory)
+    {
+        if (this.stopped || digest.length() < this.targetLayout.getPrefixLength())
+        {
+            return;
+        }
+
+        final ContentVolume targetVolume = this.targetRing.getVolume(digest);
+        // content not created by the store always stays on its volume
+        File targetFile = this.targetLayout.resolve(targetVolume != null ? targetVolume.getRootDirectory() : volumeRootDirectory, digest);
+        if (FanOutWalker.isManifestFile(file))
+        {
+            // chunks are located independently of the fan-out layout so only the manifest needs to be moved
+            targetFile = FanOutWalker.getManifestFile(targetFile);
+        }
+        else if (FanOutWalker.isCompressedFile(file))
+        {
+            targetFile = FanOutWalker.getCompressedFile(targetFile);
+        }
+
+        if (!targetFile.equals(file))
+        {
+            this.store.relocateContentFile(file, targetFile, digest);
+            this.migratedFiles++;
+            this.throttle();
+        }
+    }
+
+    protected void throttle()
+    {
+        if (this.filesPerSecond > 0)
+        {
+            final long expectedElapsed = this.migratedFiles * 1000 / this.filesPerSecond;
+            final long actualElapsed = System.currentTimeMillis() - this.startTime;
+            if (expectedElapsed > actualElapsed)
+            {
+                try
+                {
+                    Thread.sleep(expectedElapsed - actualElapsed);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    this.stopped = true;
+                }
+            }
+        }
+    }
+
+    protected void saveCheckpoint(final String lastCompletedDirectory)
+    {
+        final Properties checkpoint = new Properties();
+        checkpoint.setProperty(PROPERTY_TARGET_DEPTH, String.valueOf(this.targetLayout.getDepth()));
+        checkpoint.setProperty(PROPERTY_TARGET_WIDTH, String.valueOf(this.targetLayout.getWidth()));
+        if (lastCompletedDirectory != null)
+        {
+            checkpoint.setProperty(PROPERTY_LAST_COMPLETED_DIRECTORY, lastCompletedDirectory);
+        }
+        checkpoint.setProperty(PROPERTY_TARGET_VOLUMES, VolumeRing.formatVolumeIds(this.targetRing.getVolumeIds()));
+
+        final File tempFile = new File(this.rootDirectory, CHECKPOINT_FILE_NAME + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new FileOutputStream(tempFile);
+            checkpoint.store(os, null);
+            os.close();
+            os = null;
+
+            // renameTo does not replace existing files on all platforms
+            if (!tempFile.renameTo(this.checkpointFile) && !(this.checkpointFile.delete() && tempFile.renameTo(this.checkpointFile)))
+            {
+                LOGGER.warn("Failed to update migration checkpoint {}", this.checkpointFile);
+            }
+        }
+        catch (final IOException e)
+        {
+            // losing a checkpoint only means some directories are visited again
+            LOGGER.warn("Failed to write migration checkpoint " + this.checkpointFile, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    protected boolean isTargetVolumes(final Properties checkpoint)
+    {
+        final String volumes = checkpoint.getProperty(PROPERTY_TARGET_VOLUMES);
+        // checkpoints without volumes have been written before content could be distributed over multiple volumes
+        return volumes != null ? this.targetRing.getVolumeIds().equals(VolumeRing.parseVolumeIds(volumes)) : this.targetRing
+                .getVolumeIds().size() == 1;
+    }
+
+    protected static Properties loadCheckpoint(final File checkpointFile)
+    {
+        Properties checkpoint = null;
+        if (checkpointFile.exists())
+        {
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(checkpointFile);
+                checkpoint = new Properties();
+                checkpoint.load(is);
+            }
+            catch (final IOException e)
+            {
+                LOGGER.warn("Failed to read migration checkpoint " + checkpointFile, e);
+                checkpoint = null;
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return checkpoint;
+    }
+
+    protected static FanOutLayout toLayout(final Properties checkpoint)
+    {
+        FanOutLayout layout = null;
+        try
+        {
+            layout = new FanOutLayout(Integer.parseInt(checkpoint.getProperty(PROPERTY_TARGET_DEPTH)), Integer.parseInt(checkpoint
+                    .getProperty(PROPERTY_TARGET_WIDTH)));
+        }
+        catch (final IllegalArgumentException e)
+        {
+            LOGGER.warn("Ignoring invalid migration checkpoint");
+        }
+        return layout;
+    }
+}
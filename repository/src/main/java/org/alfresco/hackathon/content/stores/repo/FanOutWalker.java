@@ -0,0 +1,239 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Utility to traverse the digest based fan-out directory structure of a {@link HashBasedFileContentStore}. Internal directories of the
+ * store (e.g. staging area or index) are prefixed with a dot and never visited.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FanOutWalker
+{
+
+    /**
+     * Extension of all files holding content.
+     */
+    public static final String CONTENT_FILE_EXTENSION = ".bin";
+
+    /**
+     * Extension of all files holding the manifest of content that has been split into chunks.
+     */
+    public static final String MANIFEST_FILE_EXTENSION = ".cdc";
+
+    /**
+     * Extension of all files holding content that has been stored compressed.
+     */
+    public static final String COMPRESSED_FILE_EXTENSION = ".dfl";
+
+    /**
+     * Callback interface for visiting content files.
+     */
+    public interface ContentFileVisitor
+    {
+
+        /**
+         * Visits a single content file.
+         *
+         * @param file
+         *            the content file - the file holding the content, the manifest of chunked content or the file holding compressed content
+         * @param digest
+         *            the digest of the content as encoded in the file name
+         */
+        void visitContentFile(File file, String digest);
+    }
+
+    /**
+     * Callback interface for skipping parts of the fan-out directory structure.
+     */
+    public interface DirectoryFilter
+    {
+
+        /**
+         * Checks if a directory needs to be visited.
+         *
+         * @param digestPrefix
+         *            the digest prefix of all content below the directory, i.e. the concatenated names of the directory and its parents
+         * @return {@code true} if the directory should be visited
+         */
+        boolean accept(String digestPrefix);
+    }
+
+    private static final FileFilter FAN_OUT_DIRECTORY_FILTER = new FileFilter()
+    {
+
+        public boolean accept(final File pathname)
+        {
+            return pathname.isDirectory() && !pathname.getName().startsWith(".");
+        }
+    };
+
+    private FanOutWalker()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Determines the manifest file that would replace a content file if the content had been split into chunks.
+     *
+     * @param contentFile
+     *            the content file
+     * @return the manifest file - the file may or may not exist
+     */
+    public static File getManifestFile(final File contentFile)
+    {
+        return getSiblingFile(contentFile, MANIFEST_FILE_EXTENSION);
+    }
+
+    /**
+     * Determines the file that would replace a content file if the content had been stored compressed.
+     *
+     * @param contentFile
+     *            the content file
+     * @return the compressed file - the file may or may not exist
+     */
+    public static File getCompressedFile(final File contentFile)
+    {
+        return getSiblingFile(contentFile, COMPRESSED_FILE_EXTENSION);
+    }
+
+    /**
+     * Checks if a file is the manifest of chunked content.
+     *
+     * @param file
+     *            the file to check
+     * @return {@code true} if the file is a manifest
+     */
+    public static boolean isManifestFile(final File file)
+    {
+        return file.getName().endsWith(MANIFEST_FILE_EXTENSION);
+    }
+
+    /**
+     * Checks if a file holds compressed content.
+     *
+     * @param file
+     *            the file to check
+     * @return {@code true} if the file holds compressed content
+     */
+    public static boolean isCompressedFile(final File file)
+    {
+        return file.getName().endsWith(COMPRESSED_FILE_EXTENSION);
+    }
+
+    /**
+     * Lists the fan-out sub-directories of a directory in ascending name order.
+     *
+     * @param directory
+     *            the directory to list
+     * @return the sorted list of sub-directories
+     */
+    public static List<File> listFanOutDirectories(final File directory)
+    {
+        final File[] directories = directory.listFiles(FAN_OUT_DIRECTORY_FILTER);
+        if (directories == null)
+        {
+            return Collections.emptyList();
+        }
+        Arrays.sort(directories);
+        return Arrays.asList(directories);
+    }
+
+    /**
+     * Recursively visits all content files below a directory.
+     *
+     * @param directory
+     *            the directory to traverse
+     * @param visitor
+     *            the visitor to call for each content file
+     */
+    public static void walk(final File directory, final ContentFileVisitor visitor)
+    {
+        walk(directory, directory.getName(), null, visitor);
+    }
+
+    /**
+     * Lists the names of the fan-out sub-directories of several root directories in ascending order, e.g. to visit the same top level
+     * directory on all volumes of a store before moving on to the next.
+     *
+     * @param rootDirectories
+     *            the root directories to list
+     * @return the sorted names of the sub-directories
+     */
+    public static SortedSet<String> listFanOutDirectoryNames(final List<File> rootDirectories)
+    {
+        final SortedSet<String> names = new TreeSet<String>();
+        for (final File rootDirectory : rootDirectories)
+        {
+            for (final File directory : listFanOutDirectories(rootDirectory))
+            {
+                names.add(directory.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Recursively visits all content files below a directory, skipping sub-directories rejected by a filter.
+     *
+     * @param directory
+     *            the directory to traverse
+     * @param digestPrefix
+     *            the digest prefix of all content below the directory
+     * @param filter
+     *            the filter for sub-directories or {@code null} to visit all sub-directories
+     * @param visitor
+     *            the visitor to call for each content file
+     */
+    public static void walk(final File directory, final String digestPrefix, final DirectoryFilter filter, final ContentFileVisitor visitor)
+    {
+        final File[] files = directory.listFiles();
+        if (files != null)
+        {
+            Arrays.sort(files);
+            for (final File file : files)
+            {
+                final String name = file.getName();
+                if (name.startsWith("."))
+                {
+                    continue;
+                }
+
+                if (file.isDirectory())
+                {
+                    final String subDigestPrefix = digestPrefix + name;
+                    if (filter == null || filter.accept(subDigestPrefix))
+                    {
+                        walk(file, subDigestPrefix, filter, visitor);
+                    }
+                }
+                else if (name.endsWith(CONTENT_FILE_EXTENSION))
+                {
+                    visitor.visitContentFile(file, name.substring(0, name.length() - CONTENT_FILE_EXTENSION.length()));
+                }
+                else if (name.endsWith(MANIFEST_FILE_EXTENSION))
+                {
+                    visitor.visitContentFile(file, name.substring(0, name.length() - MANIFEST_FILE_EXTENSION.length()));
+                }
+                else if (name.endsWith(COMPRESSED_FILE_EXTENSION))
+                {
+                    visitor.visitContentFile(file, name.substring(0, name.length() - COMPRESSED_FILE_EXTENSION.length()));
+                }
+            }
+        }
+    }
+
+    private static File getSiblingFile(final File contentFile, final String extension)
+    {
+        final String name = contentFile.getName();
+        final String baseName = name.endsWith(CONTENT_FILE_EXTENSION) ? name.substring(0, name.length() - CONTENT_FILE_EXTENSION.length())
+                : name;
+        return new File(contentFile.getParentFile(), baseName + extension);
+    }
+}
@@ -0,0 +1,193 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into content-defined chunks using the FastCDC algorithm (gear based rolling hash with normalized chunking). Since chunk
+ * boundaries depend only on the local content, inserting or removing bytes only affects the chunks around the modification, so different
+ * versions of a document share most of their chunks.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FastCdcChunker
+{
+
+    // the gear table defines chunk boundaries of all stored content - it must never be changed
+    private static final long[] GEAR = new long[256];
+
+    static
+    {
+        // SplitMix64 with a fixed seed
+        long seed = 0x2545F4914F6CDD1Dl;
+        for (int idx = 0; idx < GEAR.length; idx++)
+        {
+            seed += 0x9E3779B97F4A7C15l;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9l;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBl;
+            GEAR[idx] = value ^ (value >>> 31);
+        }
+    }
+
+    private final InputStream input;
+
+    private final int minSize;
+
+    private final int averageSize;
+
+    private final int maxSize;
+
+    private final long smallMask;
+
+    private final long largeMask;
+
+    private final byte[] buffer;
+
+    private int bufferStart;
+
+    private int bufferEnd;
+
+    private boolean endOfInput;
+
+    private int chunkOffset;
+
+    private int chunkLength;
+
+    /**
+     * Creates a new chunker instance.
+     *
+     * @param input
+     *            the stream to split
+     * @param minSize
+     *            the minimum size of a chunk (except for the last chunk)
+     * @param averageSize
+     *            the targeted average size of a chunk
+     * @param maxSize
+     *            the maximum size of a chunk
+     */
+    public FastCdcChunker(final InputStream input, final int minSize, final int averageSize, final int maxSize)
+    {
+        if (minSize <= 0 || averageSize < 256 || minSize >= averageSize || averageSize >= maxSize)
+        {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < minSize < averageSize < maxSize with averageSize >= 256");
+        }
+
+        this.input = input;
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+
+        // the upper bits of the gear hash depend on the last 64 bytes - normalization level 2
+        final int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        this.smallMask = -1l << (64 - (bits + 2));
+        this.largeMask = -1l << (64 - (bits - 2));
+
+        this.buffer = new byte[maxSize * 2];
+    }
+
+    /**
+     * Advances to the next chunk.
+     *
+     * @return {@code true} if a chunk is available, {@code false} if the end of the stream has been reached
+     * @throws IOException
+     *             if the stream cannot be read
+     */
+    public boolean next() throws IOException
+    {
+        this.bufferStart += this.chunkLength;
+        this.chunkLength = 0;
+
+        if (this.bufferEnd - this.bufferStart < this.maxSize && !this.endOfInput)
+        {
+            this.fill();
+        }
+
+        final boolean available = this.bufferStart < this.bufferEnd;
+        if (available)
+        {
+            this.chunkOffset = this.bufferStart;
+            this.chunkLength = this.findCutPoint(this.buffer, this.bufferStart, this.bufferEnd - this.bufferStart);
+        }
+        return available;
+    }
+
+    /**
+     * @return the buffer holding the current chunk - the content of the buffer is only valid until the next call to {@link #next()}
+     */
+    public byte[] getBuffer()
+    {
+        return this.buffer;
+    }
+
+    /**
+     * @return the offset of the current chunk in the {@link #getBuffer() buffer}
+     */
+    public int getChunkOffset()
+    {
+        return this.chunkOffset;
+    }
+
+    /**
+     * @return the length of the current chunk
+     */
+    public int getChunkLength()
+    {
+        return this.chunkLength;
+    }
+
+    protected void fill() throws IOException
+    {
+        final int remaining = this.bufferEnd - this.bufferStart;
+        System.arraycopy(this.buffer, this.bufferStart, this.buffer, 0, remaining);
+        this.bufferStart = 0;
+        this.bufferEnd = remaining;
+
+        while (this.bufferEnd < this.buffer.length && !this.endOfInput)
+        {
+            final int read = this.input.read(this.buffer, this.bufferEnd, this.buffer.length - this.bufferEnd);
+            if (read < 0)
+            {
+                this.endOfInput = true;
+            }
+            else
+            {
+                this.bufferEnd += read;
+            }
+        }
+    }
+
+    protected int findCutPoint(final byte[] data, final int offset, final int length)
+    {
+        final int limit = Math.min(length, this.maxSize);
+        if (limit <= this.minSize)
+        {
+            return limit;
+        }
+
+        final int normalSize = Math.min(this.averageSize, limit);
+        long hash = 0;
+        int idx = this.minSize;
+
+        // cut points below the minimum size are skipped entirely, the stricter mask makes cut points before the average size less likely
+        for (; idx < normalSize; idx++)
+        {
+            hash = (hash << 1) + GEAR[data[offset + idx] & 0xff];
+            if ((hash & this.smallMask) == 0)
+            {
+                return idx + 1;
+            }
+        }
+
+        for (; idx < limit; idx++)
+        {
+            hash = (hash << 1) + GEAR[data[offset + idx] & 0xff];
+            if ((hash & this.largeMask) == 0)
+            {
+                return idx + 1;
+            }
+        }
+
+        return limit;
+    }
+}
@@ -0,0 +1,288 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of open read-only file handles for content files. Since content files are never modified after they have been written, a single
+ * handle can be shared by all concurrent readers of a file, as long as they only use position based operations. The least recently used
+ * handles are closed once the configured number of open handles is exceeded - handles still in use are closed once they are released.
+ *
+ * Small files may additionally be memory-mapped, so that random access reads are served without any system calls.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FileHandleCache
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileHandleCache.class);
+
+    private final int maxOpenHandles;
+
+    private final long mappingMaxSize;
+
+    private final Map<File, FileHandle> handles;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a new cache instance.
+     *
+     * @param maxOpenHandles
+     *            the maximum number of handles to keep open - {@code 0} to close all handles as soon as they are released
+     * @param mappingMaxSize
+     *            the maximum size of files to memory-map - {@code 0} to never map files
+     */
+    public FileHandleCache(final int maxOpenHandles, final long mappingMaxSize)
+    {
+        this.maxOpenHandles = maxOpenHandles;
+        this.mappingMaxSize = Math.min(Integer.MAX_VALUE, mappingMaxSize);
+        this.handles = new LinkedHashMap<File, FileHandle>(16, 0.75f, true)
+        {
+
+            private static final long serialVersionUID = 1l;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<File, FileHandle> eldest)
+            {
+                final boolean remove = this.size() > FileHandleCache.this.maxOpenHandles;
+                // closing is cheap enough to be done while holding the lock
+                if (remove && FileHandleCache.this.evict(eldest.getValue()))
+                {
+                    eldest.getValue().close();
+                }
+                return remove;
+            }
+        };
+    }
+
+    /**
+     * Obtains a handle for a file. The handle must be {@link #release(FileHandle) released} after use.
+     *
+     * @param file
+     *            the file to obtain the handle for
+     * @return the handle
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    public FileHandle acquire(final File file) throws IOException
+    {
+        synchronized (this.handles)
+        {
+            final FileHandle handle = this.handles.get(file);
+            if (handle != null)
+            {
+                handle.references++;
+                return handle;
+            }
+        }
+
+        // open outside of the lock - if another thread opened the same file concurrently, one handle simply won't be cached
+        final FileHandle handle = this.open(file);
+        synchronized (this.handles)
+        {
+            if (!this.closed && this.maxOpenHandles > 0 && !this.handles.containsKey(file))
+            {
+                this.handles.put(file, handle);
+            }
+            else
+            {
+                handle.evicted = true;
+            }
+        }
+        return handle;
+    }
+
+    /**
+     * Releases a handle obtained via {@link #acquire(File)}.
+     *
+     * @param handle
+     *            the handle to release
+     */
+    public void release(final FileHandle handle)
+    {
+        boolean close;
+        synchronized (this.handles)
+        {
+            handle.references--;
+            close = handle.evicted && handle.references == 0;
+        }
+
+        if (close)
+        {
+            handle.close();
+        }
+    }
+
+    /**
+     * Removes the handle of a file from the cache, e.g. because the file has been deleted. The handle is closed as soon as it is no longer
+     * in use.
+     *
+     * @param file
+     *            the file to remove the handle of
+     */
+    public void invalidate(final File file)
+    {
+        FileHandle handle;
+        synchronized (this.handles)
+        {
+            handle = this.handles.remove(file);
+            if (handle != null && !this.evict(handle))
+            {
+                handle = null;
+            }
+        }
+
+        if (handle != null)
+        {
+            handle.close();
+        }
+    }
+
+    /**
+     * Closes all cached handles - handles still in use are closed as soon as they are released.
+     */
+    public void close()
+    {
+        final List<FileHandle> unusedHandles = new ArrayList<FileHandle>();
+        synchronized (this.handles)
+        {
+            this.closed = true;
+            for (final Iterator<FileHandle> handleIterator = this.handles.values().iterator(); handleIterator.hasNext();)
+            {
+                final FileHandle handle = handleIterator.next();
+                handleIterator.remove();
+                if (this.evict(handle))
+                {
+                    unusedHandles.add(handle);
+                }
+            }
+        }
+
+        for (final FileHandle handle : unusedHandles)
+        {
+            handle.close();
+        }
+    }
+
+    protected FileHandle open(final File file) throws IOException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long size = channel.size();
+            ByteBuffer mapping = null;
+            if (size > 0 && size <= this.mappingMaxSize)
+            {
+                mapping = channel.map(MapMode.READ_ONLY, 0, size);
+            }
+            return new FileHandle(file, randomAccessFile, channel, size, mapping);
+        }
+        catch (final IOException e)
+        {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Marks a handle as evicted. Needs to be called while holding the lock on the handle map.
+     *
+     * @param handle
+     *            the handle
+     * @return {@code true} if the handle is not in use and can be closed immediately
+     */
+    protected boolean evict(final FileHandle handle)
+    {
+        handle.evicted = true;
+        return handle.references == 0;
+    }
+
+    /**
+     * Shared read-only handle of a file. Only position based operations may be used on its channel.
+     */
+    public static class FileHandle
+    {
+
+        private final File file;
+
+        private final RandomAccessFile randomAccessFile;
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private final ByteBuffer mapping;
+
+        private int references = 1;
+
+        private boolean evicted = false;
+
+        protected FileHandle(final File file, final RandomAccessFile randomAccessFile, final FileChannel channel, final long size,
+                final ByteBuffer mapping)
+        {
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.channel = channel;
+            this.size = size;
+            this.mapping = mapping;
+        }
+
+        /**
+         * @return the file
+         */
+        public File getFile()
+        {
+            return this.file;
+        }
+
+        /**
+         * @return the shared channel of the file
+         */
+        public FileChannel getChannel()
+        {
+            return this.channel;
+        }
+
+        /**
+         * @return the size of the file
+         */
+        public long getSize()
+        {
+            return this.size;
+        }
+
+        /**
+         * @return an independent read-only view of the memory-mapped file or {@code null} if the file has not been mapped
+         */
+        public ByteBuffer getMappedView()
+        {
+            return this.mapping != null ? this.mapping.asReadOnlyBuffer() : null;
+        }
+
+        protected void close()
+        {
+            try
+            {
+                this.randomAccessFile.close();
+            }
+            catch (final IOException e)
+            {
+                LOGGER.debug("Failed to close handle of " + this.file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.qname.QNameDAO;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Calculates fingerprints for content that has been stored before the {@link FingerprintPolicy} was active. A backfill pass is started by
+ * an administrator and pages through all nodes by their database ID, calculating fingerprints for any content property of a
+ * {@link ContentModel#TYPE_CONTENT cm:content} node that does not have the {@link ContentStoresModel#ASPECT_FINGERPRINT_DATA
+ * fingerprint aspect} yet. The nodes and content properties of a page are selected by a single query. Nodes created after the pass has
+ * been started are covered by the policy.
+ *
+ * A pass may also recalculate the fingerprints of all nodes, including those that already have fingerprints. This is needed once for
+ * fingerprints stored by versions that calculated digests from partially filled read buffers.
+ *
+ * The progress of a pass is checkpointed in the {@link AttributeService} after each page, so a pass interrupted by a restart (or running
+ * on another server of the cluster) is resumed by the next scheduled {@link #run() run} instead of starting over. The progress also
+ * includes counters and the active processing time of the pass to report throughput.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintBackfill extends AbstractFingerprintProcessor<FingerprintTarget>
+{
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_CANCELLED = "CANCELLED";
+
+    public static final String PROGRESS_STATUS = "status";
+    public static final String PROGRESS_RECALCULATE = "recalculate";
+    public static final String PROGRESS_START_TIME = "startTime";
+    public static final String PROGRESS_END_TIME = "endTime";
+    public static final String PROGRESS_LAST_UPDATE_TIME = "lastUpdateTime";
+    public static final String PROGRESS_ACTIVE_TIME = "activeTime";
+    public static final String PROGRESS_MIN_NODE_ID = "minNodeId";
+    public static final String PROGRESS_MAX_NODE_ID = "maxNodeId";
+    public static final String PROGRESS_NEXT_NODE_ID = "nextNodeId";
+    public static final String PROGRESS_PROCESSED_NODES = "processedNodes";
+    public static final String PROGRESS_FINGERPRINTED_PROPERTIES = "fingerprintedProperties";
+    public static final String PROGRESS_FAILED_PROPERTIES = "failedProperties";
+    public static final String PROGRESS_PERCENT_COMPLETE = "percentComplete";
+    public static final String PROGRESS_NODES_PER_SECOND = "nodesPerSecond";
+    public static final String PROGRESS_PROPERTIES_PER_SECOND = "propertiesPerSecond";
+
+    protected static final String ATTR_KEY_APPLICATION = ContentReferenceJournal.ATTR_KEY_APPLICATION;
+    protected static final String ATTR_KEY_FINGERPRINT_BACKFILL = "fingerprintBackfill";
+    protected static final String ATTR_KEY_PROGRESS = "progress";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FingerprintBackfill.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "FingerprintBackfill");
+
+    private static final long LOCK_TTL = 60000l;
+
+    // content data without a content URL has no content
+    private static final String TARGET_QUERY = "SELECT n.id, n.uuid, p.qname_id FROM alf_node n JOIN alf_store s ON s.id = n.store_id"
+            + " JOIN alf_node_properties p ON p.node_id = n.id JOIN alf_content_data cd ON cd.id = p.long_value"
+            + " WHERE n.id BETWEEN ? AND ? AND s.protocol = ? AND s.identifier = ? AND cd.content_url_id IS NOT NULL";
+
+    private static final String WITHOUT_ASPECT_CONDITION = " AND NOT EXISTS (SELECT 1 FROM alf_node_aspects a"
+            + " WHERE a.node_id = n.id AND a.qname_id = ?)";
+
+    private final AtomicInteger storeFailures = new AtomicInteger();
+
+    private NodeDAO nodeDAO;
+
+    private QNameDAO qnameDAO;
+
+    private DataSource dataSource;
+
+    private DictionaryService dictionaryService;
+
+    private AttributeService attributeService;
+
+    private int pageSize = 500;
+
+    private long pagePause = 100l;
+
+    /**
+     * @param nodeDAO
+     *            the nodeDAO to set
+     */
+    public void setNodeDAO(final NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    /**
+     * @param qnameDAO
+     *            the qnameDAO to set
+     */
+    public void setQnameDAO(final QNameDAO qnameDAO)
+    {
+        this.qnameDAO = qnameDAO;
+    }
+
+    /**
+     * @param dataSource
+     *            the data source to query nodes without fingerprints from
+     */
+    public void setDataSource(final DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param dictionaryService
+     *            the dictionaryService to set
+     */
+    public void setDictionaryService(final DictionaryService dictionaryService)
+    {
+        this.dictionaryService = dictionaryService;
+    }
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param pageSize
+     *            the number of node IDs to process and store in one transaction
+     */
+    public void setPageSize(final int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param pagePause
+     *            the time (in milliseconds) to pause between pages
+     */
+    public void setPagePause(final long pagePause)
+    {
+        this.pagePause = pagePause;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "nodeDAO", this.nodeDAO);
+        PropertyCheck.mandatory(this, "qnameDAO", this.qnameDAO);
+        PropertyCheck.mandatory(this, "dataSource", this.dataSource);
+        PropertyCheck.mandatory(this, "dictionaryService", this.dictionaryService);
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+    }
+
+    /**
+     * Starts a new backfill pass over all nodes currently in the repository without fingerprints, replacing any previous pass. Processing
+     * begins on a background thread right away.
+     */
+    public void start()
+    {
+        this.start(false);
+    }
+
+    /**
+     * Starts a new backfill pass over all nodes currently in the repository, replacing any previous pass. Processing begins on a background
+     * thread right away.
+     *
+     * @param recalculate
+     *            {@code true} if fingerprints of nodes that already have fingerprints should be recalculated, {@code false} if only nodes
+     *            without fingerprints should be processed
+     */
+    public void start(final boolean recalculate)
+    {
+        final Map<String, Serializable> progress = this.transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Map<String, Serializable>>()
+                {
+
+                    public Map<String, Serializable> execute() throws Throwable
+                    {
+                        return FingerprintBackfill.this.startPass(recalculate);
+                    }
+                }, false, true);
+        LOGGER.info("Started fingerprint backfill for node IDs {} to {} (recalculate: {})", new Object[] {
+                progress.get(PROGRESS_MIN_NODE_ID), progress.get(PROGRESS_MAX_NODE_ID), Boolean.valueOf(recalculate) });
+
+        final Thread thread = new Thread(new Runnable()
+        {
+
+            public void run()
+            {
+                FingerprintBackfill.this.run();
+            }
+        }, "FingerprintBackfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Cancels the current backfill pass. A run processing the pass stops after its current page.
+     *
+     * @return {@code true} if a pass has been cancelled, {@code false} if no pass was running
+     */
+    public boolean cancel()
+    {
+        final Boolean cancelled = this.transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Boolean>()
+                {
+
+                    public Boolean execute() throws Throwable
+                    {
+                        final Map<String, Serializable> progress = FingerprintBackfill.this.loadProgress();
+                        final boolean running = progress != null && STATUS_RUNNING.equals(progress.get(PROGRESS_STATUS));
+                        if (running)
+                        {
+                            progress.put(PROGRESS_STATUS, STATUS_CANCELLED);
+                            progress.put(PROGRESS_END_TIME, Long.valueOf(System.currentTimeMillis()));
+                            FingerprintBackfill.this.saveProgress(progress);
+                        }
+                        return Boolean.valueOf(running);
+                    }
+                }, false, true);
+
+        if (cancelled.booleanValue())
+        {
+            LOGGER.info("Cancelled fingerprint backfill");
+        }
+        return cancelled.booleanValue();
+    }
+
+    /**
+     * Retrieves the progress of the current or last backfill pass, including the throughput derived from it.
+     *
+     * @return the progress or {@code null} if no backfill pass has ever been started
+     */
+    public Map<String, Object> getStatus()
+    {
+        final Map<String, Serializable> progress = this.loadProgress();
+        Map<String, Object> status = null;
+        if (progress != null)
+        {
+            status = new HashMap<String, Object>(progress);
+
+            final long minNodeId = ((Long) progress.get(PROGRESS_MIN_NODE_ID)).longValue();
+            final long maxNodeId = ((Long) progress.get(PROGRESS_MAX_NODE_ID)).longValue();
+            final long nextNodeId = ((Long) progress.get(PROGRESS_NEXT_NODE_ID)).longValue();
+            final double completed = maxNodeId >= minNodeId ? (double) (nextNodeId - minNodeId) / (maxNodeId - minNodeId + 1) : 1;
+            status.put(PROGRESS_PERCENT_COMPLETE, Double.valueOf(Math.min(100, 100 * completed)));
+
+            final long activeTime = ((Long) progress.get(PROGRESS_ACTIVE_TIME)).longValue();
+            final double activeSeconds = Math.max(1, activeTime) / 1000d;
+            final long processedNodes = ((Long) progress.get(PROGRESS_PROCESSED_NODES)).longValue();
+            final long fingerprintedProperties = ((Long) progress.get(PROGRESS_FINGERPRINTED_PROPERTIES)).longValue();
+            status.put(PROGRESS_NODES_PER_SECOND, Double.valueOf(processedNodes / activeSeconds));
+            status.put(PROGRESS_PROPERTIES_PER_SECOND, Double.valueOf(fingerprintedProperties / activeSeconds));
+        }
+        return status;
+    }
+
+    /**
+     * Processes the current backfill pass until it is completed or cancelled, provided no other server in the cluster is currently
+     * processing it.
+     *
+     * @return the number of fingerprinted content properties in this run
+     */
+    public int run()
+    {
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Fingerprint backfill already running elsewhere");
+            return 0;
+        }
+
+        int fingerprinted = 0;
+        final ExecutorService executor = this.createExecutor();
+        try
+        {
+            fingerprinted = AuthenticationUtil.runAsSystem(new RunAsWork<Integer>()
+            {
+
+                public Integer doWork()
+                {
+                    return Integer.valueOf(FingerprintBackfill.this.processPages(lockToken, executor));
+                }
+            }).intValue();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+
+        return fingerprinted;
+    }
+
+    protected int processPages(final String lockToken, final ExecutorService executor)
+    {
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+        Map<String, Serializable> progress = txnHelper.doInTransaction(new RetryingTransactionCallback<Map<String, Serializable>>()
+        {
+
+            public Map<String, Serializable> execute() throws Throwable
+            {
+                return FingerprintBackfill.this.loadProgress();
+            }
+        }, true, true);
+
+        final long runStartTime = System.currentTimeMillis();
+        int runFingerprinted = 0;
+        try
+        {
+            long pageStartTime = runStartTime;
+            while (progress != null && STATUS_RUNNING.equals(progress.get(PROGRESS_STATUS)))
+            {
+                final Long passStartTime = (Long) progress.get(PROGRESS_START_TIME);
+                final boolean recalculate = Boolean.TRUE.equals(progress.get(PROGRESS_RECALCULATE));
+                final long fromNodeId = ((Long) progress.get(PROGRESS_NEXT_NODE_ID)).longValue();
+                final long toNodeId = Math.min(fromNodeId + this.pageSize - 1, ((Long) progress.get(PROGRESS_MAX_NODE_ID)).longValue());
+
+                final List<FingerprintTarget> targets = new ArrayList<FingerprintTarget>();
+                final int nodes = fromNodeId <= toNodeId ? txnHelper.doInTransaction(new RetryingTransactionCallback<Integer>()
+                {
+
+                    public Integer execute() throws Throwable
+                    {
+                        targets.clear();
+                        return Integer.valueOf(FingerprintBackfill.this.findTargets(fromNodeId, toNodeId, recalculate, targets));
+                    }
+                }, true, true).intValue() : 0;
+
+                int fingerprinted = 0;
+                int failed = 0;
+                if (!targets.isEmpty())
+                {
+                    final List<FingerprintResult<FingerprintTarget>> results = this.calculateFingerprints(targets, executor,
+                            new Runnable()
+                            {
+
+                                public void run()
+                                {
+                                    FingerprintBackfill.this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+                                }
+                            });
+                    this.storeFailures.set(0);
+                    this.storeFingerprints(results);
+
+                    // nodes deleted in the meantime have no fingerprints but are no failures either
+                    for (final FingerprintResult<FingerprintTarget> result : results)
+                    {
+                        if (result.isFailed())
+                        {
+                            failed++;
+                        }
+                        else if (result.getFingerprints() != null)
+                        {
+                            fingerprinted++;
+                        }
+                    }
+                    final int pageStoreFailures = this.storeFailures.getAndSet(0);
+                    fingerprinted -= pageStoreFailures;
+                    failed += pageStoreFailures;
+                }
+                runFingerprinted += fingerprinted;
+
+                final long pageEndTime = System.currentTimeMillis();
+                final int pageFingerprinted = fingerprinted;
+                final int pageFailed = failed;
+                final long pageActiveTime = pageEndTime - pageStartTime;
+                progress = txnHelper.doInTransaction(new RetryingTransactionCallback<Map<String, Serializable>>()
+                {
+
+                    public Map<String, Serializable> execute() throws Throwable
+                    {
+                        return FingerprintBackfill.this.updateProgress(passStartTime, toNodeId + 1, nodes, pageFingerprinted, pageFailed,
+                                pageActiveTime);
+                    }
+                }, false, true);
+                this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+
+                if (this.pagePause > 0)
+                {
+                    Thread.sleep(this.pagePause);
+                }
+                pageStartTime = System.currentTimeMillis();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (progress != null)
+        {
+            LOGGER.info("Fingerprinted {} content properties in {} ms - backfill is {} at node ID {} of {}", new Object[] {
+                    Integer.valueOf(runFingerprinted), Long.valueOf(System.currentTimeMillis() - runStartTime),
+                    progress.get(PROGRESS_STATUS), progress.get(PROGRESS_NEXT_NODE_ID), progress.get(PROGRESS_MAX_NODE_ID) });
+        }
+        return runFingerprinted;
+    }
+
+    /**
+     * Collects the content properties of nodes within a range of node IDs.
+     *
+     * @param fromNodeId
+     *            the first node ID (inclusive)
+     * @param toNodeId
+     *            the last node ID (inclusive)
+     * @param recalculate
+     *            {@code true} if content properties of nodes that already have fingerprints should be collected as well
+     * @param targets
+     *            the list to add the content properties to
+     * @return the number of nodes with content properties to fingerprint
+     */
+    protected int findTargets(final long fromNodeId, final long toNodeId, final boolean recalculate, final List<FingerprintTarget> targets)
+    {
+        final StringBuilder query = new StringBuilder(TARGET_QUERY);
+        final List<Object> parameters = new ArrayList<Object>();
+        parameters.add(Long.valueOf(fromNodeId));
+        parameters.add(Long.valueOf(toNodeId));
+        // should only act on the standard store (just like the policy)
+        parameters.add(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE.getProtocol());
+        parameters.add(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE.getIdentifier());
+
+        final Set<QName> types = new HashSet<QName>(this.dictionaryService.getSubTypes(ContentModel.TYPE_CONTENT, true));
+        types.add(ContentModel.TYPE_CONTENT);
+        final boolean hasTypes = this.appendQNameIds(query, " AND n.type_qname_id IN (", types, parameters);
+        final boolean hasProperties = this.appendQNameIds(query, " AND p.qname_id IN (",
+                this.dictionaryService.getAllProperties(DataTypeDefinition.CONTENT), parameters);
+
+        final Pair<Long, QName> aspectPair = this.qnameDAO.getQName(ContentStoresModel.ASPECT_FINGERPRINT_DATA);
+        if (!recalculate && aspectPair != null)
+        {
+            query.append(WITHOUT_ASPECT_CONDITION);
+            parameters.add(aspectPair.getFirst());
+        }
+        query.append(" ORDER BY n.id");
+
+        final Set<Long> nodeIds = new HashSet<Long>();
+        if (hasTypes && hasProperties)
+        {
+            final JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+            jdbcTemplate.query(query.toString(), parameters.toArray(), new RowCallbackHandler()
+            {
+
+                public void processRow(final ResultSet rs) throws SQLException
+                {
+                    final Pair<Long, QName> propertyPair = FingerprintBackfill.this.qnameDAO.getQName(Long.valueOf(rs.getLong(3)));
+                    nodeIds.add(Long.valueOf(rs.getLong(1)));
+                    targets.add(new FingerprintTarget(new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, rs.getString(2)), propertyPair
+                            .getSecond()));
+                }
+            });
+        }
+        return nodeIds.size();
+    }
+
+    /**
+     * Appends a condition on QName IDs to a query.
+     *
+     * @param query
+     *            the query to append to
+     * @param clause
+     *            the start of the condition up to and including the opening parenthesis of the list of IDs
+     * @param qnames
+     *            the QNames to append the IDs of
+     * @param parameters
+     *            the parameters of the query to add the IDs to
+     * @return {@code true} if the condition has been appended, {@code false} if none of the QNames has an ID
+     */
+    protected boolean appendQNameIds(final StringBuilder query, final String clause, final Collection<QName> qnames,
+            final List<Object> parameters)
+    {
+        boolean appended = false;
+        for (final QName qname : qnames)
+        {
+            // QNames without an ID are not used by any node
+            final Pair<Long, QName> qnamePair = this.qnameDAO.getQName(qname);
+            if (qnamePair != null)
+            {
+                query.append(appended ? ", " : clause).append('?');
+                parameters.add(qnamePair.getFirst());
+                appended = true;
+            }
+        }
+        if (appended)
+        {
+            query.append(')');
+        }
+        return appended;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void storeFingerprints(final FingerprintResult<FingerprintTarget> result)
+    {
+        if (result.getFingerprints() != null && this.nodeService.exists(result.getTarget().getNodeRef()))
+        {
+            if (this.isContentUnchanged(result))
+            {
+                this.updateFingerprints(result);
+            }
+            else
+            {
+                // the policy has taken care of the new content
+                LOGGER.debug("Content of {} has changed while its fingerprints were calculated", result.getTarget());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStoreFailure(final FingerprintResult<FingerprintTarget> result)
+    {
+        this.storeFailures.incrementAndGet();
+    }
+
+    protected Map<String, Serializable> startPass(final boolean recalculate)
+    {
+        final Long minNodeId = this.nodeDAO.getMinNodeId();
+        final Long maxNodeId = this.nodeDAO.getMaxNodeId();
+        final Long now = Long.valueOf(System.currentTimeMillis());
+        final Long zero = Long.valueOf(0);
+
+        final Map<String, Serializable> progress = new HashMap<String, Serializable>();
+        progress.put(PROGRESS_STATUS, STATUS_RUNNING);
+        progress.put(PROGRESS_RECALCULATE, Boolean.valueOf(recalculate));
+        progress.put(PROGRESS_START_TIME, now);
+        progress.put(PROGRESS_LAST_UPDATE_TIME, now);
+        progress.put(PROGRESS_ACTIVE_TIME, zero);
+        progress.put(PROGRESS_MIN_NODE_ID, minNodeId != null ? minNodeId : zero);
+        // an empty repository results in an empty range
+        progress.put(PROGRESS_MAX_NODE_ID, maxNodeId != null ? maxNodeId : Long.valueOf(-1));
+        progress.put(PROGRESS_NEXT_NODE_ID, minNodeId != null ? minNodeId : zero);
+        progress.put(PROGRESS_PROCESSED_NODES, zero);
+        progress.put(PROGRESS_FINGERPRINTED_PROPERTIES, zero);
+        progress.put(PROGRESS_FAILED_PROPERTIES, zero);
+        this.saveProgress(progress);
+        return progress;
+    }
+
+    protected Map<String, Serializable> updateProgress(final Long passStartTime, final long nextNodeId, final int nodes,
+            final int fingerprinted, final int failed, final long activeTime)
+    {
+        final Map<String, Serializable> progress = this.loadProgress();
+        // pass may have been cancelled or replaced by a new pass in the meantime
+        if (progress != null && STATUS_RUNNING.equals(progress.get(PROGRESS_STATUS))
+                && passStartTime.equals(progress.get(PROGRESS_START_TIME)))
+        {
+            final long now = System.currentTimeMillis();
+            progress.put(PROGRESS_NEXT_NODE_ID, Long.valueOf(nextNodeId));
+            progress.put(PROGRESS_LAST_UPDATE_TIME, Long.valueOf(now));
+            addToProgress(progress, PROGRESS_ACTIVE_TIME, activeTime);
+            addToProgress(progress, PROGRESS_PROCESSED_NODES, nodes);
+            addToProgress(progress, PROGRESS_FINGERPRINTED_PROPERTIES, fingerprinted);
+            addToProgress(progress, PROGRESS_FAILED_PROPERTIES, failed);
+
+            if (nextNodeId > ((Long) progress.get(PROGRESS_MAX_NODE_ID)).longValue())
+            {
+                progress.put(PROGRESS_STATUS, STATUS_COMPLETED);
+                progress.put(PROGRESS_END_TIME, Long.valueOf(now));
+                LOGGER.info("Completed fingerprint backfill - fingerprinted {} content properties of {} nodes",
+                        progress.get(PROGRESS_FINGERPRINTED_PROPERTIES), progress.get(PROGRESS_PROCESSED_NODES));
+            }
+            this.saveProgress(progress);
+        }
+        return progress;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Map<String, Serializable> loadProgress()
+    {
+        final Serializable progress = this.attributeService.getAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_BACKFILL,
+                ATTR_KEY_PROGRESS);
+        return progress instanceof Map<?, ?> ? new HashMap<String, Serializable>((Map<String, Serializable>) progress) : null;
+    }
+
+    protected void saveProgress(final Map<String, Serializable> progress)
+    {
+        this.attributeService.setAttribute(new HashMap<String, Serializable>(progress), ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_BACKFILL,
+                ATTR_KEY_PROGRESS);
+    }
+
+    protected static void addToProgress(final Map<String, Serializable> progress, final String key, final long delta)
+    {
+        final Serializable value = progress.get(key);
+        final long current = value instanceof Long ? ((Long) value).longValue() : 0;
+        progress.put(key, Long.valueOf(current + delta));
+    }
+}
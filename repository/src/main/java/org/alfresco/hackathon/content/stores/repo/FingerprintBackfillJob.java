@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job resuming the current pass of a {@link FingerprintBackfill} provided via the job data key {@code backfill}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintBackfillJob implements Job
+{
+
+    public static final String KEY_BACKFILL = "backfill";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object backfill = jobData.get(KEY_BACKFILL);
+        if (!(backfill instanceof FingerprintBackfill))
+        {
+            throw new AlfrescoRuntimeException("FingerprintBackfillJob data must contain a valid '" + KEY_BACKFILL + "' reference");
+        }
+
+        ((FingerprintBackfill) backfill).run();
+    }
+}
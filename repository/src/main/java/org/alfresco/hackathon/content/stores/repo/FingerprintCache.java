@@ -0,0 +1,395 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Cache of the fingerprint digests of content by content URL. Since content is never modified once it has been written, the digests
+ * of a content URL never change and the cache only needs to be cleaned up when content is {@link #removeDigests(String) deleted} -
+ * assigning already fingerprinted content to another node (e.g. a copy or version) only costs a lookup instead of reading the content.
+ *
+ * The least recently used entries are evicted from memory once the configured number of entries is exceeded, but all digests are persisted
+ * in the {@link AttributeService} and shared by the servers of a cluster. Digests are only persisted after the transaction adding them has
+ * committed, so concurrent transactions adding digests for the same content do not conflict with each other.
+ *
+ * Content URLs without persisted digests are remembered in memory for a limited time, so repeated lookups of content that has not been
+ * fingerprinted (yet) do not each cost a database query. Digests persisted by another server of a cluster in the meantime are only found
+ * once the miss has expired, which at worst causes the content to be read again.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintCache implements InitializingBean
+{
+
+    protected static final String ATTR_KEY_APPLICATION = ContentReferenceJournal.ATTR_KEY_APPLICATION;
+    protected static final String ATTR_KEY_FINGERPRINT_CACHE = "fingerprintCache";
+
+    private static final String TXN_KEY_DIGESTS = FingerprintCache.class.getName() + ".digests";
+
+    private static final String TXN_KEY_REMOVED_URLS = FingerprintCache.class.getName() + ".removedUrls";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FingerprintCache.class);
+
+    private AttributeService attributeService;
+
+    private TransactionService transactionService;
+
+    private int maxEntries = 10000;
+
+    private int maxMisses = 10000;
+
+    // 5 minutes
+    private long missTimeToLive = 5 * 60 * 1000l;
+
+    private Map<String, Map<String, String>> digestsByUrl;
+
+    private Map<String, Long> missTimesByUrl;
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximum number of content URLs to keep the digests of in memory
+     */
+    public void setMaxEntries(final int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param maxMisses
+     *            the maximum number of content URLs without digests to remember in memory
+     */
+    public void setMaxMisses(final int maxMisses)
+    {
+        this.maxMisses = maxMisses;
+    }
+
+    /**
+     * @param missTimeToLive
+     *            the time (in milliseconds) to remember a content URL without digests before looking it up again
+     */
+    public void setMissTimeToLive(final long missTimeToLive)
+    {
+        this.missTimeToLive = missTimeToLive;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+
+        this.digestsByUrl = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true)
+        {
+
+            private static final long serialVersionUID = 1l;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Map<String, String>> eldest)
+            {
+                return this.size() > FingerprintCache.this.maxEntries;
+            }
+        };
+
+        this.missTimesByUrl = new LinkedHashMap<String, Long>(16, 0.75f, true)
+        {
+
+            private static final long serialVersionUID = 1l;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest)
+            {
+                return this.size() > FingerprintCache.this.maxMisses;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the known digests of content.
+     *
+     * @param contentUrl
+     *            the content URL of the content
+     * @return the hex encoded digests mapped by their type (case insensitive) - empty if no digests are known
+     */
+    public Map<String, String> getDigests(final String contentUrl)
+    {
+        Map<String, String> digests;
+        synchronized (this.digestsByUrl)
+        {
+            digests = this.digestsByUrl.get(contentUrl);
+        }
+
+        if (digests == null && this.isKnownMiss(contentUrl))
+        {
+            digests = Collections.emptyMap();
+        }
+
+        if (digests == null)
+        {
+            digests = this.loadDigests(contentUrl);
+            if (!digests.isEmpty())
+            {
+                synchronized (this.digestsByUrl)
+                {
+                    this.digestsByUrl.put(contentUrl, digests);
+                }
+            }
+            else
+            {
+                synchronized (this.missTimesByUrl)
+                {
+                    this.missTimesByUrl.put(contentUrl, Long.valueOf(System.currentTimeMillis()));
+                }
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Adds digests of content. The digests are persisted after the current transaction has committed.
+     *
+     * @param contentUrl
+     *            the content URL of the content
+     * @param digests
+     *            the hex encoded digests mapped by their type
+     */
+    public void addDigests(final String contentUrl, final Map<String, String> digests)
+    {
+        synchronized (this.digestsByUrl)
+        {
+            this.digestsByUrl.put(contentUrl, merge(this.digestsByUrl.get(contentUrl), digests));
+        }
+        synchronized (this.missTimesByUrl)
+        {
+            this.missTimesByUrl.remove(contentUrl);
+        }
+
+        final Map<String, Map<String, String>> txnDigests = TransactionalResourceHelper.getMap(TXN_KEY_DIGESTS);
+        if (txnDigests.isEmpty())
+        {
+            AlfrescoTransactionSupport.bindListener(new PersistDigestsListener(txnDigests));
+        }
+        txnDigests.put(contentUrl, merge(txnDigests.get(contentUrl), digests));
+    }
+
+    /**
+     * Removes the digests of content that has been deleted. Since deleting content cannot be rolled back, the persisted digests are removed
+     * once the current transaction has completed - regardless of its outcome - or immediately if there is no current transaction.
+     *
+     * @param contentUrl
+     *            the content URL of the deleted content
+     */
+    public void removeDigests(final String contentUrl)
+    {
+        synchronized (this.digestsByUrl)
+        {
+            this.digestsByUrl.remove(contentUrl);
+        }
+        synchronized (this.missTimesByUrl)
+        {
+            this.missTimesByUrl.remove(contentUrl);
+        }
+
+        if (AlfrescoTransactionSupport.getTransactionId() != null)
+        {
+            final Set<String> txnRemovedUrls = TransactionalResourceHelper.getSet(TXN_KEY_REMOVED_URLS);
+            if (txnRemovedUrls.isEmpty())
+            {
+                AlfrescoTransactionSupport.bindListener(new RemoveDigestsListener(txnRemovedUrls));
+            }
+            txnRemovedUrls.add(contentUrl);
+        }
+        else
+        {
+            this.removePersistedDigests(Collections.singleton(contentUrl));
+        }
+    }
+
+    protected boolean isKnownMiss(final String contentUrl)
+    {
+        final boolean knownMiss;
+        synchronized (this.missTimesByUrl)
+        {
+            final Long missTime = this.missTimesByUrl.get(contentUrl);
+            knownMiss = missTime != null && System.currentTimeMillis() - missTime.longValue() < this.missTimeToLive;
+            if (missTime != null && !knownMiss)
+            {
+                this.missTimesByUrl.remove(contentUrl);
+            }
+        }
+        return knownMiss;
+    }
+
+    protected void removePersistedDigests(final Set<String> contentUrls)
+    {
+        try
+        {
+            this.transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+
+                public Void execute() throws Throwable
+                {
+                    for (final String contentUrl : contentUrls)
+                    {
+                        FingerprintCache.this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_CACHE,
+                                contentUrl);
+                    }
+                    return null;
+                }
+            }, false, true);
+        }
+        catch (final RuntimeException e)
+        {
+            // digests of deleted content are never looked up again, so they only take up space
+            LOGGER.warn("Failed to remove fingerprint digests of deleted content " + contentUrls, e);
+        }
+    }
+
+    protected Map<String, String> loadDigests(final String contentUrl)
+    {
+        final Serializable value = this.attributeService.getAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_CACHE, contentUrl);
+        final Map<String, String> digests;
+        if (value instanceof Map<?, ?>)
+        {
+            final Map<String, String> loadedDigests = new HashMap<String, String>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                loadedDigests.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+            digests = merge(null, loadedDigests);
+        }
+        else
+        {
+            digests = Collections.emptyMap();
+        }
+        return digests;
+    }
+
+    protected void persistDigests(final Map<String, Map<String, String>> digestsByUrl)
+    {
+        for (final Map.Entry<String, Map<String, String>> entry : digestsByUrl.entrySet())
+        {
+            final Map<String, String> digests = merge(this.loadDigests(entry.getKey()), entry.getValue());
+            // persisted with normalized types in a plain map
+            final HashMap<String, String> value = new HashMap<String, String>();
+            for (final Map.Entry<String, String> digest : digests.entrySet())
+            {
+                value.put(digest.getKey().toUpperCase(Locale.ENGLISH), digest.getValue());
+            }
+            this.attributeService.setAttribute(value, ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_CACHE, entry.getKey());
+        }
+    }
+
+    protected static Map<String, String> merge(final Map<String, String> existingDigests, final Map<String, String> digests)
+    {
+        final Map<String, String> mergedDigests = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        if (existingDigests != null)
+        {
+            mergedDigests.putAll(existingDigests);
+        }
+        mergedDigests.putAll(digests);
+        return Collections.unmodifiableMap(mergedDigests);
+    }
+
+    protected class PersistDigestsListener extends TransactionListenerAdapter
+    {
+
+        private final Map<String, Map<String, String>> digestsByUrl;
+
+        protected PersistDigestsListener(final Map<String, Map<String, String>> digestsByUrl)
+        {
+            this.digestsByUrl = digestsByUrl;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            final Map<String, Map<String, String>> digestsByUrl = new HashMap<String, Map<String, String>>(this.digestsByUrl);
+            try
+            {
+                FingerprintCache.this.transactionService.getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<Void>()
+                        {
+
+                            public Void execute() throws Throwable
+                            {
+                                FingerprintCache.this.persistDigests(digestsByUrl);
+                                return null;
+                            }
+                        }, false, true);
+            }
+            catch (final RuntimeException e)
+            {
+                // digests are only calculated again when the content is assigned to another node
+                LOGGER.warn("Failed to persist fingerprint digests of " + digestsByUrl.keySet(), e);
+            }
+        }
+    }
+
+    protected class RemoveDigestsListener extends TransactionListenerAdapter
+    {
+
+        private final Set<String> contentUrls;
+
+        protected RemoveDigestsListener(final Set<String> contentUrls)
+        {
+            this.contentUrls = contentUrls;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            FingerprintCache.this.removePersistedDigests(new HashSet<String>(this.contentUrls));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterRollback()
+        {
+            // the content has been deleted nonetheless
+            FingerprintCache.this.removePersistedDigests(new HashSet<String>(this.contentUrls));
+        }
+    }
+}
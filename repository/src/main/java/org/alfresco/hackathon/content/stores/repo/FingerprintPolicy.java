@@ -1,16 +1,24 @@
 package org.alfresco.hackathon.content.stores.repo;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
@@ -69,6 +77,8 @@ public class FingerprintPolicy implements OnContentPropertyUpdatePolicy, Initial
 
     private static Logger LOGGER = LoggerFactory.getLogger(FingerprintPolicy.class);
 
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
     private PolicyComponent policyComponent;
 
     private ContentService contentService;
@@ -77,6 +87,16 @@ public class FingerprintPolicy implements OnContentPropertyUpdatePolicy, Initial
 
     private List<String> digestTypes = Collections.emptyList();
 
+    private long parallelThreshold = 4 * 1024 * 1024;
+
+    private ExecutorService executor;
+
+    private boolean asynchronous;
+
+    private FingerprintQueue fingerprintQueue;
+
+    private FingerprintCache fingerprintCache;
+
     public void setPolicyComponent(final PolicyComponent policyComponent)
     {
         this.policyComponent = policyComponent;
@@ -112,11 +132,104 @@ public class FingerprintPolicy implements OnContentPropertyUpdatePolicy, Initial
         }
     }
 
+    /**
+     * @return the supported types of digests to calculate as fingerprints
+     */
+    public List<String> getDigestTypes()
+    {
+        return this.digestTypes;
+    }
+
+    /**
+     * @param parallelThreshold
+     *            the size from which on the digests of content are calculated on separate threads
+     */
+    public void setParallelThreshold(final long parallelThreshold)
+    {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @param executor
+     *            the executor to calculate digests of large content on - a default executor with one daemon thread per processor is
+     *            created if not set
+     */
+    public void setExecutor(final ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * @param asynchronous
+     *            {@code true} if fingerprints should be calculated outside of the transaction updating the content by a
+     *            {@link FingerprintQueueProcessor} - unless all digests are already known without reading the content
+     */
+    public void setAsynchronous(final boolean asynchronous)
+    {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * @param fingerprintQueue
+     *            the queue to add content to for asynchronous fingerprinting
+     */
+    public void setFingerprintQueue(final FingerprintQueue fingerprintQueue)
+    {
+        this.fingerprintQueue = fingerprintQueue;
+    }
+
+    /**
+     * @param fingerprintCache
+     *            the cache of digests by content URL - digests are always calculated from the content if not set
+     */
+    public void setFingerprintCache(final FingerprintCache fingerprintCache)
+    {
+        this.fingerprintCache = fingerprintCache;
+    }
+
     public void afterPropertiesSet()
     {
         PropertyCheck.mandatory(this, "nodeService", this.nodeService);
         PropertyCheck.mandatory(this, "contentService", this.contentService);
         PropertyCheck.mandatory(this, "policyComponent", this.policyComponent);
+        if (this.asynchronous)
+        {
+            PropertyCheck.mandatory(this, "fingerprintQueue", this.fingerprintQueue);
+        }
+
+        final List<String> supportedDigestTypes = new ArrayList<String>();
+        for (final String digestType : this.digestTypes)
+        {
+            if (DigestEngines.isSupported(digestType))
+            {
+                supportedDigestTypes.add(digestType);
+            }
+            else
+            {
+                LOGGER.error("Digest type {} is not available", digestType);
+            }
+        }
+        this.digestTypes = supportedDigestTypes;
+
+        if (this.executor == null)
+        {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                    {
+
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        public Thread newThread(final Runnable runnable)
+                        {
+                            final Thread thread = new Thread(runnable, "FingerprintPolicy-" + this.threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            this.executor = executor;
+        }
 
         this.policyComponent.bindClassBehaviour(OnContentPropertyUpdatePolicy.QNAME, ContentModel.TYPE_CONTENT, new JavaBehaviour(this,
                 "onContentPropertyUpdate", NotificationFrequency.EVERY_EVENT));
@@ -130,90 +243,232 @@ public class FingerprintPolicy implements OnContentPropertyUpdatePolicy, Initial
         // should only act on the standard store
         if (StoreRef.STORE_REF_WORKSPACE_SPACESSTORE.equals(nodeRef.getStoreRef()))
         {
-
-            final List<ContentFingerprint> fingerprints = new ArrayList<ContentFingerprint>();
-
-            if (this.nodeService.hasAspect(nodeRef, ContentStoresModel.ASPECT_FINGERPRINT_DATA))
+            final ContentReader reader = this.digestTypes.isEmpty() ? null : this.contentService.getReader(nodeRef, propertyQName);
+            if (this.asynchronous && reader != null && reader.exists()
+                    && this.lookupKnownDigests(reader.getContentUrl()).size() < this.digestTypes.size())
             {
-                // need to retrieve existing fingerprints and potentially invalidate some
-
-                final Serializable value = this.nodeService.getProperty(nodeRef, ContentStoresModel.PROP_FINGERPRINTS);
-                if (value instanceof List<?>)
+                // prints of the previous content are invalid even before the queue has been processed
+                this.updateFingerprints(nodeRef, propertyQName, Collections.<ContentFingerprint> emptyList());
+                this.fingerprintQueue.enqueue(nodeRef, propertyQName);
+                LOGGER.debug("Queued fingerprinting of {} for {}", nodeRef, propertyQName);
+            }
+            else
+            {
+                List<ContentFingerprint> fingerprints;
+                try
                 {
-                    for (final Object element : (List<?>) value)
-                    {
-                        if (element instanceof ContentFingerprint)
-                        {
-                            final ContentFingerprint existingPrint = (ContentFingerprint) element;
-
-                            // only prints for other properties remain valid
-                            if (!propertyQName.equals(existingPrint.getContentProperty()))
-                            {
-                                fingerprints.add(existingPrint);
-                            }
-                        }
-                    }
+                    fingerprints = this.calculateFingerprints(propertyQName, reader);
                 }
+                catch (final IOException e)
+                {
+                    LOGGER.error("Error calculating digest", e);
+                    fingerprints = Collections.emptyList();
+                }
+                this.updateFingerprints(nodeRef, propertyQName, fingerprints);
             }
+        }
+    }
+
+    /**
+     * Calculates the fingerprints of content. Digests that have already been calculated while the content was written in the current
+     * transaction or that are {@link FingerprintCache cached} for the content URL are re-used.
+     *
+     * @param propertyQName
+     *            the content property the content belongs to
+     * @param reader
+     *            the reader for the content - may be {@code null}
+     * @return the fingerprints - empty if there is no content
+     * @throws IOException
+     *             if the content could not be read
+     */
+    public List<ContentFingerprint> calculateFingerprints(final QName propertyQName, final ContentReader reader) throws IOException
+    {
+        final List<ContentFingerprint> fingerprints = new ArrayList<ContentFingerprint>();
+        if (!this.digestTypes.isEmpty() && reader != null && reader.exists())
+        {
+            final String contentUrl = reader.getContentUrl();
+            final Map<String, String> knownDigests = this.lookupKnownDigests(contentUrl);
 
+            final Map<String, String> digests = new LinkedHashMap<String, String>();
+            final List<String> missingDigestTypes = new ArrayList<String>();
             for (final String digestType : this.digestTypes)
             {
-                LOGGER.debug("Calculatng digest for type: {}", digestType);
-
-                MessageDigest digest = null;
-                try
+                final String digest = knownDigests.get(digestType);
+                digests.put(digestType, digest);
+                if (digest == null)
                 {
-                    digest = MessageDigest.getInstance(digestType);
+                    missingDigestTypes.add(digestType);
                 }
-                catch (final NoSuchAlgorithmException e1)
+            }
+
+            if (!missingDigestTypes.isEmpty())
+            {
+                LOGGER.debug("Calculating digests for types: {}", missingDigestTypes);
+                for (final Map.Entry<String, byte[]> digest : this.calculateDigests(reader, missingDigestTypes).entrySet())
                 {
-                    LOGGER.error("Digest type is not available", e1);
+                    digests.put(digest.getKey(), new String(Hex.encodeHex(digest.getValue())));
                 }
+            }
 
-                if (digest != null)
-                {
-                    final int BUF_SIZE = 10 << 8; // 10KiB buffer
-                    final byte[] buffer = new byte[BUF_SIZE];
+            // digests calculated now or while writing are needed again when the content is assigned to other nodes
+            if (this.fingerprintCache != null && !this.fingerprintCache.getDigests(contentUrl).entrySet().containsAll(digests.entrySet()))
+            {
+                this.fingerprintCache.addDigests(contentUrl, digests);
+            }
 
-                    final ContentReader reader = this.contentService.getReader(nodeRef, propertyQName);
-                    final InputStream originalInputStream = reader.getContentInputStream();
-                    try
+            for (final Map.Entry<String, String> digest : digests.entrySet())
+            {
+                fingerprints.add(new ContentFingerprint(propertyQName, digest.getKey(), digest.getValue()));
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Replaces the fingerprints of a content property of a node. Fingerprints of other content properties are retained.
+     *
+     * @param nodeRef
+     *            the node
+     * @param propertyQName
+     *            the content property
+     * @param propertyFingerprints
+     *            the fingerprints of the current content of the property
+     */
+    public void updateFingerprints(final NodeRef nodeRef, final QName propertyQName, final List<ContentFingerprint> propertyFingerprints)
+    {
+        final List<ContentFingerprint> fingerprints = new ArrayList<ContentFingerprint>();
+
+        final boolean hasFingerprints = this.nodeService.hasAspect(nodeRef, ContentStoresModel.ASPECT_FINGERPRINT_DATA);
+        if (hasFingerprints)
+        {
+            // need to retrieve existing fingerprints and potentially invalidate some
+
+            final Serializable value = this.nodeService.getProperty(nodeRef, ContentStoresModel.PROP_FINGERPRINTS);
+            if (value instanceof List<?>)
+            {
+                for (final Object element : (List<?>) value)
+                {
+                    if (element instanceof ContentFingerprint)
                     {
-                        while ((originalInputStream.read(buffer)) > -1)
+                        final ContentFingerprint existingPrint = (ContentFingerprint) element;
+
+                        // only prints for other properties remain valid
+                        if (!propertyQName.equals(existingPrint.getContentProperty()))
                         {
-                            digest.update(buffer);
+                            fingerprints.add(existingPrint);
                         }
                     }
-                    catch (final IOException e)
+                }
+            }
+        }
+
+        fingerprints.addAll(propertyFingerprints);
+
+        if (!fingerprints.isEmpty())
+        {
+            this.nodeService.addProperties(nodeRef,
+                    Collections.<QName, Serializable> singletonMap(ContentStoresModel.PROP_FINGERPRINTS, (Serializable) fingerprints));
+        }
+        else if (hasFingerprints)
+        {
+            this.nodeService.removeAspect(nodeRef, ContentStoresModel.ASPECT_FINGERPRINT_DATA);
+        }
+    }
+
+    /**
+     * Looks up the digests of content that are known without reading the content, i.e. digests calculated while the content was written
+     * in the current transaction or {@link FingerprintCache cached} digests.
+     *
+     * @param contentUrl
+     *            the content URL of the content
+     * @return the hex encoded digests of the configured types mapped by their type
+     */
+    protected Map<String, String> lookupKnownDigests(final String contentUrl)
+    {
+        final Map<String, String> cachedDigests = this.fingerprintCache != null ? this.fingerprintCache.getDigests(contentUrl) : Collections
+                .<String, String> emptyMap();
+
+        final Map<String, String> digests = new HashMap<String, String>();
+        for (final String digestType : this.digestTypes)
+        {
+            final byte[] writeTimeDigest = WriteTimeDigests.lookup(contentUrl, digestType);
+            final String digest = writeTimeDigest != null ? new String(Hex.encodeHex(writeTimeDigest)) : cachedDigests.get(digestType);
+            if (digest != null)
+            {
+                digests.put(digestType, digest);
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Calculates digests of content in a single pass. Large content is read ahead into a second buffer while the digests of
+     * the previous buffer are calculated on separate threads.
+     *
+     * @param reader
+     *            the reader for the content
+     * @param digestTypes
+     *            the types of digests to calculate
+     * @return the digests mapped by their type in the order of the types
+     * @throws IOException
+     *             if the content could not be read
+     */
+    protected Map<String, byte[]> calculateDigests(final ContentReader reader, final List<String> digestTypes) throws IOException
+    {
+        final boolean parallel = reader.getSize() >= this.parallelThreshold;
+
+        final MultiDigest digest;
+        try
+        {
+            digest = new MultiDigest(digestTypes, parallel ? this.executor : null);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            // checked in afterPropertiesSet
+            throw new AlfrescoRuntimeException("Digest type is not available", e);
+        }
+
+        try
+        {
+            final ByteBuffer[] buffers = new ByteBuffer[parallel ? 2 : 1];
+            for (int idx = 0; idx < buffers.length; idx++)
+            {
+                buffers[idx] = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+
+            final ReadableByteChannel channel = reader.getReadableChannel();
+            try
+            {
+                int bufferIdx = 0;
+                boolean eof = false;
+                while (!eof)
+                {
+                    final ByteBuffer buffer = buffers[bufferIdx];
+                    buffer.clear();
+                    while (buffer.hasRemaining() && !eof)
                     {
-                        LOGGER.error("Error calculating digest", e);
+                        eof = channel.read(buffer) == -1;
                     }
-                    finally
+                    buffer.flip();
+
+                    if (buffer.hasRemaining())
                     {
-                        try
-                        {
-                            originalInputStream.close();
-                        }
-                        catch (final IOException e)
-                        {
-                            LOGGER.warn("Failed to closed input stream", e);
-                        }
+                        // asynchronous if parallel, so the other buffer is filled meanwhile
+                        digest.update(buffer);
+                        bufferIdx = (bufferIdx + 1) % buffers.length;
                     }
-
-                    final String digestValue = new String(Hex.encodeHex(digest.digest()));
-                    fingerprints.add(new ContentFingerprint(propertyQName, digestType, digestValue));
                 }
             }
-
-            if (!fingerprints.isEmpty())
+            finally
             {
-                this.nodeService.addProperties(nodeRef,
-                        Collections.<QName, Serializable> singletonMap(ContentStoresModel.PROP_FINGERPRINTS, (Serializable) fingerprints));
-            }
-            else if (this.nodeService.hasAspect(nodeRef, ContentStoresModel.ASPECT_FINGERPRINT_DATA))
-            {
-                this.nodeService.removeAspect(nodeRef, ContentStoresModel.ASPECT_FINGERPRINT_DATA);
+                channel.close();
             }
+
+            return digest.digest();
+        }
+        finally
+        {
+            digest.release();
         }
     }
 }
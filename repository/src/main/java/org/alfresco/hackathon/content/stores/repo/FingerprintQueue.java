@@ -0,0 +1,295 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Persistent queue of node content properties whose fingerprints need to be calculated {@link FingerprintQueueProcessor asynchronously}.
+ * Entries are collected per transaction and only added to the queue (in the {@link AttributeService}) after the transaction has committed,
+ * so neither failed transactions leave entries behind nor does the queue add contention to the transactions of users. Each node property
+ * is queued at most once, no matter how often its content is updated before it is processed.
+ *
+ * Entries that fail to be processed can be {@link #retry(Entry) retried} a limited number of times. The delay before an entry is retrieved
+ * again doubles with each attempt, so temporary failures (e.g. of the database or content store) are overcome without the entry blocking
+ * the queue in the meantime.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintQueue implements InitializingBean
+{
+
+    protected static final String ATTR_KEY_APPLICATION = ContentReferenceJournal.ATTR_KEY_APPLICATION;
+    protected static final String ATTR_KEY_FINGERPRINT_QUEUE = "fingerprintQueue";
+    protected static final String ATTR_KEY_FINGERPRINT_QUEUE_ATTEMPTS = "fingerprintQueueAttempts";
+
+    private static final String TXN_KEY_ENTRIES = FingerprintQueue.class.getName() + ".entries";
+
+    private static final String KEY_SEPARATOR = "|";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FingerprintQueue.class);
+
+    private AttributeService attributeService;
+
+    private TransactionService transactionService;
+
+    private int maxRetries = 5;
+
+    // 1 minute
+    private long retryDelay = 60000l;
+
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param maxRetries
+     *            the maximum number of times processing of an entry is retried before the entry is dropped
+     */
+    public void setMaxRetries(final int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryDelay
+     *            the time (in milliseconds) before the first retry of an entry - doubled for each subsequent retry
+     */
+    public void setRetryDelay(final long retryDelay)
+    {
+        this.retryDelay = retryDelay;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+    }
+
+    /**
+     * Queues a node content property for fingerprinting once the current transaction has committed.
+     *
+     * @param nodeRef
+     *            the node
+     * @param propertyQName
+     *            the content property
+     */
+    public void enqueue(final NodeRef nodeRef, final QName propertyQName)
+    {
+        final Set<String> entries = TransactionalResourceHelper.getSet(TXN_KEY_ENTRIES);
+        if (entries.isEmpty())
+        {
+            AlfrescoTransactionSupport.bindListener(new EnqueueListener(entries));
+        }
+        entries.add(toKey(nodeRef, propertyQName));
+    }
+
+    /**
+     * Retrieves entries of the queue, skipping entries waiting for a retry.
+     *
+     * @param maxResults
+     *            the maximum number of entries to retrieve
+     * @return the entries
+     */
+    public List<Entry> getEntries(final int maxResults)
+    {
+        final long now = System.currentTimeMillis();
+        final List<Entry> entries = new ArrayList<Entry>();
+        this.attributeService.getAttributes(new AttributeQueryCallback()
+        {
+
+            public boolean handleAttribute(final Long id, final Serializable value, final Serializable[] keys)
+            {
+                // entries to be retried are queued with the time of their next attempt
+                final Entry entry = ((Long) value).longValue() <= now ? fromKey((String) keys[2], (Long) value) : null;
+                if (entry != null)
+                {
+                    entries.add(entry);
+                }
+                return entries.size() < maxResults;
+            }
+        }, ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE);
+        return entries;
+    }
+
+    /**
+     * Removes an entry from the queue unless the node content property has been queued again since the entry was retrieved.
+     *
+     * @param entry
+     *            the entry to remove
+     * @return {@code true} if the entry has been removed, {@code false} if it has been queued again
+     */
+    public boolean remove(final Entry entry)
+    {
+        final String key = toKey(entry.getNodeRef(), entry.getPropertyQName());
+        final Serializable queuedTime = this.attributeService.getAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE, key);
+        final boolean remove = queuedTime == null || queuedTime.equals(entry.getQueuedTime());
+        if (remove)
+        {
+            this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE, key);
+            this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE_ATTEMPTS, key);
+        }
+        return remove;
+    }
+
+    /**
+     * Schedules another attempt to process an entry that failed to be processed, unless the maximum number of retries has been reached.
+     *
+     * @param entry
+     *            the entry that failed to be processed
+     * @return the number of failed attempts if the entry has been dropped, {@code 0} if it remains queued (either for a retry or because
+     *         it has been queued again since it was retrieved)
+     */
+    public int retry(final Entry entry)
+    {
+        final String key = toKey(entry.getNodeRef(), entry.getPropertyQName());
+        final Serializable queuedTime = this.attributeService.getAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE, key);
+
+        int droppedAfterAttempts = 0;
+        if (queuedTime != null && queuedTime.equals(entry.getQueuedTime()))
+        {
+            final Serializable previousAttempts = this.attributeService.getAttribute(ATTR_KEY_APPLICATION,
+                    ATTR_KEY_FINGERPRINT_QUEUE_ATTEMPTS, key);
+            final int attempts = (previousAttempts instanceof Integer ? ((Integer) previousAttempts).intValue() : 0) + 1;
+            if (attempts > this.maxRetries)
+            {
+                this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE, key);
+                this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE_ATTEMPTS, key);
+                droppedAfterAttempts = attempts;
+            }
+            else
+            {
+                final long delay = this.retryDelay << Math.min(attempts - 1, 20);
+                this.attributeService.setAttribute(Integer.valueOf(attempts), ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE_ATTEMPTS,
+                        key);
+                this.attributeService.setAttribute(Long.valueOf(System.currentTimeMillis() + delay), ATTR_KEY_APPLICATION,
+                        ATTR_KEY_FINGERPRINT_QUEUE, key);
+            }
+        }
+        return droppedAfterAttempts;
+    }
+
+    protected void addEntries(final Set<String> entries)
+    {
+        final Long now = Long.valueOf(System.currentTimeMillis());
+        for (final String entry : entries)
+        {
+            // re-queueing an entry not yet processed only updates its time - new content gets a new set of attempts
+            this.attributeService.setAttribute(now, ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE, entry);
+            this.attributeService.removeAttribute(ATTR_KEY_APPLICATION, ATTR_KEY_FINGERPRINT_QUEUE_ATTEMPTS, entry);
+        }
+    }
+
+    protected static String toKey(final NodeRef nodeRef, final QName propertyQName)
+    {
+        return nodeRef.toString() + KEY_SEPARATOR + propertyQName.toString();
+    }
+
+    protected static Entry fromKey(final String key, final Long queuedTime)
+    {
+        final int separatorIdx = key.indexOf(KEY_SEPARATOR);
+        Entry entry = null;
+        if (separatorIdx > 0)
+        {
+            entry = new Entry(new NodeRef(key.substring(0, separatorIdx)), QName.createQName(key.substring(separatorIdx + 1)), queuedTime);
+        }
+        else
+        {
+            LOGGER.warn("Ignoring invalid fingerprint queue entry {}", key);
+        }
+        return entry;
+    }
+
+    /**
+     * A node content property in the queue.
+     *
+     * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+     */
+    public static class Entry extends FingerprintTarget
+    {
+
+        private final Long queuedTime;
+
+        protected Entry(final NodeRef nodeRef, final QName propertyQName, final Long queuedTime)
+        {
+            super(nodeRef, propertyQName);
+            this.queuedTime = queuedTime;
+        }
+
+        /**
+         * @return the time the node content property has (last) been queued
+         */
+        public Long getQueuedTime()
+        {
+            return this.queuedTime;
+        }
+    }
+
+    protected class EnqueueListener extends TransactionListenerAdapter
+    {
+
+        private final Set<String> entries;
+
+        protected EnqueueListener(final Set<String> entries)
+        {
+            this.entries = entries;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            final Set<String> entries = new HashSet<String>(this.entries);
+            try
+            {
+                FingerprintQueue.this.transactionService.getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<Void>()
+                        {
+
+                            public Void execute() throws Throwable
+                            {
+                                FingerprintQueue.this.addEntries(entries);
+                                return null;
+                            }
+                        }, false, true);
+            }
+            catch (final RuntimeException e)
+            {
+                // the fingerprint backfill picks up content without fingerprints
+                LOGGER.error("Failed to queue fingerprinting of " + entries, e);
+            }
+        }
+    }
+}
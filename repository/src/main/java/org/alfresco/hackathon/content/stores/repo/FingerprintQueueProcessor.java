@@ -0,0 +1,250 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains a {@link FingerprintQueue} filled by an {@link FingerprintPolicy#setAsynchronous(boolean) asynchronous} {@link FingerprintPolicy}
+ * in batches of entries.
+ *
+ * Fingerprints are only stored if the content of a node has not changed while they were calculated - otherwise the entry remains in the
+ * queue and the fingerprints are calculated again for the new content. Entries for which fingerprints could not be calculated or stored
+ * are {@link FingerprintQueue#retry(FingerprintQueue.Entry) retried} later and only dropped once the maximum number of retries has been
+ * reached.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintQueueProcessor extends AbstractFingerprintProcessor<FingerprintQueue.Entry>
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FingerprintQueueProcessor.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "FingerprintQueueProcessor");
+
+    private static final long LOCK_TTL = 60000l;
+
+    private FingerprintQueue fingerprintQueue;
+
+    private int batchSize = 50;
+
+    private int maxBatchesPerRun = 20;
+
+    private long batchPause = 1000l;
+
+    /**
+     * @param fingerprintQueue
+     *            the fingerprintQueue to set
+     */
+    public void setFingerprintQueue(final FingerprintQueue fingerprintQueue)
+    {
+        this.fingerprintQueue = fingerprintQueue;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of queue entries to process and store in one transaction
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxBatchesPerRun
+     *            the maximum number of batches to process in one run
+     */
+    public void setMaxBatchesPerRun(final int maxBatchesPerRun)
+    {
+        this.maxBatchesPerRun = maxBatchesPerRun;
+    }
+
+    /**
+     * @param batchPause
+     *            the time (in milliseconds) to pause between batches
+     */
+    public void setBatchPause(final long batchPause)
+    {
+        this.batchPause = batchPause;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        super.afterPropertiesSet();
+        PropertyCheck.mandatory(this, "fingerprintQueue", this.fingerprintQueue);
+    }
+
+    /**
+     * Processes entries of the queue, provided no other server in the cluster is currently processing it.
+     *
+     * @return the number of processed entries
+     */
+    public int process()
+    {
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Fingerprint queue already being processed elsewhere");
+            return 0;
+        }
+
+        int processed = 0;
+        final ExecutorService executor = this.createExecutor();
+        try
+        {
+            processed = AuthenticationUtil.runAsSystem(new RunAsWork<Integer>()
+            {
+
+                public Integer doWork()
+                {
+                    return Integer.valueOf(FingerprintQueueProcessor.this.processBatches(lockToken, executor));
+                }
+            }).intValue();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+
+        LOGGER.debug("Processed {} fingerprint queue entries", Integer.valueOf(processed));
+        return processed;
+    }
+
+    protected int processBatches(final String lockToken, final ExecutorService executor)
+    {
+        final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+
+        int processed = 0;
+        try
+        {
+            for (int batch = 0; batch < this.maxBatchesPerRun; batch++)
+            {
+                if (batch > 0 && this.batchPause > 0)
+                {
+                    Thread.sleep(this.batchPause);
+                }
+                this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+
+                final List<FingerprintQueue.Entry> entries = txnHelper.doInTransaction(
+                        new RetryingTransactionCallback<List<FingerprintQueue.Entry>>()
+                        {
+
+                            public List<FingerprintQueue.Entry> execute() throws Throwable
+                            {
+                                return FingerprintQueueProcessor.this.fingerprintQueue.getEntries(
+                                        FingerprintQueueProcessor.this.batchSize);
+                            }
+                        }, true, true);
+
+                if (entries.isEmpty())
+                {
+                    break;
+                }
+
+                final List<FingerprintResult<FingerprintQueue.Entry>> results = this.calculateFingerprints(entries, executor,
+                        new Runnable()
+                        {
+
+                            public void run()
+                            {
+                                FingerprintQueueProcessor.this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+                            }
+                        });
+                this.storeFingerprints(results);
+                processed += entries.size();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return processed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void storeFingerprints(final FingerprintResult<FingerprintQueue.Entry> result)
+    {
+        final FingerprintQueue.Entry entry = result.getTarget();
+        if (result.isFailed())
+        {
+            this.retry(entry);
+        }
+        else if (result.getFingerprints() == null || !this.nodeService.exists(entry.getNodeRef()))
+        {
+            LOGGER.debug("Dropping {} - node no longer exists", entry);
+            this.fingerprintQueue.remove(entry);
+        }
+        else if (!this.isContentUnchanged(result))
+        {
+            LOGGER.debug("Content of {} has changed while its fingerprints were calculated", entry);
+        }
+        else if (!this.fingerprintQueue.remove(entry))
+        {
+            LOGGER.debug("{} has been queued again while its fingerprints were calculated", entry);
+        }
+        else
+        {
+            this.updateFingerprints(result);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStoreFailure(final FingerprintResult<FingerprintQueue.Entry> result)
+    {
+        try
+        {
+            this.transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+
+                public Void execute() throws Throwable
+                {
+                    FingerprintQueueProcessor.this.retry(result.getTarget());
+                    return null;
+                }
+            }, false, true);
+        }
+        catch (final RuntimeException e)
+        {
+            // entry remains queued and is processed again
+            LOGGER.error("Failed to schedule retry of " + result.getTarget() + " in fingerprint queue", e);
+        }
+    }
+
+    protected void retry(final FingerprintQueue.Entry entry)
+    {
+        final int attempts = this.fingerprintQueue.retry(entry);
+        if (attempts > 0)
+        {
+            LOGGER.warn("Dropping {} from fingerprint queue after {} failed attempts - node remains without fingerprints", entry,
+                    Integer.valueOf(attempts));
+        }
+        else
+        {
+            LOGGER.debug("Scheduled retry of {}", entry);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering a run of a {@link FingerprintQueueProcessor} provided via the job data key {@code processor}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintQueueProcessorJob implements Job
+{
+
+    public static final String KEY_PROCESSOR = "processor";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object processor = jobData.get(KEY_PROCESSOR);
+        if (!(processor instanceof FingerprintQueueProcessor))
+        {
+            throw new AlfrescoRuntimeException("FingerprintQueueProcessorJob data must contain a valid '" + KEY_PROCESSOR + "' reference");
+        }
+
+        ((FingerprintQueueProcessor) processor).process();
+    }
+}
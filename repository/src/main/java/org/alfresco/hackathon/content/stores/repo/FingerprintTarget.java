@@ -0,0 +1,48 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * A content property of a node to calculate fingerprints for.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintTarget
+{
+
+    private final NodeRef nodeRef;
+
+    private final QName propertyQName;
+
+    public FingerprintTarget(final NodeRef nodeRef, final QName propertyQName)
+    {
+        this.nodeRef = nodeRef;
+        this.propertyQName = propertyQName;
+    }
+
+    /**
+     * @return the node
+     */
+    public NodeRef getNodeRef()
+    {
+        return this.nodeRef;
+    }
+
+    /**
+     * @return the content property
+     */
+    public QName getPropertyQName()
+    {
+        return this.propertyQName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.nodeRef + "|" + this.propertyQName;
+    }
+}
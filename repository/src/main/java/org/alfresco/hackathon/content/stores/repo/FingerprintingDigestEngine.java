@@ -0,0 +1,186 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Digest engine wrapper that additionally calculates the digests used as {@link ContentFingerprint content fingerprints} from the same
+ * bytes, so fingerprints of newly written content are available without reading the content again. If an executor is provided, the
+ * fingerprint digests of each buffer are calculated on another thread while the actual digest is calculated on the calling thread, so
+ * calculating fingerprints does not slow down the hashing stage of a write by the combined cost of all digests.
+ *
+ * An instance calculates a single digest, since the fingerprint digests can not be restarted once they have been completed. The engine is
+ * therefore not poolable and can not be {@link #reset() reset} - it must be released via
+ * {@link HashBasedFileContentStore#releaseDigestEngine(DigestEngine)} instead of {@link DigestEngines#release(DigestEngine)}, which
+ * releases both the fingerprint digests and the actual engine.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintingDigestEngine implements DigestEngine
+{
+
+    private final DigestEngine delegate;
+
+    private final MultiDigest fingerprintDigest;
+
+    private final Executor executor;
+
+    private Map<String, byte[]> fingerprintDigests;
+
+    /**
+     * Creates a new engine instance.
+     *
+     * @param delegate
+     *            the engine calculating the actual digest
+     * @param fingerprintDigest
+     *            the digests to calculate as fingerprints - must update digests on the calling thread
+     * @param executor
+     *            the executor to calculate the fingerprint digests on or {@code null} if they should be calculated on the calling thread -
+     *            tasks of the executor must not wait for other tasks of the executor
+     */
+    public FingerprintingDigestEngine(final DigestEngine delegate, final MultiDigest fingerprintDigest, final Executor executor)
+    {
+        this.delegate = delegate;
+        this.fingerprintDigest = fingerprintDigest;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the engine calculating the actual digest
+     */
+    public DigestEngine getDelegate()
+    {
+        return this.delegate;
+    }
+
+    /**
+     * @return the fingerprint digests mapped by their type or {@code null} if the {@link #digest() digest} has not been completed yet
+     */
+    public Map<String, byte[]> getFingerprintDigests()
+    {
+        return this.fingerprintDigests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithm()
+    {
+        return this.delegate.getAlgorithm();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDigestLength()
+    {
+        return this.delegate.getDigestLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final byte[] input, final int offset, final int length)
+    {
+        this.update(ByteBuffer.wrap(input, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final ByteBuffer input)
+    {
+        if (this.executor == null)
+        {
+            this.fingerprintDigest.update(input);
+            this.delegate.update(input);
+        }
+        else
+        {
+            final ByteBuffer view = input.duplicate();
+            final FutureTask<Void> fingerprintUpdate = new FutureTask<Void>(new Runnable()
+            {
+
+                public void run()
+                {
+                    FingerprintingDigestEngine.this.fingerprintDigest.update(view);
+                }
+            }, null);
+
+            try
+            {
+                this.executor.execute(fingerprintUpdate);
+            }
+            catch (final RejectedExecutionException e)
+            {
+                // executor has been shut down - hash on this thread instead
+                fingerprintUpdate.run();
+            }
+
+            try
+            {
+                this.delegate.update(input);
+            }
+            finally
+            {
+                // the caller may re-use the buffer as soon as this method returns
+                this.awaitFingerprintUpdate(fingerprintUpdate);
+            }
+        }
+    }
+
+    /**
+     * Completes the calculation of the actual digest and all fingerprint digests. The engines used for the fingerprint digests are
+     * released, so this engine can only calculate a single digest.
+     *
+     * @return the actual digest
+     */
+    public byte[] digest()
+    {
+        this.fingerprintDigests = this.fingerprintDigest.digest();
+        return this.delegate.digest();
+    }
+
+    /**
+     * Not supported since an instance only calculates a single digest.
+     *
+     * @throws UnsupportedOperationException
+     *             always - also prevents the instance from being returned to {@link DigestEngines}
+     */
+    public void reset()
+    {
+        throw new UnsupportedOperationException("Fingerprinting digest engines can not be reset or pooled");
+    }
+
+    /**
+     * Releases the engines used for the fingerprint digests, unless they have already been released by completing the {@link #digest()
+     * digest}. The actual engine is not released.
+     */
+    public void releaseFingerprintDigest()
+    {
+        this.fingerprintDigest.release();
+    }
+
+    protected void awaitFingerprintUpdate(final FutureTask<Void> fingerprintUpdate)
+    {
+        try
+        {
+            fingerprintUpdate.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for fingerprint digests to be updated", e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to update fingerprint digests", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Index of the frames of content compressed by a {@link FramedCompressor}, mapping positions in the uncompressed content to the
+ * independently compressed frames holding them. The file format is
+ *
+ * <pre>
+ * header:  int magic, int frameSize
+ * frames:  zlib stream of each frame of frameSize uncompressed bytes (the last frame may be shorter)
+ * index:   int frameCount, long uncompressedSize, int compressedLength per frame
+ * trailer: long indexOffset, int magic
+ * </pre>
+ *
+ * so content can be compressed in a single pass and the index is located via the fixed-size trailer.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FrameIndex
+{
+
+    // "DFR1"
+    protected static final int MAGIC = 0x44465231;
+
+    protected static final int HEADER_SIZE = 8;
+
+    protected static final int TRAILER_SIZE = 12;
+
+    private final int frameSize;
+
+    private int frameCount;
+
+    private long size;
+
+    // offsets of all frames in the compressed file plus the end of the last frame as last element
+    private long[] offsets;
+
+    /**
+     * Creates a new, empty index.
+     *
+     * @param frameSize
+     *            the number of uncompressed bytes per frame
+     */
+    public FrameIndex(final int frameSize)
+    {
+        this(frameSize, 16);
+    }
+
+    protected FrameIndex(final int frameSize, final int capacity)
+    {
+        this.frameSize = frameSize;
+        this.offsets = new long[capacity + 1];
+        this.offsets[0] = HEADER_SIZE;
+    }
+
+    /**
+     * Appends a frame to the index.
+     *
+     * @param uncompressedLength
+     *            the number of uncompressed bytes in the frame
+     * @param compressedLength
+     *            the number of compressed bytes of the frame
+     */
+    public void addFrame(final int uncompressedLength, final int compressedLength)
+    {
+        if (this.frameCount + 1 == this.offsets.length)
+        {
+            this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+        }
+        this.offsets[this.frameCount + 1] = this.offsets[this.frameCount] + compressedLength;
+        this.frameCount++;
+        this.size += uncompressedLength;
+    }
+
+    /**
+     * @return the number of uncompressed bytes per frame
+     */
+    public int getFrameSize()
+    {
+        return this.frameSize;
+    }
+
+    /**
+     * @return the number of frames
+     */
+    public int getFrameCount()
+    {
+        return this.frameCount;
+    }
+
+    /**
+     * @return the total size of the uncompressed content
+     */
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return the total size of the compressed frames
+     */
+    public long getCompressedSize()
+    {
+        return this.offsets[this.frameCount] - HEADER_SIZE;
+    }
+
+    /**
+     * @param index
+     *            the index of the frame
+     * @return the offset of the compressed frame within the file
+     */
+    public long getFrameOffset(final int index)
+    {
+        return this.offsets[index];
+    }
+
+    /**
+     * @param index
+     *            the index of the frame
+     * @return the number of compressed bytes of the frame
+     */
+    public int getCompressedFrameLength(final int index)
+    {
+        return (int) (this.offsets[index + 1] - this.offsets[index]);
+    }
+
+    /**
+     * @param index
+     *            the index of the frame
+     * @return the number of uncompressed bytes in the frame
+     */
+    public int getFrameLength(final int index)
+    {
+        return (int) Math.min(this.frameSize, this.size - (long) index * this.frameSize);
+    }
+
+    /**
+     * Finds the frame containing a specific position of the uncompressed content.
+     *
+     * @param position
+     *            the position within the uncompressed content
+     * @return the index of the frame or {@code -1} if the position is beyond the end of the content
+     */
+    public int findFrame(final long position)
+    {
+        return position >= 0 && position < this.size ? (int) (position / this.frameSize) : -1;
+    }
+
+    /**
+     * Writes the file header.
+     *
+     * @param os
+     *            the stream to write to
+     * @throws IOException
+     *             if the header cannot be written
+     */
+    public void writeHeader(final DataOutputStream os) throws IOException
+    {
+        os.writeInt(MAGIC);
+        os.writeInt(this.frameSize);
+    }
+
+    /**
+     * Writes the index and trailer after the last frame.
+     *
+     * @param os
+     *            the stream to write to
+     * @throws IOException
+     *             if the index cannot be written
+     */
+    public void writeIndex(final DataOutputStream os) throws IOException
+    {
+        os.writeInt(this.frameCount);
+        os.writeLong(this.size);
+        for (int idx = 0; idx < this.frameCount; idx++)
+        {
+            os.writeInt(this.getCompressedFrameLength(idx));
+        }
+        os.writeLong(this.offsets[this.frameCount]);
+        os.writeInt(MAGIC);
+    }
+
+    /**
+     * Reads the index of a compressed file.
+     *
+     * @param file
+     *            the compressed file
+     * @return the index
+     * @throws IOException
+     *             if the file cannot be read or is not a valid compressed file
+     */
+    public static FrameIndex read(final RandomAccessFile file) throws IOException
+    {
+        final long length = file.length();
+        if (length < HEADER_SIZE + TRAILER_SIZE)
+        {
+            throw new IOException("File is too short to be compressed content");
+        }
+
+        file.seek(0);
+        if (file.readInt() != MAGIC)
+        {
+            throw new IOException("File is not compressed content");
+        }
+        final int frameSize = file.readInt();
+
+        file.seek(length - TRAILER_SIZE);
+        final long indexOffset = file.readLong();
+        if (file.readInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > length - TRAILER_SIZE)
+        {
+            throw new IOException("Compressed content is truncated");
+        }
+
+        // the index is small enough to be read in one go
+        final byte[] indexBytes = new byte[(int) (length - TRAILER_SIZE - indexOffset)];
+        file.seek(indexOffset);
+        file.readFully(indexBytes);
+        final ByteBuffer indexBuffer = ByteBuffer.wrap(indexBytes);
+
+        final int frameCount = indexBuffer.getInt();
+        final long size = indexBuffer.getLong();
+        final FrameIndex index = new FrameIndex(frameSize, Math.max(1, frameCount));
+        for (int idx = 0; idx < frameCount; idx++)
+        {
+            index.addFrame(idx < frameCount - 1 ? frameSize : (int) (size - (long) idx * frameSize), indexBuffer.getInt());
+        }
+        return index;
+    }
+}
@@ -0,0 +1,122 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compresses content into independently deflated frames of a fixed uncompressed size, so that readers can seek by only inflating the frame
+ * containing the requested position. See {@link FrameIndex} for the file format.
+ *
+ * Compression is abandoned as soon as it becomes apparent that the content does not compress well enough to be worth the CPU cost on read.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FramedCompressor
+{
+
+    // amount of content after which the compression ratio is checked the first time
+    private static final long SAMPLE_SIZE = 1024 * 1024l;
+
+    private final int frameSize;
+
+    private final int level;
+
+    private final double maxRatio;
+
+    /**
+     * Creates a new compressor instance.
+     *
+     * @param frameSize
+     *            the number of uncompressed bytes per frame
+     * @param level
+     *            the {@link Deflater deflate} compression level
+     * @param maxRatio
+     *            the maximum ratio of compressed to uncompressed size for compression to be considered worthwhile
+     */
+    public FramedCompressor(final int frameSize, final int level, final double maxRatio)
+    {
+        if (frameSize <= 0)
+        {
+            throw new IllegalArgumentException("frameSize must be positive");
+        }
+        this.frameSize = frameSize;
+        this.level = level;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Compresses a file.
+     *
+     * @param source
+     *            the file to compress
+     * @param target
+     *            the file to write the compressed content to
+     * @return the index of the compressed content or {@code null} if the content does not compress well enough - the target file is left in
+     *         an undefined state in that case
+     * @throws IOException
+     *             if either file cannot be read or written
+     */
+    public FrameIndex compress(final File source, final File target) throws IOException
+    {
+        final FrameIndex index = new FrameIndex(this.frameSize);
+        final Deflater deflater = new Deflater(this.level);
+        final InputStream is = new FileInputStream(source);
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+        try
+        {
+            index.writeHeader(os);
+
+            final byte[] frame = new byte[this.frameSize];
+            final byte[] output = new byte[Math.max(4096, this.frameSize / 4)];
+            int frameLength;
+            while ((frameLength = IOUtils.read(is, frame)) > 0)
+            {
+                deflater.reset();
+                deflater.setInput(frame, 0, frameLength);
+                deflater.finish();
+
+                int compressedLength = 0;
+                while (!deflater.finished())
+                {
+                    final int deflated = deflater.deflate(output);
+                    os.write(output, 0, deflated);
+                    compressedLength += deflated;
+                }
+                index.addFrame(frameLength, compressedLength);
+
+                if (index.getSize() >= SAMPLE_SIZE && !this.isWorthwhile(index))
+                {
+                    return null;
+                }
+            }
+
+            if (!this.isWorthwhile(index))
+            {
+                return null;
+            }
+
+            index.writeIndex(os);
+        }
+        finally
+        {
+            deflater.end();
+            IOUtils.closeQuietly(is);
+            os.close();
+        }
+        return index;
+    }
+
+    protected boolean isWorthwhile(final FrameIndex index)
+    {
+        return index.getCompressedSize() + FrameIndex.HEADER_SIZE + FrameIndex.TRAILER_SIZE + 12 + 4l * index.getFrameCount() <= index
+                .getSize() * this.maxRatio;
+    }
+}
@@ -0,0 +1,617 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Deletes content files of a {@link HashBasedFileContentStore} that are not known to the database at all, e.g. content of rolled back
+ * transactions or of bulk ingestions that were never attached to nodes. Content URLs known to the database - including orphaned ones, which
+ * are left to Alfresco's own content store cleaner - are handled by the store itself.
+ *
+ * A run first marks all content URLs of the database by exporting their digests into one file per two character digest prefix, paging
+ * through the content URL table by its primary key. It then sweeps the prefixes on a number of worker threads: each worker sorts the
+ * exported digests of a prefix and streams the content files of the prefix on all volumes and the cold tier, looking up each file in the
+ * sorted digests. Unmarked content files that have not been written or re-used within a grace period are deleted in batches with pauses in
+ * between.
+ * Directories left empty are removed once at the end of the run instead of after each deleted file.
+ *
+ * Digests are compared by their leading 64 bits, so a collision can only cause an unreferenced file to survive, never a referenced file to
+ * be deleted.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class HashBasedContentStoreCleaner implements InitializingBean
+{
+
+    /**
+     * Name of the directory within the root directory that holds the exported digests during a run.
+     */
+    public static final String MARK_DIRECTORY_NAME = ".mark";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashBasedContentStoreCleaner.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "HashBasedContentStoreCleaner");
+
+    private static final long LOCK_TTL = 60000l;
+
+    private static final String CONTENT_URL_QUERY = "SELECT id, content_url FROM alf_content_url WHERE id > ? ORDER BY id";
+
+    // one file per digest prefix of two hex characters
+    private static final int PREFIX_COUNT = 256;
+
+    private HashBasedFileContentStore store;
+
+    private JobLockService jobLockService;
+
+    private DataSource dataSource;
+
+    // 1 day
+    private long gracePeriod = 24 * 60 * 60 * 1000l;
+
+    private int threadCount = 2;
+
+    private int exportPageSize = 10000;
+
+    private int batchSize = 100;
+
+    private long batchPause = 1000l;
+
+    /**
+     * @param store
+     *            the store to set
+     */
+    public void setStore(final HashBasedFileContentStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param dataSource
+     *            the data source of the Alfresco database
+     */
+    public void setDataSource(final DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param gracePeriod
+     *            the time (in milliseconds) since content has last been written or re-used before it may be deleted - must exceed the
+     *            duration of the longest transaction writing content
+     */
+    public void setGracePeriod(final long gracePeriod)
+    {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * @param threadCount
+     *            the number of digest prefixes to sweep in parallel
+     */
+    public void setThreadCount(final int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @param exportPageSize
+     *            the number of content URLs to read from the database in one query
+     */
+    public void setExportPageSize(final int exportPageSize)
+    {
+        this.exportPageSize = exportPageSize;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of content files a worker deletes before pausing
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param batchPause
+     *            the time (in milliseconds) a worker pauses between two batches
+     */
+    public void setBatchPause(final long batchPause)
+    {
+        this.batchPause = batchPause;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "store", this.store);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+        PropertyCheck.mandatory(this, "dataSource", this.dataSource);
+        if (this.threadCount < 1)
+        {
+            throw new AlfrescoRuntimeException("Thread count must be at least 1");
+        }
+    }
+
+    /**
+     * Runs a single mark and sweep, provided no other server in the cluster is currently running one.
+     *
+     * @return the number of deleted content files
+     */
+    public int clean()
+    {
+        if (this.store.isMigrationInProgress())
+        {
+            LOGGER.info("Not cleaning {} while content is being migrated", this.store);
+            return 0;
+        }
+
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Content store cleaning already running elsewhere");
+            return 0;
+        }
+
+        final File markDirectory = new File(this.store.getRootFile(), MARK_DIRECTORY_NAME);
+        try
+        {
+            // determined before marking so content written during the run is protected
+            final long modifiedBefore = System.currentTimeMillis() - this.gracePeriod;
+            final int digestLength = this.getDigestLength();
+
+            FileUtils.deleteQuietly(markDirectory);
+            if (!markDirectory.mkdirs())
+            {
+                throw new ContentIOException("Failed to create mark directory " + markDirectory);
+            }
+
+            final long marked = this.mark(lockToken, markDirectory);
+            LOGGER.debug("Marked {} content URLs", Long.valueOf(marked));
+
+            final ConcurrentMap<File, File> deletedFilesByDirectory = new ConcurrentHashMap<File, File>();
+            final int deleted = this.sweep(lockToken, markDirectory, digestLength, modifiedBefore, deletedFilesByDirectory);
+
+            for (final File deletedFile : deletedFilesByDirectory.values())
+            {
+                this.store.deleteEmptyParents(deletedFile);
+            }
+
+            LOGGER.info("Cleaned {} - marked {} content URLs and deleted {} unreferenced content files", new Object[] { this.store,
+                    Long.valueOf(marked), Integer.valueOf(deleted) });
+            return deleted;
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(markDirectory);
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+    }
+
+    /**
+     * Exports the digests of all content URLs of the database.
+     *
+     * @param lockToken
+     *            the token of the lock of the run
+     * @param markDirectory
+     *            the directory to export to
+     * @return the number of exported digests
+     */
+    protected long mark(final String lockToken, final File markDirectory)
+    {
+        final DataOutputStream[] outputs = new DataOutputStream[PREFIX_COUNT];
+        try
+        {
+            for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+            {
+                outputs[prefix] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.getMarkFile(markDirectory,
+                        prefix))));
+            }
+
+            final JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+            jdbcTemplate.setMaxRows(this.exportPageSize);
+            jdbcTemplate.setFetchSize(Math.min(this.exportPageSize, 1000));
+
+            final long[] state = new long[3];
+            // state[0] - last id, state[1] - rows of the current page, state[2] - exported digests
+            state[0] = -1;
+            do
+            {
+                state[1] = 0;
+                // paging by primary key since the content URL column is not indexed and not all drivers can stream large results
+                jdbcTemplate.query(CONTENT_URL_QUERY, new Object[] { Long.valueOf(state[0]) }, new RowCallbackHandler()
+                {
+
+                    public void processRow(final ResultSet rs) throws SQLException
+                    {
+                        state[0] = rs.getLong(1);
+                        state[1]++;
+                        if (HashBasedContentStoreCleaner.this.markContentUrl(rs.getString(2), outputs))
+                        {
+                            state[2]++;
+                        }
+                    }
+                });
+                this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+            }
+            while (state[1] >= this.exportPageSize);
+
+            for (final DataOutputStream output : outputs)
+            {
+                output.close();
+            }
+            return state[2];
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to export content URLs to " + markDirectory, e);
+        }
+        finally
+        {
+            for (final DataOutputStream output : outputs)
+            {
+                IOUtils.closeQuietly(output);
+            }
+        }
+    }
+
+    protected boolean markContentUrl(final String contentUrl, final DataOutputStream[] outputs) throws SQLException
+    {
+        boolean marked = false;
+        if (contentUrl != null && this.store.isHashBasedContentUrl(contentUrl))
+        {
+            final String digest = this.store.getDigest(contentUrl);
+            try
+            {
+                outputs[parsePrefix(digest)].writeLong(DigestIndex.toKey(digest));
+            }
+            catch (final IOException e)
+            {
+                throw new SQLException("Failed to export content URL " + contentUrl, e);
+            }
+            marked = true;
+        }
+        return marked;
+    }
+
+    protected int sweep(final String lockToken, final File markDirectory, final int digestLength, final long modifiedBefore,
+            final ConcurrentMap<File, File> deletedFilesByDirectory)
+    {
+        final List<File> rootDirectories = new ArrayList<File>(this.store.getVolumeRootFiles());
+        final File coldRootFile = this.store.getColdRootFile();
+        if (coldRootFile != null)
+        {
+            rootDirectories.add(coldRootFile);
+        }
+        final SortedSet<String> topLevelDirectoryNames = FanOutWalker.listFanOutDirectoryNames(rootDirectories);
+
+        final ExecutorService executor = this.createExecutor();
+        try
+        {
+            final CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+            for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+            {
+                final int currentPrefix = prefix;
+                completionService.submit(new Callable<Integer>()
+                {
+
+                    public Integer call() throws IOException
+                    {
+                        return Integer.valueOf(HashBasedContentStoreCleaner.this.sweepPrefix(currentPrefix, markDirectory,
+                                rootDirectories, topLevelDirectoryNames, digestLength, modifiedBefore, deletedFilesByDirectory));
+                    }
+                });
+            }
+
+            int deleted = 0;
+            for (int completed = 0; completed < PREFIX_COUNT;)
+            {
+                final Future<Integer> future = this.poll(completionService);
+                this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+                if (future != null)
+                {
+                    deleted += this.getResult(future).intValue();
+                    completed++;
+                }
+            }
+            return deleted;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sweeps all content files of a single digest prefix. Content files are streamed from the file system and checked against the sorted
+     * exported digests as they are visited, so memory use only depends on the number of content URLs of the prefix, not on the number of
+     * content files.
+     *
+     * @param prefix
+     *            the digest prefix of two hex characters
+     * @param markDirectory
+     *            the directory holding the exported digests
+     * @param rootDirectories
+     *            the root directories of all volumes and the cold tier
+     * @param topLevelDirectoryNames
+     *            the names of the top level fan-out directories of all root directories
+     * @param digestLength
+     *            the length of digests (in bytes) of content created by the store
+     * @param modifiedBefore
+     *            the time before which content must have been last written or re-used to be deleted
+     * @param deletedFilesByDirectory
+     *            the map to record one deleted file per directory in
+     * @return the number of deleted content files
+     * @throws IOException
+     *             if the exported digests cannot be read
+     */
+    protected int sweepPrefix(final int prefix, final File markDirectory, final List<File> rootDirectories,
+            final SortedSet<String> topLevelDirectoryNames, final int digestLength, final long modifiedBefore,
+            final ConcurrentMap<File, File> deletedFilesByDirectory) throws IOException
+    {
+        final long[] markedKeys = this.readMarkedKeys(this.getMarkFile(markDirectory, prefix));
+        Arrays.sort(markedKeys);
+
+        final int[] counts = new int[2];
+        // counts[0] - deleted content, counts[1] - deleted content of the current batch
+        this.walkContentFiles(String.format("%02X", Integer.valueOf(prefix)), rootDirectories, topLevelDirectoryNames, digestLength,
+                new FanOutWalker.ContentFileVisitor()
+                {
+
+                    public void visitContentFile(final File file, final String digest)
+                    {
+                        // a lookup instead of a merge join does not depend on the order in which files of several volumes are visited
+                        if (!Thread.currentThread().isInterrupted() && Arrays.binarySearch(markedKeys, DigestIndex.toKey(digest)) < 0
+                                && HashBasedContentStoreCleaner.this.sweepContent(digest, modifiedBefore, deletedFilesByDirectory))
+                        {
+                            counts[0]++;
+                            counts[1]++;
+                            if (counts[1] >= HashBasedContentStoreCleaner.this.batchSize)
+                            {
+                                counts[1] = 0;
+                                HashBasedContentStoreCleaner.this.pauseBatch();
+                            }
+                        }
+                    }
+                });
+        return counts[0];
+    }
+
+    /**
+     * Deletes unmarked content if it has not been written or re-used within the grace period.
+     *
+     * @param digest
+     *            the digest of the content
+     * @param modifiedBefore
+     *            the time before which content must have been last written or re-used to be deleted
+     * @param deletedFilesByDirectory
+     *            the map to record one deleted file per directory in
+     * @return {@code true} if the content has been deleted, {@code false} otherwise
+     */
+    protected boolean sweepContent(final String digest, final long modifiedBefore, final ConcurrentMap<File, File> deletedFilesByDirectory)
+    {
+        final String contentUrl = this.store.createContentUrl(digest);
+        final boolean deleted = !this.store.isModifiedSince(contentUrl, modifiedBefore) && this.store.delete(contentUrl, false);
+        if (deleted)
+        {
+            LOGGER.debug("Deleted unreferenced content {}", contentUrl);
+            // copies on other volumes are deleted as well, possibly before their directories are visited
+            for (final File file : this.store.makeCandidateFiles(contentUrl))
+            {
+                deletedFilesByDirectory.putIfAbsent(file.getParentFile(), file);
+            }
+        }
+        return deleted;
+    }
+
+    protected void pauseBatch()
+    {
+        if (this.batchPause > 0)
+        {
+            try
+            {
+                Thread.sleep(this.batchPause);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected void walkContentFiles(final String prefix, final List<File> rootDirectories, final SortedSet<String> topLevelDirectoryNames,
+            final int digestLength, final FanOutWalker.ContentFileVisitor visitor)
+    {
+        // with a fan-out width of one, a top level directory contains several prefixes, otherwise a prefix spans several directories
+        final FanOutWalker.DirectoryFilter filter = new FanOutWalker.DirectoryFilter()
+        {
+
+            public boolean accept(final String digestPrefix)
+            {
+                return startsWithIgnoreCase(digestPrefix, prefix) || startsWithIgnoreCase(prefix, digestPrefix);
+            }
+        };
+        final FanOutWalker.ContentFileVisitor prefixVisitor = new FanOutWalker.ContentFileVisitor()
+        {
+
+            public void visitContentFile(final File file, final String digest)
+            {
+                // never touch files not created by the store
+                if (startsWithIgnoreCase(digest, prefix) && ContentScrubber.isHexDigest(digest, digestLength))
+                {
+                    visitor.visitContentFile(file, digest);
+                }
+            }
+        };
+
+        for (final String topLevelDirectoryName : topLevelDirectoryNames)
+        {
+            if (filter.accept(topLevelDirectoryName))
+            {
+                for (final File rootDirectory : rootDirectories)
+                {
+                    final File topLevelDirectory = new File(rootDirectory, topLevelDirectoryName);
+                    if (topLevelDirectory.isDirectory())
+                    {
+                        FanOutWalker.walk(topLevelDirectory, topLevelDirectoryName, filter, prefixVisitor);
+                    }
+                }
+            }
+        }
+    }
+
+    protected long[] readMarkedKeys(final File markFile) throws IOException
+    {
+        final long[] keys = new long[(int) (markFile.length() / 8)];
+        final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(markFile)));
+        try
+        {
+            for (int idx = 0; idx < keys.length; idx++)
+            {
+                keys[idx] = is.readLong();
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+        return keys;
+    }
+
+    protected File getMarkFile(final File markDirectory, final int prefix)
+    {
+        return new File(markDirectory, String.format("%02X", Integer.valueOf(prefix)));
+    }
+
+    protected int getDigestLength()
+    {
+        final String messageDigestType = this.store.getMessageDigestType();
+        try
+        {
+            final DigestEngine engine = DigestEngines.acquire(messageDigestType);
+            try
+            {
+                return engine.getDigestLength();
+            }
+            finally
+            {
+                DigestEngines.release(engine);
+            }
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new AlfrescoRuntimeException("Message digest type " + messageDigestType + " is not supported", e);
+        }
+    }
+
+    protected Future<Integer> poll(final CompletionService<Integer> completionService)
+    {
+        try
+        {
+            // wakes up regularly to keep the lock alive while large prefixes are swept
+            return completionService.poll(LOCK_TTL / 4, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for swept digest prefixes", e);
+        }
+    }
+
+    protected Integer getResult(final Future<Integer> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for swept digest prefixes", e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to sweep digest prefix", e.getCause());
+        }
+    }
+
+    protected ExecutorService createExecutor()
+    {
+        return new ThreadPoolExecutor(this.threadCount, this.threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable, "HashBasedContentStoreCleaner-" + this.threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    protected static boolean startsWithIgnoreCase(final String str, final String prefix)
+    {
+        return str.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    protected static int parsePrefix(final String digest)
+    {
+        return (Character.digit(digest.charAt(0), 16) << 4) | Character.digit(digest.charAt(1), 16);
+    }
+}
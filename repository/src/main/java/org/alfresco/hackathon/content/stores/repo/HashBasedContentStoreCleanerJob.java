@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering a run of a {@link HashBasedContentStoreCleaner} provided via the job data key {@code cleaner}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class HashBasedContentStoreCleanerJob implements Job
+{
+
+    public static final String KEY_CLEANER = "cleaner";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object cleaner = jobData.get(KEY_CLEANER);
+        if (!(cleaner instanceof HashBasedContentStoreCleaner))
+        {
+            throw new AlfrescoRuntimeException("HashBasedContentStoreCleanerJob data must contain a valid '" + KEY_CLEANER + "' reference");
+        }
+
+        ((HashBasedContentStoreCleaner) cleaner).clean();
+    }
+}
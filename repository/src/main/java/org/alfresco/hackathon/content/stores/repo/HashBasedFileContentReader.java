@@ -0,0 +1,193 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.alfresco.repo.content.AbstractContentReader;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader for content files of a {@link HashBasedFileContentStore}. The reader provides a {@link SharedFileChannel} that shares the file
+ * handle with all other readers of the same content, supports position based reads, memory-mapping and zero-copy transfers.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class HashBasedFileContentReader extends AbstractContentReader implements StoredContentReader
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashBasedFileContentReader.class);
+
+    private final HashBasedFileContentStore store;
+
+    private final File file;
+
+    private final FileHandleCache handleCache;
+
+    /**
+     * Creates a new reader instance.
+     *
+     * @param store
+     *            the store that created this reader
+     * @param file
+     *            the content file
+     * @param contentUrl
+     *            the content URL
+     * @param handleCache
+     *            the cache of file handles to use
+     */
+    public HashBasedFileContentReader(final HashBasedFileContentStore store, final File file, final String contentUrl,
+            final FileHandleCache handleCache)
+    {
+        super(contentUrl);
+        this.store = store;
+        this.file = file;
+        this.handleCache = handleCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HashBasedFileContentStore getStore()
+    {
+        return this.store;
+    }
+
+    /**
+     * @return the content file
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean exists()
+    {
+        return this.file.exists();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLastModified()
+    {
+        return this.file.lastModified();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSize()
+    {
+        return this.file.length();
+    }
+
+    /**
+     * Transfers the content directly to a channel, avoiding copies of the content through the heap where supported by the operating
+     * system. This method is independent of the {@link #getReadableChannel() channel} of this reader and may be called any number of times.
+     *
+     * @param target
+     *            the channel to transfer the content to - the channel is not closed
+     * @return the number of bytes transferred
+     */
+    public long getContent(final WritableByteChannel target)
+    {
+        try
+        {
+            final SharedFileChannel channel = this.openChannel();
+            try
+            {
+                final long size = channel.size();
+                long transferred = 0;
+                while (transferred < size)
+                {
+                    final long count = channel.transferTo(transferred, size - transferred, target);
+                    if (count <= 0)
+                    {
+                        break;
+                    }
+                    transferred += count;
+                }
+                return transferred;
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to transfer content of " + this.file, e);
+        }
+    }
+
+    /**
+     * Transfers the content directly to a stream. Unlike {@link #getContent(OutputStream)}, the stream is not closed.
+     *
+     * @param os
+     *            the stream to transfer the content to
+     * @return the number of bytes transferred
+     */
+    public long transferContent(final OutputStream os)
+    {
+        return this.getContent(Channels.newChannel(os));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ContentReader createReader() throws ContentIOException
+    {
+        return new HashBasedFileContentReader(this.store, this.file, this.getContentUrl(), this.handleCache);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ReadableByteChannel getDirectReadableChannel() throws ContentIOException
+    {
+        if (!this.exists())
+        {
+            throw new ContentIOException("File does not exist: " + this.file);
+        }
+
+        try
+        {
+            final SharedFileChannel channel = this.openChannel();
+            LOGGER.debug("Opened read channel to file {}", this.file);
+            return channel;
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to open file channel: " + this, e);
+        }
+    }
+
+    protected SharedFileChannel openChannel() throws IOException
+    {
+        return new SharedFileChannel(this.handleCache, this.handleCache.acquire(this.file));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("HashBasedFileContentReader [contentUrl=").append(this.getContentUrl()).append(", file=").append(this.file)
+                .append("]");
+        return builder.toString();
+    }
+}
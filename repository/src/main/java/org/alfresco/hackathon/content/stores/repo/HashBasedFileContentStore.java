@@ -1,28 +1,59 @@
 package org.alfresco.hackathon.content.stores.repo;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.text.MessageFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.repo.content.AbstractContentStore;
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.ContentStoreCreatedEvent;
 import org.alfresco.repo.content.EmptyContentReader;
 import org.alfresco.repo.content.UnsupportedContentUrlException;
-import org.alfresco.repo.content.filestore.FileContentReader;
 import org.alfresco.repo.content.filestore.FileContentStore;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
-import org.alfresco.util.Deleter;
+import org.alfresco.service.cmr.repository.MimetypeService;
 import org.alfresco.util.Pair;
 import org.alfresco.util.ParameterCheck;
-import org.apache.commons.lang.StringUtils;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.ApplicationEvent;
@@ -32,57 +63,1987 @@ import org.springframework.context.event.ContextRefreshedEvent;
 /**
  * Implements a FileContentStore that uses a hash based storage structure to provide de-duplication.
  *
+ * Deleting content also removes the state derived from it - its entry in the {@link DigestIndex digest index} and its digests in the
+ * {@link FingerprintCache fingerprint cache}. This is done by {@link #delete(String) delete} instead of the jobs collecting orphaned
+ * content, since it is the only path all deletions pass through: Alfresco's own content store cleaner, the eager cleanup of content
+ * written in rolled back transactions and the collectors of this module all delete content via the store. Cached digests of deleted
+ * content would never be wrong, since a content URL is only ever re-used for identical content, but they would never be removed either.
+ *
  * @author Florian Maul (f.maul@fme.de)
  *
  */
 public class HashBasedFileContentStore extends AbstractContentStore implements ApplicationContextAware,
-        ApplicationListener<ApplicationEvent>
+        ApplicationListener<ApplicationEvent>, InitializingBean, DisposableBean
 {
 
-    private static final Logger logger = LoggerFactory.getLogger(HashBasedFileContentStore.class);
+    /**
+     * Name of the directory within the root directory of each volume that holds content while it is being written. Keeping it inside the
+     * root ensures it is on the same file system as the final content files, so that new content can be published with a single rename.
+     */
+    public static final String STAGING_DIRECTORY_NAME = ".staging";
+
+    /**
+     * Name of the file within the root directory that records the {@link FanOutLayout} all content has been stored in.
+     */
+    public static final String LAYOUT_FILE_NAME = ".layout";
+
+    /**
+     * Name of the file within the root directory that records the ids of the {@link ContentVolume volumes} all content has been
+     * distributed over.
+     */
+    public static final String VOLUMES_FILE_NAME = ".volumes";
+
+    /**
+     * Name of the file within the root directory that records the {@link DigestModes modes} content URLs of all content have been derived
+     * with.
+     */
+    public static final String DIGEST_MODES_FILE_NAME = ".digests";
+
+    /**
+     * Name of the directory within the root directory of each volume that holds content files which failed an integrity check.
+     */
+    public static final String QUARANTINE_DIRECTORY_NAME = ".quarantine";
+
+    private static final Logger logger = LoggerFactory.getLogger(HashBasedFileContentStore.class);
+
+    private String rootDirectory;
+
+    private File rootFile;
+
+    private File stagingDirectory;
+
+    private String additionalRootDirectories;
+
+    private ContentVolume primaryVolume;
+
+    private List<ContentVolume> volumes;
+
+    private List<File> volumeRootFiles;
+
+    private VolumeRing ring;
+
+    private final AtomicInteger nextStagingVolume = new AtomicInteger();
+
+    private String coldRootDirectory;
+
+    private ContentVolume coldVolume;
+
+    private int tieringPromotionThreshold = 4;
+
+    private int tieringPromotionQueueSize = 1000;
+
+    // 1 Mi counters per row - 4 MiB
+    private int accessSketchWidth = 1024 * 1024;
+
+    private AccessFrequencySketch accessSketch;
+
+    private ThreadPoolExecutor promotionExecutor;
+
+    private final Set<String> pendingPromotions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // 1 hour - other servers sharing the same root may still be writing younger staging files
+    private long stagingFileMaxAge = 60 * 60 * 1000l;
+
+    private String messageDigestType;
+
+    private boolean deleteEmptyDirs = true;
+
+    private int fanOutDepth = FanOutLayout.DEFAULT.getDepth();
+
+    private int fanOutWidth = FanOutLayout.DEFAULT.getWidth();
+
+    private boolean fanOutMigrationEnabled = true;
+
+    private int fanOutMigrationFilesPerSecond = 1000;
+
+    private FanOutLayout layout = FanOutLayout.DEFAULT;
+
+    private ContentLocator locator;
+
+    private DigestModes digestModes;
+
+    private FanOutLayoutMigrator layoutMigrator;
+
+    private boolean treeHashingEnabled = false;
+
+    // 4 MiB
+    private int treeHashLeafSize = 4 * 1024 * 1024;
+
+    private int treeHashMaxPendingLeaves = 4;
+
+    private ExecutorService treeHashExecutor;
+
+    private boolean treeHashExecutorOwned = false;
+
+    // 64 KiB
+    private int smallWriteThreshold = 64 * 1024;
+
+    private int smallWriteBufferPoolSize = 64;
+
+    private DirectBufferPool smallWriteBufferPool;
+
+    private boolean writePipelineEnabled = false;
+
+    // 256 KiB
+    private int writeBufferSize = 256 * 1024;
+
+    private int writeMaxBuffersInFlight = 4;
+
+    private int writeBufferPoolSize = 64;
+
+    private DirectBufferPool writeBufferPool;
+
+    private ExecutorService writePipelineExecutor;
+
+    private boolean writePipelineExecutorOwned = false;
+
+    private boolean chunkingEnabled = false;
+
+    // 16 KiB
+    private int chunkMinSize = 16 * 1024;
+
+    // 64 KiB
+    private int chunkAverageSize = 64 * 1024;
+
+    // 256 KiB
+    private int chunkMaxSize = 256 * 1024;
+
+    // 1 MiB
+    private long chunkingThreshold = 1024 * 1024l;
+
+    private ChunkStore chunkStore;
+
+    private boolean compressionEnabled = false;
+
+    // 4 KiB
+    private long compressionThreshold = 4 * 1024l;
+
+    // 64 KiB
+    private int compressionFrameSize = 64 * 1024;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private double compressionMaxRatio = 0.9;
+
+    // formats that are already compressed (e.g. images, media, archives and zip based office formats)
+    private List<String> compressionExcludedMimetypes = parseMimetypes("image/jpeg,image/png,image/gif,image/webp,video/*,audio/*,"
+            + "application/zip,application/x-zip-compressed,application/gzip,application/x-gzip,application/x-bzip2,"
+            + "application/x-7z-compressed,application/x-rar-compressed,application/x-xz,application/java-archive,application/pdf,"
+            + "application/epub+zip,application/vnd.openxmlformats-officedocument.*,application/vnd.oasis.opendocument.*");
+
+    private int readerHandleCacheSize = 256;
+
+    private long readerMappingMaxSize = 0;
+
+    private FileHandleCache handleCache;
+
+    private boolean digestIndexEnabled = false;
+
+    private long digestIndexExpectedSize = 10000000l;
+
+    private boolean digestIndexExclusiveAccess = false;
+
+    private DigestIndex digestIndex;
+
+    private ContentReferenceJournal referenceJournal;
+
+    private FingerprintCache fingerprintCache;
+
+    private ContentStoreMetrics metrics;
+
+    private int bulkIngestThreads = Runtime.getRuntime().availableProcessors();
+
+    private int bulkIngestBatchSize = 100;
+
+    private MimetypeService mimetypeService;
+
+    private FingerprintPolicy fingerprintPolicy;
+
+    private ExecutorService fingerprintExecutor;
+
+    private boolean fingerprintExecutorOwned = false;
+
+    private final boolean readOnly = false;
+
+    private ApplicationContext applicationContext;
+
+    public void setRootDirectory(final String rootDirectory)
+    {
+        this.rootDirectory = rootDirectory;
+    }
+
+    public void setMessageDigestType(final String messageDigestType)
+    {
+        this.messageDigestType = messageDigestType;
+    }
+
+    public void setApplicationContext(final ApplicationContext applicationContext) throws BeansException
+    {
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * @param stagingFileMaxAge
+     *            the age (in milliseconds) after which left-over staging files are considered abandoned and removed on startup
+     */
+    public void setStagingFileMaxAge(final long stagingFileMaxAge)
+    {
+        this.stagingFileMaxAge = stagingFileMaxAge;
+    }
+
+    /**
+     * @param additionalRootDirectories
+     *            the comma-separated list of root directories of additional volumes (e.g. separate disks) to distribute content over
+     *            together with the {@link #setRootDirectory(String) root directory} - adding a volume moves the share of existing content
+     *            taken over by the new volume in the background, removing a volume is not supported
+     */
+    public void setAdditionalRootDirectories(final String additionalRootDirectories)
+    {
+        this.additionalRootDirectories = additionalRootDirectories;
+    }
+
+    /**
+     * @param coldRootDirectory
+     *            the root directory of a cold tier (e.g. a large HDD or NAS volume) that rarely read content is moved to by a
+     *            {@link ContentTierManager} - all other volumes then form the hot tier which new content is always written to
+     */
+    public void setColdRootDirectory(final String coldRootDirectory)
+    {
+        this.coldRootDirectory = coldRootDirectory;
+    }
+
+    /**
+     * @param tieringPromotionThreshold
+     *            the number of recent reads after which content is moved back from the cold tier to the hot tier
+     */
+    public void setTieringPromotionThreshold(final int tieringPromotionThreshold)
+    {
+        this.tieringPromotionThreshold = tieringPromotionThreshold;
+    }
+
+    /**
+     * @param tieringPromotionQueueSize
+     *            the maximum number of content files waiting to be moved back to the hot tier - further promotions are skipped until the
+     *            content is read again
+     */
+    public void setTieringPromotionQueueSize(final int tieringPromotionQueueSize)
+    {
+        this.tieringPromotionQueueSize = tieringPromotionQueueSize;
+    }
+
+    /**
+     * @param accessSketchWidth
+     *            the number of counters per row of the {@link AccessFrequencySketch sketch} used to track reads when a cold tier is
+     *            configured - this should be in the order of the number of distinct content read within the period that reads should be
+     *            remembered for
+     */
+    public void setAccessSketchWidth(final int accessSketchWidth)
+    {
+        this.accessSketchWidth = accessSketchWidth;
+    }
+
+    /**
+     * @param fanOutDepth
+     *            the number of directory levels used to distribute content files
+     */
+    public void setFanOutDepth(final int fanOutDepth)
+    {
+        this.fanOutDepth = fanOutDepth;
+    }
+
+    /**
+     * @param fanOutWidth
+     *            the number of digest characters used for the name of the directory on each level
+     */
+    public void setFanOutWidth(final int fanOutWidth)
+    {
+        this.fanOutWidth = fanOutWidth;
+    }
+
+    /**
+     * @param fanOutMigrationEnabled
+     *            {@code true} if existing content should be moved in the background after the fan-out layout has been changed
+     */
+    public void setFanOutMigrationEnabled(final boolean fanOutMigrationEnabled)
+    {
+        this.fanOutMigrationEnabled = fanOutMigrationEnabled;
+    }
+
+    /**
+     * @param fanOutMigrationFilesPerSecond
+     *            the maximum number of files to move per second when migrating to a new fan-out layout or {@code 0} for no limit
+     */
+    public void setFanOutMigrationFilesPerSecond(final int fanOutMigrationFilesPerSecond)
+    {
+        this.fanOutMigrationFilesPerSecond = fanOutMigrationFilesPerSecond;
+    }
+
+    /**
+     * @param treeHashingEnabled
+     *            {@code true} if content URLs should be based on a {@link TreeDigestEngine tree digest} that allows leaves of large content
+     *            to be hashed in parallel - changing this setting changes the digests of all new content, so existing content will not be
+     *            de-duplicated with new content
+     */
+    public void setTreeHashingEnabled(final boolean treeHashingEnabled)
+    {
+        this.treeHashingEnabled = treeHashingEnabled;
+    }
+
+    /**
+     * @param treeHashLeafSize
+     *            the size (in bytes) of the leaves of the tree digest - changing this setting has the same effect as changing
+     *            {@link #setTreeHashingEnabled(boolean) treeHashingEnabled}
+     */
+    public void setTreeHashLeafSize(final int treeHashLeafSize)
+    {
+        this.treeHashLeafSize = treeHashLeafSize;
+    }
+
+    /**
+     * @param treeHashMaxPendingLeaves
+     *            the maximum number of leaves per write that may be buffered while waiting to be hashed
+     */
+    public void setTreeHashMaxPendingLeaves(final int treeHashMaxPendingLeaves)
+    {
+        this.treeHashMaxPendingLeaves = treeHashMaxPendingLeaves;
+    }
+
+    /**
+     * @param treeHashExecutor
+     *            the executor to hash leaves of tree digests with - if not set, the store uses its own executor with one thread per
+     *            processor
+     */
+    public void setTreeHashExecutor(final ExecutorService treeHashExecutor)
+    {
+        this.treeHashExecutor = treeHashExecutor;
+    }
+
+    /**
+     * @param smallWriteThreshold
+     *            the maximum size (in bytes) of content to keep in memory while it is written, so that it can be published without a
+     *            staging file or not be written at all if it already exists - {@code 0} to always use a staging file
+     */
+    public void setSmallWriteThreshold(final int smallWriteThreshold)
+    {
+        this.smallWriteThreshold = smallWriteThreshold;
+    }
+
+    /**
+     * @param smallWriteBufferPoolSize
+     *            the maximum number of unused small write buffers to keep for re-use
+     */
+    public void setSmallWriteBufferPoolSize(final int smallWriteBufferPoolSize)
+    {
+        this.smallWriteBufferPoolSize = smallWriteBufferPoolSize;
+    }
+
+    /**
+     * @param writePipelineEnabled
+     *            {@code true} if new content should be hashed on a separate thread while it is being written to disk
+     */
+    public void setWritePipelineEnabled(final boolean writePipelineEnabled)
+    {
+        this.writePipelineEnabled = writePipelineEnabled;
+    }
+
+    /**
+     * @param writeBufferSize
+     *            the size (in bytes) of the direct buffers passed through the write pipeline
+     */
+    public void setWriteBufferSize(final int writeBufferSize)
+    {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    /**
+     * @param writeMaxBuffersInFlight
+     *            the maximum number of buffers per write that may be waiting to be written or hashed before further writes block
+     */
+    public void setWriteMaxBuffersInFlight(final int writeMaxBuffersInFlight)
+    {
+        this.writeMaxBuffersInFlight = writeMaxBuffersInFlight;
+    }
+
+    /**
+     * @param writeBufferPoolSize
+     *            the maximum number of unused write buffers to keep for re-use
+     */
+    public void setWriteBufferPoolSize(final int writeBufferPoolSize)
+    {
+        this.writeBufferPoolSize = writeBufferPoolSize;
+    }
+
+    /**
+     * @param writePipelineExecutor
+     *            the executor to hash written content with - if not set, the store uses its own executor with one thread per processor
+     */
+    public void setWritePipelineExecutor(final ExecutorService writePipelineExecutor)
+    {
+        this.writePipelineExecutor = writePipelineExecutor;
+    }
+
+    /**
+     * @param chunkingEnabled
+     *            {@code true} if new content exceeding the {@link #setChunkingThreshold(long) chunking threshold} should be split into
+     *            content-defined chunks, so that chunks shared between different content (e.g. versions of a document) are only stored once
+     */
+    public void setChunkingEnabled(final boolean chunkingEnabled)
+    {
+        this.chunkingEnabled = chunkingEnabled;
+    }
+
+    /**
+     * @param chunkMinSize
+     *            the minimum size (in bytes) of a chunk
+     */
+    public void setChunkMinSize(final int chunkMinSize)
+    {
+        this.chunkMinSize = chunkMinSize;
+    }
+
+    /**
+     * @param chunkAverageSize
+     *            the targeted average size (in bytes) of a chunk
+     */
+    public void setChunkAverageSize(final int chunkAverageSize)
+    {
+        this.chunkAverageSize = chunkAverageSize;
+    }
+
+    /**
+     * @param chunkMaxSize
+     *            the maximum size (in bytes) of a chunk
+     */
+    public void setChunkMaxSize(final int chunkMaxSize)
+    {
+        this.chunkMaxSize = chunkMaxSize;
+    }
+
+    /**
+     * @param chunkingThreshold
+     *            the minimum size (in bytes) of content to be split into chunks
+     */
+    public void setChunkingThreshold(final long chunkingThreshold)
+    {
+        this.chunkingThreshold = chunkingThreshold;
+    }
+
+    /**
+     * @param compressionEnabled
+     *            {@code true} if new content should be stored compressed unless it is of an
+     *            {@link #setCompressionExcludedMimetypes(String) excluded mimetype} or does not compress well - chunked content is never
+     *            compressed
+     */
+    public void setCompressionEnabled(final boolean compressionEnabled)
+    {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * @param compressionThreshold
+     *            the minimum size (in bytes) of content to be stored compressed
+     */
+    public void setCompressionThreshold(final long compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @param compressionFrameSize
+     *            the number of uncompressed bytes per independently compressed frame, i.e. the maximum amount of content that needs to be
+     *            decompressed for a random access read
+     */
+    public void setCompressionFrameSize(final int compressionFrameSize)
+    {
+        this.compressionFrameSize = compressionFrameSize;
+    }
+
+    /**
+     * @param compressionLevel
+     *            the deflate compression level (1-9 or -1 for the default level)
+     */
+    public void setCompressionLevel(final int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param compressionMaxRatio
+     *            the maximum ratio of compressed to uncompressed size for content to be stored compressed
+     */
+    public void setCompressionMaxRatio(final double compressionMaxRatio)
+    {
+        this.compressionMaxRatio = compressionMaxRatio;
+    }
+
+    /**
+     * @param compressionExcludedMimetypes
+     *            the comma-separated list of mimetypes of content that should never be stored compressed - a trailing {@code *} matches
+     *            any mimetype with the preceding prefix
+     */
+    public void setCompressionExcludedMimetypes(final String compressionExcludedMimetypes)
+    {
+        this.compressionExcludedMimetypes = parseMimetypes(compressionExcludedMimetypes);
+    }
+
+    /**
+     * @param readerHandleCacheSize
+     *            the number of content file handles to keep open for sharing between readers - {@code 0} to open a new handle for each
+     *            reader
+     */
+    public void setReaderHandleCacheSize(final int readerHandleCacheSize)
+    {
+        this.readerHandleCacheSize = readerHandleCacheSize;
+    }
+
+    /**
+     * @param readerMappingMaxSize
+     *            the maximum size (in bytes) of content files to memory-map when they are opened for reading - {@code 0} to not map any
+     *            files (mappings are only released on garbage collection, so this should not be used on platforms that cannot delete
+     *            mapped files)
+     */
+    public void setReaderMappingMaxSize(final long readerMappingMaxSize)
+    {
+        this.readerMappingMaxSize = readerMappingMaxSize;
+    }
+
+    /**
+     * @param digestIndexEnabled
+     *            {@code true} if existence checks should be answered from an in-memory index of stored digests - content deleted by other
+     *            servers sharing the root directory is still reported as existing until it is read
+     */
+    public void setDigestIndexEnabled(final boolean digestIndexEnabled)
+    {
+        this.digestIndexEnabled = digestIndexEnabled;
+    }
+
+    /**
+     * @param digestIndexExpectedSize
+     *            the number of content files the digest index should initially be sized for
+     */
+    public void setDigestIndexExpectedSize(final long digestIndexExpectedSize)
+    {
+        this.digestIndexExpectedSize = digestIndexExpectedSize;
+    }
+
+    /**
+     * @param digestIndexExclusiveAccess
+     *            {@code true} if this server is the only one writing to the root directory so that content not found in the digest index is
+     *            known not to exist, {@code false} (default) if the file system needs to be checked in that case (e.g. in a cluster or if
+     *            other processes add content files)
+     */
+    public void setDigestIndexExclusiveAccess(final boolean digestIndexExclusiveAccess)
+    {
+        this.digestIndexExclusiveAccess = digestIndexExclusiveAccess;
+    }
+
+    /**
+     * @param referenceJournal
+     *            the journal of references to content of this store - if set, referenced content is protected from deletion
+     */
+    public void setReferenceJournal(final ContentReferenceJournal referenceJournal)
+    {
+        this.referenceJournal = referenceJournal;
+    }
+
+    /**
+     * @param fingerprintCache
+     *            the cache of fingerprint digests of content - if set, the digests of deleted content are removed from it
+     */
+    public void setFingerprintCache(final FingerprintCache fingerprintCache)
+    {
+        this.fingerprintCache = fingerprintCache;
+    }
+
+    /**
+     * @param metrics
+     *            the metrics to record operations of this store in - if not set, metrics are still recorded but not exposed
+     */
+    public void setMetrics(final ContentStoreMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param bulkIngestThreads
+     *            the number of threads to hash and copy files with during a
+     *            {@link #ingest(Iterator, BulkContentIngester.BatchCallback) bulk ingestion}
+     */
+    public void setBulkIngestThreads(final int bulkIngestThreads)
+    {
+        this.bulkIngestThreads = bulkIngestThreads;
+    }
+
+    /**
+     * @param bulkIngestBatchSize
+     *            the number of results of a {@link #ingest(Iterator, BulkContentIngester.BatchCallback) bulk ingestion} to pass to the
+     *            callback at once
+     */
+    public void setBulkIngestBatchSize(final int bulkIngestBatchSize)
+    {
+        this.bulkIngestBatchSize = bulkIngestBatchSize;
+    }
+
+    /**
+     * @param mimetypeService
+     *            the service to guess the mimetype of files during a {@link #ingest(Iterator, BulkContentIngester.BatchCallback) bulk
+     *            ingestion} from their name
+     */
+    public void setMimetypeService(final MimetypeService mimetypeService)
+    {
+        this.mimetypeService = mimetypeService;
+    }
+
+    /**
+     * @param fingerprintPolicy
+     *            the policy whose digest types to calculate while content is written so it does not need to read the content again - the
+     *            digest types are only looked up when content is written, so the policy may be initialized after this store
+     */
+    public void setFingerprintPolicy(final FingerprintPolicy fingerprintPolicy)
+    {
+        this.fingerprintPolicy = fingerprintPolicy;
+    }
+
+    /**
+     * @param fingerprintExecutor
+     *            the executor to calculate fingerprint digests on while the actual digest of written content is calculated - if not set,
+     *            the store uses the executor for {@link #setTreeHashExecutor(ExecutorService) tree hashing} if enabled or its own executor
+     *            with one thread per processor otherwise
+     */
+    public void setFingerprintExecutor(final ExecutorService fingerprintExecutor)
+    {
+        this.fingerprintExecutor = fingerprintExecutor;
+    }
+
+    /**
+     * Simple constructor
+     */
+    public HashBasedFileContentStore()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Simple constructor (for bad-practice constructor-arg Spring config)
+     *
+     * @param rootDirectory
+     *            the root to store files under
+     */
+    public HashBasedFileContentStore(final String rootDirectory)
+    {
+        this.rootDirectory = rootDirectory;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "rootDirectory", this.rootDirectory);
+        PropertyCheck.mandatory(this, "messageDigestType", this.messageDigestType);
+        if (!DigestEngines.isSupported(this.messageDigestType))
+        {
+            throw new AlfrescoRuntimeException("Message digest type " + this.messageDigestType + " is not supported");
+        }
+
+        this.rootFile = new File(this.rootDirectory);
+        this.initializeVolumes();
+        this.stagingDirectory = this.primaryVolume.getStagingDirectory();
+        if (this.coldRootDirectory != null && this.coldRootDirectory.trim().length() != 0)
+        {
+            this.coldVolume = ContentVolume.open(new File(this.coldRootDirectory.trim()));
+            this.accessSketch = new AccessFrequencySketch(this.accessSketchWidth);
+            this.promotionExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                    this.tieringPromotionQueueSize), new ThreadFactory()
+            {
+
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, "HashBasedFileContentStore-Promotion-"
+                            + HashBasedFileContentStore.this.rootFile.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.promotionExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        if (this.metrics == null)
+        {
+            this.metrics = new ContentStoreMetrics();
+        }
+
+        this.cleanupStagingDirectory();
+        final FanOutLayout previousLayout = this.initializeLayout();
+        final VolumeRing previousRing = this.initializeRing();
+        this.locator = new ContentLocator(this.rootFile, this.primaryVolume, this.volumes, this.coldVolume, this.layout, this.ring,
+                previousLayout, previousRing);
+        this.initializeDigestModes();
+
+        // chunked content may exist even if chunking has been disabled since
+        this.chunkStore = new ChunkStore(this.rootFile, this.stagingDirectory, this.messageDigestType, this.chunkMinSize,
+                this.chunkAverageSize, this.chunkMaxSize);
+
+        this.handleCache = new FileHandleCache(this.readerHandleCacheSize, this.readerMappingMaxSize);
+
+        if (this.treeHashingEnabled && this.treeHashExecutor == null)
+        {
+            this.treeHashExecutor = this.createExecutor("TreeHash");
+            this.treeHashExecutorOwned = true;
+        }
+
+        if (this.fingerprintPolicy != null && this.fingerprintExecutor == null)
+        {
+            // tasks on the tree hash executor never wait for other tasks, so hashing stages can safely wait for them
+            if (this.treeHashExecutor != null)
+            {
+                this.fingerprintExecutor = this.treeHashExecutor;
+            }
+            else
+            {
+                this.fingerprintExecutor = this.createExecutor("Fingerprint");
+                this.fingerprintExecutorOwned = true;
+            }
+        }
+
+        if (this.smallWriteThreshold > 0)
+        {
+            this.smallWriteBufferPool = new DirectBufferPool(this.smallWriteThreshold, this.smallWriteBufferPoolSize);
+        }
+
+        if (this.writePipelineEnabled)
+        {
+            this.writeBufferPool = new DirectBufferPool(this.writeBufferSize, this.writeBufferPoolSize);
+            if (this.writePipelineExecutor == null)
+            {
+                // separate from the tree hash executor since pipelined tree digests wait for leaves hashed on that executor
+                this.writePipelineExecutor = this.createExecutor("WritePipeline");
+                this.writePipelineExecutorOwned = true;
+            }
+        }
+
+        if (this.digestIndexEnabled)
+        {
+            this.digestIndex = new DigestIndex(this.rootFile, this.volumeRootFiles, this.layout.getWidth(), this.digestIndexExpectedSize,
+                    this.digestIndexExclusiveAccess);
+            this.digestIndex.open();
+        }
+
+        if (this.locator.isMigrationInProgress() && this.fanOutMigrationEnabled)
+        {
+            // if only the volumes have changed, only directories of prefixes that changed their volume need to be visited
+            final FanOutWalker.DirectoryFilter directoryFilter = previousLayout == null ? this.ring.getChangedPrefixFilter(previousRing)
+                    : null;
+            this.layoutMigrator = new FanOutLayoutMigrator(this, this.volumeRootFiles, this.layout, this.ring, directoryFilter,
+                    this.fanOutMigrationFilesPerSecond);
+            final Thread migrationThread = new Thread(this.layoutMigrator, "HashBasedFileContentStore-LayoutMigration-"
+                    + this.rootFile.getName());
+            migrationThread.setDaemon(true);
+            migrationThread.start();
+        }
+    }
+
+    public void destroy()
+    {
+        if (this.treeHashExecutorOwned)
+        {
+            this.treeHashExecutor.shutdown();
+        }
+        if (this.writePipelineExecutorOwned)
+        {
+            this.writePipelineExecutor.shutdown();
+        }
+        if (this.fingerprintExecutorOwned)
+        {
+            this.fingerprintExecutor.shutdown();
+        }
+        if (this.layoutMigrator != null)
+        {
+            this.layoutMigrator.stop();
+        }
+        if (this.promotionExecutor != null)
+        {
+            this.promotionExecutor.shutdownNow();
+        }
+
+        if (this.digestIndex != null)
+        {
+            this.digestIndex.close();
+        }
+
+        if (this.handleCache != null)
+        {
+            this.handleCache.close();
+        }
+    }
+
+    /**
+     * @return the root directory of this store
+     */
+    protected File getRootFile()
+    {
+        return this.rootFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRootLocation()
+    {
+        return this.rootFile.getAbsolutePath();
+    }
+
+    /**
+     * @return {@code true} if content is currently being migrated to a different fan-out layout or set of volumes
+     */
+    protected boolean isMigrationInProgress()
+    {
+        return this.locator.isMigrationInProgress();
+    }
+
+    /**
+     * @return the locator of content files of this store
+     */
+    protected ContentLocator getLocator()
+    {
+        return this.locator;
+    }
+
+    /**
+     * @return the modes content URLs of all content in this store have been derived with, including the current mode
+     */
+    protected DigestModes getDigestModes()
+    {
+        // other servers sharing the root directory may have added their modes since
+        final DigestModes storedDigestModes = DigestModes.load(new File(this.rootFile, DIGEST_MODES_FILE_NAME));
+        return storedDigestModes != null ? storedDigestModes : this.digestModes;
+    }
+
+    /**
+     * @return the root directories of all volumes of this store, starting with the root directory of this store
+     */
+    protected List<File> getVolumeRootFiles()
+    {
+        return this.volumeRootFiles;
+    }
+
+    /**
+     * @return the metrics of this store
+     */
+    protected ContentStoreMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /**
+     * Ingests all files in a directory tree, hashing and copying them on a pool of worker threads. Files with content already in this
+     * store are not copied at all.
+     *
+     * @param directory
+     *            the root of the directory tree
+     * @param callback
+     *            the callback to pass the content data of ingested files to in batches
+     * @return the number of files that have been ingested successfully
+     */
+    public int ingest(final File directory, final BulkContentIngester.BatchCallback callback)
+    {
+        return this.createBulkContentIngester().ingest(directory, callback);
+    }
+
+    /**
+     * Ingests a sequence of files, hashing and copying them on a pool of worker threads. Files with content already in this store are not
+     * copied at all.
+     *
+     * @param sources
+     *            the files to ingest
+     * @param callback
+     *            the callback to pass the content data of ingested files to in batches
+     * @return the number of files that have been ingested successfully
+     */
+    public int ingest(final Iterator<File> sources, final BulkContentIngester.BatchCallback callback)
+    {
+        return this.createBulkContentIngester().ingest(sources, callback);
+    }
+
+    protected BulkContentIngester createBulkContentIngester()
+    {
+        final BulkContentIngester ingester = new BulkContentIngester(this, this.messageDigestType);
+        ingester.setThreadCount(this.bulkIngestThreads);
+        ingester.setBatchSize(this.bulkIngestBatchSize);
+        ingester.setMimetypeService(this.mimetypeService);
+        return ingester;
+    }
+
+    /**
+     * @return the pool of chunks of content that has been split into chunks
+     */
+    protected ChunkStore getChunkStore()
+    {
+        return this.chunkStore;
+    }
+
+    /**
+     * @return the root directory of the cold tier or {@code null} if tiering is not enabled
+     */
+    protected File getColdRootFile()
+    {
+        return this.coldVolume != null ? this.coldVolume.getRootDirectory() : null;
+    }
+
+    /**
+     * @return the type of message digest content is addressed by
+     */
+    public String getMessageDigestType()
+    {
+        return this.messageDigestType;
+    }
+
+    /**
+     * @return the types of digests to calculate as fingerprints while content is written
+     */
+    protected List<String> getFingerprintDigestTypes()
+    {
+        return this.fingerprintPolicy != null ? this.fingerprintPolicy.getDigestTypes() : Collections.<String> emptyList();
+    }
+
+    /**
+     * @return the executor to calculate fingerprint digests on while content is written or {@code null} if no fingerprint digests are
+     *         calculated
+     */
+    protected ExecutorService getFingerprintExecutor()
+    {
+        return this.fingerprintExecutor;
+    }
+
+    /**
+     * @return {@code true} if new content is hashed as a tree of leaves, {@code false} if it is hashed as a whole
+     */
+    public boolean isTreeHashingEnabled()
+    {
+        return this.treeHashingEnabled;
+    }
+
+    /**
+     * @return the size of the leaves content is split into for hashing if {@link #isTreeHashingEnabled() tree hashing} is enabled
+     */
+    public int getTreeHashLeafSize()
+    {
+        return this.treeHashLeafSize;
+    }
+
+    /**
+     * Moves a content file or chunk that failed an integrity check into the quarantine directory of its volume. The file is no longer
+     * served and identical content written later is stored again instead of being de-duplicated against the damaged file.
+     *
+     * @param file
+     *            the damaged file
+     * @param digest
+     *            the digest of the content as encoded in the file name
+     * @return the quarantined file or {@code null} if the file could not be moved
+     */
+    protected File quarantineFile(final File file, final String digest)
+    {
+        final File quarantineDirectory = new File(this.getVolume(file).getRootDirectory(), QUARANTINE_DIRECTORY_NAME);
+        if (!quarantineDirectory.exists() && !quarantineDirectory.mkdirs() && !quarantineDirectory.exists())
+        {
+            logger.warn("Failed to create quarantine directory {}", quarantineDirectory);
+            return null;
+        }
+
+        File quarantinedFile = new File(quarantineDirectory, file.getName());
+        if (quarantinedFile.exists())
+        {
+            // a copy of the same content has been quarantined before
+            quarantinedFile = new File(quarantineDirectory, file.getName() + "." + System.currentTimeMillis());
+        }
+        if (!file.renameTo(quarantinedFile))
+        {
+            logger.warn("Failed to move {} to quarantine", file);
+            return null;
+        }
+        this.handleCache.invalidate(file);
+
+        // an intact copy may still exist in another location until a migration or tier move has completed
+        if (this.digestIndex != null && this.locateFile(this.createContentUrl(digest)) == null)
+        {
+            this.digestIndex.remove(digest);
+        }
+        return quarantinedFile;
+    }
+
+    /**
+     * Creates a default executor for background hashing with one daemon thread per processor.
+     *
+     * @param purpose
+     *            the purpose of the executor to be included in thread names
+     * @return the new executor
+     */
+    protected ExecutorService createExecutor(final String purpose)
+    {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final String namePrefix = "HashBasedFileContentStore-" + purpose + "-" + this.rootFile.getName() + "-";
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable)
+                    {
+                        final Thread thread = new Thread(runnable, namePrefix + this.threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Obtains a digest engine to calculate the digest of new content with.
+     *
+     * @param messageDigestType
+     *            the type of message digest to use
+     * @return the digest engine
+     * @throws NoSuchAlgorithmException
+     *             if the message digest type is not supported
+     */
+    protected DigestEngine acquireDigestEngine(final String messageDigestType) throws NoSuchAlgorithmException
+    {
+        final DigestEngine engine;
+        if (this.treeHashingEnabled)
+        {
+            engine = new TreeDigestEngine(messageDigestType, this.treeHashLeafSize, this.treeHashExecutor, this.treeHashMaxPendingLeaves);
+        }
+        else
+        {
+            engine = DigestEngines.acquire(messageDigestType);
+        }
+        return new MeasuringDigestEngine(engine, this.metrics);
+    }
+
+    /**
+     * @return the pool of buffers to keep small content in while it is written or {@code null} if small content should not be kept in memory
+     */
+    protected DirectBufferPool getSmallWriteBufferPool()
+    {
+        return this.smallWriteBufferPool;
+    }
+
+    /**
+     * Creates the channel to write new content to a staging file with, updating a digest engine with all written bytes.
+     *
+     * @param channel
+     *            the channel of the staging file
+     * @param engine
+     *            the digest engine to update
+     * @return the channel to write new content to
+     */
+    protected WritableByteChannel createDigestingChannel(final FileChannel channel, final DigestEngine engine)
+    {
+        final WritableByteChannel digestingChannel;
+        if (this.writePipelineEnabled)
+        {
+            digestingChannel = new PipelinedDigestingChannel(channel, engine, this.writeBufferPool, this.writePipelineExecutor,
+                    this.writeMaxBuffersInFlight);
+        }
+        else
+        {
+            digestingChannel = new DigestingWritableByteChannel(channel, engine);
+        }
+        return digestingChannel;
+    }
+
+    /**
+     * Releases a digest engine obtained via {@link #acquireDigestEngine(String)}.
+     *
+     * @param engine
+     *            the engine to release
+     */
+    protected void releaseDigestEngine(final DigestEngine engine)
+    {
+        final DigestEngine actualEngine = engine instanceof MeasuringDigestEngine ? ((MeasuringDigestEngine) engine).getDelegate() : engine;
+        if (actualEngine instanceof FingerprintingDigestEngine)
+        {
+            // the wrapper itself is never pooled
+            ((FingerprintingDigestEngine) actualEngine).releaseFingerprintDigest();
+            this.releaseDigestEngine(((FingerprintingDigestEngine) actualEngine).getDelegate());
+        }
+        else if (actualEngine instanceof TreeDigestEngine)
+        {
+            ((TreeDigestEngine) actualEngine).release();
+        }
+        else
+        {
+            DigestEngines.release(actualEngine);
+        }
+    }
+
+    /**
+     * Opens the volumes of this store, starting with the volume of the root directory.
+     */
+    protected void initializeVolumes()
+    {
+        this.primaryVolume = ContentVolume.open(this.rootFile);
+
+        final List<ContentVolume> volumes = new ArrayList<ContentVolume>();
+        final List<File> volumeRootFiles = new ArrayList<File>();
+        volumes.add(this.primaryVolume);
+        volumeRootFiles.add(this.rootFile);
+        if (this.additionalRootDirectories != null)
+        {
+            for (final String additionalRootDirectory : this.additionalRootDirectories.split(","))
+            {
+                final String trimmed = additionalRootDirectory.trim();
+                if (trimmed.length() != 0)
+                {
+                    final ContentVolume volume = ContentVolume.open(new File(trimmed));
+                    volumes.add(volume);
+                    volumeRootFiles.add(volume.getRootDirectory());
+                }
+            }
+        }
+
+        this.volumes = Collections.unmodifiableList(volumes);
+        this.volumeRootFiles = Collections.unmodifiableList(volumeRootFiles);
+    }
+
+    /**
+     * Determines the volumes existing content has been distributed over and whether they differ from the configured volumes.
+     *
+     * @return the ring of volumes existing content has been distributed over or {@code null} if it does not differ from the configured
+     *         volumes
+     */
+    protected VolumeRing initializeRing()
+    {
+        this.ring = new VolumeRing(this.volumes);
+
+        final File volumesFile = new File(this.rootFile, VOLUMES_FILE_NAME);
+        SortedSet<String> storedVolumeIds = VolumeRing.loadVolumeIds(volumesFile);
+        if (storedVolumeIds == null)
+        {
+            // content stored before multiple volumes were supported is always located in the root directory
+            storedVolumeIds = FanOutWalker.listFanOutDirectories(this.rootFile).isEmpty() ? this.ring.getVolumeIds() : new TreeSet<String>(
+                    Collections.singleton(this.primaryVolume.getId()));
+            VolumeRing.saveVolumeIds(volumesFile, storedVolumeIds);
+        }
+
+        final SortedSet<String> migrationTarget = FanOutLayoutMigrator.getIncompleteMigrationVolumes(this.rootFile);
+        if (migrationTarget != null && !migrationTarget.equals(this.ring.getVolumeIds()))
+        {
+            if (!storedVolumeIds.equals(this.ring.getVolumeIds()))
+            {
+                // content would be spread across three different sets of volumes
+                throw new ContentIOException("Migration of content in " + this.rootFile + " onto volumes " + migrationTarget
+                        + " is incomplete - the volumes can only be changed back to " + storedVolumeIds + " until it has completed");
+            }
+            // reverting an incomplete migration
+            storedVolumeIds = migrationTarget;
+        }
+
+        VolumeRing previousRing = null;
+        if (!storedVolumeIds.equals(this.ring.getVolumeIds()))
+        {
+            final List<ContentVolume> storedVolumes = new ArrayList<ContentVolume>();
+            for (final String volumeId : storedVolumeIds)
+            {
+                ContentVolume storedVolume = null;
+                for (final ContentVolume volume : this.volumes)
+                {
+                    if (volume.getId().equals(volumeId))
+                    {
+                        storedVolume = volume;
+                        break;
+                    }
+                }
+
+                if (storedVolume == null)
+                {
+                    throw new ContentIOException("Volume " + volumeId + " holding content of " + this.rootFile
+                            + " is not configured - volumes can not be removed");
+                }
+                storedVolumes.add(storedVolume);
+            }
+
+            logger.info("Content in {} is distributed over {} - new content will be distributed over {}", new Object[] { this.rootFile,
+                    storedVolumes, this.volumes });
+            previousRing = new VolumeRing(storedVolumes);
+        }
+        return previousRing;
+    }
+
+    /**
+     * Determines the fan-out layout existing content has been stored in and whether it differs from the configured layout.
+     *
+     * @return the layout existing content has been stored in or {@code null} if it does not differ from the configured layout
+     */
+    protected FanOutLayout initializeLayout()
+    {
+        this.layout = new FanOutLayout(this.fanOutDepth, this.fanOutWidth);
+
+        final File layoutFile = new File(this.rootFile, LAYOUT_FILE_NAME);
+        FanOutLayout storedLayout = FanOutLayout.load(layoutFile);
+        if (storedLayout == null)
+        {
+            // content stored before the layout became configurable always uses the default layout
+            storedLayout = FanOutWalker.listFanOutDirectories(this.rootFile).isEmpty() ? this.layout : FanOutLayout.DEFAULT;
+            storedLayout.save(layoutFile);
+        }
+
+        final FanOutLayout migrationTarget = FanOutLayoutMigrator.getIncompleteMigrationTarget(this.rootFile);
+        if (migrationTarget != null && !migrationTarget.equals(this.layout))
+        {
+            if (!storedLayout.equals(this.layout))
+            {
+                // content would be spread across three different layouts
+                throw new ContentIOException("Migration of content in " + this.rootFile + " to " + migrationTarget
+                        + " is incomplete - the layout can only be changed back to " + storedLayout + " until it has completed");
+            }
+            // reverting an incomplete migration
+            storedLayout = migrationTarget;
+        }
+
+        FanOutLayout previousLayout = null;
+        if (!storedLayout.equals(this.layout))
+        {
+            logger.info("Content in {} is stored in {} - new content will be stored in {}", new Object[] { this.rootFile, storedLayout,
+                    this.layout });
+            previousLayout = storedLayout;
+        }
+        return previousLayout;
+    }
+
+    /**
+     * Records the mode content URLs of new content are derived with in addition to the modes of existing content.
+     */
+    protected void initializeDigestModes()
+    {
+        final File digestModesFile = new File(this.rootFile, DIGEST_MODES_FILE_NAME);
+        final File lockFile = new File(this.rootFile, DIGEST_MODES_FILE_NAME + ".lock");
+        RandomAccessFile lockRaf = null;
+        try
+        {
+            // other servers sharing the root directory may be adding their modes at the same time
+            lockRaf = new RandomAccessFile(lockFile, "rw");
+            final FileLock lock = lockRaf.getChannel().lock();
+            try
+            {
+                DigestModes storedDigestModes = DigestModes.load(digestModesFile);
+                if (storedDigestModes == null)
+                {
+                    // modes of content stored before they were recorded are unknown
+                    boolean empty = this.coldVolume == null
+                            || FanOutWalker.listFanOutDirectories(this.coldVolume.getRootDirectory()).isEmpty();
+                    for (int idx = 0, max = this.volumeRootFiles.size(); idx < max && empty; idx++)
+                    {
+                        empty = FanOutWalker.listFanOutDirectories(this.volumeRootFiles.get(idx)).isEmpty();
+                    }
+                    storedDigestModes = new DigestModes(Collections.<DigestModes.Mode> emptyList(), empty);
+                }
+
+                final DigestModes.Mode mode = new DigestModes.Mode(this.messageDigestType, this.treeHashingEnabled ? this.treeHashLeafSize
+                        : 0);
+                this.digestModes = storedDigestModes.with(mode);
+                if (this.digestModes != storedDigestModes || !digestModesFile.exists())
+                {
+                    this.digestModes.save(digestModesFile);
+                }
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to record digest mode in " + digestModesFile, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(lockRaf);
+        }
+    }
+
+    /**
+     * Moves a content file to its location in the current fan-out layout and on the current volumes as part of a layout migration.
+     *
+     * @param file
+     *            the content file
+     * @param targetFile
+     *            the location of the content file in the current fan-out layout
+     * @param digest
+     *            the digest of the content
+     */
+    protected void relocateContentFile(final File file, final File targetFile, final String digest)
+    {
+        final File parentDirectory = targetFile.getParentFile();
+        if (!parentDirectory.exists() && !parentDirectory.mkdirs() && !parentDirectory.exists())
+        {
+            throw new ContentIOException("Failed to create content directory " + parentDirectory);
+        }
+
+        if (this.moveOntoVolume(file, targetFile))
+        {
+            // the content has been copied if the target is located on another volume
+            if (file.exists() && !file.delete())
+            {
+                logger.warn("Failed to remove content file {} copied to {}", file, targetFile);
+            }
+        }
+        else
+        {
+            if (!targetFile.exists())
+            {
+                logger.warn("Failed to move content file {} to {}", file, targetFile);
+                return;
+            }
+
+            // identical content has been written in the new layout in the meantime
+            if (!file.delete())
+            {
+                logger.warn("Failed to remove duplicate content file {}", file);
+            }
+        }
+        this.handleCache.invalidate(file);
+
+        if (this.digestIndex != null)
+        {
+            // the index may be rebuilding and have skipped the file in both locations
+            this.digestIndex.add(digest);
+        }
+
+        if (this.deleteEmptyDirs)
+        {
+            this.deleteEmptyParents(file);
+        }
+    }
+
+    /**
+     * Marks a fan-out layout migration as complete so content is no longer looked up in the previous layout or on the previous volumes.
+     *
+     * @param targetLayout
+     *            the layout all content has been migrated to
+     * @param targetRing
+     *            the ring of volumes all content has been migrated to
+     */
+    protected void completeFanOutLayoutMigration(final FanOutLayout targetLayout, final VolumeRing targetRing)
+    {
+        targetLayout.save(new File(this.rootFile, LAYOUT_FILE_NAME));
+        VolumeRing.saveVolumeIds(new File(this.rootFile, VOLUMES_FILE_NAME), targetRing.getVolumeIds());
+        this.locator.completeMigration();
+    }
+
+    /**
+     * Removes staging files left behind by writes that never completed, e.g. due to a crash of the server.
+     */
+    protected void cleanupStagingDirectory()
+    {
+        for (final ContentVolume volume : this.volumes)
+        {
+            this.cleanupStagingDirectory(volume.getStagingDirectory());
+        }
+        if (this.coldVolume != null)
+        {
+            this.cleanupStagingDirectory(this.coldVolume.getStagingDirectory());
+        }
+    }
+
+    /**
+     * Removes staging files left behind by writes that never completed from the staging directory of a single volume.
+     *
+     * @param stagingDirectory
+     *            the staging directory
+     */
+    protected void cleanupStagingDirectory(final File stagingDirectory)
+    {
+        final File[] stagingFiles = stagingDirectory.listFiles();
+        if (stagingFiles != null)
+        {
+            final long cutOff = System.currentTimeMillis() - this.stagingFileMaxAge;
+            int removed = 0;
+            for (final File stagingFile : stagingFiles)
+            {
+                if (stagingFile.isFile() && stagingFile.lastModified() < cutOff)
+                {
+                    if (stagingFile.delete())
+                    {
+                        removed++;
+                    }
+                    else
+                    {
+                        logger.warn("Failed to remove abandoned staging file {}", stagingFile);
+                    }
+                }
+            }
+
+            if (removed > 0)
+            {
+                logger.info("Removed {} abandoned staging files from {}", Integer.valueOf(removed), stagingDirectory);
+            }
+        }
+    }
+
+    /**
+     * Creates a new file in the staging area of this store to receive content that is being written. Since the volume the content will be
+     * stored on is not known until it has been written completely, staging files are distributed over all volumes in turn.
+     *
+     * @return the new, empty staging file
+     */
+    protected File createStagingFile()
+    {
+        final int volumeIdx = (this.nextStagingVolume.getAndIncrement() & Integer.MAX_VALUE) % this.volumes.size();
+        return this.createStagingFile(this.volumes.get(volumeIdx));
+    }
+
+    /**
+     * Creates a new file in the staging area of a specific volume.
+     *
+     * @param volume
+     *            the volume to create the staging file on
+     * @return the new, empty staging file
+     */
+    protected File createStagingFile(final ContentVolume volume)
+    {
+        try
+        {
+            return File.createTempFile("dedup", ".tmp", volume.getStagingDirectory());
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to create staging file in " + volume.getStagingDirectory(), e);
+        }
+    }
+
+    /**
+     * Moves a file to a location on a volume of this store. If the file is located on another volume, it is copied to the staging area of
+     * the target volume first, so that the target file still only becomes visible once it is complete. In that case, the source file is
+     * left in place.
+     *
+     * Since {@link File#renameTo(File)} silently replaces an existing target file on POSIX file systems, an existing target file is checked
+     * for explicitly. A target file created concurrently between that check and the rename may still be replaced, which is harmless as it
+     * holds identical content.
+     *
+     * @param file
+     *            the file to move
+     * @param targetFile
+     *            the location to move the file to
+     * @return {@code true} if the file has been moved, {@code false} if the target file already exists or the file could not be renamed
+     */
+    protected boolean moveOntoVolume(final File file, final File targetFile)
+    {
+        if (targetFile.exists())
+        {
+            return false;
+        }
+
+        final ContentVolume volume = this.getVolume(targetFile);
+        if (volume.contains(file))
+        {
+            return file.renameTo(targetFile);
+        }
+
+        final File volumeStagingFile = this.createStagingFile(volume);
+        try
+        {
+            FileUtils.copyFile(file, volumeStagingFile);
+            return volumeStagingFile.renameTo(targetFile);
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to copy " + file + " onto volume " + volume, e);
+        }
+        finally
+        {
+            // no-op if the file has been renamed
+            FileUtils.deleteQuietly(volumeStagingFile);
+        }
+    }
+
+    /**
+     * Determines the volume a file is located on.
+     *
+     * @param file
+     *            the file
+     * @return the volume of the file - the volume of the root directory if the file is not located on any of the additional volumes or
+     *         the cold tier
+     */
+    protected ContentVolume getVolume(final File file)
+    {
+        return this.locator.getVolume(file);
+    }
+
+    /**
+     * Determines the volume content for a content URL is stored on.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return the volume of the content
+     */
+    protected ContentVolume getVolume(final String contentUrl)
+    {
+        return this.isHashBasedContentUrl(contentUrl) ? this.locator.getVolume(this.getDigest(contentUrl)) : this.primaryVolume;
+    }
+
+    /**
+     * Publishes a completely written staging file as the content for a content URL. Since the staging area is located on the same file
+     * system as the content files, this is a single atomic rename instead of a copy.
+     *
+     * @param stagingFile
+     *            the staging file holding the new content
+     * @param contentUrl
+     *            the content URL derived from the digest of the content
+     * @return {@code true} if the content was newly stored, {@code false} if content for the URL already existed
+     */
+    protected boolean publishStagingFile(final File stagingFile, final String contentUrl)
+    {
+        return this.publishStagingFile(stagingFile, contentUrl, null);
+    }
+
+    /**
+     * Publishes a completely written staging file as the content for a content URL. Depending on the configuration, content is either
+     * split into chunks, compressed or moved with a single atomic rename.
+     *
+     * @param stagingFile
+     *            the staging file holding the new content
+     * @param contentUrl
+     *            the content URL derived from the digest of the content
+     * @param mimetype
+     *            the mimetype of the content - may be {@code null} if unknown
+     * @return {@code true} if the content was newly stored, {@code false} if content for the URL already existed
+     */
+    protected boolean publishStagingFile(final File stagingFile, final String contentUrl, final String mimetype)
+    {
+        if (this.reuseStoredContent(contentUrl))
+        {
+            return false;
+        }
+        return this.storeStagingFile(stagingFile, contentUrl, mimetype);
+    }
+
+    /**
+     * Publishes new content that has been kept in memory as the content for a content URL. If content for the URL already exists, nothing
+     * is written at all.
+     *
+     * @param content
+     *            the new content
+     * @param contentUrl
+     *            the content URL derived from the digest of the content
+     * @param mimetype
+     *            the mimetype of the content - may be {@code null} if unknown
+     * @return {@code true} if the content was newly stored, {@code false} if content for the URL already existed
+     */
+    protected boolean publishContent(final ByteBuffer content, final String contentUrl, final String mimetype)
+    {
+        if (this.reuseStoredContent(contentUrl))
+        {
+            return false;
+        }
+
+        // content is still staged so it only becomes visible once it has been completely written
+        final File stagingFile = this.createStagingFile(this.getVolume(contentUrl));
+        try
+        {
+            final FileChannel channel = new FileOutputStream(stagingFile).getChannel();
+            try
+            {
+                final ByteBuffer source = content.duplicate();
+                while (source.hasRemaining())
+                {
+                    channel.write(source);
+                }
+            }
+            finally
+            {
+                channel.close();
+            }
+            return this.storeStagingFile(stagingFile, contentUrl, mimetype);
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to write content to staging file " + stagingFile, e);
+        }
+        finally
+        {
+            // no-op if the file has been renamed
+            FileUtils.deleteQuietly(stagingFile);
+        }
+    }
+
+    /**
+     * Checks if content for a content URL is already stored and marks it as re-used.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return {@code true} if the content is already stored
+     */
+    protected boolean reuseStoredContent(final String contentUrl)
+    {
+        // a hit of the index is not enough since the content is about to be referenced again
+        final File existingFile = this.locateStoredFile(contentUrl);
+        // signals re-use to orphan cleanup which may otherwise delete it before the new reference is committed
+        if (existingFile != null && !existingFile.setLastModified(System.currentTimeMillis()))
+        {
+            logger.debug("Failed to update modification time of re-used content {}", existingFile);
+        }
+        return existingFile != null;
+    }
+
+    /**
+     * Moves a staging file holding content not yet stored into place, splitting or compressing it depending on the configuration.
+     *
+     * @param stagingFile
+     *            the staging file holding the new content
+     * @param contentUrl
+     *            the content URL derived from the digest of the content
+     * @param mimetype
+     *            the mimetype of the content - may be {@code null} if unknown
+     * @return {@code true} if the content was newly stored, {@code false} if a concurrent write of identical content won the race
+     */
+    protected boolean storeStagingFile(final File stagingFile, final String contentUrl, final String mimetype)
+    {
+        final File targetFile = this.makeFile(contentUrl);
+
+        final File parentDirectory = targetFile.getParentFile();
+        if (!parentDirectory.exists() && !parentDirectory.mkdirs() && !parentDirectory.exists())
+        {
+            throw new ContentIOException("Failed to create content directory " + parentDirectory);
+        }
+
+        final long size = stagingFile.length();
+        final long storedBytes;
+        if (this.chunkingEnabled && size >= this.chunkingThreshold)
+        {
+            storedBytes = this.chunkStore.storeChunked(stagingFile, FanOutWalker.getManifestFile(targetFile));
+            if (!stagingFile.delete())
+            {
+                logger.debug("Failed to remove staging file {} of chunked content", stagingFile);
+            }
+        }
+        else if (this.isCompressionCandidate(stagingFile, mimetype) && this.publishCompressed(stagingFile, targetFile))
+        {
+            storedBytes = FanOutWalker.getCompressedFile(targetFile).length();
+            logger.debug("Stored content {} compressed", contentUrl);
+        }
+        else if (this.moveOntoVolume(stagingFile, targetFile))
+        {
+            storedBytes = size;
+        }
+        else
+        {
+            if (targetFile.exists())
+            {
+                // concurrent write of identical content won the race
+                return false;
+            }
+
+            // should only happen if the staging directory was moved to another file system
+            logger.warn("Failed to rename staging file {} to {} - falling back to copy", stagingFile, targetFile);
+            try
+            {
+                FileUtils.copyFile(stagingFile, targetFile);
+            }
+            catch (final IOException e)
+            {
+                FileUtils.deleteQuietly(targetFile);
+                throw new ContentIOException("Error copying file from staging area to content store: " + targetFile, e);
+            }
+            storedBytes = size;
+        }
+        this.metrics.recordPhysicalBytes(storedBytes);
+
+        if (this.digestIndex != null)
+        {
+            this.digestIndex.add(this.getDigest(contentUrl));
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if new content should be compressed.
+     *
+     * @param stagingFile
+     *            the staging file holding the new content
+     * @param mimetype
+     *            the mimetype of the content - may be {@code null} if unknown
+     * @return {@code true} if compression should be attempted
+     */
+    protected boolean isCompressionCandidate(final File stagingFile, final String mimetype)
+    {
+        boolean candidate = this.compressionEnabled && stagingFile.length() >= this.compressionThreshold;
+        if (candidate && mimetype != null)
+        {
+            final String normalizedMimetype = mimetype.toLowerCase(Locale.ENGLISH);
+            for (final String excludedMimetype : this.compressionExcludedMimetypes)
+            {
+                if (excludedMimetype.endsWith("*") ? normalizedMimetype.startsWith(excludedMimetype.substring(0,
+                        excludedMimetype.length() - 1)) : normalizedMimetype.equals(excludedMimetype))
+                {
+                    candidate = false;
+                    break;
+                }
+            }
+        }
+        return candidate;
+    }
 
-    private String rootDirectory;
+    /**
+     * Compresses a staging file and publishes the result as the compressed variant of a content file.
+     *
+     * @param stagingFile
+     *            the staging file holding the new content
+     * @param targetFile
+     *            the location of the uncompressed content file
+     * @return {@code true} if the content has been published compressed, {@code false} if it does not compress well enough and still
+     *         needs to be published
+     */
+    protected boolean publishCompressed(final File stagingFile, final File targetFile)
+    {
+        final File compressedStagingFile = this.createStagingFile(this.getVolume(targetFile));
+        try
+        {
+            final FramedCompressor compressor = new FramedCompressor(this.compressionFrameSize, this.compressionLevel,
+                    this.compressionMaxRatio);
+            final boolean compressed = compressor.compress(stagingFile, compressedStagingFile) != null;
+            if (compressed)
+            {
+                final File compressedFile = FanOutWalker.getCompressedFile(targetFile);
+                // if the rename fails due to a concurrent write of identical content, the content is still stored
+                if (!compressedStagingFile.renameTo(compressedFile) && !compressedFile.exists())
+                {
+                    FileUtils.copyFile(compressedStagingFile, compressedFile);
+                }
+            }
+            return compressed;
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to store compressed content " + targetFile, e);
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(compressedStagingFile);
+        }
+    }
 
-    private String messageDigestType;
+    /**
+     * Checks if content for a content URL is stored, answering from the digest index without touching the file system if it can tell.
+     * Content URLs not based on a digest (e.g. of content written by the default store) are always checked against the file system.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return {@code true} if the content exists
+     */
+    protected boolean isStored(final String contentUrl)
+    {
+        final Boolean indexed = this.lookupDigestIndex(contentUrl);
+        return indexed != null ? indexed.booleanValue() : this.locateStoredFile(contentUrl) != null;
+    }
 
-    private boolean deleteEmptyDirs = true;
+    /**
+     * Locates the file holding the content for a content URL, skipping the file system lookups if the digest index knows the content not
+     * to be stored.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return the file holding the content or {@code null} if the content is not stored
+     */
+    protected File locateStoredFile(final String contentUrl)
+    {
+        final Boolean indexed = this.lookupDigestIndex(contentUrl);
+        File file = null;
+        if (!Boolean.FALSE.equals(indexed))
+        {
+            file = this.locateFile(contentUrl);
+            if (file != null && indexed == null && this.digestIndex != null && this.isHashBasedContentUrl(contentUrl))
+            {
+                // content added by another process
+                this.digestIndex.add(this.getDigest(contentUrl));
+            }
+        }
+        return file;
+    }
 
-    private final boolean readOnly = false;
+    /**
+     * Looks up the digest of a content URL in the digest index.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return {@link Boolean#TRUE} if the content is stored, {@link Boolean#FALSE} if it is known not to be stored or {@code null} if the
+     *         index can't tell or the content URL is not based on a digest
+     */
+    protected Boolean lookupDigestIndex(final String contentUrl)
+    {
+        Boolean stored = null;
+        if (this.digestIndex != null && this.isHashBasedContentUrl(contentUrl))
+        {
+            stored = this.digestIndex.lookup(this.getDigest(contentUrl));
+        }
+        return stored;
+    }
 
-    private ApplicationContext applicationContext;
+    /**
+     * Checks if a content URL has been created by this store, i.e. if it is based on a digest of the content.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return {@code true} if the content URL is digest based
+     */
+    public boolean isHashBasedContentUrl(final String contentUrl)
+    {
+        boolean result = contentUrl.startsWith(FileContentStore.STORE_PROTOCOL + PROTOCOL_DELIMITER)
+                && contentUrl.endsWith(FanOutWalker.CONTENT_FILE_EXTENSION);
+        if (result)
+        {
+            final String digest = this.getDigest(contentUrl);
+            result = digest.length() >= 6;
+            for (int idx = 0; idx < digest.length() && result; idx++)
+            {
+                result = Character.digit(digest.charAt(idx), 16) != -1;
+            }
+        }
+        return result;
+    }
 
-    public void setRootDirectory(final String rootDirectory)
+    /**
+     * Checks if the content for a content URL has been written or re-used since a specific time.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @param time
+     *            the time to check against
+     * @return {@code true} if the content has been modified at or after the specified time
+     */
+    public boolean isModifiedSince(final String contentUrl, final long time)
     {
-        this.rootDirectory = rootDirectory;
+        final File file = this.locateFile(contentUrl);
+        return file != null && file.lastModified() >= time;
     }
 
-    public void setMessageDigestType(final String messageDigestType)
+    /**
+     * Determines the content URL content with a specific digest would be stored under. The digest has to be calculated the same way as for
+     * content written to this store, i.e. as a tree digest if {@link #isTreeHashingEnabled() tree hashing} is enabled.
+     *
+     * @param digest
+     *            the hex-encoded digest in any case
+     * @return the content URL or {@code null} if the digest is not a valid hex-encoded digest for the configured message digest type
+     */
+    public String getContentUrlForDigest(final String digest)
     {
-        this.messageDigestType = messageDigestType;
+        String contentUrl = null;
+        if (digest != null)
+        {
+            try
+            {
+                final byte[] digestBytes = Hex.decodeHex(digest.toCharArray());
+                final DigestEngine engine = DigestEngines.acquire(this.messageDigestType);
+                final int digestLength = engine.getDigestLength();
+                DigestEngines.release(engine);
+
+                if (digestBytes.length == digestLength)
+                {
+                    // re-encode to match the case of the hex-encoding used for content URLs of new content
+                    contentUrl = this.createContentUrl(com.coremedia.iso.Hex.encodeHex(digestBytes));
+                }
+            }
+            catch (final DecoderException e)
+            {
+                logger.debug("Invalid digest {}", digest);
+            }
+            catch (final NoSuchAlgorithmException e)
+            {
+                throw new AlfrescoRuntimeException("Message digest type " + this.messageDigestType + " is not supported", e);
+            }
+        }
+        return contentUrl;
     }
 
-    public void setApplicationContext(final ApplicationContext applicationContext) throws BeansException
+    /**
+     * Looks up content by the digest and size a client announced for content it intends to upload, so the transfer can be skipped if the
+     * content is already stored.
+     *
+     * @param digest
+     *            the hex-encoded digest of the content
+     * @param size
+     *            the size of the content
+     * @return the content URL of the stored content or {@code null} if no content with the digest and size is stored
+     */
+    public String lookupContentUrl(final String digest, final long size)
     {
-        this.applicationContext = applicationContext;
+        final String contentUrl = this.getContentUrlForDigest(digest);
+        String result = null;
+        if (contentUrl != null && this.exists(contentUrl) && this.getReader(contentUrl).getSize() == size)
+        {
+            result = contentUrl;
+        }
+        return result;
     }
 
     /**
-     * Simple constructor
+     * Calculates a proof that a client possesses specific content and not only its digest, which is the digest (of the configured type) of
+     * a salt followed by the content. The salt should be specific to the operation the proof is provided for so that a proof can not be
+     * re-used for a different operation.
+     *
+     * @param contentUrl
+     *            the content URL of the stored content
+     * @param salt
+     *            the salt to prefix the content with
+     * @return the hex-encoded proof
      */
-    public HashBasedFileContentStore()
+    public String calculatePossessionProof(final String contentUrl, final String salt)
     {
-        // NO-OP
+        final ContentReader reader = this.getReader(contentUrl);
+        try
+        {
+            final DigestEngine engine = DigestEngines.acquire(this.messageDigestType);
+            try
+            {
+                final byte[] saltBytes = salt.getBytes("UTF-8");
+                engine.update(saltBytes, 0, saltBytes.length);
+
+                final ReadableByteChannel channel = reader.getReadableChannel();
+                try
+                {
+                    final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    while (channel.read(buffer) != -1)
+                    {
+                        buffer.flip();
+                        engine.update(buffer);
+                        buffer.clear();
+                    }
+                }
+                finally
+                {
+                    channel.close();
+                }
+                return new String(Hex.encodeHex(engine.digest()));
+            }
+            finally
+            {
+                DigestEngines.release(engine);
+            }
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new AlfrescoRuntimeException("Message digest type " + this.messageDigestType + " is not supported", e);
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to read content " + contentUrl, e);
+        }
     }
 
     /**
-     * Simple constructor (for bad-practice constructor-arg Spring config)
+     * Extracts the digest from a content URL created by this store.
      *
-     * @param rootDirectory
-     *            the root to store files under
+     * @param contentUrl
+     *            the content URL
+     * @return the digest
      */
-    public HashBasedFileContentStore(final String rootDirectory)
+    protected String getDigest(final String contentUrl)
     {
-        this.rootDirectory = rootDirectory;
+        final int start = contentUrl.lastIndexOf('/') + 1;
+        final int end = contentUrl.endsWith(FanOutWalker.CONTENT_FILE_EXTENSION) ? contentUrl.length()
+                - FanOutWalker.CONTENT_FILE_EXTENSION.length() : contentUrl.length();
+        return contentUrl.substring(start, end);
     }
 
     /**
@@ -90,42 +2051,264 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
      *
      * @param contentUrl
      *            the content URL including the protocol prefix
-     * @return Returns a file representing the URL - the file may or may not exist
+     * @return Returns a file representing the URL in the current fan-out layout - the file may or may not exist
      * @throws UnsupportedContentUrlException
      *             if the URL is invalid and doesn't support the {@link FileContentStore#STORE_PROTOCOL correct protocol}
      *
      * @see #checkUrl(String)
      */
-    // copied from package-protected FileContentStore#makeFile(String) (package-protected is *evil*)
     protected File makeFile(final String contentUrl)
+    {
+        final String relativePath = this.getRelativePath(contentUrl);
+        // URLs of content not created by this store, e.g. after switching from the default store, are resolved against the root directory
+        return this.isHashBasedContentUrl(contentUrl) ? this.locator.makeFile(this.getDigest(contentUrl)) : new File(this.rootFile,
+                relativePath);
+    }
+
+    /**
+     * Locates the file holding the content for a content URL, looking it up in the previous fan-out layout and on the previous volumes if
+     * a migration is in progress, and in the cold tier.
+     *
+     * @param contentUrl
+     *            the content URL including the protocol prefix
+     * @return the file holding the content or {@code null} if the content is not stored
+     */
+    protected File locateFile(final String contentUrl)
+    {
+        final String relativePath = this.getRelativePath(contentUrl);
+        return this.isHashBasedContentUrl(contentUrl) ? this.locator.locate(this.getDigest(contentUrl)) : ContentLocator
+                .resolveContentFile(new File(this.rootFile, relativePath));
+    }
+
+    /**
+     * Creates the files content for a content URL may currently be stored at.
+     *
+     * @param contentUrl
+     *            the content URL including the protocol prefix
+     * @return the files - the file in the current fan-out layout comes first
+     */
+    protected List<File> makeCandidateFiles(final String contentUrl)
+    {
+        final String relativePath = this.getRelativePath(contentUrl);
+        return this.isHashBasedContentUrl(contentUrl) ? this.locator.makeCandidateFiles(this.getDigest(contentUrl)) : Collections
+                .singletonList(new File(this.rootFile, relativePath));
+    }
+
+    /**
+     * Extracts the path of a content URL relative to the root directory.
+     *
+     * @param contentUrl
+     *            the content URL including the protocol prefix
+     * @return the relative path
+     * @throws UnsupportedContentUrlException
+     *             if the URL is invalid and doesn't support the {@link FileContentStore#STORE_PROTOCOL correct protocol}
+     */
+    // copied from package-protected FileContentStore#makeFile(String) (package-protected is *evil*)
+    protected String getRelativePath(final String contentUrl)
     {
         // take just the part after the protocol
         final Pair<String, String> urlParts = super.getContentUrlParts(contentUrl);
         final String protocol = urlParts.getFirst();
-        final String relativePath = urlParts.getSecond();
         // Check the protocol
         if (!protocol.equals(FileContentStore.STORE_PROTOCOL))
         {
             throw new UnsupportedContentUrlException(this, contentUrl);
         }
-        // get the file
-        final File file = new File(this.rootDirectory, relativePath);
-        // done
-        return file;
+        return urlParts.getSecond();
+    }
+
+    /**
+     * @return {@code true} if a cold tier has been configured
+     */
+    protected boolean isTieringEnabled()
+    {
+        return this.coldVolume != null;
+    }
+
+    /**
+     * Estimates how often content has recently been read.
+     *
+     * @param digest
+     *            the digest of the content
+     * @return the estimated number of recent reads or {@code 0} if no cold tier is configured
+     */
+    protected int getAccessFrequency(final String digest)
+    {
+        return this.accessSketch != null ? this.accessSketch.estimate(digest) : 0;
+    }
+
+    /**
+     * Records a read of content and schedules the content to be moved back to the hot tier if it is read often enough while in the cold
+     * tier.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @param file
+     *            the file holding the content
+     */
+    protected void recordAccess(final String contentUrl, final File file)
+    {
+        final String digest = this.getDigest(contentUrl);
+        this.accessSketch.increment(digest);
+        if (this.coldVolume.contains(file) && this.accessSketch.estimate(digest) >= this.tieringPromotionThreshold
+                && this.pendingPromotions.add(digest))
+        {
+            try
+            {
+                this.promotionExecutor.execute(new Runnable()
+                {
+
+                    public void run()
+                    {
+                        try
+                        {
+                            HashBasedFileContentStore.this.promoteContentFile(contentUrl);
+                        }
+                        catch (final RuntimeException e)
+                        {
+                            logger.warn("Failed to move content " + contentUrl + " to the hot tier", e);
+                        }
+                        finally
+                        {
+                            HashBasedFileContentStore.this.pendingPromotions.remove(digest);
+                        }
+                    }
+                });
+            }
+            catch (final RejectedExecutionException e)
+            {
+                // queue is full - the promotion is simply attempted again on the next read
+                this.pendingPromotions.remove(digest);
+            }
+        }
+    }
+
+    /**
+     * Moves content from the cold tier back to its location in the hot tier.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @return {@code true} if the content has been moved
+     */
+    protected boolean promoteContentFile(final String contentUrl)
+    {
+        final File coldFile = ContentLocator.resolveContentFile(this.locator.makeColdFile(this.getDigest(contentUrl)));
+        boolean promoted = false;
+        if (coldFile != null)
+        {
+            File targetFile = this.makeFile(contentUrl);
+            if (FanOutWalker.isCompressedFile(coldFile))
+            {
+                targetFile = FanOutWalker.getCompressedFile(targetFile);
+            }
+            else if (FanOutWalker.isManifestFile(coldFile))
+            {
+                targetFile = FanOutWalker.getManifestFile(targetFile);
+            }
+            promoted = this.moveBetweenTiers(coldFile, targetFile);
+            if (promoted)
+            {
+                logger.debug("Moved content {} to the hot tier", contentUrl);
+            }
+        }
+        return promoted;
+    }
+
+    /**
+     * Moves a content file from the hot tier to the cold tier.
+     *
+     * @param file
+     *            the content file in the hot tier
+     * @param digest
+     *            the digest of the content
+     * @return {@code true} if the content has been moved
+     */
+    protected boolean demoteContentFile(final File file, final String digest)
+    {
+        File targetFile = this.locator.makeColdFile(digest);
+        if (FanOutWalker.isCompressedFile(file))
+        {
+            targetFile = FanOutWalker.getCompressedFile(targetFile);
+        }
+        else if (FanOutWalker.isManifestFile(file))
+        {
+            targetFile = FanOutWalker.getManifestFile(targetFile);
+        }
+        return this.moveBetweenTiers(file, targetFile);
+    }
+
+    /**
+     * Moves a content file between the hot and cold tier. The content remains readable throughout the move since the file is copied to its
+     * new location before it is removed from its old location.
+     *
+     * @param file
+     *            the content file
+     * @param targetFile
+     *            the location of the content file in the other tier
+     * @return {@code true} if the content has been moved
+     */
+    protected boolean moveBetweenTiers(final File file, final File targetFile)
+    {
+        final File parentDirectory = targetFile.getParentFile();
+        if (!parentDirectory.exists() && !parentDirectory.mkdirs() && !parentDirectory.exists())
+        {
+            throw new ContentIOException("Failed to create content directory " + parentDirectory);
+        }
+
+        if (!this.moveOntoVolume(file, targetFile) && !targetFile.exists())
+        {
+            logger.warn("Failed to move content file {} to {}", file, targetFile);
+            return false;
+        }
+
+        // tiers are separate volumes, so the content has been copied and still needs to be removed from its old location
+        if (!file.delete())
+        {
+            if (!file.exists())
+            {
+                // deleted while it was being copied - the copy must not resurrect it
+                FileUtils.deleteQuietly(targetFile);
+                return false;
+            }
+            logger.warn("Failed to remove content file {} moved to {}", file, targetFile);
+        }
+        this.handleCache.invalidate(file);
+
+        if (this.deleteEmptyDirs)
+        {
+            this.deleteEmptyParents(file);
+        }
+        return true;
     }
 
     @Override
     public ContentReader getReader(final String contentUrl)
     {
-
+        final long start = System.nanoTime();
         try
         {
-            final File file = this.makeFile(contentUrl);
+            // content known not to be stored is not looked for at all
+            final File file = this.locateStoredFile(contentUrl);
             ContentReader reader = null;
-            if (file.exists())
+            if (file != null)
             {
-                final FileContentReader fileContentReader = new FileContentReader(file, contentUrl);
-                reader = fileContentReader;
+                if (FanOutWalker.isManifestFile(file))
+                {
+                    reader = new ChunkedContentReader(this, this.chunkStore, file, contentUrl);
+                }
+                else if (FanOutWalker.isCompressedFile(file))
+                {
+                    reader = new CompressedContentReader(this, file, contentUrl);
+                }
+                else
+                {
+                    reader = new HashBasedFileContentReader(this, file, contentUrl, this.handleCache);
+                }
+
+                if (this.accessSketch != null && this.isHashBasedContentUrl(contentUrl))
+                {
+                    this.recordAccess(contentUrl, file);
+                }
             }
             else
             {
@@ -134,6 +2317,7 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
 
             // done
             logger.debug("Created content reader: \n   url: {}\n   file: {}\n   reader: {}", new Object[] { contentUrl, file, reader });
+            this.metrics.recordRead(System.nanoTime() - start);
 
             return reader;
         }
@@ -149,6 +2333,12 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
 
     }
 
+    @Override
+    public boolean exists(final String contentUrl)
+    {
+        return this.isStored(contentUrl);
+    }
+
     @Override
     public boolean isWriteSupported()
     {
@@ -179,34 +2369,73 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
         return new HashBasedFileContentWriter(this, existingContentReader, this.messageDigestType);
     }
 
-    /*
-     * Implementation copied from the FileContentStore
-     *
-     * @see org.alfresco.repo.content.AbstractContentStore#delete(java.lang.String)
+    /**
+     * {@inheritDoc}
      */
     @Override
     public boolean delete(final String contentUrl)
+    {
+        return this.delete(contentUrl, this.deleteEmptyDirs);
+    }
+
+    /**
+     * Deletes content from all locations it may be stored in. The implementation has originally been copied from the FileContentStore.
+     *
+     * @param contentUrl
+     *            the content URL
+     * @param deleteEmptyParents
+     *            {@code true} if parent directories left empty should be removed, {@code false} if the caller removes empty directories
+     *            itself (e.g. once after deleting many files)
+     * @return {@code true} if the content has been deleted or did not exist
+     */
+    protected boolean delete(final String contentUrl, final boolean deleteEmptyParents)
     {
         if (this.readOnly)
         {
             throw new UnsupportedOperationException("This store is currently read-only: " + this);
         }
-        // ignore files that don't exist
-        final File file = this.makeFile(contentUrl);
-        boolean deleted = false;
-        if (!file.exists())
+        if (this.referenceJournal != null && this.referenceJournal.getReferenceCount(contentUrl) > 0)
         {
-            deleted = true;
+            logger.warn("Refusing to delete content {} which is still referenced", contentUrl);
+            return false;
         }
-        else
+
+        // ignore files that don't exist - chunks are left to the sweep of the chunk pool
+        final List<File> contentFiles = this.makeCandidateFiles(contentUrl);
+        boolean deleted = true;
+        for (int idx = 0, max = contentFiles.size(); idx < max && deleted; idx++)
+        {
+            // content may not have been migrated yet or may have been moved to the cold tier
+            final File file = ContentLocator.resolveContentFile(contentFiles.get(idx));
+            if (file != null)
+            {
+                deleted = file.delete();
+                this.handleCache.invalidate(file);
+                if (deleted && deleteEmptyParents)
+                {
+                    this.deleteEmptyParents(file);
+                }
+            }
+            else if (idx == 0 && deleteEmptyParents)
+            {
+                // parents may still have been left empty by an earlier delete
+                this.deleteEmptyParents(contentFiles.get(idx));
+            }
+        }
+
+        if (deleted && this.digestIndex != null && this.isHashBasedContentUrl(contentUrl))
+        {
+            this.digestIndex.remove(this.getDigest(contentUrl));
+        }
+
+        if (deleted && this.fingerprintCache != null)
         {
-            deleted = file.delete();
+            this.fingerprintCache.removeDigests(contentUrl);
         }
 
-        // Delete empty parents regardless of whether the file was ignore above.
-        if (this.deleteEmptyDirs && deleted)
+        if (deleted)
         {
-            Deleter.deleteEmptyParents(file, this.getRootLocation());
+            this.metrics.recordDelete();
         }
 
         // done
@@ -215,6 +2444,24 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
         return deleted;
     }
 
+    /**
+     * Removes the parent directories of a deleted content file up to the root directory of its volume, stopping at the first directory that
+     * is not empty. Each directory is removed by a single call that only succeeds if it is empty, so unlike listing the directory first,
+     * the cost does not depend on the number of files in it.
+     *
+     * @param file
+     *            the deleted file
+     */
+    protected void deleteEmptyParents(final File file)
+    {
+        final ContentVolume volume = this.getVolume(file);
+        File directory = file.getParentFile();
+        while (directory != null && volume.contains(directory) && directory.delete())
+        {
+            directory = directory.getParentFile();
+        }
+    }
+
     protected String createContentUrl(final String checksum)
     {
         ParameterCheck.mandatoryString("checksum", checksum);
@@ -224,9 +2471,12 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
             throw new IllegalArgumentException("Checksum is too short - needs to be at least 6 characters");
         }
 
-        // use the first 6 characters (3 blocks of one byte each if checksum is hex-based) for the base folder structure
-        return MessageFormat.format("{4}://{0}/{1}/{2}/{3}.bin", StringUtils.substring(checksum, 0, 2),
-                StringUtils.substring(checksum, 2, 4), StringUtils.substring(checksum, 4, 6), checksum, FileContentStore.STORE_PROTOCOL);
+        // the URL always uses the default layout (3 blocks of one byte each if checksum is hex-based) so it remains stable when the
+        // physical layout is changed
+        final StringBuilder builder = new StringBuilder(FileContentStore.STORE_PROTOCOL.length() + PROTOCOL_DELIMITER.length() + 9
+                + checksum.length() + FanOutWalker.CONTENT_FILE_EXTENSION.length());
+        builder.append(FileContentStore.STORE_PROTOCOL).append(PROTOCOL_DELIMITER);
+        return FanOutLayout.DEFAULT.appendPath(builder, checksum, '/').toString();
     }
 
     /**
@@ -255,4 +2505,21 @@ public class HashBasedFileContentStore extends AbstractContentStore implements A
     {
         this.deleteEmptyDirs = deleteEmptyDirs;
     }
+
+    private static List<String> parseMimetypes(final String mimetypes)
+    {
+        final List<String> result = new ArrayList<String>();
+        if (mimetypes != null)
+        {
+            for (final String mimetype : mimetypes.split(","))
+            {
+                final String trimmed = mimetype.trim();
+                if (trimmed.length() != 0)
+                {
+                    result.add(trimmed.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        return result;
+    }
 }
@@ -2,22 +2,24 @@ package org.alfresco.hackathon.content.stores.repo;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.util.List;
+import java.util.Map;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.repo.content.AbstractContentWriter;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentStreamListener;
 import org.alfresco.service.cmr.repository.ContentWriter;
-import org.alfresco.util.TempFileProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,11 +43,19 @@ public class HashBasedFileContentWriter extends AbstractContentWriter
 
     private final String messageDigestType;
 
-    private MessageDigest messageDigest;
+    private DigestEngine digestEngine;
 
-    public MessageDigest getMessageDigest()
+    private SpillingWritableByteChannel memoryChannel;
+
+    private long writeStartTime;
+
+    private boolean contentReused;
+
+    private Map<String, byte[]> fingerprintDigests;
+
+    public DigestEngine getDigestEngine()
     {
-        return this.messageDigest;
+        return this.digestEngine;
     }
 
     public HashBasedFileContentStore getStore()
@@ -91,6 +101,10 @@ public class HashBasedFileContentWriter extends AbstractContentWriter
         {
             return this.tempFile.length();
         }
+        if (this.memoryChannel != null && !this.memoryChannel.isSpilled() && this.size == 0)
+        {
+            return this.memoryChannel.getBufferedSize();
+        }
         return this.size;
     }
 
@@ -116,6 +130,56 @@ public class HashBasedFileContentWriter extends AbstractContentWriter
         this.contentUrl = contentUrl;
     }
 
+    /**
+     * Copies content from a reader. If the reader has been created by the store of this writer and its content is still stored, the existing
+     * content URL is simply re-used without reading or hashing the content, which makes copies of content (e.g. for versions, copied nodes
+     * or templates) a metadata-only operation.
+     *
+     * @param reader
+     *            the reader providing the content to copy
+     */
+    @Override
+    public void putContent(final ContentReader reader) throws ContentIOException
+    {
+        final String sourceContentUrl = reader.getContentUrl();
+        // only readers of this store are trusted - another store may use a different digest algorithm or a content URL that merely looks
+        // hash-based, and the digest is never verified when content is re-used
+        if (reader instanceof StoredContentReader && ((StoredContentReader) reader).getStore() == this.store && sourceContentUrl != null
+                && this.store.isHashBasedContentUrl(sourceContentUrl)
+                && this.store.reuseStoredContent(sourceContentUrl))
+        {
+            final long commitStartTime = System.nanoTime();
+            this.contentReused = true;
+            this.setContentUrl(sourceContentUrl);
+            this.setSize(reader.getSize());
+
+            // nothing is written, but closing the channel notifies listeners (e.g. to update the content property of a node)
+            try
+            {
+                this.getWritableChannel().close();
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to complete copy of content " + sourceContentUrl, e);
+            }
+
+            this.store.getMetrics().recordWrite(this.size, true, 0, 0, System.nanoTime() - commitStartTime);
+            Logger.debug("Re-used content {} without copying", sourceContentUrl);
+        }
+        else
+        {
+            super.putContent(reader);
+        }
+    }
+
+    /**
+     * @return {@code true} if the content of this writer has been set by re-using existing content instead of writing it
+     */
+    public boolean isContentReused()
+    {
+        return this.contentReused;
+    }
+
     @Override
     protected ContentReader createReader() throws ContentIOException
     {
@@ -126,26 +190,179 @@ public class HashBasedFileContentWriter extends AbstractContentWriter
     @Override
     protected WritableByteChannel getDirectWritableChannel()
     {
+        if (this.contentReused)
+        {
+            return new WritableByteChannel()
+            {
+
+                private boolean open = true;
+
+                public int write(final ByteBuffer src) throws IOException
+                {
+                    throw new IOException("Content has been re-used and can not be written");
+                }
+
+                public boolean isOpen()
+                {
+                    return this.open;
+                }
+
+                public void close()
+                {
+                    this.open = false;
+                }
+            };
+        }
+
         try
         {
-            this.tempFile = TempFileProvider.createTempFile("dedup", "tmp");
+            this.writeStartTime = System.nanoTime();
+            this.digestEngine = this.store.acquireDigestEngine(this.messageDigestType);
+            final List<String> fingerprintDigestTypes = this.store.getFingerprintDigestTypes();
+            if (!fingerprintDigestTypes.isEmpty())
+            {
+                // fingerprints are calculated from the same bytes on another thread while the actual digest is calculated
+                this.digestEngine = new FingerprintingDigestEngine(this.digestEngine, new MultiDigest(fingerprintDigestTypes, null),
+                        this.store.getFingerprintExecutor());
+            }
+
+            if (AlfrescoTransactionSupport.getTransactionReadState() != TxnReadState.TXN_NONE)
+            {
+                // engines of a stream that is never closed (e.g. due to an error of the caller) would not be released otherwise
+                AlfrescoTransactionSupport.bindListener(new DigestEngineReleaseListener());
+            }
 
-            this.messageDigest = MessageDigest.getInstance(this.messageDigestType);
-            final OutputStream os = new DigestOutputStream(new FileOutputStream(this.tempFile), this.messageDigest);
+            final DirectBufferPool smallWriteBufferPool = this.store.getSmallWriteBufferPool();
+            final WritableByteChannel channel;
+            if (smallWriteBufferPool != null)
+            {
+                // small content never needs a staging file
+                this.memoryChannel = new SpillingWritableByteChannel(this.digestEngine, new SpillingWritableByteChannel.SpillTarget()
+                {
 
-            return Channels.newChannel(os);
+                    public WritableByteChannel openSpillChannel() throws IOException
+                    {
+                        return HashBasedFileContentWriter.this.openStagingChannel();
+                    }
+                }, smallWriteBufferPool);
+                channel = this.memoryChannel;
+            }
+            else
+            {
+                channel = this.openStagingChannel();
+            }
+            return channel;
         }
         catch (final Throwable e)
         {
+            this.releaseDigestEngine();
             throw new ContentIOException("Exception in getDirectWritableChannel(): " + this, e);
         }
     }
 
+    protected WritableByteChannel openStagingChannel() throws IOException
+    {
+        // stage within the store so the finished file can simply be renamed into place
+        this.tempFile = this.store.createStagingFile();
+        final FileChannel channel = new FileOutputStream(this.tempFile).getChannel();
+
+        return this.store.createDigestingChannel(channel, this.digestEngine);
+    }
+
+    /**
+     * Completes the digest of the written content and returns the digest engine to the pool.
+     *
+     * @return the digest of the written content
+     */
+    protected byte[] completeDigest()
+    {
+        final byte[] digest = this.digestEngine.digest();
+        if (this.digestEngine instanceof FingerprintingDigestEngine)
+        {
+            this.fingerprintDigests = ((FingerprintingDigestEngine) this.digestEngine).getFingerprintDigests();
+        }
+        this.releaseDigestEngine();
+        return digest;
+    }
+
     /**
-     * @return the temp file used for the current write operation
+     * Returns the digest engine (including the engines of any fingerprint digests) to the pool, unless it has already been released.
+     */
+    protected void releaseDigestEngine()
+    {
+        if (this.digestEngine != null)
+        {
+            this.store.releaseDigestEngine(this.digestEngine);
+            this.digestEngine = null;
+        }
+    }
+
+    /**
+     * @return the digests calculated as fingerprints while the content was written mapped by their type or {@code null} if the store is
+     *         not configured to calculate fingerprints or the digest has not been {@link #completeDigest() completed} yet
+     */
+    public Map<String, byte[]> getFingerprintDigests()
+    {
+        return this.fingerprintDigests;
+    }
+
+    /**
+     * @return the {@link System#nanoTime() time} the channel to write the content has been opened
+     */
+    protected long getWriteStartTime()
+    {
+        return this.writeStartTime;
+    }
+
+    /**
+     * @return the temp file used for the current write operation or {@code null} if the content has been kept in memory
      */
     public File getTempFile()
     {
         return this.tempFile;
     }
+
+    /**
+     * @return a read-only view of the written content if it has been small enough to be kept in memory, else {@code null}
+     */
+    public ByteBuffer getBufferedContent()
+    {
+        return this.memoryChannel != null ? this.memoryChannel.getBufferedContent() : null;
+    }
+
+    /**
+     * Releases the memory held for content small enough to be kept in memory.
+     */
+    protected void releaseBufferedContent()
+    {
+        if (this.memoryChannel != null)
+        {
+            this.memoryChannel.release();
+        }
+    }
+
+    /**
+     * Releases the digest engine when the transaction the content has been written in completes without the stream having been closed.
+     */
+    protected class DigestEngineReleaseListener extends TransactionListenerAdapter
+    {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit()
+        {
+            HashBasedFileContentWriter.this.releaseDigestEngine();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterRollback()
+        {
+            HashBasedFileContentWriter.this.releaseDigestEngine();
+        }
+    }
 }
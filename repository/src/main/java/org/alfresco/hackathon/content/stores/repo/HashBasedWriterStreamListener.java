@@ -1,8 +1,8 @@
 package org.alfresco.hackathon.content.stores.repo;
 
 import java.io.File;
-import java.io.IOException;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.Set;
 
 import org.alfresco.repo.transaction.TransactionalResourceHelper;
@@ -15,7 +15,7 @@ import org.apache.commons.logging.LogFactory;
 import com.coremedia.iso.Hex;
 
 /**
- * Implements a stream listener that copies a new file to the target destination based on the has value that was created from the file.
+ * Implements a stream listener that moves a new file to the target destination based on the has value that was created from the file.
  *
  * @author Florian Maul (f.maul@fme.de)
  */
@@ -42,14 +42,20 @@ public class HashBasedWriterStreamListener implements ContentStreamListener
      */
     public void contentStreamClosed() throws ContentIOException
     {
+        if (this.writer.isContentReused())
+        {
+            // content URL and size have already been set and the content must not be deleted on rollback
+            return;
+        }
 
         final File tempFile = this.writer.getTempFile();
+        final ByteBuffer bufferedContent = this.writer.getBufferedContent();
 
-        final MessageDigest messageDigest = this.writer.getMessageDigest();
-        final String digestHex = Hex.encodeHex(messageDigest.digest());
+        final String digestHex = Hex.encodeHex(this.writer.completeDigest());
 
-        if (tempFile != null)
+        if (tempFile != null || bufferedContent != null)
         {
+            final long commitStartTime = System.nanoTime();
             try
             {
                 // need to update new content URLs in txn
@@ -58,29 +64,48 @@ public class HashBasedWriterStreamListener implements ContentStreamListener
 
                 final String contentUrl = this.store.createContentUrl(digestHex);
 
-                final File targetFile = this.store.makeFile(contentUrl);
-                if (!targetFile.exists())
+                final long size = tempFile != null ? tempFile.length() : bufferedContent.remaining();
+                // size needs to be recorded before the file is moved away
+                this.writer.setSize(size);
+
+                final boolean published;
+                if (tempFile != null)
+                {
+                    published = this.store.publishStagingFile(tempFile, contentUrl, this.writer.getMimetype());
+                }
+                else
+                {
+                    published = this.store.publishContent(bufferedContent, contentUrl, this.writer.getMimetype());
+                }
+
+                final long commitEndTime = System.nanoTime();
+                this.store.getMetrics().recordWrite(size, !published, tempFile != null ? size : 0,
+                        commitStartTime - this.writer.getWriteStartTime(), commitEndTime - commitStartTime);
+
+                if (published)
                 {
-                    // file does not exist, so mark for deletion in case of rollback
+                    // file did not exist, so mark for deletion in case of rollback
                     urlsToDelete.add(contentUrl);
-                    try
-                    {
-                        FileUtils.copyFile(tempFile, targetFile);
-                    }
-                    catch (final IOException e)
-                    {
-                        logger.error("Error copying file from temp to content store.");
-                    }
                 }
-                // else: a file with identical content already exists
+                else
+                {
+                    logger.debug("Content " + contentUrl + " already exists - discarding new content");
+                }
 
                 // now we can set the new important values for db
                 this.writer.setContentUrl(contentUrl);
-                this.writer.setSize(tempFile.length());
+
+                final Map<String, byte[]> fingerprintDigests = this.writer.getFingerprintDigests();
+                if (fingerprintDigests != null)
+                {
+                    WriteTimeDigests.register(contentUrl, fingerprintDigests);
+                }
             }
             finally
             {
+                // no-op if the file has been renamed
                 FileUtils.deleteQuietly(tempFile);
+                this.writer.releaseBufferedContent();
             }
         }
     }
@@ -0,0 +1,151 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Values are counted in logarithmic buckets with eight linear sub-buckets per power of two,
+ * so recording is a single atomic increment and percentiles are accurate to within 12.5% over the full range of values.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class LatencyHistogram
+{
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single latency.
+     *
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public void record(final long nanos)
+    {
+        final long value = Math.max(0, nanos);
+        this.counts.incrementAndGet(bucketOf(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        long currentMax = this.max.get();
+        while (value > currentMax && !this.max.compareAndSet(currentMax, value))
+        {
+            currentMax = this.max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    /**
+     * @return the mean of all recorded latencies in nanoseconds
+     */
+    public double getMean()
+    {
+        final long count = this.count.get();
+        return count > 0 ? (double) this.sum.get() / count : 0;
+    }
+
+    /**
+     * @return the maximum recorded latency in nanoseconds
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    /**
+     * Determines an approximation of a percentile of the recorded latencies.
+     *
+     * @param percentile
+     *            the percentile (0-100)
+     * @return the latency in nanoseconds
+     */
+    public long getPercentile(final double percentile)
+    {
+        final long count = this.count.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            seen += this.counts.get(bucket);
+            if (seen >= rank)
+            {
+                // middle of the bucket but never more than the actual maximum
+                return Math.min(this.max.get(), lowerBoundOf(bucket) + (widthOf(bucket) - 1) / 2);
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Resets all recorded latencies. Latencies recorded concurrently may be partially lost.
+     */
+    public void reset()
+    {
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            this.counts.set(bucket, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+
+    protected static int bucketOf(final long value)
+    {
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int bucket;
+        if (exponent < SUB_BUCKET_BITS)
+        {
+            bucket = (int) value;
+        }
+        else
+        {
+            bucket = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        }
+        return bucket;
+    }
+
+    protected static long lowerBoundOf(final int bucket)
+    {
+        final long lowerBound;
+        if (bucket < SUB_BUCKETS)
+        {
+            lowerBound = bucket;
+        }
+        else
+        {
+            final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+        return lowerBound;
+    }
+
+    protected static long widthOf(final int bucket)
+    {
+        return bucket < SUB_BUCKETS ? 1 : 1l << (bucket / SUB_BUCKETS - 1);
+    }
+}
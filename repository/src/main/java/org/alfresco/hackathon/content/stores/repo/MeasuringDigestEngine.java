@@ -0,0 +1,94 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Digest engine wrapper recording the number of hashed bytes and the time spent hashing them in {@link ContentStoreMetrics}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class MeasuringDigestEngine implements DigestEngine
+{
+
+    private final DigestEngine delegate;
+
+    private final ContentStoreMetrics metrics;
+
+    /**
+     * Creates a new engine instance.
+     *
+     * @param delegate
+     *            the engine calculating the actual digest
+     * @param metrics
+     *            the metrics to record hashing in
+     */
+    public MeasuringDigestEngine(final DigestEngine delegate, final ContentStoreMetrics metrics)
+    {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the engine calculating the actual digest
+     */
+    public DigestEngine getDelegate()
+    {
+        return this.delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithm()
+    {
+        return this.delegate.getAlgorithm();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDigestLength()
+    {
+        return this.delegate.getDigestLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final byte[] input, final int offset, final int length)
+    {
+        final long start = System.nanoTime();
+        this.delegate.update(input, offset, length);
+        this.metrics.recordHashing(length, System.nanoTime() - start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final ByteBuffer input)
+    {
+        final int length = input.remaining();
+        final long start = System.nanoTime();
+        this.delegate.update(input);
+        this.metrics.recordHashing(length, System.nanoTime() - start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] digest()
+    {
+        final long start = System.nanoTime();
+        final byte[] digest = this.delegate.digest();
+        this.metrics.recordHashing(0, System.nanoTime() - start);
+        return digest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        this.delegate.reset();
+    }
+}
@@ -0,0 +1,74 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Adapts a {@link MessageDigest} of the Java Cryptography Architecture to the {@link DigestEngine} interface.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class MessageDigestEngine implements DigestEngine
+{
+
+    private final MessageDigest messageDigest;
+
+    /**
+     * Creates a new engine instance.
+     *
+     * @param messageDigest
+     *            the message digest to adapt
+     */
+    public MessageDigestEngine(final MessageDigest messageDigest)
+    {
+        this.messageDigest = messageDigest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithm()
+    {
+        return this.messageDigest.getAlgorithm();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDigestLength()
+    {
+        return this.messageDigest.getDigestLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final byte[] input, final int offset, final int length)
+    {
+        this.messageDigest.update(input, offset, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final ByteBuffer input)
+    {
+        this.messageDigest.update(input);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] digest()
+    {
+        return this.messageDigest.digest();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        this.messageDigest.reset();
+    }
+}
@@ -0,0 +1,202 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Calculates digests of multiple types over the same content in a single pass. Each buffer of content is handed to all
+ * {@link DigestEngine engines} - sequentially on the calling thread or, if an executor is provided, with one task per engine so that the
+ * digests are calculated on separate cores while the caller reads the next buffer.
+ *
+ * When an executor is used, {@link #update(ByteBuffer) updates} are asynchronous: a buffer must not be modified until the next call to
+ * {@link #update(ByteBuffer) update} or {@link #digest() digest} has returned, so callers typically alternate between two buffers.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class MultiDigest
+{
+
+    private final List<String> digestTypes;
+
+    private final List<DigestEngine> engines;
+
+    private final Executor executor;
+
+    private CountDownLatch pendingUpdates;
+
+    private volatile Throwable updateFailure;
+
+    /**
+     * Creates a new instance for a list of digest types.
+     *
+     * @param digestTypes
+     *            the types of digests to calculate
+     * @param executor
+     *            the executor to update the digests on or {@code null} if they should be updated on the calling thread
+     * @throws NoSuchAlgorithmException
+     *             if any of the digest types is not supported
+     */
+    public MultiDigest(final List<String> digestTypes, final Executor executor) throws NoSuchAlgorithmException
+    {
+        this.digestTypes = new ArrayList<String>(digestTypes);
+        this.engines = new ArrayList<DigestEngine>(digestTypes.size());
+        try
+        {
+            for (final String digestType : digestTypes)
+            {
+                this.engines.add(DigestEngines.acquire(digestType));
+            }
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            this.release();
+            throw e;
+        }
+        // a single digest gains nothing from being hashed on another thread
+        this.executor = this.engines.size() > 1 ? executor : null;
+    }
+
+    /**
+     * Updates all digests with the remaining bytes of a buffer. The position of the buffer is not modified.
+     *
+     * @param buffer
+     *            the buffer holding the bytes
+     */
+    public void update(final ByteBuffer buffer)
+    {
+        if (this.executor == null)
+        {
+            for (final DigestEngine engine : this.engines)
+            {
+                engine.update(buffer.duplicate());
+            }
+        }
+        else
+        {
+            // digests need to process buffers in order
+            this.awaitPendingUpdates();
+
+            final CountDownLatch latch = new CountDownLatch(this.engines.size());
+            this.pendingUpdates = latch;
+            for (final DigestEngine engine : this.engines)
+            {
+                final ByteBuffer view = buffer.duplicate();
+                final Runnable update = new Runnable()
+                {
+
+                    public void run()
+                    {
+                        try
+                        {
+                            if (MultiDigest.this.updateFailure == null)
+                            {
+                                engine.update(view);
+                            }
+                        }
+                        catch (final Throwable e)
+                        {
+                            MultiDigest.this.updateFailure = e;
+                        }
+                        finally
+                        {
+                            latch.countDown();
+                        }
+                    }
+                };
+
+                try
+                {
+                    this.executor.execute(update);
+                }
+                catch (final RejectedExecutionException e)
+                {
+                    // executor has been shut down - hash on this thread instead
+                    update.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes the calculation of all digests and releases the engines.
+     *
+     * @return the digests mapped by their type in the order of the types
+     */
+    public Map<String, byte[]> digest()
+    {
+        try
+        {
+            this.awaitPendingUpdates();
+
+            final Map<String, byte[]> digests = new LinkedHashMap<String, byte[]>();
+            for (int idx = 0; idx < this.engines.size(); idx++)
+            {
+                digests.put(this.digestTypes.get(idx), this.engines.get(idx).digest());
+            }
+            return digests;
+        }
+        finally
+        {
+            this.release();
+        }
+    }
+
+    /**
+     * Releases the engines without completing the digests. This instance must no longer be used.
+     */
+    public void release()
+    {
+        if (this.pendingUpdates != null)
+        {
+            // engines may still be in use by update tasks
+            try
+            {
+                this.pendingUpdates.await();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                this.engines.clear();
+            }
+            this.pendingUpdates = null;
+        }
+
+        for (final DigestEngine engine : this.engines)
+        {
+            DigestEngines.release(engine);
+        }
+        this.engines.clear();
+    }
+
+    protected void awaitPendingUpdates()
+    {
+        if (this.pendingUpdates != null)
+        {
+            try
+            {
+                this.pendingUpdates.await();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new AlfrescoRuntimeException("Interrupted while waiting for digests to be updated", e);
+            }
+            this.pendingUpdates = null;
+        }
+
+        final Throwable failure = this.updateFailure;
+        if (failure != null)
+        {
+            throw new AlfrescoRuntimeException("Failed to update digest", failure);
+        }
+    }
+}
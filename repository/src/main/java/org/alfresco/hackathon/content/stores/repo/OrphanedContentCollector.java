@@ -0,0 +1,264 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.repo.domain.contentdata.ContentDataDAO;
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Incrementally deletes content of a {@link HashBasedFileContentStore} that has been orphaned according to a
+ * {@link ContentReferenceJournal}. Each run only processes orphans that have aged beyond a grace period, in small batches with pauses in
+ * between, so the cost of cleanup is proportional to the churn of content and not the size of the store.
+ *
+ * As a safeguard against content referenced before reference counting was enabled, content is only deleted if Alfresco itself does not
+ * consider the content URL to be referenced anymore.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class OrphanedContentCollector implements InitializingBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OrphanedContentCollector.class);
+
+    private static final QName LOCK_QNAME = QName.createQName(ContentStoresModel.NAMESPACE_URI, "OrphanedContentCollector");
+
+    private static final long LOCK_TTL = 60000l;
+
+    private HashBasedFileContentStore store;
+
+    private ContentReferenceJournal referenceJournal;
+
+    private ContentDataDAO contentDataDAO;
+
+    private TransactionService transactionService;
+
+    private JobLockService jobLockService;
+
+    // 1 hour
+    private long orphanGracePeriod = 60 * 60 * 1000l;
+
+    private int batchSize = 100;
+
+    private int maxBatchesPerRun = 50;
+
+    private long batchPause = 1000l;
+
+    /**
+     * @param store
+     *            the store to set
+     */
+    public void setStore(final HashBasedFileContentStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @param referenceJournal
+     *            the referenceJournal to set
+     */
+    public void setReferenceJournal(final ContentReferenceJournal referenceJournal)
+    {
+        this.referenceJournal = referenceJournal;
+    }
+
+    /**
+     * @param contentDataDAO
+     *            the contentDataDAO to set
+     */
+    public void setContentDataDAO(final ContentDataDAO contentDataDAO)
+    {
+        this.contentDataDAO = contentDataDAO;
+    }
+
+    /**
+     * @param transactionService
+     *            the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param jobLockService
+     *            the jobLockService to set
+     */
+    public void setJobLockService(final JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * @param orphanGracePeriod
+     *            the time (in milliseconds) content needs to have been orphaned before it is collected
+     */
+    public void setOrphanGracePeriod(final long orphanGracePeriod)
+    {
+        this.orphanGracePeriod = orphanGracePeriod;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of orphans to process in one transaction
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxBatchesPerRun
+     *            the maximum number of batches to process in one run
+     */
+    public void setMaxBatchesPerRun(final int maxBatchesPerRun)
+    {
+        this.maxBatchesPerRun = maxBatchesPerRun;
+    }
+
+    /**
+     * @param batchPause
+     *            the time (in milliseconds) to pause between two batches
+     */
+    public void setBatchPause(final long batchPause)
+    {
+        this.batchPause = batchPause;
+    }
+
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "store", this.store);
+        PropertyCheck.mandatory(this, "referenceJournal", this.referenceJournal);
+        PropertyCheck.mandatory(this, "contentDataDAO", this.contentDataDAO);
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "jobLockService", this.jobLockService);
+    }
+
+    /**
+     * Runs a single collection pass, provided no other server in the cluster is currently running one.
+     *
+     * @return the number of deleted content files
+     */
+    public int collect()
+    {
+        final String lockToken;
+        try
+        {
+            lockToken = this.jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+        }
+        catch (final LockAcquisitionException e)
+        {
+            LOGGER.debug("Orphaned content collection already running elsewhere");
+            return 0;
+        }
+
+        int deleted = 0;
+        try
+        {
+            final RetryingTransactionHelper txnHelper = this.transactionService.getRetryingTransactionHelper();
+            final long orphanedBefore = System.currentTimeMillis() - this.orphanGracePeriod;
+            // orphans that can't be collected yet must not keep the run from getting to the orphans after them
+            final Set<String> skippedOrphans = new HashSet<String>();
+
+            for (int batch = 0; batch < this.maxBatchesPerRun; batch++)
+            {
+                if (batch > 0 && this.batchPause > 0)
+                {
+                    Thread.sleep(this.batchPause);
+                }
+                this.jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+
+                final int batchDeleted = txnHelper.doInTransaction(new RetryingTransactionCallback<Integer>()
+                {
+
+                    public Integer execute() throws Throwable
+                    {
+                        return Integer.valueOf(OrphanedContentCollector.this.collectBatch(orphanedBefore, skippedOrphans));
+                    }
+                }, false, true).intValue();
+
+                if (batchDeleted < 0)
+                {
+                    // no more orphans that can be processed now
+                    break;
+                }
+                deleted += batchDeleted;
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            this.jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+
+        LOGGER.debug("Collected {} orphaned content files", Integer.valueOf(deleted));
+        return deleted;
+    }
+
+    /**
+     * Processes a single batch of orphans within a transaction.
+     *
+     * @param orphanedBefore
+     *            the time before which content needs to have been orphaned
+     * @param skippedOrphans
+     *            the orphans skipped in previous batches of the current run - orphans skipped in this batch are added
+     * @return the number of deleted content files or {@code -1} if there were no more orphans to process
+     */
+    protected int collectBatch(final long orphanedBefore, final Set<String> skippedOrphans)
+    {
+        final List<String> orphans = this.referenceJournal.getOrphans(orphanedBefore, this.batchSize, skippedOrphans);
+
+        int deleted = 0;
+        for (final String contentUrl : orphans)
+        {
+            if (this.referenceJournal.getReferenceCount(contentUrl) > 0)
+            {
+                LOGGER.debug("Content {} has been referenced again", contentUrl);
+            }
+            else if (this.isReferencedByAlfresco(contentUrl))
+            {
+                LOGGER.debug("Content {} is still referenced according to Alfresco", contentUrl);
+                this.referenceJournal.reconcileReference(contentUrl);
+                continue;
+            }
+            else if (!this.store.isModifiedSince(contentUrl, orphanedBefore))
+            {
+                if (this.store.delete(contentUrl))
+                {
+                    deleted++;
+                }
+            }
+            else
+            {
+                // content has been re-used by a de-duplicated write - it will be referenced soon
+                LOGGER.debug("Content {} has been written again recently", contentUrl);
+                skippedOrphans.add(contentUrl);
+                continue;
+            }
+
+            this.referenceJournal.removeOrphan(contentUrl);
+        }
+
+        return orphans.isEmpty() ? -1 : deleted;
+    }
+
+    protected boolean isReferencedByAlfresco(final String contentUrl)
+    {
+        final ContentUrlEntity contentUrlEntity = this.contentDataDAO.getContentUrl(contentUrl);
+        return contentUrlEntity != null && contentUrlEntity.getOrphanTime() == null;
+    }
+}
@@ -0,0 +1,30 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Quartz job triggering a run of an {@link OrphanedContentCollector} provided via the job data key {@code collector}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class OrphanedContentCollectorJob implements Job
+{
+
+    public static final String KEY_COLLECTOR = "collector";
+
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        final JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        final Object collector = jobData.get(KEY_COLLECTOR);
+        if (!(collector instanceof OrphanedContentCollector))
+        {
+            throw new AlfrescoRuntimeException("OrphanedContentCollectorJob data must contain a valid '" + KEY_COLLECTOR + "' reference");
+        }
+
+        ((OrphanedContentCollector) collector).collect();
+    }
+}
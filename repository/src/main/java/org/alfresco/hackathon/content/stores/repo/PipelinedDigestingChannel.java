@@ -0,0 +1,290 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Channel writing content to a file while updating a {@link DigestEngine} in a separate pipeline stage. Written bytes are collected in
+ * pooled direct buffers - each full buffer is written to the file by the calling thread while it is hashed on an executor at the same time,
+ * so the throughput of a write approaches the slower of disk and digest instead of their combined cost.
+ *
+ * The number of buffers in flight is bounded, so a digest that is slower than the disk eventually blocks further writes. The digest is only
+ * complete once the channel has been {@link #close() closed}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class PipelinedDigestingChannel implements WritableByteChannel
+{
+
+    private final FileChannel channel;
+
+    private final DigestEngine digestEngine;
+
+    private final DirectBufferPool bufferPool;
+
+    private final Executor executor;
+
+    private final int maxBuffersInFlight;
+
+    private final Semaphore buffersInFlight;
+
+    private final Queue<PipelinedBuffer> hashQueue = new ConcurrentLinkedQueue<PipelinedBuffer>();
+
+    private final AtomicBoolean hashing = new AtomicBoolean();
+
+    private final Runnable hashStage = new Runnable()
+    {
+
+        public void run()
+        {
+            PipelinedDigestingChannel.this.drainHashQueue();
+        }
+    };
+
+    private volatile Throwable hashFailure;
+
+    private ByteBuffer currentBuffer;
+
+    private boolean open = true;
+
+    /**
+     * Creates a new channel instance.
+     *
+     * @param channel
+     *            the channel of the file to write to
+     * @param digestEngine
+     *            the engine to update - the engine must not be used by the caller until this channel has been closed
+     * @param bufferPool
+     *            the pool of buffers to use
+     * @param executor
+     *            the executor to hash buffers with
+     * @param maxBuffersInFlight
+     *            the maximum number of buffers being written or hashed at the same time
+     */
+    public PipelinedDigestingChannel(final FileChannel channel, final DigestEngine digestEngine, final DirectBufferPool bufferPool,
+            final Executor executor, final int maxBuffersInFlight)
+    {
+        if (maxBuffersInFlight <= 0)
+        {
+            throw new IllegalArgumentException("maxBuffersInFlight must be positive");
+        }
+
+        this.channel = channel;
+        this.digestEngine = digestEngine;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+        this.maxBuffersInFlight = maxBuffersInFlight;
+        this.buffersInFlight = new Semaphore(maxBuffersInFlight);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int write(final ByteBuffer src) throws IOException
+    {
+        if (!this.open)
+        {
+            throw new ClosedChannelException();
+        }
+        this.checkHashFailure();
+
+        final int written = src.remaining();
+        while (src.hasRemaining())
+        {
+            if (this.currentBuffer == null)
+            {
+                this.acquireBuffer();
+            }
+
+            final int length = Math.min(src.remaining(), this.currentBuffer.remaining());
+            final ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            this.currentBuffer.put(slice);
+            src.position(src.position() + length);
+
+            if (!this.currentBuffer.hasRemaining())
+            {
+                this.dispatchBuffer();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean isOpen()
+    {
+        return this.open;
+    }
+
+    /**
+     * Flushes all buffered bytes, waits for the digest stage to complete and closes the file.
+     *
+     * @throws IOException
+     *             if any bytes could not be written or hashed
+     */
+    public synchronized void close() throws IOException
+    {
+        if (this.open)
+        {
+            this.open = false;
+            try
+            {
+                if (this.currentBuffer != null && this.currentBuffer.position() > 0)
+                {
+                    this.dispatchBuffer();
+                }
+
+                // all buffers have been completed once all permits can be obtained
+                this.buffersInFlight.acquire(this.maxBuffersInFlight);
+                this.buffersInFlight.release(this.maxBuffersInFlight);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the digest to complete");
+            }
+            finally
+            {
+                if (this.currentBuffer != null)
+                {
+                    this.bufferPool.release(this.currentBuffer);
+                    this.currentBuffer = null;
+                }
+                this.channel.close();
+            }
+
+            this.checkHashFailure();
+        }
+    }
+
+    protected void acquireBuffer() throws IOException
+    {
+        try
+        {
+            // back pressure - blocks while the digest stage is lagging behind
+            this.buffersInFlight.acquire();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a write buffer");
+        }
+        this.currentBuffer = this.bufferPool.acquire();
+    }
+
+    protected void dispatchBuffer() throws IOException
+    {
+        this.currentBuffer.flip();
+        final PipelinedBuffer buffer = new PipelinedBuffer(this.currentBuffer);
+        this.currentBuffer = null;
+
+        // hash stage first, so it runs while this thread is blocked in the write
+        this.hashQueue.offer(buffer);
+        this.scheduleHashStage();
+
+        try
+        {
+            final ByteBuffer writeView = buffer.buffer.duplicate();
+            while (writeView.hasRemaining())
+            {
+                this.channel.write(writeView);
+            }
+        }
+        finally
+        {
+            this.completeStage(buffer);
+        }
+    }
+
+    protected void scheduleHashStage()
+    {
+        if (this.hashing.compareAndSet(false, true))
+        {
+            try
+            {
+                this.executor.execute(this.hashStage);
+            }
+            catch (final RejectedExecutionException e)
+            {
+                // executor has been shut down - hash on this thread instead
+                this.drainHashQueue();
+            }
+        }
+    }
+
+    protected void drainHashQueue()
+    {
+        do
+        {
+            PipelinedBuffer buffer;
+            while ((buffer = this.hashQueue.poll()) != null)
+            {
+                try
+                {
+                    if (this.hashFailure == null)
+                    {
+                        this.digestEngine.update(buffer.buffer.duplicate());
+                    }
+                }
+                catch (final Throwable e)
+                {
+                    this.hashFailure = e;
+                }
+                finally
+                {
+                    this.completeStage(buffer);
+                }
+            }
+            this.hashing.set(false);
+            // a buffer may have been queued after the queue was found empty but before the flag was reset
+        }
+        while (!this.hashQueue.isEmpty() && this.hashing.compareAndSet(false, true));
+    }
+
+    protected void completeStage(final PipelinedBuffer buffer)
+    {
+        if (buffer.pendingStages.decrementAndGet() == 0)
+        {
+            this.bufferPool.release(buffer.buffer);
+            this.buffersInFlight.release();
+        }
+    }
+
+    protected void checkHashFailure() throws IOException
+    {
+        final Throwable failure = this.hashFailure;
+        if (failure != null)
+        {
+            throw new IOException("Failed to calculate digest of written content", failure);
+        }
+    }
+
+    /**
+     * Buffer passing through the write and digest stages.
+     */
+    protected static class PipelinedBuffer
+    {
+
+        private final ByteBuffer buffer;
+
+        private final AtomicInteger pendingStages = new AtomicInteger(2);
+
+        protected PipelinedBuffer(final ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+    }
+}
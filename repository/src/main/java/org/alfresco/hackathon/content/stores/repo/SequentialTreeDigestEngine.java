@@ -0,0 +1,158 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest engine calculating the same digest as a {@link TreeDigestEngine}, but hashing each leaf on the calling thread while it is
+ * updated. It neither buffers leaves nor requires an executor, which makes it suitable for verifying stored content on threads that are
+ * already limited in number and rate.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class SequentialTreeDigestEngine implements DigestEngine
+{
+
+    private static final byte[] LEAF_PREFIX = { 0x00 };
+
+    private static final byte[] ROOT_PREFIX = { 0x01 };
+
+    private final String leafAlgorithm;
+
+    private final int leafSize;
+
+    private final DigestEngine leafEngine;
+
+    private final DigestEngine rootEngine;
+
+    private int currentLeafLength;
+
+    /**
+     * Creates a new engine instance.
+     *
+     * @param leafAlgorithm
+     *            the name of the algorithm to use for leaves and root
+     * @param leafSize
+     *            the size of a leaf in bytes
+     * @throws NoSuchAlgorithmException
+     *             if the leaf algorithm is not supported
+     */
+    public SequentialTreeDigestEngine(final String leafAlgorithm, final int leafSize) throws NoSuchAlgorithmException
+    {
+        if (leafSize <= 0)
+        {
+            throw new IllegalArgumentException("leafSize must be positive");
+        }
+
+        this.leafAlgorithm = leafAlgorithm;
+        this.leafSize = leafSize;
+        this.leafEngine = DigestEngines.acquire(leafAlgorithm);
+        this.leafEngine.update(LEAF_PREFIX, 0, LEAF_PREFIX.length);
+        this.rootEngine = DigestEngines.acquire(leafAlgorithm);
+        this.rootEngine.update(ROOT_PREFIX, 0, ROOT_PREFIX.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithm()
+    {
+        return this.leafAlgorithm + "-TREE";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDigestLength()
+    {
+        return this.rootEngine.getDigestLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final byte[] input, final int offset, final int length)
+    {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end)
+        {
+            final int take = Math.min(this.prepareLeaf(), end - position);
+            this.leafEngine.update(input, position, take);
+            this.currentLeafLength += take;
+            position += take;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final ByteBuffer input)
+    {
+        while (input.hasRemaining())
+        {
+            final int take = Math.min(this.prepareLeaf(), input.remaining());
+            final ByteBuffer leafInput = input.duplicate();
+            leafInput.limit(leafInput.position() + take);
+            this.leafEngine.update(leafInput);
+            input.position(input.position() + take);
+            this.currentLeafLength += take;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] digest()
+    {
+        // the last leaf (possibly empty) is always part of the tree
+        this.completeLeaf();
+
+        final byte[] digest = this.rootEngine.digest();
+        this.rootEngine.update(ROOT_PREFIX, 0, ROOT_PREFIX.length);
+        return digest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        this.leafEngine.reset();
+        this.leafEngine.update(LEAF_PREFIX, 0, LEAF_PREFIX.length);
+        this.rootEngine.reset();
+        this.rootEngine.update(ROOT_PREFIX, 0, ROOT_PREFIX.length);
+        this.currentLeafLength = 0;
+    }
+
+    /**
+     * Releases all resources held by this engine. The engine must no longer be used afterwards.
+     */
+    public void release()
+    {
+        DigestEngines.release(this.leafEngine);
+        DigestEngines.release(this.rootEngine);
+    }
+
+    /**
+     * Completes the current leaf if it is full, since a full leaf is only followed by another leaf if more input follows.
+     *
+     * @return the free space in the current leaf
+     */
+    protected int prepareLeaf()
+    {
+        if (this.currentLeafLength == this.leafSize)
+        {
+            this.completeLeaf();
+        }
+        return this.leafSize - this.currentLeafLength;
+    }
+
+    protected void completeLeaf()
+    {
+        final byte[] leafDigest = this.leafEngine.digest();
+        this.rootEngine.update(leafDigest, 0, leafDigest.length);
+        this.leafEngine.update(LEAF_PREFIX, 0, LEAF_PREFIX.length);
+        this.currentLeafLength = 0;
+    }
+}
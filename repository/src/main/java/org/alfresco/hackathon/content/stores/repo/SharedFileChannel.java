@@ -0,0 +1,115 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only file channel over a {@link FileHandleCache.FileHandle shared file handle}. Each channel tracks its own position and only uses
+ * position based operations on the shared handle, so any number of channels can read the same file concurrently. Reads are served from the
+ * memory-mapped view of the file if it has been mapped, and transfers use the zero-copy transfer of the underlying channel.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class SharedFileChannel extends AbstractReadOnlyFileChannel
+{
+
+    private final FileHandleCache handleCache;
+
+    private final FileHandleCache.FileHandle handle;
+
+    private final ByteBuffer mappedView;
+
+    /**
+     * Creates a new channel instance.
+     *
+     * @param handleCache
+     *            the cache the handle has been obtained from
+     * @param handle
+     *            the handle - it will be released when this channel is closed
+     */
+    public SharedFileChannel(final FileHandleCache handleCache, final FileHandleCache.FileHandle handle)
+    {
+        this.handleCache = handleCache;
+        this.handle = handle;
+        this.mappedView = handle.getMappedView();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final ByteBuffer dst, final long position) throws IOException
+    {
+        this.ensureOpen();
+        if (position < 0)
+        {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+
+        final int read;
+        if (position >= this.handle.getSize())
+        {
+            read = -1;
+        }
+        else if (this.mappedView != null)
+        {
+            synchronized (this.mappedView)
+            {
+                read = (int) Math.min(dst.remaining(), this.handle.getSize() - position);
+                this.mappedView.limit((int) position + read).position((int) position);
+                dst.put(this.mappedView);
+            }
+        }
+        else
+        {
+            read = this.handle.getChannel().read(dst, position);
+        }
+        return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() throws IOException
+    {
+        this.ensureOpen();
+        return this.handle.getSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException
+    {
+        this.ensureOpen();
+        return this.handle.getChannel().transferTo(position, count, target);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException
+    {
+        this.ensureOpen();
+        if (mode != MapMode.READ_ONLY)
+        {
+            throw new NonWritableChannelException();
+        }
+        return this.handle.getChannel().map(mode, position, size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        this.handleCache.release(this.handle);
+    }
+}
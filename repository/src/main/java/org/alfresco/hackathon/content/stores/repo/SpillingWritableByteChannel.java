@@ -0,0 +1,173 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel collecting written bytes in a memory buffer as long as they fit, only opening the actual target channel (spilling) once the
+ * buffer would overflow. Content that fits completely into the buffer is digested on close and can be published from memory without ever
+ * touching a staging file.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class SpillingWritableByteChannel implements WritableByteChannel
+{
+
+    /**
+     * Callback interface for opening the target channel when buffered content needs to be spilled.
+     */
+    public interface SpillTarget
+    {
+
+        /**
+         * Opens the channel to spill to. All bytes written to the channel must be digested by it.
+         *
+         * @return the channel
+         * @throws IOException
+         *             if the channel cannot be opened
+         */
+        WritableByteChannel openSpillChannel() throws IOException;
+    }
+
+    private final DigestEngine digestEngine;
+
+    private final SpillTarget spillTarget;
+
+    private final DirectBufferPool bufferPool;
+
+    private ByteBuffer buffer;
+
+    private WritableByteChannel spillChannel;
+
+    private boolean open = true;
+
+    /**
+     * Creates a new channel instance.
+     *
+     * @param digestEngine
+     *            the engine to update with content that is not spilled
+     * @param spillTarget
+     *            the target to spill to
+     * @param bufferPool
+     *            the pool to obtain the memory buffer from and return it to when spilling
+     */
+    public SpillingWritableByteChannel(final DigestEngine digestEngine, final SpillTarget spillTarget, final DirectBufferPool bufferPool)
+    {
+        this.digestEngine = digestEngine;
+        this.spillTarget = spillTarget;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int write(final ByteBuffer src) throws IOException
+    {
+        if (!this.open)
+        {
+            throw new ClosedChannelException();
+        }
+
+        final int written;
+        if (this.spillChannel == null && src.remaining() <= this.buffer.remaining())
+        {
+            written = src.remaining();
+            this.buffer.put(src);
+        }
+        else
+        {
+            if (this.spillChannel == null)
+            {
+                this.spill();
+            }
+            written = this.spillChannel.write(src);
+        }
+        return written;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean isOpen()
+    {
+        return this.open;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void close() throws IOException
+    {
+        if (this.open)
+        {
+            this.open = false;
+            if (this.spillChannel != null)
+            {
+                this.spillChannel.close();
+            }
+            else
+            {
+                this.buffer.flip();
+                this.digestEngine.update(this.buffer.duplicate());
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the content has been spilled to the target channel
+     */
+    public synchronized boolean isSpilled()
+    {
+        return this.spillChannel != null;
+    }
+
+    /**
+     * @return the number of bytes held in memory
+     */
+    public synchronized int getBufferedSize()
+    {
+        int size = 0;
+        if (this.buffer != null)
+        {
+            size = this.open ? this.buffer.position() : this.buffer.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Retrieves the content held in memory after the channel has been closed.
+     *
+     * @return a read-only view of the content or {@code null} if the content has been spilled or the channel is still open
+     */
+    public synchronized ByteBuffer getBufferedContent()
+    {
+        return !this.open && this.buffer != null ? this.buffer.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Returns the memory buffer to the pool. Any views obtained via {@link #getBufferedContent()} must no longer be used.
+     */
+    public synchronized void release()
+    {
+        if (this.buffer != null)
+        {
+            this.bufferPool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    protected void spill() throws IOException
+    {
+        this.spillChannel = this.spillTarget.openSpillChannel();
+
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+        {
+            this.spillChannel.write(this.buffer);
+        }
+        this.release();
+    }
+}
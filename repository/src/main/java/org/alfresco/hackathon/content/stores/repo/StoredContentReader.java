@@ -0,0 +1,17 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+
+/**
+ * Reader for content stored in a {@link HashBasedFileContentStore}, providing access to the store that created it.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public interface StoredContentReader extends ContentReader
+{
+
+    /**
+     * @return the store that created this reader
+     */
+    HashBasedFileContentStore getStore();
+}
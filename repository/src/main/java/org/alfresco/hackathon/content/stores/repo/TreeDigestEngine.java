@@ -0,0 +1,284 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Digest engine calculating a two-level hash tree over fixed-size leaves of the input, so that the leaves of large content can be hashed
+ * in parallel while the content is still being written. The digest is defined as
+ *
+ * <pre>
+ * leaf(i) = H(0x00 || data[i * leafSize, (i + 1) * leafSize))
+ * root    = H(0x01 || leaf(0) || leaf(1) || ... || leaf(n))
+ * </pre>
+ *
+ * with {@code H} being the configured leaf algorithm. The prefixes keep leaf and root inputs apart. Content not larger than a single leaf
+ * still consists of exactly one leaf (possibly empty), so the digest differs from the plain digest of the leaf algorithm for all content.
+ *
+ * Full leaves are handed to an executor, while the last (partial) leaf is hashed on the calling thread when the digest is requested. The
+ * number of leaves waiting to be hashed is bounded, so memory use per engine is limited to a few leaves.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class TreeDigestEngine implements DigestEngine
+{
+
+    private static final byte[] LEAF_PREFIX = { 0x00 };
+
+    private static final byte[] ROOT_PREFIX = { 0x01 };
+
+    private final String leafAlgorithm;
+
+    private final int leafSize;
+
+    private final ExecutorService executor;
+
+    private final int maxPendingLeaves;
+
+    private final Queue<Future<byte[]>> pendingLeaves = new LinkedList<Future<byte[]>>();
+
+    // buffers of hashed leaves, re-used for subsequent leaves
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private final DigestEngine rootEngine;
+
+    private byte[] currentLeaf;
+
+    private int currentLeafLength;
+
+    /**
+     * Creates a new engine instance.
+     *
+     * @param leafAlgorithm
+     *            the name of the algorithm to use for leaves and root
+     * @param leafSize
+     *            the size of a leaf in bytes
+     * @param executor
+     *            the executor to hash full leaves with
+     * @param maxPendingLeaves
+     *            the maximum number of full leaves that may be waiting to be hashed before further updates block
+     * @throws NoSuchAlgorithmException
+     *             if the leaf algorithm is not supported
+     */
+    public TreeDigestEngine(final String leafAlgorithm, final int leafSize, final ExecutorService executor, final int maxPendingLeaves)
+            throws NoSuchAlgorithmException
+    {
+        if (leafSize <= 0)
+        {
+            throw new IllegalArgumentException("leafSize must be positive");
+        }
+        if (maxPendingLeaves <= 0)
+        {
+            throw new IllegalArgumentException("maxPendingLeaves must be positive");
+        }
+
+        this.leafAlgorithm = leafAlgorithm;
+        this.leafSize = leafSize;
+        this.executor = executor;
+        this.maxPendingLeaves = maxPendingLeaves;
+        this.rootEngine = DigestEngines.acquire(leafAlgorithm);
+        this.rootEngine.update(ROOT_PREFIX, 0, ROOT_PREFIX.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithm()
+    {
+        return this.leafAlgorithm + "-TREE";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getDigestLength()
+    {
+        return this.rootEngine.getDigestLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final byte[] input, final int offset, final int length)
+    {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end)
+        {
+            final int take = Math.min(this.prepareLeaf(), end - position);
+            System.arraycopy(input, position, this.currentLeaf, this.currentLeafLength, take);
+            this.currentLeafLength += take;
+            position += take;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(final ByteBuffer input)
+    {
+        while (input.hasRemaining())
+        {
+            final int take = Math.min(this.prepareLeaf(), input.remaining());
+            input.get(this.currentLeaf, this.currentLeafLength, take);
+            this.currentLeafLength += take;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] digest()
+    {
+        // last leaf (possibly empty) is hashed directly - for small content there is no point in handing off to another thread
+        final byte[] lastLeaf = this.currentLeaf != null ? this.currentLeaf : new byte[0];
+        final byte[] lastLeafDigest = new LeafHashTask(lastLeaf, this.currentLeafLength).call();
+        this.currentLeaf = null;
+        this.currentLeafLength = 0;
+
+        while (!this.pendingLeaves.isEmpty())
+        {
+            this.completeOldestLeaf();
+        }
+        this.rootEngine.update(lastLeafDigest, 0, lastLeafDigest.length);
+
+        final byte[] digest = this.rootEngine.digest();
+        this.rootEngine.update(ROOT_PREFIX, 0, ROOT_PREFIX.length);
+        return digest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        Future<byte[]> pendingLeaf;
+        while ((pendingLeaf = this.pendingLeaves.poll()) != null)
+        {
+            pendingLeaf.cancel(false);
+        }
+        this.currentLeafLength = 0;
+        this.rootEngine.reset();
+        this.rootEngine.update(ROOT_PREFIX, 0, ROOT_PREFIX.length);
+    }
+
+    /**
+     * Releases all resources held by this engine. The engine must no longer be used afterwards.
+     */
+    public void release()
+    {
+        this.reset();
+        this.currentLeaf = null;
+        this.freeBuffers.clear();
+        DigestEngines.release(this.rootEngine);
+    }
+
+    /**
+     * Ensures a leaf buffer with free space is available, handing off the current leaf if it is full.
+     *
+     * @return the free space in the current leaf buffer
+     */
+    protected int prepareLeaf()
+    {
+        if (this.currentLeaf != null && this.currentLeafLength == this.leafSize)
+        {
+            while (this.pendingLeaves.size() >= this.maxPendingLeaves)
+            {
+                // back pressure - writing must not outpace hashing indefinitely
+                this.completeOldestLeaf();
+            }
+
+            this.pendingLeaves.add(this.executor.submit(new LeafHashTask(this.currentLeaf, this.currentLeafLength)));
+            this.currentLeaf = null;
+        }
+
+        if (this.currentLeaf == null)
+        {
+            this.currentLeaf = this.freeBuffers.poll();
+            if (this.currentLeaf == null)
+            {
+                this.currentLeaf = new byte[this.leafSize];
+            }
+            this.currentLeafLength = 0;
+        }
+
+        return this.leafSize - this.currentLeafLength;
+    }
+
+    protected void completeOldestLeaf()
+    {
+        final Future<byte[]> oldestLeaf = this.pendingLeaves.poll();
+        try
+        {
+            final byte[] leafDigest = oldestLeaf.get();
+            this.rootEngine.update(leafDigest, 0, leafDigest.length);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for leaf digest", e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to calculate leaf digest", e.getCause());
+        }
+    }
+
+    /**
+     * Task calculating the digest of a single leaf.
+     */
+    protected class LeafHashTask implements Callable<byte[]>
+    {
+
+        private final byte[] leaf;
+
+        private final int length;
+
+        protected LeafHashTask(final byte[] leaf, final int length)
+        {
+            this.leaf = leaf;
+            this.length = length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public byte[] call()
+        {
+            final DigestEngine leafEngine;
+            try
+            {
+                leafEngine = DigestEngines.acquire(TreeDigestEngine.this.leafAlgorithm);
+            }
+            catch (final NoSuchAlgorithmException e)
+            {
+                // already checked on construction
+                throw new AlfrescoRuntimeException("Leaf algorithm is not supported", e);
+            }
+
+            try
+            {
+                leafEngine.update(LEAF_PREFIX, 0, LEAF_PREFIX.length);
+                leafEngine.update(this.leaf, 0, this.length);
+                return leafEngine.digest();
+            }
+            finally
+            {
+                DigestEngines.release(leafEngine);
+                if (this.leaf.length == TreeDigestEngine.this.leafSize)
+                {
+                    TreeDigestEngine.this.freeBuffers.offer(this.leaf);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Distributes content over the {@link ContentVolume volumes} of a {@link HashBasedFileContentStore} by consistent hashing of the digest
+ * prefix of the content. Each volume is placed on a hash ring with a number of virtual nodes derived from its id, and each prefix is owned
+ * by the next virtual node on the ring. Adding a volume therefore only changes the owner of the prefixes taken over by the new volume,
+ * which is roughly its share of all content, while all other content stays where it is.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class VolumeRing
+{
+
+    /**
+     * The number of leading digest characters used to place content.
+     */
+    public static final int PREFIX_LENGTH = 4;
+
+    private static final int PREFIX_COUNT = 1 << (4 * PREFIX_LENGTH);
+
+    private static final int VIRTUAL_NODES_PER_VOLUME = 128;
+
+    private static final String PROPERTY_VOLUMES = "volumes";
+
+    private final List<ContentVolume> volumes;
+
+    private final SortedSet<String> volumeIds = new TreeSet<String>();
+
+    // index of the owning volume for each prefix
+    private final byte[] owners = new byte[PREFIX_COUNT];
+
+    /**
+     * Creates a new ring instance.
+     *
+     * @param volumes
+     *            the volumes to distribute content over
+     */
+    public VolumeRing(final Collection<ContentVolume> volumes)
+    {
+        if (volumes.isEmpty() || volumes.size() > Byte.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Between 1 and " + Byte.MAX_VALUE + " volumes are supported");
+        }
+
+        final List<ContentVolume> sortedVolumes = new ArrayList<ContentVolume>(volumes);
+        // independent of configuration order
+        Collections.sort(sortedVolumes, new Comparator<ContentVolume>()
+        {
+
+            public int compare(final ContentVolume volumeA, final ContentVolume volumeB)
+            {
+                return volumeA.getId().compareTo(volumeB.getId());
+            }
+        });
+        this.volumes = Collections.unmodifiableList(sortedVolumes);
+        for (final ContentVolume volume : sortedVolumes)
+        {
+            if (!this.volumeIds.add(volume.getId()))
+            {
+                throw new IllegalArgumentException("Volume " + volume + " has been configured more than once");
+            }
+        }
+
+        this.initializeOwners();
+    }
+
+    /**
+     * Determines the volume owning a digest.
+     *
+     * @param digest
+     *            the hex-encoded digest of the content
+     * @return the owning volume or {@code null} if the digest is not a hex-encoded digest of sufficient length
+     */
+    public ContentVolume getVolume(final String digest)
+    {
+        final int prefix = parsePrefix(digest);
+        return prefix != -1 ? this.volumes.get(this.owners[prefix]) : null;
+    }
+
+    /**
+     * @return the volumes of the ring ordered by their id
+     */
+    public List<ContentVolume> getVolumes()
+    {
+        return this.volumes;
+    }
+
+    /**
+     * @return the sorted ids of the volumes of the ring
+     */
+    public SortedSet<String> getVolumeIds()
+    {
+        return Collections.unmodifiableSortedSet(this.volumeIds);
+    }
+
+    /**
+     * Creates a filter for directories that may contain content which is owned by a different volume in this ring than in a previous ring.
+     *
+     * @param previousRing
+     *            the previous ring
+     * @return the filter accepting all directories whose digest prefix includes a prefix that changed its owner
+     */
+    public FanOutWalker.DirectoryFilter getChangedPrefixFilter(final VolumeRing previousRing)
+    {
+        // changed[length][prefix] for all prefixes up to the full placement prefix length
+        final boolean[][] changed = new boolean[PREFIX_LENGTH + 1][];
+        changed[PREFIX_LENGTH] = new boolean[PREFIX_COUNT];
+        for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+        {
+            changed[PREFIX_LENGTH][prefix] = !this.volumes.get(this.owners[prefix]).getId().equals(
+                    previousRing.volumes.get(previousRing.owners[prefix]).getId());
+        }
+        for (int length = PREFIX_LENGTH - 1; length >= 0; length--)
+        {
+            changed[length] = new boolean[1 << (4 * length)];
+            for (int prefix = 0; prefix < changed[length + 1].length; prefix++)
+            {
+                changed[length][prefix >> 4] |= changed[length + 1][prefix];
+            }
+        }
+
+        return new FanOutWalker.DirectoryFilter()
+        {
+
+            public boolean accept(final String digestPrefix)
+            {
+                final int length = Math.min(digestPrefix.length(), PREFIX_LENGTH);
+                int prefix = 0;
+                boolean hex = true;
+                for (int idx = 0; idx < length && hex; idx++)
+                {
+                    final int digit = Character.digit(digestPrefix.charAt(idx), 16);
+                    hex = digit != -1;
+                    prefix = (prefix << 4) | digit;
+                }
+                // directories of content not created by the store always stay where they are
+                return hex && changed[length][prefix];
+            }
+        };
+    }
+
+    /**
+     * Loads the ids of the volumes content has been distributed over from a properties file.
+     *
+     * @param file
+     *            the file to load from
+     * @return the sorted volume ids or {@code null} if the file does not exist
+     */
+    public static SortedSet<String> loadVolumeIds(final File file)
+    {
+        SortedSet<String> volumeIds = null;
+        if (file.exists())
+        {
+            final Properties properties = new Properties();
+            InputStream is = null;
+            try
+            {
+                is = new FileInputStream(file);
+                properties.load(is);
+                volumeIds = parseVolumeIds(properties.getProperty(PROPERTY_VOLUMES));
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to load volumes from " + file, e);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return volumeIds;
+    }
+
+    /**
+     * Saves the ids of volumes content has been distributed over to a properties file.
+     *
+     * @param file
+     *            the file to save to
+     * @param volumeIds
+     *            the volume ids
+     */
+    public static void saveVolumeIds(final File file, final Collection<String> volumeIds)
+    {
+        final Properties properties = new Properties();
+        properties.setProperty(PROPERTY_VOLUMES, formatVolumeIds(volumeIds));
+
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = new FileOutputStream(tempFile);
+            properties.store(os, null);
+            os.close();
+            os = null;
+
+            // renameTo does not replace existing files on all platforms
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+            {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to save volumes to " + file, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * Formats a set of volume ids for storage in a properties file.
+     *
+     * @param volumeIds
+     *            the volume ids
+     * @return the comma-separated volume ids
+     */
+    public static String formatVolumeIds(final Collection<String> volumeIds)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (final String volumeId : volumeIds)
+        {
+            if (builder.length() != 0)
+            {
+                builder.append(',');
+            }
+            builder.append(volumeId);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Parses a set of volume ids as formatted by {@link #formatVolumeIds(Collection)}.
+     *
+     * @param volumeIds
+     *            the comma-separated volume ids - may be {@code null}
+     * @return the sorted volume ids
+     */
+    public static SortedSet<String> parseVolumeIds(final String volumeIds)
+    {
+        final SortedSet<String> result = new TreeSet<String>();
+        if (volumeIds != null)
+        {
+            for (final String volumeId : volumeIds.split(","))
+            {
+                final String trimmed = volumeId.trim();
+                if (trimmed.length() != 0)
+                {
+                    result.add(trimmed);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        return this.volumeIds.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object obj)
+    {
+        boolean result = obj == this;
+        if (!result && obj instanceof VolumeRing)
+        {
+            result = ((VolumeRing) obj).volumeIds.equals(this.volumeIds);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "VolumeRing [volumes=" + this.volumes + "]";
+    }
+
+    protected void initializeOwners()
+    {
+        final int nodeCount = this.volumes.size() * VIRTUAL_NODES_PER_VOLUME;
+        // position in the upper bits, volume index in the lowest byte so that sorting keeps both together
+        final long[] nodes = new long[nodeCount];
+        for (int volumeIdx = 0, nodeIdx = 0; volumeIdx < this.volumes.size(); volumeIdx++)
+        {
+            final String id = this.volumes.get(volumeIdx).getId();
+            for (int virtualNode = 0; virtualNode < VIRTUAL_NODES_PER_VOLUME; virtualNode++, nodeIdx++)
+            {
+                nodes[nodeIdx] = (hash(id + "#" + virtualNode) << 8) | volumeIdx;
+            }
+        }
+        Arrays.sort(nodes);
+
+        int nodeIdx = 0;
+        for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+        {
+            // spreads the prefixes evenly over the unsigned 32 bit ring
+            final long position = ((long) prefix << 16) | prefix;
+            while (nodeIdx < nodeCount && (nodes[nodeIdx] >>> 8) < position)
+            {
+                nodeIdx++;
+            }
+            // wraps around to the first node
+            this.owners[prefix] = (byte) (nodes[nodeIdx < nodeCount ? nodeIdx : 0] & 0xff);
+        }
+    }
+
+    protected static long hash(final String value)
+    {
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            return ((digest[0] & 0xffl) << 24) | ((digest[1] & 0xffl) << 16) | ((digest[2] & 0xffl) << 8) | (digest[3] & 0xffl);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new AlfrescoRuntimeException("MD5 is not supported", e);
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new AlfrescoRuntimeException("UTF-8 is not supported", e);
+        }
+    }
+
+    protected static int parsePrefix(final String digest)
+    {
+        int prefix = -1;
+        if (digest.length() >= PREFIX_LENGTH)
+        {
+            prefix = 0;
+            for (int idx = 0; idx < PREFIX_LENGTH && prefix != -1; idx++)
+            {
+                final int digit = Character.digit(digest.charAt(idx), 16);
+                prefix = digit != -1 ? (prefix << 4) | digit : -1;
+            }
+        }
+        return prefix;
+    }
+}
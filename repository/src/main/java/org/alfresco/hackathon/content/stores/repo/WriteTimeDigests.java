@@ -0,0 +1,76 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+
+/**
+ * Hands digests calculated while content is being written over to {@link FingerprintPolicy} via the current transaction, so fingerprints
+ * of new content can be stored without reading the content again. Digests are kept by content URL, which is immutable, and only for the
+ * duration of the transaction in which the content has been written.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class WriteTimeDigests
+{
+
+    private static final String KEY_WRITE_TIME_DIGESTS = WriteTimeDigests.class.getName();
+
+    private WriteTimeDigests()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Registers the digests of content written in the current transaction.
+     *
+     * @param contentUrl
+     *            the content URL of the written content
+     * @param digests
+     *            the digests mapped by their type
+     */
+    public static void register(final String contentUrl, final Map<String, byte[]> digests)
+    {
+        final Map<String, byte[]> normalizedDigests = new HashMap<String, byte[]>();
+        for (final Map.Entry<String, byte[]> digest : digests.entrySet())
+        {
+            normalizedDigests.put(toKey(digest.getKey()), digest.getValue());
+        }
+
+        final Map<String, Map<String, byte[]>> digestsByUrl = TransactionalResourceHelper.getMap(KEY_WRITE_TIME_DIGESTS);
+        final Map<String, byte[]> existingDigests = digestsByUrl.get(contentUrl);
+        if (existingDigests != null)
+        {
+            normalizedDigests.putAll(existingDigests);
+        }
+        digestsByUrl.put(contentUrl, normalizedDigests);
+    }
+
+    /**
+     * Looks up a digest of content written in the current transaction.
+     *
+     * @param contentUrl
+     *            the content URL of the content
+     * @param digestType
+     *            the type of digest (case insensitive)
+     * @return the digest or {@code null} if it has not been calculated while the content was written in the current transaction
+     */
+    public static byte[] lookup(final String contentUrl, final String digestType)
+    {
+        byte[] digest = null;
+        if (TransactionalResourceHelper.isResourcePresent(KEY_WRITE_TIME_DIGESTS))
+        {
+            final Map<String, Map<String, byte[]>> digestsByUrl = TransactionalResourceHelper.getMap(KEY_WRITE_TIME_DIGESTS);
+            final Map<String, byte[]> digests = digestsByUrl.get(contentUrl);
+            digest = digests != null ? digests.get(toKey(digestType)) : null;
+        }
+        return digest;
+    }
+
+    protected static String toKey(final String digestType)
+    {
+        return digestType.trim().toUpperCase(Locale.ENGLISH);
+    }
+}
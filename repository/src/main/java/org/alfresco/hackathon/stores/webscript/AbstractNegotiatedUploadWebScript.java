@@ -0,0 +1,169 @@
+package org.alfresco.hackathon.stores.webscript;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.hackathon.content.stores.repo.HashBasedFileContentStore;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Base class for the web scripts of the upload negotiation, which allows clients to announce the digest and size of content before
+ * uploading it so that the transfer can be skipped if a {@link HashBasedFileContentStore} already holds the content.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public abstract class AbstractNegotiatedUploadWebScript extends DeclarativeWebScript
+{
+
+    protected static final String REQUEST_PARAM_STORETYPE = "storeType";
+    protected static final String REQUEST_PARAM_STOREID = "storeId";
+    protected static final String REQUEST_PARAM_ID = "id";
+    protected static final String REQUEST_PARAM_PROPERTY = "property";
+
+    protected static final String FIELD_NODEREF = "nodeRef";
+    protected static final String FIELD_DIGEST_TYPE = "digestType";
+    protected static final String FIELD_TREE_HASH_LEAF_SIZE = "treeHashLeafSize";
+
+    protected ServiceRegistry services;
+
+    protected ContentStore contentStore;
+
+    /**
+     * @param services
+     *            the services to set
+     */
+    public void setServices(final ServiceRegistry services)
+    {
+        this.services = services;
+    }
+
+    /**
+     * @param contentStore
+     *            the content store new content is written to
+     */
+    public void setContentStore(final ContentStore contentStore)
+    {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * Retrieves the hash based content store to negotiate uploads with.
+     *
+     * @return the content store
+     * @throws WebScriptException
+     *             if the configured content store is not a hash based content store
+     */
+    protected HashBasedFileContentStore getHashBasedStore()
+    {
+        if (!(this.contentStore instanceof HashBasedFileContentStore))
+        {
+            throw new WebScriptException(HttpServletResponse.SC_NOT_IMPLEMENTED,
+                    "Upload negotiation requires a hash based content store");
+        }
+        return (HashBasedFileContentStore) this.contentStore;
+    }
+
+    /**
+     * Adds the details clients need to calculate digests the same way as the content store to a model.
+     *
+     * @param model
+     *            the model to add to
+     * @param store
+     *            the content store
+     */
+    protected void addDigestDetails(final Map<String, Object> model, final HashBasedFileContentStore store)
+    {
+        model.put(FIELD_DIGEST_TYPE, store.getMessageDigestType());
+        if (store.isTreeHashingEnabled())
+        {
+            model.put(FIELD_TREE_HASH_LEAF_SIZE, Integer.valueOf(store.getTreeHashLeafSize()));
+        }
+    }
+
+    /**
+     * Resolves the node addressed by the request and checks the current user may write its content.
+     *
+     * @param request
+     *            the request
+     * @return the node reference
+     */
+    protected NodeRef getWritableNode(final WebScriptRequest request)
+    {
+        final Map<String, String> templateVars = request.getServiceMatch().getTemplateVars();
+        final NodeRef nodeRef = new NodeRef(templateVars.get(REQUEST_PARAM_STORETYPE) + "://" + templateVars.get(REQUEST_PARAM_STOREID)
+                + "/" + templateVars.get(REQUEST_PARAM_ID));
+        if (!this.services.getNodeService().exists(nodeRef))
+        {
+            throw new WebScriptException(HttpServletResponse.SC_NOT_FOUND, nodeRef + " does not exist");
+        }
+
+        final AccessStatus access = this.services.getPermissionService().hasPermission(nodeRef, PermissionService.WRITE_CONTENT);
+        if (access == null || AccessStatus.DENIED == access)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_FORBIDDEN, "User is not allowed to write the content of " + nodeRef);
+        }
+        return nodeRef;
+    }
+
+    /**
+     * Resolves the content property addressed by the request.
+     *
+     * @param request
+     *            the request
+     * @return the qualified name of the content property - defaults to {@link ContentModel#PROP_CONTENT cm:content}
+     */
+    protected QName getContentProperty(final WebScriptRequest request)
+    {
+        final String property = request.getParameter(REQUEST_PARAM_PROPERTY);
+        final QName propertyName;
+        if (StringUtils.isBlank(property))
+        {
+            propertyName = ContentModel.PROP_CONTENT;
+        }
+        else
+        {
+            propertyName = QName.createQName(property, this.services.getNamespaceService());
+        }
+        return propertyName;
+    }
+
+    /**
+     * Opens a writer to update the content of a node.
+     *
+     * @param nodeRef
+     *            the node
+     * @param propertyName
+     *            the content property
+     * @param mimetype
+     *            the mimetype of the content - will be guessed from the name of the node if {@code null}
+     * @param encoding
+     *            the encoding of the content - defaults to UTF-8 if {@code null}
+     * @return the writer
+     */
+    protected ContentWriter getWriter(final NodeRef nodeRef, final QName propertyName, final String mimetype, final String encoding)
+    {
+        final ContentWriter writer = this.services.getContentService().getWriter(nodeRef, propertyName, true);
+        if (StringUtils.isBlank(mimetype))
+        {
+            writer.guessMimetype((String) this.services.getNodeService().getProperty(nodeRef, ContentModel.PROP_NAME));
+        }
+        else
+        {
+            writer.setMimetype(mimetype);
+        }
+        writer.setEncoding(StringUtils.isBlank(encoding) ? "UTF-8" : encoding);
+        return writer;
+    }
+}
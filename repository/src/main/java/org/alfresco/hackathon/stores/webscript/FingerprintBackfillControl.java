@@ -0,0 +1,46 @@
+package org.alfresco.hackathon.stores.webscript;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.hackathon.content.stores.repo.FingerprintBackfill;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Starts or cancels a {@link FingerprintBackfill fingerprint backfill} pass and reports its progress.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintBackfillControl extends FingerprintBackfillStatus
+{
+
+    private static final String REQUEST_PARAM_ACTION = "action";
+    private static final String REQUEST_PARAM_RECALCULATE = "recalculate";
+
+    private static final String ACTION_START = "start";
+    private static final String ACTION_CANCEL = "cancel";
+
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest request, final Status status)
+    {
+        final String action = request.getParameter(REQUEST_PARAM_ACTION);
+        if (ACTION_START.equals(action))
+        {
+            this.fingerprintBackfill.start(Boolean.parseBoolean(request.getParameter(REQUEST_PARAM_RECALCULATE)));
+        }
+        else if (ACTION_CANCEL.equals(action))
+        {
+            this.fingerprintBackfill.cancel();
+        }
+        else
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "Action must be either '" + ACTION_START + "' or '"
+                    + ACTION_CANCEL + "'");
+        }
+
+        return super.executeImpl(request, status);
+    }
+}
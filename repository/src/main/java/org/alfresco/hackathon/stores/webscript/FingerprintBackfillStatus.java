@@ -0,0 +1,43 @@
+package org.alfresco.hackathon.stores.webscript;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.hackathon.content.stores.repo.FingerprintBackfill;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Reports the progress and throughput of the current or last {@link FingerprintBackfill fingerprint backfill} pass.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintBackfillStatus extends DeclarativeWebScript
+{
+
+    protected static final String FIELD_BACKFILL = "backfill";
+
+    protected FingerprintBackfill fingerprintBackfill;
+
+    /**
+     * @param fingerprintBackfill
+     *            the fingerprintBackfill to set
+     */
+    public void setFingerprintBackfill(final FingerprintBackfill fingerprintBackfill)
+    {
+        this.fingerprintBackfill = fingerprintBackfill;
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest request, final Status status)
+    {
+        final Map<String, Object> model = new HashMap<String, Object>();
+        final Map<String, Object> backfillStatus = this.fingerprintBackfill.getStatus();
+        if (backfillStatus != null)
+        {
+            model.put(FIELD_BACKFILL, backfillStatus);
+        }
+        return model;
+    }
+}
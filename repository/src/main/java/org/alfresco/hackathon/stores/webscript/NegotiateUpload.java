@@ -0,0 +1,101 @@
+package org.alfresco.hackathon.stores.webscript;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.hackathon.content.stores.repo.HashBasedFileContentStore;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Negotiates the upload of content to a node. The client announces the digest and size of the content and, if the content store already
+ * holds that content, the node is bound to the existing content without any bytes being transferred. Otherwise the client is expected to
+ * upload the content via {@link VerifiedUpload}.
+ *
+ * Since a digest alone may be known to parties not in possession of the content, binding to existing content additionally requires a proof
+ * of possession - the digest of the node reference (as UTF-8 string) followed by the content. An invalid proof is treated like unknown
+ * content so the response does not reveal whether the content exists.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class NegotiateUpload extends AbstractNegotiatedUploadWebScript
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NegotiateUpload.class);
+
+    private static final String JSON_DIGEST = "digest";
+    private static final String JSON_SIZE = "size";
+    private static final String JSON_PROOF = "proof";
+    private static final String JSON_MIMETYPE = "mimetype";
+    private static final String JSON_ENCODING = "encoding";
+
+    private static final String FIELD_DEDUPLICATED = "deduplicated";
+
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest request, final Status status)
+    {
+        final HashBasedFileContentStore store = this.getHashBasedStore();
+        final NodeRef nodeRef = this.getWritableNode(request);
+        final QName propertyName = this.getContentProperty(request);
+
+        final JSONObject json;
+        try
+        {
+            json = new JSONObject(request.getContent().getContent());
+        }
+        catch (final IOException e)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "Failed to read request", e);
+        }
+        catch (final JSONException e)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON in request", e);
+        }
+
+        final String digest = json.optString(JSON_DIGEST, null);
+        final long size = json.optLong(JSON_SIZE, -1);
+        if (digest == null || size < 0)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "Digest and size of the content are mandatory");
+        }
+        if (store.getContentUrlForDigest(digest) == null)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + store.getMessageDigestType() + " digest "
+                    + digest);
+        }
+
+        boolean deduplicated = false;
+        final String contentUrl = store.lookupContentUrl(digest, size);
+        final String proof = json.optString(JSON_PROOF, null);
+        if (contentUrl != null && proof != null && proof.equalsIgnoreCase(store.calculatePossessionProof(contentUrl, nodeRef.toString())))
+        {
+            final ContentWriter writer = this.getWriter(nodeRef, propertyName, json.optString(JSON_MIMETYPE, null),
+                    json.optString(JSON_ENCODING, null));
+            // the store re-uses its own content without copying
+            writer.putContent(store.getReader(contentUrl));
+            deduplicated = true;
+            LOGGER.debug("Bound {} of {} to existing content {}", new Object[] { propertyName, nodeRef, contentUrl });
+        }
+        else if (contentUrl != null)
+        {
+            LOGGER.debug("Missing or invalid proof of possession for {} of {}", propertyName, nodeRef);
+        }
+
+        final Map<String, Object> model = new HashMap<String, Object>();
+        model.put(FIELD_NODEREF, nodeRef.toString());
+        model.put(FIELD_DEDUPLICATED, Boolean.valueOf(deduplicated));
+        this.addDigestDetails(model, store);
+        return model;
+    }
+}
@@ -0,0 +1,73 @@
+package org.alfresco.hackathon.stores.webscript;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.hackathon.content.stores.repo.HashBasedFileContentStore;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.Content;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Uploads content to a node after the upload has been {@link NegotiateUpload negotiated}. The content is verified against the digest the
+ * client announced and the transaction is rolled back if they do not match, so neither the node nor the content store retain content that
+ * has been corrupted or tampered with in transfer.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class VerifiedUpload extends AbstractNegotiatedUploadWebScript
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VerifiedUpload.class);
+
+    private static final String REQUEST_PARAM_DIGEST = "digest";
+
+    private static final String FIELD_SIZE = "size";
+
+    @Override
+    protected Map<String, Object> executeImpl(final WebScriptRequest request, final Status status)
+    {
+        final HashBasedFileContentStore store = this.getHashBasedStore();
+        final NodeRef nodeRef = this.getWritableNode(request);
+        final QName propertyName = this.getContentProperty(request);
+
+        final String digest = request.getParameter(REQUEST_PARAM_DIGEST);
+        final String expectedContentUrl = store.getContentUrlForDigest(digest);
+        if (expectedContentUrl == null)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + store.getMessageDigestType() + " digest "
+                    + digest);
+        }
+
+        final Content content = request.getContent();
+        if (content == null)
+        {
+            throw new WebScriptException(HttpServletResponse.SC_BAD_REQUEST, "No content has been provided");
+        }
+
+        final ContentWriter writer = this.getWriter(nodeRef, propertyName, content.getMimetype(), content.getEncoding());
+        writer.putContent(content.getInputStream());
+
+        // the content URL of the hash based store is derived from the digest of the content
+        if (!expectedContentUrl.equals(writer.getContentUrl()))
+        {
+            LOGGER.info("Upload to {} of {} does not match announced digest {} - rolling back",
+                    new Object[] { propertyName, nodeRef, digest });
+            throw new WebScriptException(HttpServletResponse.SC_CONFLICT, "Content does not match announced digest " + digest);
+        }
+
+        final Map<String, Object> model = new HashMap<String, Object>();
+        model.put(FIELD_NODEREF, nodeRef.toString());
+        model.put(FIELD_SIZE, Long.valueOf(writer.getSize()));
+        this.addDigestDetails(model, store);
+        return model;
+    }
+}
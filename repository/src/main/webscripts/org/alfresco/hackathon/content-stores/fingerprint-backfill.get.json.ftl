@@ -0,0 +1,25 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+	<#if backfill??>
+	"status": "${backfill.status}",
+	"recalculate": ${(backfill.recalculate!false)?string},
+	"startTime": ${backfill.startTime?c},
+	<#if backfill.endTime??>
+	"endTime": ${backfill.endTime?c},
+	</#if>
+	"lastUpdateTime": ${backfill.lastUpdateTime?c},
+	"activeTime": ${backfill.activeTime?c},
+	"minNodeId": ${backfill.minNodeId?c},
+	"maxNodeId": ${backfill.maxNodeId?c},
+	"nextNodeId": ${backfill.nextNodeId?c},
+	"processedNodes": ${backfill.processedNodes?c},
+	"fingerprintedProperties": ${backfill.fingerprintedProperties?c},
+	"failedProperties": ${backfill.failedProperties?c},
+	"percentComplete": ${backfill.percentComplete?c},
+	"nodesPerSecond": ${backfill.nodesPerSecond?c},
+	"propertiesPerSecond": ${backfill.propertiesPerSecond?c}
+	<#else>
+	"status": "NONE"
+	</#if>
+}
+</#escape>
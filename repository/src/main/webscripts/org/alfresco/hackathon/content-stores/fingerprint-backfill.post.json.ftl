@@ -0,0 +1 @@
+<#include "/org/alfresco/hackathon/content-stores/fingerprint-backfill.get.json.ftl" />
@@ -0,0 +1,8 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+	"nodeRef": "${nodeRef}",
+	"deduplicated": ${deduplicated?string("true", "false")},
+	"digestType": "${digestType}"<#if treeHashLeafSize??>,
+	"treeHashLeafSize": ${treeHashLeafSize?c}</#if>
+}
+</#escape>
@@ -0,0 +1,8 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+	"nodeRef": "${nodeRef}",
+	"size": ${size?c},
+	"digestType": "${digestType}"<#if treeHashLeafSize??>,
+	"treeHashLeafSize": ${treeHashLeafSize?c}</#if>
+}
+</#escape>
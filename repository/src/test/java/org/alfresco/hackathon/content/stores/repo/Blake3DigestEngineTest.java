@@ -0,0 +1,116 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Blake3DigestEngine} using the hash mode test vectors of the BLAKE3 reference implementation. The input of each vector
+ * is the repeating byte sequence {@code 0, 1, ..., 250} of a specific length.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class Blake3DigestEngineTest
+{
+
+    private static final Object[][] TEST_VECTORS = new Object[][] {
+            { Integer.valueOf(0), "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262" },
+            { Integer.valueOf(1), "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213" },
+            { Integer.valueOf(1023), "10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11" },
+            { Integer.valueOf(1024), "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7" },
+            { Integer.valueOf(1025), "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444" },
+            { Integer.valueOf(2048), "e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a" },
+            { Integer.valueOf(2049), "5f4d72f40d7a5f82b15ca2b2e44b1de3c2ef86c426c95c1af0b6879522563030" },
+            { Integer.valueOf(3072), "b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2" },
+            { Integer.valueOf(3073), "7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3" },
+            { Integer.valueOf(4096), "015094013f57a5277b59d8475c0501042c0b642e531b0a1c8f58d2163229e969" },
+            { Integer.valueOf(4097), "9b4052b38f1c5fc8b1f9ff7ac7b27cd242487b3d890d15c96a1c25b8aa0fb995" },
+            { Integer.valueOf(5120), "9cadc15fed8b5d854562b26a9536d9707cadeda9b143978f319ab34230535833" },
+            { Integer.valueOf(5121), "628bd2cb2004694adaab7bbd778a25df25c47b9d4155a55f8fbd79f2fe154cff" },
+            { Integer.valueOf(6144), "3e2e5b74e048f3add6d21faab3f83aa44d3b2278afb83b80b3c35164ebeca205" },
+            { Integer.valueOf(6145), "f1323a8631446cc50536a9f705ee5cb619424d46887f3c376c695b70e0f0507f" },
+            { Integer.valueOf(7168), "61da957ec2499a95d6b8023e2b0e604ec7f6b50e80a9678b89d2628e99ada77a" },
+            { Integer.valueOf(7169), "a003fc7a51754a9b3c7fae0367ab3d782dccf28855a03d435f8cfe74605e7817" },
+            { Integer.valueOf(8192), "aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63" },
+            { Integer.valueOf(8193), "bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b" },
+            { Integer.valueOf(16384), "f875d6646de28985646f34ee13be9a576fd515f76b5b0a26bb324735041ddde4" },
+            { Integer.valueOf(31744), "62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47" },
+            { Integer.valueOf(102400), "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085" } };
+
+    @Test
+    public void singleUpdateMatchesTestVectors()
+    {
+        final Blake3DigestEngine engine = new Blake3DigestEngine();
+        for (final Object[] vector : TEST_VECTORS)
+        {
+            final byte[] input = input(((Integer) vector[0]).intValue());
+            engine.update(input, 0, input.length);
+            assertEquals("Length " + vector[0], vector[1], Hex.encodeHexString(engine.digest()));
+        }
+    }
+
+    @Test
+    public void incrementalUpdatesMatchTestVectors()
+    {
+        final Blake3DigestEngine engine = new Blake3DigestEngine();
+        // odd step sizes so updates straddle block and chunk boundaries
+        final int[] stepSizes = new int[] { 1, 63, 65, 1000, 1025 };
+        for (final Object[] vector : TEST_VECTORS)
+        {
+            final byte[] input = input(((Integer) vector[0]).intValue());
+            for (final int stepSize : stepSizes)
+            {
+                for (int offset = 0; offset < input.length; offset += stepSize)
+                {
+                    engine.update(input, offset, Math.min(stepSize, input.length - offset));
+                }
+                assertEquals("Length " + vector[0] + " in steps of " + stepSize, vector[1], Hex.encodeHexString(engine.digest()));
+            }
+        }
+    }
+
+    @Test
+    public void bufferUpdatesMatchTestVectors()
+    {
+        final Blake3DigestEngine engine = new Blake3DigestEngine();
+        for (final Object[] vector : TEST_VECTORS)
+        {
+            final byte[] input = input(((Integer) vector[0]).intValue());
+
+            final ByteBuffer heapBuffer = ByteBuffer.wrap(input);
+            engine.update(heapBuffer);
+            assertEquals(0, heapBuffer.remaining());
+            assertEquals("Length " + vector[0], vector[1], Hex.encodeHexString(engine.digest()));
+
+            final ByteBuffer directBuffer = ByteBuffer.allocateDirect(input.length);
+            directBuffer.put(input);
+            directBuffer.flip();
+            engine.update(directBuffer);
+            assertEquals(0, directBuffer.remaining());
+            assertEquals("Length " + vector[0], vector[1], Hex.encodeHexString(engine.digest()));
+        }
+    }
+
+    @Test
+    public void resetDiscardsPreviousInput()
+    {
+        final Blake3DigestEngine engine = new Blake3DigestEngine();
+        final byte[] input = input(5000);
+        engine.update(input, 0, input.length);
+        engine.reset();
+        assertEquals(TEST_VECTORS[0][1], Hex.encodeHexString(engine.digest()));
+    }
+
+    private static byte[] input(final int length)
+    {
+        final byte[] input = new byte[length];
+        for (int idx = 0; idx < length; idx++)
+        {
+            input[idx] = (byte) (idx % 251);
+        }
+        return input;
+    }
+}
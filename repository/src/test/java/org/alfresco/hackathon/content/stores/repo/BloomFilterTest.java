@@ -0,0 +1,77 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BloomFilter}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class BloomFilterTest
+{
+
+    @Test
+    public void addedKeysAreAlwaysContained()
+    {
+        final BloomFilter filter = new BloomFilter(10000, 0.01d);
+        final Random random = new Random(42);
+        final long[] keys = new long[10000];
+        for (int idx = 0; idx < keys.length; idx++)
+        {
+            keys[idx] = random.nextLong();
+            filter.put(keys[idx]);
+        }
+
+        for (final long key : keys)
+        {
+            assertTrue("No false negatives allowed", filter.mightContain(key));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateIsNearConfiguredRate()
+    {
+        final BloomFilter filter = new BloomFilter(10000, 0.01d);
+        final Random random = new Random(42);
+        for (int idx = 0; idx < 10000; idx++)
+        {
+            filter.put(random.nextLong());
+        }
+
+        int falsePositives = 0;
+        final int probes = 100000;
+        for (int idx = 0; idx < probes; idx++)
+        {
+            if (filter.mightContain(random.nextLong()))
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positive rate too high: " + falsePositives, falsePositives < probes * 0.02d);
+    }
+
+    @Test
+    public void sequentialKeysAreDistributed()
+    {
+        // keys of similar digests must not collapse onto the same bits
+        final BloomFilter filter = new BloomFilter(1000, 0.01d);
+        for (long key = 0; key < 1000; key++)
+        {
+            filter.put(key);
+        }
+
+        int falsePositives = 0;
+        for (long key = 1000; key < 101000; key++)
+        {
+            if (filter.mightContain(key))
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positive rate too high: " + falsePositives, falsePositives < 2000);
+    }
+}
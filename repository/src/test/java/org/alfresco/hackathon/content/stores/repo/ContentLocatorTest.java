@@ -0,0 +1,163 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ContentLocator}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class ContentLocatorTest
+{
+
+    private static final String DIGEST = "0123456789ABCDEF0123456789ABCDEF";
+
+    private static final FanOutLayout LAYOUT = new FanOutLayout(2, 3);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ContentVolume primaryVolume;
+
+    private ContentVolume secondaryVolume;
+
+    private ContentVolume coldVolume;
+
+    private List<ContentVolume> volumes;
+
+    private VolumeRing ring;
+
+    private VolumeRing previousRing;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.primaryVolume = new ContentVolume("primary", this.folder.newFolder("primary"));
+        this.secondaryVolume = new ContentVolume("secondary", this.folder.newFolder("secondary"));
+        this.coldVolume = new ContentVolume("cold", this.folder.newFolder("cold"));
+        this.volumes = Arrays.asList(this.primaryVolume, this.secondaryVolume);
+        this.ring = new VolumeRing(this.volumes);
+        this.previousRing = new VolumeRing(Collections.singletonList(this.primaryVolume));
+    }
+
+    @Test
+    public void contentIsPlacedInCurrentLayoutOnOwningVolume()
+    {
+        final ContentLocator locator = this.createLocator(null, null, null);
+        final File file = locator.makeFile(DIGEST);
+
+        assertEquals(LAYOUT.resolve(this.ring.getVolume(DIGEST).getRootDirectory(), DIGEST), file);
+        assertSame(this.ring.getVolume(DIGEST), locator.getVolume(DIGEST));
+        assertSame(this.ring.getVolume(DIGEST), locator.getVolume(file));
+        assertEquals(Collections.singletonList(file), locator.makeCandidateFiles(DIGEST));
+        assertFalse(locator.isMigrationInProgress());
+    }
+
+    @Test
+    public void contentIsLocatedInAllRepresentations() throws Exception
+    {
+        final ContentLocator locator = this.createLocator(null, null, null);
+        assertNull(locator.locate(DIGEST));
+
+        final File contentFile = locator.makeFile(DIGEST);
+        final File compressedFile = FanOutWalker.getCompressedFile(contentFile);
+        createFile(compressedFile);
+        assertEquals(compressedFile, locator.locate(DIGEST));
+
+        final File manifestFile = FanOutWalker.getManifestFile(contentFile);
+        createFile(manifestFile);
+        assertEquals(manifestFile, locator.locate(DIGEST));
+
+        createFile(contentFile);
+        assertEquals(contentFile, locator.locate(DIGEST));
+    }
+
+    @Test
+    public void contentIsLocatedInPreviousLayoutAndOnPreviousVolumes() throws Exception
+    {
+        final ContentLocator locator = this.createLocator(FanOutLayout.DEFAULT, this.previousRing, null);
+        assertTrue(locator.isMigrationInProgress());
+
+        final File previousFile = locator.makeFile(DIGEST, FanOutLayout.DEFAULT, this.previousRing);
+        assertEquals(FanOutLayout.DEFAULT.resolve(this.primaryVolume.getRootDirectory(), DIGEST), previousFile);
+        createFile(previousFile);
+        assertEquals(previousFile, locator.locate(DIGEST));
+
+        final List<File> candidates = locator.makeCandidateFiles(DIGEST);
+        assertEquals(locator.makeFile(DIGEST), candidates.get(0));
+        assertTrue(candidates.contains(previousFile));
+        assertEquals(candidates.size(), new HashSet<File>(candidates).size());
+
+        locator.completeMigration();
+        assertFalse(locator.isMigrationInProgress());
+        assertNull(locator.locate(DIGEST));
+        assertEquals(1, locator.makeCandidateFiles(DIGEST).size());
+    }
+
+    @Test
+    public void unchangedVolumeIsNotProbedTwice()
+    {
+        // ring is identical for all prefixes
+        final ContentLocator locator = this.createLocator(null, new VolumeRing(this.volumes), null);
+        assertTrue(locator.makePreviousFiles(DIGEST, locator.makeFile(DIGEST)).isEmpty());
+    }
+
+    @Test
+    public void contentIsLocatedInColdTier() throws Exception
+    {
+        final ContentLocator locator = this.createLocator(null, null, this.coldVolume);
+        final File coldFile = locator.makeColdFile(DIGEST);
+        assertEquals(FanOutLayout.DEFAULT.resolve(this.coldVolume.getRootDirectory(), DIGEST), coldFile);
+        assertSame(this.coldVolume, locator.getVolume(coldFile));
+
+        final File compressedColdFile = FanOutWalker.getCompressedFile(coldFile);
+        createFile(compressedColdFile);
+        assertEquals(compressedColdFile, locator.locate(DIGEST));
+
+        final List<File> candidates = locator.makeCandidateFiles(DIGEST);
+        assertEquals(2, candidates.size());
+        assertEquals(coldFile, candidates.get(1));
+
+        // the hot tier takes precedence
+        final File contentFile = locator.makeFile(DIGEST);
+        createFile(contentFile);
+        assertEquals(contentFile, locator.locate(DIGEST));
+    }
+
+    @Test
+    public void digestTooShortForLayoutIsStoredInDefaultLayout()
+    {
+        final ContentLocator locator = new ContentLocator(this.primaryVolume.getRootDirectory(), this.primaryVolume, this.volumes, null,
+                new FanOutLayout(3, 3), this.ring, null, null);
+        assertEquals(FanOutLayout.DEFAULT.resolve(this.primaryVolume.getRootDirectory(), "ABCDEF"), locator.makeFile("ABCDEF"));
+        assertNull(locator.makeColdFile(DIGEST));
+    }
+
+    private ContentLocator createLocator(final FanOutLayout previousLayout, final VolumeRing previousRing, final ContentVolume coldVolume)
+    {
+        return new ContentLocator(this.primaryVolume.getRootDirectory(), this.primaryVolume, this.volumes, coldVolume, LAYOUT, this.ring,
+                previousLayout, previousRing);
+    }
+
+    private static void createFile(final File file) throws IOException
+    {
+        FileUtils.writeStringToFile(file, file.getName());
+    }
+}
@@ -0,0 +1,40 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DigestEngines}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DigestEnginesTest
+{
+
+    @Test
+    public void releasedEngineIsReusedUnderAcquiredName() throws Exception
+    {
+        // JCA alias whose engine reports SHA-256 as its algorithm
+        final DigestEngine engine = DigestEngines.acquire("SHA256");
+        DigestEngines.release(engine);
+
+        assertSame(engine, DigestEngines.acquire("sha256"));
+    }
+
+    @Test
+    public void releasedEngineIsReset() throws Exception
+    {
+        final DigestEngine engine = DigestEngines.acquire("SHA-1");
+        final byte[] input = new byte[] { 1, 2, 3 };
+        engine.update(input, 0, input.length);
+        DigestEngines.release(engine);
+
+        final DigestEngine reusedEngine = DigestEngines.acquire("SHA-1");
+        assertSame(engine, reusedEngine);
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(), reusedEngine.digest());
+    }
+}
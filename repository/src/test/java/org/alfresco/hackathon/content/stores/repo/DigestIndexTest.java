@@ -0,0 +1,175 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link DigestIndex}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class DigestIndexTest
+{
+
+    private static final String DIGEST_A = "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF";
+
+    // same first 64 bits as DIGEST_A
+    private static final String DIGEST_A2 = "0123456789ABCDEFFEDCBA98765432100123456789ABCDEF0123456789ABCDEF";
+
+    private static final String DIGEST_B = "FEDCBA9876543210FEDCBA9876543210FEDCBA9876543210FEDCBA9876543210";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+
+    private DigestIndex index;
+
+    @Before
+    public void setUp()
+    {
+        this.root = this.folder.getRoot();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (this.index != null)
+        {
+            this.index.close();
+        }
+    }
+
+    @Test
+    public void lookupReflectsAddAndRemove() throws Exception
+    {
+        this.index = this.openIndex(true);
+
+        assertEquals(Boolean.FALSE, this.index.lookup(DIGEST_A));
+        this.index.add(DIGEST_A);
+        assertEquals(Boolean.TRUE, this.index.lookup(DIGEST_A));
+        assertEquals(Boolean.TRUE, this.index.lookup(DIGEST_A.toLowerCase()));
+        this.index.remove(DIGEST_A);
+        assertEquals(Boolean.FALSE, this.index.lookup(DIGEST_A));
+    }
+
+    @Test
+    public void digestsSharingFirst64BitsAreDistinct() throws Exception
+    {
+        this.index = this.openIndex(true);
+
+        this.index.add(DIGEST_A);
+        assertEquals(Boolean.FALSE, this.index.lookup(DIGEST_A2));
+
+        this.index.add(DIGEST_A2);
+        this.index.remove(DIGEST_A);
+        assertEquals(Boolean.FALSE, this.index.lookup(DIGEST_A));
+        assertEquals(Boolean.TRUE, this.index.lookup(DIGEST_A2));
+    }
+
+    @Test
+    public void missesAreNotTrustedWithoutExclusiveAccess() throws Exception
+    {
+        this.index = this.openIndex(false);
+
+        assertNull(this.index.lookup(DIGEST_A));
+        this.index.add(DIGEST_A);
+        assertEquals(Boolean.TRUE, this.index.lookup(DIGEST_A));
+    }
+
+    @Test
+    public void removalKeepsProbeSequencesIntact() throws Exception
+    {
+        this.index = this.openIndex(true);
+
+        // more entries than the initial capacity so the segment has to grow and entries collide on their home slots
+        final int count = 5000;
+        for (int idx = 0; idx < count; idx++)
+        {
+            this.index.add(digest(idx));
+        }
+        for (int idx = 0; idx < count; idx += 2)
+        {
+            this.index.remove(digest(idx));
+        }
+
+        for (int idx = 0; idx < count; idx++)
+        {
+            assertEquals(digest(idx), Boolean.valueOf(idx % 2 == 1), this.index.lookup(digest(idx)));
+        }
+    }
+
+    @Test
+    public void cleanlyClosedIndexIsReused() throws Exception
+    {
+        this.index = this.openIndex(true);
+        this.index.add(DIGEST_A);
+        this.index.close();
+
+        this.index = this.openIndex(true);
+        assertTrue(this.index.isComplete());
+        assertEquals(Boolean.TRUE, this.index.lookup(DIGEST_A));
+        assertEquals(Boolean.FALSE, this.index.lookup(DIGEST_B));
+    }
+
+    @Test
+    public void uncleanIndexIsRebuiltFromContentFiles() throws Exception
+    {
+        this.createContentFile(DIGEST_B);
+
+        this.index = this.openIndex(true);
+        assertEquals(Boolean.TRUE, this.index.lookup(DIGEST_B));
+        assertEquals(Boolean.FALSE, this.index.lookup(DIGEST_A));
+    }
+
+    private DigestIndex openIndex(final boolean exclusiveAccess) throws InterruptedException
+    {
+        final DigestIndex index = new DigestIndex(this.root, Collections.singletonList(this.root), FanOutLayout.DEFAULT.getWidth(), 100,
+                exclusiveAccess);
+        index.open();
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!index.isComplete() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue("Index not built in time", index.isComplete());
+        return index;
+    }
+
+    private void createContentFile(final String digest) throws IOException
+    {
+        final File file = FanOutLayout.DEFAULT.resolve(this.root, digest);
+        FileUtils.writeStringToFile(file, digest);
+    }
+
+    private static String digest(final int idx)
+    {
+        final String hex = Integer.toHexString(idx).toUpperCase();
+        final StringBuilder builder = new StringBuilder(64);
+        // vary both halves of the key
+        builder.append(hex);
+        while (builder.length() < 20)
+        {
+            builder.append('0');
+        }
+        builder.append(hex);
+        while (builder.length() < 64)
+        {
+            builder.append('A');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link FanOutLayout}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FanOutLayoutTest
+{
+
+    private static final String DIGEST = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void defaultLayoutMatchesLegacyPaths()
+    {
+        final File root = new File("root");
+        assertEquals(new File(root, "01/23/45/" + DIGEST + FanOutWalker.CONTENT_FILE_EXTENSION), FanOutLayout.DEFAULT.resolve(root,
+                DIGEST));
+        assertEquals(6, FanOutLayout.DEFAULT.getPrefixLength());
+    }
+
+    @Test
+    public void customLayoutResolvesPaths()
+    {
+        final FanOutLayout layout = new FanOutLayout(2, 3);
+        assertEquals("012/345/" + DIGEST + FanOutWalker.CONTENT_FILE_EXTENSION, layout.appendPath(new StringBuilder(), DIGEST, '/')
+                .toString());
+        assertEquals(new File(new File(new File("root", "012"), "345"), DIGEST + FanOutWalker.CONTENT_FILE_EXTENSION), layout.resolve(
+                new File("root"), DIGEST));
+
+        // digest exactly as long as the prefix
+        assertEquals("012/345/012345" + FanOutWalker.CONTENT_FILE_EXTENSION, layout.appendPath(new StringBuilder(), "012345", '/')
+                .toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortDigestIsRejected()
+    {
+        new FanOutLayout(2, 3).resolve(new File("root"), "01234");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyLevelsAreRejected()
+    {
+        new FanOutLayout(0, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void excessivePrefixLengthIsRejected()
+    {
+        new FanOutLayout(5, 4);
+    }
+
+    @Test
+    public void layoutIsSavedAndLoaded() throws Exception
+    {
+        final File file = new File(this.folder.getRoot(), "layout.properties");
+        assertNull(FanOutLayout.load(file));
+
+        final FanOutLayout layout = new FanOutLayout(4, 1);
+        layout.save(file);
+        assertEquals(layout, FanOutLayout.load(file));
+
+        // replaces the previous layout
+        FanOutLayout.DEFAULT.save(file);
+        assertEquals(FanOutLayout.DEFAULT, FanOutLayout.load(file));
+        assertFalse(new File(this.folder.getRoot(), "layout.properties.tmp").exists());
+    }
+
+    @Test(expected = ContentIOException.class)
+    public void invalidLayoutFileIsRejected() throws Exception
+    {
+        final File file = new File(this.folder.getRoot(), "layout.properties");
+        FileUtils.writeStringToFile(file, "depth=two\nwidth=2\n");
+        FanOutLayout.load(file);
+    }
+
+    @Test
+    public void equalLayoutsHaveEqualHashCodes()
+    {
+        assertEquals(FanOutLayout.DEFAULT, new FanOutLayout(3, 2));
+        assertEquals(FanOutLayout.DEFAULT.hashCode(), new FanOutLayout(3, 2).hashCode());
+        assertFalse(FanOutLayout.DEFAULT.equals(new FanOutLayout(2, 3)));
+    }
+}
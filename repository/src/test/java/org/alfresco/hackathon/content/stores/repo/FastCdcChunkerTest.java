@@ -0,0 +1,163 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FastCdcChunker}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FastCdcChunkerTest
+{
+
+    private static final int MIN_SIZE = 2048;
+
+    private static final int AVERAGE_SIZE = 8192;
+
+    private static final int MAX_SIZE = 65536;
+
+    @Test
+    public void chunksReassembleToInput() throws Exception
+    {
+        final byte[] input = randomBytes(1024 * 1024, 1);
+        final List<byte[]> chunks = chunk(new ByteArrayInputStream(input));
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (final byte[] chunk : chunks)
+        {
+            output.write(chunk);
+        }
+        assertArrayEquals(input, output.toByteArray());
+    }
+
+    @Test
+    public void chunkSizesAreWithinBounds() throws Exception
+    {
+        final byte[] input = randomBytes(4 * 1024 * 1024, 2);
+        final List<byte[]> chunks = chunk(new ByteArrayInputStream(input));
+
+        for (int idx = 0; idx < chunks.size(); idx++)
+        {
+            final int length = chunks.get(idx).length;
+            assertTrue("Chunk too large: " + length, length <= MAX_SIZE);
+            assertTrue("Chunk too small: " + length, length >= MIN_SIZE || idx == chunks.size() - 1);
+        }
+
+        // normalized chunking keeps the average close to the targeted size
+        final int average = input.length / chunks.size();
+        assertTrue("Average chunk size off target: " + average, average > AVERAGE_SIZE / 2 && average < AVERAGE_SIZE * 2);
+    }
+
+    @Test
+    public void uniformContentIsCutAtMaximumSize() throws Exception
+    {
+        final byte[] input = new byte[3 * MAX_SIZE + 10];
+        final List<byte[]> chunks = chunk(new ByteArrayInputStream(input));
+
+        assertEquals(4, chunks.size());
+        assertEquals(MAX_SIZE, chunks.get(0).length);
+        assertEquals(10, chunks.get(3).length);
+    }
+
+    @Test
+    public void emptyInputHasNoChunks() throws Exception
+    {
+        final FastCdcChunker chunker = new FastCdcChunker(new ByteArrayInputStream(new byte[0]), MIN_SIZE, AVERAGE_SIZE, MAX_SIZE);
+        assertFalse(chunker.next());
+    }
+
+    @Test
+    public void shortReadsDoNotAffectCutPoints() throws Exception
+    {
+        final byte[] input = randomBytes(512 * 1024, 3);
+        final List<byte[]> expected = chunk(new ByteArrayInputStream(input));
+        final List<byte[]> actual = chunk(new FilterInputStream(new ByteArrayInputStream(input))
+        {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        });
+
+        assertEquals(expected.size(), actual.size());
+        for (int idx = 0; idx < expected.size(); idx++)
+        {
+            assertArrayEquals(expected.get(idx), actual.get(idx));
+        }
+    }
+
+    @Test
+    public void insertionOnlyAffectsNearbyChunks() throws Exception
+    {
+        final byte[] original = randomBytes(2 * 1024 * 1024, 4);
+        final byte[] modified = new byte[original.length + 100];
+        final int insertAt = original.length / 2;
+        System.arraycopy(original, 0, modified, 0, insertAt);
+        System.arraycopy(randomBytes(100, 5), 0, modified, insertAt, 100);
+        System.arraycopy(original, insertAt, modified, insertAt + 100, original.length - insertAt);
+
+        final Set<String> originalChunks = new HashSet<String>();
+        for (final byte[] chunk : chunk(new ByteArrayInputStream(original)))
+        {
+            originalChunks.add(new String(chunk, "ISO-8859-1"));
+        }
+
+        final List<byte[]> modifiedChunks = chunk(new ByteArrayInputStream(modified));
+        int changed = 0;
+        for (final byte[] chunk : modifiedChunks)
+        {
+            if (!originalChunks.contains(new String(chunk, "ISO-8859-1")))
+            {
+                changed++;
+            }
+        }
+        assertTrue("Too many changed chunks: " + changed, changed <= 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSizesAreRejected()
+    {
+        new FastCdcChunker(new ByteArrayInputStream(new byte[0]), AVERAGE_SIZE, AVERAGE_SIZE, MAX_SIZE);
+    }
+
+    private static List<byte[]> chunk(final InputStream input) throws IOException
+    {
+        final List<byte[]> chunks = new ArrayList<byte[]>();
+        final FastCdcChunker chunker = new FastCdcChunker(input, MIN_SIZE, AVERAGE_SIZE, MAX_SIZE);
+        while (chunker.next())
+        {
+            final byte[] chunk = new byte[chunker.getChunkLength()];
+            System.arraycopy(chunker.getBuffer(), chunker.getChunkOffset(), chunk, 0, chunk.length);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static byte[] randomBytes(final int length, final long seed)
+    {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,77 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FingerprintingDigestEngine}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FingerprintingDigestEngineTest
+{
+
+    private static final byte[] INPUT = "fingerprinted content".getBytes();
+
+    @Test
+    public void fingerprintDigestsAreCalculatedFromSameBytes() throws Exception
+    {
+        this.assertDigests(null);
+    }
+
+    @Test
+    public void fingerprintDigestsAreCalculatedOnExecutor() throws Exception
+    {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            this.assertDigests(executor);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void engineCanNotBeReset() throws Exception
+    {
+        final FingerprintingDigestEngine engine = new FingerprintingDigestEngine(DigestEngines.acquire("SHA-256"), new MultiDigest(
+                Arrays.asList("MD5"), null), null);
+        engine.reset();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void engineCanNotBePooled() throws Exception
+    {
+        final FingerprintingDigestEngine engine = new FingerprintingDigestEngine(DigestEngines.acquire("SHA-256"), new MultiDigest(
+                Arrays.asList("MD5"), null), null);
+        DigestEngines.release(engine);
+    }
+
+    private void assertDigests(final ExecutorService executor) throws Exception
+    {
+        final FingerprintingDigestEngine engine = new FingerprintingDigestEngine(DigestEngines.acquire("SHA-256"), new MultiDigest(
+                Arrays.asList("MD5", "SHA-1"), null), executor);
+        engine.update(INPUT, 0, 10);
+        engine.update(INPUT, 10, INPUT.length - 10);
+
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(INPUT), engine.digest());
+        final Map<String, byte[]> fingerprintDigests = engine.getFingerprintDigests();
+        assertEquals(2, fingerprintDigests.size());
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(INPUT), fingerprintDigests.get("MD5"));
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(INPUT), fingerprintDigests.get("SHA-1"));
+
+        // completing the digest has already released the fingerprint engines
+        engine.releaseFingerprintDigest();
+        DigestEngines.release(engine.getDelegate());
+    }
+}
@@ -0,0 +1,175 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link FramedCompressor}, {@link FrameIndex} and random access to compressed content via {@link CompressedFileChannel}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class FramedCompressorTest
+{
+
+    private static final int FRAME_SIZE = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indexDescribesFrames() throws Exception
+    {
+        final byte[] content = compressibleBytes(5 * FRAME_SIZE + 100);
+        final File compressed = this.compress(content);
+
+        final RandomAccessFile file = new RandomAccessFile(compressed, "r");
+        try
+        {
+            final FrameIndex index = FrameIndex.read(file);
+            assertEquals(FRAME_SIZE, index.getFrameSize());
+            assertEquals(6, index.getFrameCount());
+            assertEquals(content.length, index.getSize());
+            assertEquals(100, index.getFrameLength(5));
+            assertEquals(FrameIndex.HEADER_SIZE, index.getFrameOffset(0));
+            assertEquals(index.getFrameOffset(0) + index.getCompressedFrameLength(0), index.getFrameOffset(1));
+
+            assertEquals(0, index.findFrame(0));
+            assertEquals(0, index.findFrame(FRAME_SIZE - 1));
+            assertEquals(1, index.findFrame(FRAME_SIZE));
+            assertEquals(5, index.findFrame(content.length - 1));
+            assertEquals(-1, index.findFrame(content.length));
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    @Test
+    public void positionalReadsReturnUncompressedContent() throws Exception
+    {
+        final byte[] content = compressibleBytes(7 * FRAME_SIZE + 1234);
+        final CompressedFileChannel channel = new CompressedFileChannel(this.compress(content));
+        try
+        {
+            assertEquals(content.length, channel.size());
+
+            // frame starts, positions within frames, reads straddling frames and reads of the last partial frame - in random order
+            final long[] positions = new long[] { 3 * FRAME_SIZE, 0, FRAME_SIZE - 10, 7 * FRAME_SIZE + 1000, 100, 2 * FRAME_SIZE + 17,
+                    content.length - 1 };
+            for (final long position : positions)
+            {
+                final ByteBuffer buffer = ByteBuffer.allocate(FRAME_SIZE + 100);
+                final int read = channel.read(buffer, position);
+                final int expected = (int) Math.min(buffer.capacity(), content.length - position);
+                assertEquals("Read at " + position, expected, read);
+
+                final byte[] expectedBytes = new byte[expected];
+                System.arraycopy(content, (int) position, expectedBytes, 0, expected);
+                final byte[] actualBytes = new byte[read];
+                buffer.flip();
+                buffer.get(actualBytes);
+                assertArrayEquals("Read at " + position, expectedBytes, actualBytes);
+            }
+
+            assertEquals(-1, channel.read(ByteBuffer.allocate(10), content.length));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void sequentialReadsReturnUncompressedContent() throws Exception
+    {
+        // exact multiple of the frame size
+        final byte[] content = compressibleBytes(4 * FRAME_SIZE);
+        final CompressedFileChannel channel = new CompressedFileChannel(this.compress(content));
+        try
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate(content.length + 10);
+            final ByteBuffer chunk = ByteBuffer.allocate(1000);
+            while (channel.read(chunk) > 0)
+            {
+                chunk.flip();
+                buffer.put(chunk);
+                chunk.clear();
+                assertEquals(buffer.position(), channel.position());
+            }
+
+            assertEquals(content.length, buffer.position());
+            final byte[] actual = new byte[content.length];
+            buffer.flip();
+            buffer.get(actual);
+            assertArrayEquals(content, actual);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void incompressibleContentIsRejected() throws Exception
+    {
+        final byte[] content = new byte[10 * FRAME_SIZE];
+        new Random(42).nextBytes(content);
+
+        final File source = this.folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+        assertNull(new FramedCompressor(FRAME_SIZE, 6, 0.9d).compress(source, this.folder.newFile()));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedContentIsRejected() throws Exception
+    {
+        final File compressed = this.compress(compressibleBytes(3 * FRAME_SIZE));
+        final RandomAccessFile file = new RandomAccessFile(compressed, "rw");
+        try
+        {
+            file.setLength(file.length() - 1);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        new CompressedFileChannel(compressed).close();
+    }
+
+    private File compress(final byte[] content) throws IOException
+    {
+        final File source = this.folder.newFile();
+        FileUtils.writeByteArrayToFile(source, content);
+
+        final File target = this.folder.newFile();
+        assertNotNull(new FramedCompressor(FRAME_SIZE, 6, 0.9d).compress(source, target));
+        return target;
+    }
+
+    private static byte[] compressibleBytes(final int length)
+    {
+        // small alphabet so deflate has something to work with, but not a trivial pattern
+        final Random random = new Random(length);
+        final byte[] bytes = new byte[length];
+        for (int idx = 0; idx < length; idx++)
+        {
+            bytes[idx] = (byte) ('a' + random.nextInt(4));
+        }
+        return bytes;
+    }
+}
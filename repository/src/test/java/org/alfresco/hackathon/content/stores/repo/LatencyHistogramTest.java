@@ -0,0 +1,112 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class LatencyHistogramTest
+{
+
+    @Test
+    public void bucketsCoverValues()
+    {
+        final Random random = new Random(42);
+        for (int idx = 0; idx < 100000; idx++)
+        {
+            // spread over the full range of magnitudes
+            final long value = idx < 1000 ? idx : random.nextLong() >>> random.nextInt(64);
+            final int bucket = LatencyHistogram.bucketOf(value);
+            final long lowerBound = LatencyHistogram.lowerBoundOf(bucket);
+            assertTrue("Value " + value + " below bucket " + bucket, lowerBound <= value);
+            assertTrue("Value " + value + " above bucket " + bucket, value - lowerBound < LatencyHistogram.widthOf(bucket));
+        }
+        assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE - 1), LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinPrecision()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++)
+        {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000000, histogram.getMax());
+        assertEquals(50000500d, histogram.getMean(), 0.001d);
+
+        for (final double percentile : new double[] { 1, 50, 90, 99, 99.9, 100 })
+        {
+            final double expected = percentile * 1000 * 1000;
+            final long actual = histogram.getPercentile(percentile);
+            assertTrue("Percentile " + percentile + " is " + actual, Math.abs(actual - expected) <= expected * 0.125d);
+        }
+    }
+
+    @Test
+    public void percentileNeverExceedsMaximum()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        // lower bound of its bucket - the middle of the bucket would be larger
+        histogram.record(1024);
+        assertEquals(1024, histogram.getPercentile(50));
+        assertEquals(1024, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void emptyAndResetHistogramsReportZero()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0d, histogram.getMean(), 0d);
+
+        histogram.record(5000);
+        histogram.record(-1);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecordingIsNotLost() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int idx = 0; idx < threads.length; idx++)
+        {
+            threads[idx] = new Thread()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void run()
+                {
+                    for (int value = 0; value < 100000; value++)
+                    {
+                        histogram.record(value);
+                    }
+                }
+            };
+            threads[idx].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999, histogram.getMax());
+    }
+}
@@ -0,0 +1,145 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link PipelinedDigestingChannel}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class PipelinedDigestingChannelTest
+{
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    private DirectBufferPool bufferPool;
+
+    @Before
+    public void setUp()
+    {
+        this.executor = Executors.newFixedThreadPool(2);
+        this.bufferPool = new DirectBufferPool(BUFFER_SIZE, 4);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void contentAndDigestMatchWrittenBytes() throws Exception
+    {
+        for (final int maxBuffersInFlight : new int[] { 1, 4 })
+        {
+            // writes smaller than, equal to and larger than the buffers, ending with a partial buffer
+            final byte[] content = randomBytes(20 * BUFFER_SIZE + 123);
+            this.writeAndVerify(content, new int[] { 100, BUFFER_SIZE, 3 * BUFFER_SIZE + 5, 1 }, maxBuffersInFlight);
+        }
+    }
+
+    @Test
+    public void emptyContentIsDigested() throws Exception
+    {
+        this.writeAndVerify(new byte[0], new int[] { 1 }, 2);
+    }
+
+    @Test
+    public void contentIsDigestedWithoutExecutor() throws Exception
+    {
+        this.executor.shutdown();
+        this.writeAndVerify(randomBytes(5 * BUFFER_SIZE), new int[] { 1000 }, 2);
+    }
+
+    @Test
+    public void digestFailureIsReported() throws Exception
+    {
+        final DigestEngine failingEngine = new MessageDigestEngine(MessageDigest.getInstance("SHA-256"))
+        {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void update(final ByteBuffer input)
+            {
+                throw new IllegalStateException("Simulated failure");
+            }
+        };
+
+        final PipelinedDigestingChannel channel = new PipelinedDigestingChannel(new FileOutputStream(this.folder.newFile()).getChannel(),
+                failingEngine, this.bufferPool, this.executor, 2);
+        try
+        {
+            channel.write(ByteBuffer.wrap(randomBytes(3 * BUFFER_SIZE)));
+            channel.close();
+            fail("Digest failure not reported");
+        }
+        catch (final IOException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void writeAfterCloseIsRejected() throws Exception
+    {
+        final PipelinedDigestingChannel channel = new PipelinedDigestingChannel(new FileOutputStream(this.folder.newFile()).getChannel(),
+                new MessageDigestEngine(MessageDigest.getInstance("SHA-256")), this.bufferPool, this.executor, 2);
+        channel.close();
+        channel.write(ByteBuffer.allocate(1));
+    }
+
+    private void writeAndVerify(final byte[] content, final int[] writeSizes, final int maxBuffersInFlight) throws Exception
+    {
+        final File file = this.folder.newFile();
+        final DigestEngine engine = new MessageDigestEngine(MessageDigest.getInstance("SHA-256"));
+        final PipelinedDigestingChannel channel = new PipelinedDigestingChannel(new FileOutputStream(file).getChannel(), engine,
+                this.bufferPool, this.executor, maxBuffersInFlight);
+
+        int offset = 0;
+        int writeIdx = 0;
+        while (offset < content.length)
+        {
+            final int length = Math.min(writeSizes[writeIdx++ % writeSizes.length], content.length - offset);
+            assertEquals(length, channel.write(ByteBuffer.wrap(content, offset, length)));
+            offset += length;
+        }
+        channel.close();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), engine.digest());
+    }
+
+    private static byte[] randomBytes(final int length)
+    {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
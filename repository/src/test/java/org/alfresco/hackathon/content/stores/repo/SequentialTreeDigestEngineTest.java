@@ -0,0 +1,39 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SequentialTreeDigestEngine}, which must calculate the same digests as {@link TreeDigestEngine}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class SequentialTreeDigestEngineTest
+{
+
+    @Test
+    public void digestMatchesDefinition() throws Exception
+    {
+        final SequentialTreeDigestEngine engine = new SequentialTreeDigestEngine(TreeDigestEngineTest.ALGORITHM,
+                TreeDigestEngineTest.LEAF_SIZE);
+        try
+        {
+            for (final int length : TreeDigestEngineTest.LENGTHS)
+            {
+                final byte[] input = TreeDigestEngineTest.input(length);
+                engine.update(input, 0, input.length);
+                assertArrayEquals("Length " + length, TreeDigestEngineTest.expectedDigest(input), engine.digest());
+
+                engine.update(ByteBuffer.wrap(input));
+                assertArrayEquals("Length " + length, TreeDigestEngineTest.expectedDigest(input), engine.digest());
+            }
+        }
+        finally
+        {
+            engine.release();
+        }
+    }
+}
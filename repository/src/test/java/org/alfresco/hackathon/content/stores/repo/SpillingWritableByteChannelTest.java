@@ -0,0 +1,132 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.alfresco.hackathon.content.stores.repo.SpillingWritableByteChannel.SpillTarget;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SpillingWritableByteChannel}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class SpillingWritableByteChannelTest
+{
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private DirectBufferPool bufferPool;
+
+    private DigestEngine digestEngine;
+
+    private ByteArrayOutputStream spilledContent;
+
+    private int spillCount;
+
+    private final SpillTarget spillTarget = new SpillTarget()
+    {
+
+        public WritableByteChannel openSpillChannel() throws IOException
+        {
+            SpillingWritableByteChannelTest.this.spillCount++;
+            return Channels.newChannel(SpillingWritableByteChannelTest.this.spilledContent);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.bufferPool = new DirectBufferPool(BUFFER_SIZE, 2);
+        this.digestEngine = new MessageDigestEngine(MessageDigest.getInstance("SHA-256"));
+        this.spilledContent = new ByteArrayOutputStream();
+        this.spillCount = 0;
+    }
+
+    @Test
+    public void smallContentStaysInMemory() throws Exception
+    {
+        // exactly fills the buffer
+        final byte[] content = randomBytes(BUFFER_SIZE);
+        final SpillingWritableByteChannel channel = new SpillingWritableByteChannel(this.digestEngine, this.spillTarget, this.bufferPool);
+        channel.write(ByteBuffer.wrap(content, 0, 1000));
+        channel.write(ByteBuffer.wrap(content, 1000, content.length - 1000));
+        assertNull("Content must not be visible before close", channel.getBufferedContent());
+        assertEquals(content.length, channel.getBufferedSize());
+        channel.close();
+
+        assertFalse(channel.isSpilled());
+        assertEquals(0, this.spillCount);
+        assertEquals(content.length, channel.getBufferedSize());
+        assertArrayEquals(content, toBytes(channel.getBufferedContent()));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), this.digestEngine.digest());
+
+        channel.release();
+        assertNull(channel.getBufferedContent());
+    }
+
+    @Test
+    public void largeContentIsSpilledOnce() throws Exception
+    {
+        final byte[] content = randomBytes(3 * BUFFER_SIZE + 17);
+        final SpillingWritableByteChannel channel = new SpillingWritableByteChannel(this.digestEngine, this.spillTarget, this.bufferPool);
+        for (int offset = 0; offset < content.length; offset += 1000)
+        {
+            channel.write(ByteBuffer.wrap(content, offset, Math.min(1000, content.length - offset)));
+        }
+        channel.close();
+
+        assertTrue(channel.isSpilled());
+        assertEquals(1, this.spillCount);
+        assertEquals(0, channel.getBufferedSize());
+        assertNull(channel.getBufferedContent());
+        assertArrayEquals(content, this.spilledContent.toByteArray());
+    }
+
+    @Test
+    public void emptyContentIsDigested() throws Exception
+    {
+        final SpillingWritableByteChannel channel = new SpillingWritableByteChannel(this.digestEngine, this.spillTarget, this.bufferPool);
+        channel.close();
+
+        assertFalse(channel.isSpilled());
+        assertEquals(0, channel.getBufferedContent().remaining());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), this.digestEngine.digest());
+        channel.release();
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void writeAfterCloseIsRejected() throws Exception
+    {
+        final SpillingWritableByteChannel channel = new SpillingWritableByteChannel(this.digestEngine, this.spillTarget, this.bufferPool);
+        channel.close();
+        channel.write(ByteBuffer.allocate(1));
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer)
+    {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] randomBytes(final int length)
+    {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,150 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TreeDigestEngine} against a straightforward implementation of the documented tree digest.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class TreeDigestEngineTest
+{
+
+    protected static final String ALGORITHM = "SHA-256";
+
+    protected static final int LEAF_SIZE = 1024;
+
+    protected static final int[] LENGTHS = new int[] { 0, 1, LEAF_SIZE - 1, LEAF_SIZE, LEAF_SIZE + 1, 2 * LEAF_SIZE, 3 * LEAF_SIZE,
+            3 * LEAF_SIZE + 7, 17 * LEAF_SIZE };
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        this.executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void digestMatchesDefinition() throws Exception
+    {
+        // a single pending leaf forces back pressure on every full leaf
+        final TreeDigestEngine engine = new TreeDigestEngine(ALGORITHM, LEAF_SIZE, this.executor, 1);
+        try
+        {
+            for (final int length : LENGTHS)
+            {
+                final byte[] input = input(length);
+                engine.update(input, 0, input.length);
+                assertArrayEquals("Length " + length, expectedDigest(input), engine.digest());
+            }
+        }
+        finally
+        {
+            engine.release();
+        }
+    }
+
+    @Test
+    public void bufferAndSmallUpdatesMatchDefinition() throws Exception
+    {
+        final TreeDigestEngine engine = new TreeDigestEngine(ALGORITHM, LEAF_SIZE, this.executor, 4);
+        try
+        {
+            for (final int length : LENGTHS)
+            {
+                final byte[] input = input(length);
+                for (int offset = 0; offset < length; offset += 100)
+                {
+                    engine.update(ByteBuffer.wrap(input, offset, Math.min(100, length - offset)));
+                }
+                assertArrayEquals("Length " + length, expectedDigest(input), engine.digest());
+            }
+        }
+        finally
+        {
+            engine.release();
+        }
+    }
+
+    @Test
+    public void treeDigestDiffersFromPlainDigest() throws Exception
+    {
+        final TreeDigestEngine engine = new TreeDigestEngine(ALGORITHM, LEAF_SIZE, this.executor, 4);
+        try
+        {
+            final byte[] input = input(10);
+            engine.update(input, 0, input.length);
+            assertFalse(Arrays.equals(MessageDigest.getInstance(ALGORITHM).digest(input), engine.digest()));
+        }
+        finally
+        {
+            engine.release();
+        }
+    }
+
+    @Test
+    public void resetDiscardsPendingLeaves() throws Exception
+    {
+        final TreeDigestEngine engine = new TreeDigestEngine(ALGORITHM, LEAF_SIZE, this.executor, 4);
+        try
+        {
+            final byte[] discarded = input(5 * LEAF_SIZE + 3);
+            engine.update(discarded, 0, discarded.length);
+            engine.reset();
+
+            final byte[] input = input(2 * LEAF_SIZE + 1);
+            engine.update(input, 0, input.length);
+            assertArrayEquals(expectedDigest(input), engine.digest());
+        }
+        finally
+        {
+            engine.release();
+        }
+    }
+
+    protected static byte[] expectedDigest(final byte[] input) throws Exception
+    {
+        final MessageDigest root = MessageDigest.getInstance(ALGORITHM);
+        root.update((byte) 0x01);
+
+        final MessageDigest leaf = MessageDigest.getInstance(ALGORITHM);
+        int offset = 0;
+        do
+        {
+            final int length = Math.min(LEAF_SIZE, input.length - offset);
+            leaf.update((byte) 0x00);
+            leaf.update(input, offset, length);
+            root.update(leaf.digest());
+            offset += length;
+        }
+        while (offset < input.length);
+
+        return root.digest();
+    }
+
+    protected static byte[] input(final int length)
+    {
+        final byte[] input = new byte[length];
+        new Random(length).nextBytes(input);
+        return input;
+    }
+}
@@ -0,0 +1,148 @@
+package org.alfresco.hackathon.content.stores.repo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link VolumeRing}.
+ *
+ * @author Axel Faust, <a href="http://www.prodyna.com">PRODYNA AG</a>
+ */
+public class VolumeRingTest
+{
+
+    private static final int PREFIX_COUNT = 1 << (4 * VolumeRing.PREFIX_LENGTH);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void placementIsIndependentOfConfigurationOrder()
+    {
+        final ContentVolume volumeA = volume("a");
+        final ContentVolume volumeB = volume("b");
+        final ContentVolume volumeC = volume("c");
+        final VolumeRing ring = new VolumeRing(Arrays.asList(volumeA, volumeB, volumeC));
+        final VolumeRing reorderedRing = new VolumeRing(Arrays.asList(volumeC, volumeA, volumeB));
+
+        assertEquals(ring, reorderedRing);
+        for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+        {
+            final String digest = digest(prefix);
+            assertSame(ring.getVolume(digest), reorderedRing.getVolume(digest));
+        }
+    }
+
+    @Test
+    public void prefixesAreSpreadOverVolumes()
+    {
+        final List<ContentVolume> volumes = Arrays.asList(volume("a"), volume("b"), volume("c"), volume("d"));
+        final VolumeRing ring = new VolumeRing(volumes);
+
+        final Map<ContentVolume, Integer> counts = new HashMap<ContentVolume, Integer>();
+        for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+        {
+            final ContentVolume volume = ring.getVolume(digest(prefix));
+            final Integer count = counts.get(volume);
+            counts.put(volume, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+        }
+
+        for (final ContentVolume volume : volumes)
+        {
+            final int share = counts.get(volume).intValue();
+            assertTrue("Uneven share of " + volume + ": " + share, share > PREFIX_COUNT / 8 && share < PREFIX_COUNT / 2);
+        }
+    }
+
+    @Test
+    public void addedVolumeOnlyTakesOverPrefixes()
+    {
+        final ContentVolume volumeA = volume("a");
+        final ContentVolume volumeB = volume("b");
+        final ContentVolume volumeC = volume("c");
+        final ContentVolume volumeD = volume("d");
+        final VolumeRing previousRing = new VolumeRing(Arrays.asList(volumeA, volumeB, volumeC));
+        final VolumeRing ring = new VolumeRing(Arrays.asList(volumeA, volumeB, volumeC, volumeD));
+        final FanOutWalker.DirectoryFilter filter = ring.getChangedPrefixFilter(previousRing);
+
+        int moved = 0;
+        for (int prefix = 0; prefix < PREFIX_COUNT; prefix++)
+        {
+            final String digest = digest(prefix);
+            final ContentVolume volume = ring.getVolume(digest);
+            final boolean changed = volume != previousRing.getVolume(digest);
+            if (changed)
+            {
+                assertSame("Prefix moved between existing volumes", volumeD, volume);
+                moved++;
+            }
+
+            assertEquals(changed, filter.accept(digest.substring(0, VolumeRing.PREFIX_LENGTH)));
+            if (changed)
+            {
+                // parent directories of moved content need to be visited as well
+                assertTrue(filter.accept(digest.substring(0, 2)));
+                assertTrue(filter.accept(digest));
+            }
+        }
+
+        assertTrue("Unexpected number of moved prefixes: " + moved, moved > PREFIX_COUNT / 8 && moved < PREFIX_COUNT / 2);
+        assertTrue(filter.accept(""));
+        assertFalse("Directories not created by the store must not be visited", filter.accept("xyz"));
+        assertFalse(ring.getChangedPrefixFilter(ring).accept(""));
+    }
+
+    @Test
+    public void nonHexDigestsAreNotPlaced()
+    {
+        final VolumeRing ring = new VolumeRing(Arrays.asList(volume("a")));
+        assertNull(ring.getVolume("01G3456"));
+        assertNull(ring.getVolume("012"));
+        assertSame(ring.getVolumes().get(0), ring.getVolume("0123"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateVolumesAreRejected()
+    {
+        new VolumeRing(Arrays.asList(volume("a"), volume("a")));
+    }
+
+    @Test
+    public void volumeIdsAreSavedAndLoaded()
+    {
+        final File file = new File(this.folder.getRoot(), "volumes.properties");
+        assertNull(VolumeRing.loadVolumeIds(file));
+
+        final VolumeRing ring = new VolumeRing(Arrays.asList(volume("b"), volume("a")));
+        VolumeRing.saveVolumeIds(file, ring.getVolumeIds());
+        final SortedSet<String> volumeIds = VolumeRing.loadVolumeIds(file);
+        assertEquals(ring.getVolumeIds(), volumeIds);
+        assertEquals("a,b", VolumeRing.formatVolumeIds(volumeIds));
+        assertEquals(volumeIds, VolumeRing.parseVolumeIds(" b, ,a "));
+    }
+
+    private ContentVolume volume(final String id)
+    {
+        return new ContentVolume(id, new File(this.folder.getRoot(), id));
+    }
+
+    private static String digest(final int prefix)
+    {
+        final String hex = Integer.toHexString(prefix | PREFIX_COUNT).substring(1).toUpperCase();
+        return hex + "89ABCDEF";
+    }
+}